@@ -17,6 +17,7 @@ package com.android.helper.aoa;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Range;
 import com.google.common.primitives.Bytes;
@@ -24,12 +25,19 @@ import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.awt.*;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * USB connected AOAv2-compatible Android device.
@@ -37,6 +45,10 @@ import javax.annotation.Nonnull;
  * <p>This host-side utility can be used to send commands (e.g. clicks, swipes, keystrokes, and
  * more) to a connected device without the need for ADB.
  *
+ * <p>The HID reports of an action are queued with their timing relative to each other and sent
+ * against a monotonic clock, so that the time spent in USB transfers does not stretch gestures.
+ * Reports are sent asynchronously, so a slow transfer does not delay the reports after it.
+ *
  * @see <a href="https://source.android.com/devices/accessories/aoa2">Android Open Accessory
  *     Protocol 2.0</a>
  */
@@ -66,6 +78,27 @@ public class AoaDevice implements AutoCloseable {
     static final byte TOUCH_UP = 0b00;
     static final byte TOUCH_DOWN = 0b11;
 
+    // Touch screen resolution, and placeholders for it in the HID descriptors
+    static final Dimension DEFAULT_RESOLUTION = new Dimension(360, 640);
+    static final int MAX_RESOLUTION = Short.MAX_VALUE;
+    private static final int X_MAX = -1;
+    private static final int Y_MAX = -2;
+
+    // Keyboard modifiers, and the maximum number of keys pressed at once
+    static final byte MODIFIER_NONE = 0b00;
+    static final byte MODIFIER_SHIFT = 0b10;
+    static final int MAX_KEYS = 6;
+
+    // US keyboard layout, listing the characters typed with and without shift from usage 0x04 (A)
+    private static final String UNSHIFTED_KEYS =
+            "abcdefghijklmnopqrstuvwxyz1234567890\n\u001B\b\t -=[]\\\0;'`,./";
+    private static final String SHIFTED_KEYS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZ!@#$%^&*()\0\0\0\0\0_+{}|\0:\"~<>?";
+    private static final int FIRST_KEY = 0x04;
+    private static final int SPACE_KEY = 0x2C;
+    private static final int DELETE_KEY = 0x4C;
+    private static final ImmutableMap<Integer, Integer> KEYS = createKeyMap();
+
     // System buttons
     static final byte SYSTEM_WAKE = 0b001;
     static final byte SYSTEM_HOME = 0b010;
@@ -74,19 +107,43 @@ public class AoaDevice implements AutoCloseable {
     // Durations and steps
     private static final Duration CONNECTION_TIMEOUT = Duration.ofSeconds(10L);
     private static final Duration CONFIGURE_DELAY = Duration.ofSeconds(1L);
-    private static final Duration ACTION_DELAY = Duration.ofSeconds(3L);
-    private static final Duration STEP_DELAY = Duration.ofMillis(10L);
+    static final Duration ACTION_DELAY = Duration.ofSeconds(3L);
+    static final Duration STEP_DELAY = Duration.ofMillis(10L);
     static final Duration LONG_CLICK = Duration.ofSeconds(1L);
     static final int SCROLL_STEPS = 40;
     static final int FLING_STEPS = 10;
+    static final int GESTURE_STEPS = 20;
+    static final int PINCH_RATIO = 4;
+    static final int MAX_PENDING_EVENTS = 8;
 
     private final UsbHelper mHelper;
+    private final Dimension mResolution;
     private UsbDevice mDelegate;
     private String mSerialNumber;
+    private Duration mActionDelay = ACTION_DELAY;
+    private Duration mKeyDelay = STEP_DELAY;
+
+    // HID reports of the current action, and the offset at which the action ends
+    private final List<HidReport> mQueue = new ArrayList<>();
+    private long mQueueEndNanos;
 
     AoaDevice(@Nonnull UsbHelper helper, @Nonnull UsbDevice delegate) {
+        this(helper, delegate, DEFAULT_RESOLUTION);
+    }
+
+    AoaDevice(
+            @Nonnull UsbHelper helper,
+            @Nonnull UsbDevice delegate,
+            @Nonnull Dimension resolution) {
+        if (resolution.width < 1
+                || resolution.width > MAX_RESOLUTION
+                || resolution.height < 1
+                || resolution.height > MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Invalid touch screen resolution: " + resolution);
+        }
         mHelper = helper;
         mDelegate = delegate;
+        mResolution = new Dimension(resolution);
         initialize();
     }
 
@@ -121,7 +178,7 @@ public class AoaDevice implements AutoCloseable {
                             OUTPUT,
                             ACCESSORY_REGISTER_HID,
                             hid.getId(),
-                            hid.getDescriptor().length,
+                            hid.getDescriptor(mResolution).length,
                             new byte[0]));
             // register HID descriptor
             mHelper.checkResult(
@@ -130,7 +187,7 @@ public class AoaDevice implements AutoCloseable {
                             ACCESSORY_SET_HID_REPORT_DESC,
                             hid.getId(),
                             0,
-                            hid.getDescriptor()));
+                            hid.getDescriptor(mResolution)));
         }
         sleep(CONFIGURE_DELAY);
     }
@@ -176,11 +233,60 @@ public class AoaDevice implements AutoCloseable {
                 && ADB_PID.contains(mDelegate.getProductId());
     }
 
+    /**
+     * @return logical touch screen resolution, which coordinates are relative to and which is
+     *     scaled to the device's screen
+     */
+    @Nonnull
+    public Dimension getResolution() {
+        return new Dimension(mResolution);
+    }
+
+    /** @return delay after each action */
+    @Nonnull
+    public Duration getActionDelay() {
+        return mActionDelay;
+    }
+
+    /**
+     * Set the delay after each action, which gives the device time to react before the next one.
+     * Scripts which wait for the device themselves can set this to zero.
+     */
+    public void setActionDelay(@Nonnull Duration delay) {
+        if (delay.isNegative()) {
+            throw new IllegalArgumentException("Negative action delay: " + delay);
+        }
+        mActionDelay = delay;
+    }
+
+    /** @return minimum delay between keyboard reports */
+    @Nonnull
+    public Duration getKeyDelay() {
+        return mKeyDelay;
+    }
+
+    /**
+     * Set the minimum delay between keyboard reports, which limits the rate of typing. This can be
+     * zero if the device keeps up with reports sent as fast as the USB connection allows.
+     */
+    public void setKeyDelay(@Nonnull Duration delay) {
+        if (delay.isNegative()) {
+            throw new IllegalArgumentException("Negative key delay: " + delay);
+        }
+        mKeyDelay = delay;
+    }
+
     /** Wait for a specified duration. */
     public void sleep(@Nonnull Duration duration) {
         Uninterruptibles.sleepUninterruptibly(duration.toNanos(), TimeUnit.NANOSECONDS);
     }
 
+    /** @return current value of a monotonic clock, in nanoseconds */
+    @VisibleForTesting
+    long uptimeNanos() {
+        return System.nanoTime();
+    }
+
     /** Perform a click. */
     public void click(@Nonnull Point point) {
         click(point, Duration.ZERO);
@@ -194,7 +300,8 @@ public class AoaDevice implements AutoCloseable {
     // Click and wait at a location.
     private void click(Point point, Duration duration) {
         touch(TOUCH_DOWN, point, duration);
-        touch(TOUCH_UP, point, ACTION_DELAY);
+        touch(TOUCH_UP, point, mActionDelay);
+        flush();
     }
 
     /** Scroll from one location to another. */
@@ -223,40 +330,166 @@ public class AoaDevice implements AutoCloseable {
             Point point = new Point((int) (from.x + xStep * i), (int) (from.y + yStep * i));
             touch(TOUCH_DOWN, point, STEP_DELAY);
         }
-        touch(TOUCH_UP, to, ACTION_DELAY);
+        touch(TOUCH_UP, to, mActionDelay);
+        flush();
+    }
+
+    /**
+     * Pinch two fingers together, towards a location.
+     *
+     * @param center location between the fingers
+     * @param radius initial distance from each finger to the center
+     */
+    public void pinch(@Nonnull Point center, int radius) {
+        multiTouch(center, radius, radius / PINCH_RATIO, 0.0, 0.0);
     }
 
-    // Send a touch event to the device
+    /**
+     * Spread two fingers apart, away from a location.
+     *
+     * @param center location between the fingers
+     * @param radius final distance from each finger to the center
+     */
+    public void zoom(@Nonnull Point center, int radius) {
+        multiTouch(center, radius / PINCH_RATIO, radius, 0.0, 0.0);
+    }
+
+    /**
+     * Rotate two fingers around a location.
+     *
+     * @param center location between the fingers
+     * @param radius distance from each finger to the center
+     * @param degrees angle to rotate by, clockwise on the screen if positive
+     */
+    public void rotate(@Nonnull Point center, int radius, double degrees) {
+        multiTouch(center, radius, radius, 0.0, degrees);
+    }
+
+    // Move two fingers on opposite sides of a center location using discrete steps, interpolating
+    // their distance from the center and their angle (starting from the X axis)
+    private void multiTouch(
+            Point center, int fromRadius, int toRadius, double fromDegrees, double toDegrees) {
+        Point[] contacts = null;
+        for (int i = 0; i <= GESTURE_STEPS; i++) {
+            double progress = (double) i / GESTURE_STEPS;
+            double radius = fromRadius + (toRadius - fromRadius) * progress;
+            double angle = Math.toRadians(fromDegrees + (toDegrees - fromDegrees) * progress);
+            long dx = Math.round(radius * Math.cos(angle));
+            long dy = Math.round(radius * Math.sin(angle));
+            contacts =
+                    new Point[] {
+                        new Point((int) (center.x + dx), (int) (center.y + dy)),
+                        new Point((int) (center.x - dx), (int) (center.y - dy))
+                    };
+            multiTouch(TOUCH_DOWN, contacts, STEP_DELAY);
+        }
+        multiTouch(TOUCH_UP, contacts, mActionDelay);
+        flush();
+    }
+
+    // Queue a touch event
     private void touch(byte type, Point point, Duration pause) {
-        int x = Math.min(Math.max(point.x, 0), 360);
-        int y = Math.min(Math.max(point.y, 0), 640);
-        byte[] data = new byte[] {type, (byte) x, (byte) (x >> 8), (byte) y, (byte) (y >> 8)};
-        send(HID.TOUCH_SCREEN, data, pause);
+        queue(HID.TOUCH_SCREEN, Bytes.concat(new byte[] {type}, coordinates(point)), pause);
+    }
+
+    // Queue a multi-touch event, with all contacts of the same type
+    private void multiTouch(byte type, Point[] contacts, Duration pause) {
+        byte[][] data = new byte[contacts.length + 1][];
+        for (int id = 0; id < contacts.length; id++) {
+            data[id] = Bytes.concat(new byte[] {type, (byte) id}, coordinates(contacts[id]));
+        }
+        // contact count
+        data[contacts.length] = new byte[] {(byte) contacts.length};
+        queue(HID.MULTI_TOUCH_SCREEN, Bytes.concat(data), pause);
+    }
+
+    // Encode a location as 16-bit little-endian X and Y coordinates within the resolution
+    private byte[] coordinates(Point point) {
+        int x = Math.min(Math.max(point.x, 0), mResolution.width);
+        int y = Math.min(Math.max(point.y, 0), mResolution.height);
+        return new byte[] {(byte) x, (byte) (x >> 8), (byte) y, (byte) (y >> 8)};
     }
 
     /**
-     * Write a string by pressing keys. Only alphanumeric characters and whitespace is supported.
+     * Write a string by pressing keys, using a US keyboard layout. Printable ASCII characters,
+     * whitespace, backspace, escape and delete are supported, and other characters are skipped.
+     * Several keys are pressed at once where possible, so long strings need few reports.
      *
      * @param value string to write
      */
     public void write(@Nonnull String value) {
-        // map characters to HID usages
-        Integer[] keyCodes =
-                value.codePoints()
-                        .mapToObj(
-                                c -> {
-                                    if (Character.isSpaceChar(c)) {
-                                        return 0x2C;
-                                    } else if (Character.isAlphabetic(c)) {
-                                        return Character.toLowerCase(c) - 'a' + 0x04;
-                                    } else if (Character.isDigit(c)) {
-                                        return c == '0' ? 0x27 : c - '1' + 0x1E;
-                                    }
-                                    return null;
-                                })
-                        .toArray(Integer[]::new);
-        // press the keys
-        key(keyCodes);
+        List<byte[]> reports = encodeText(value);
+        for (int i = 0; i < reports.size(); i++) {
+            queue(HID.KEYBOARD, reports.get(i), i < reports.size() - 1 ? mKeyDelay : mActionDelay);
+        }
+        flush();
+    }
+
+    /**
+     * Encode a string as keyboard reports, alternating between pressing keys and releasing them.
+     * Keys pressed in the same report are handled in order, so a new report is only necessary if
+     * the modifiers change, a key repeats, or more than {@link #MAX_KEYS} keys are pressed.
+     */
+    @VisibleForTesting
+    static List<byte[]> encodeText(@Nonnull String value) {
+        List<byte[]> reports = new ArrayList<>();
+        byte[] report = null;
+        int count = 0;
+        for (int c : value.codePoints().toArray()) {
+            Integer key = getKey(c);
+            if (key == null) {
+                continue;
+            }
+            byte modifiers = (byte) (key >> 8);
+            byte usage = key.byteValue();
+            if (report == null
+                    || report[0] != modifiers
+                    || count == MAX_KEYS
+                    || Bytes.contains(Arrays.copyOfRange(report, 1, count + 1), usage)) {
+                // press the keys so far and release them before starting a new report
+                if (report != null) {
+                    reports.add(report);
+                    reports.add(keyReport(MODIFIER_NONE));
+                }
+                report = keyReport(modifiers);
+                count = 0;
+            }
+            report[++count] = usage;
+        }
+        if (report != null) {
+            reports.add(report);
+            reports.add(keyReport(MODIFIER_NONE));
+        }
+        return reports;
+    }
+
+    // Map a character to its modifiers (upper byte) and HID usage (lower byte)
+    @Nullable
+    private static Integer getKey(int c) {
+        return Character.isSpaceChar(c) ? Integer.valueOf(SPACE_KEY) : KEYS.get(c);
+    }
+
+    // Index the US keyboard layout by character
+    private static ImmutableMap<Integer, Integer> createKeyMap() {
+        ImmutableMap.Builder<Integer, Integer> builder = ImmutableMap.builder();
+        for (int i = 0; i < UNSHIFTED_KEYS.length(); i++) {
+            if (UNSHIFTED_KEYS.charAt(i) != '\0') {
+                builder.put((int) UNSHIFTED_KEYS.charAt(i), FIRST_KEY + i);
+            }
+            if (SHIFTED_KEYS.charAt(i) != '\0') {
+                builder.put((int) SHIFTED_KEYS.charAt(i), (MODIFIER_SHIFT << 8) | (FIRST_KEY + i));
+            }
+        }
+        builder.put(0x7F, DELETE_KEY);
+        return builder.build();
+    }
+
+    // Create a keyboard report with modifiers, and optionally keys
+    private static byte[] keyReport(byte modifiers, byte... usages) {
+        byte[] report = new byte[MAX_KEYS + 1];
+        report[0] = modifiers;
+        System.arraycopy(usages, 0, report, 1, usages.length);
+        return report;
     }
 
     /**
@@ -269,39 +502,97 @@ public class AoaDevice implements AutoCloseable {
         Iterator<Integer> it = Arrays.stream(keyCodes).filter(Objects::nonNull).iterator();
         while (it.hasNext()) {
             Integer keyCode = it.next();
-            send(HID.KEYBOARD, new byte[] {keyCode.byteValue()}, STEP_DELAY);
-            send(HID.KEYBOARD, new byte[] {(byte) 0}, it.hasNext() ? STEP_DELAY : ACTION_DELAY);
+            queue(HID.KEYBOARD, keyReport(MODIFIER_NONE, keyCode.byteValue()), mKeyDelay);
+            queue(HID.KEYBOARD, keyReport(MODIFIER_NONE), it.hasNext() ? mKeyDelay : mActionDelay);
         }
+        flush();
     }
 
     /** Wake up the device if it is sleeping. */
     public void wakeUp() {
-        send(AoaDevice.HID.SYSTEM, new byte[] {SYSTEM_WAKE}, ACTION_DELAY);
+        send(HID.SYSTEM, new byte[] {SYSTEM_WAKE});
     }
 
     /** Press the device's home button. */
     public void goHome() {
-        send(AoaDevice.HID.SYSTEM, new byte[] {SYSTEM_HOME}, ACTION_DELAY);
+        send(HID.SYSTEM, new byte[] {SYSTEM_HOME});
     }
 
     /** Press the device's back button. */
     public void goBack() {
-        send(AoaDevice.HID.SYSTEM, new byte[] {SYSTEM_BACK}, ACTION_DELAY);
+        send(HID.SYSTEM, new byte[] {SYSTEM_BACK});
     }
 
-    // Send a HID event to the device
-    private void send(HID hid, byte[] data, Duration pause) {
-        int result =
-                mDelegate.controlTransfer(OUTPUT, ACCESSORY_SEND_HID_EVENT, hid.getId(), 0, data);
-        if (result == DEVICE_NOT_FOUND) {
-            // device not found, reset the connection and retry
-            resetConnection();
-            result =
-                    mDelegate.controlTransfer(
-                            OUTPUT, ACCESSORY_SEND_HID_EVENT, hid.getId(), 0, data);
+    // Send a single HID event to the device, and wait for the action delay
+    private void send(HID hid, byte[] data) {
+        queue(hid, data, mActionDelay);
+        flush();
+    }
+
+    // Queue a HID event, to be followed by a pause before the next one
+    private void queue(HID hid, byte[] data, Duration pause) {
+        mQueue.add(new HidReport(hid, data, mQueueEndNanos));
+        mQueueEndNanos += pause.toNanos();
+    }
+
+    // Send the queued HID events to the device, each at its target time relative to the first, and
+    // wait until the end of the last pause. Targets are absolute, so the time spent transferring an
+    // event is deducted from the following pause instead of being added to it. Events are sent
+    // without waiting for earlier ones to complete, up to MAX_PENDING_EVENTS at a time.
+    private void flush() {
+        try {
+            long start = uptimeNanos();
+            Deque<SentReport> pending = new ArrayDeque<>();
+            int next = 0;
+            int retried = -1;
+            while (next < mQueue.size() || !pending.isEmpty()) {
+                SentReport oldest = pending.peek();
+                if (oldest == null || !oldest.mResult.isDone()) {
+                    if (next < mQueue.size() && pending.size() < MAX_PENDING_EVENTS) {
+                        HidReport report = mQueue.get(next);
+                        waitUntil(start + report.mOffsetNanos);
+                        pending.add(new SentReport(next++, transfer(report)));
+                        continue;
+                    }
+                    if (next == mQueue.size()) {
+                        // all sent, let the remaining events complete during the last pause
+                        waitUntil(start + mQueueEndNanos);
+                    }
+                }
+
+                pending.remove();
+                int result = oldest.mResult.join();
+                if (result == DEVICE_NOT_FOUND && oldest.mIndex != retried) {
+                    // device not found, so later events failed too: reset the connection and
+                    // resend from the failed event, shifting the rest to keep their relative timing
+                    pending.forEach(sent -> sent.mResult.join());
+                    pending.clear();
+                    resetConnection();
+                    next = retried = oldest.mIndex;
+                    start = uptimeNanos() - mQueue.get(next).mOffsetNanos;
+                } else {
+                    mHelper.checkResult(result);
+                }
+            }
+            waitUntil(start + mQueueEndNanos);
+        } finally {
+            mQueue.clear();
+            mQueueEndNanos = 0L;
+        }
+    }
+
+    // Start sending a HID event to the device
+    private CompletableFuture<Integer> transfer(HidReport report) {
+        return mDelegate.controlTransferAsync(
+                OUTPUT, ACCESSORY_SEND_HID_EVENT, report.mHid.getId(), 0, report.mData);
+    }
+
+    // Wait until the monotonic clock reaches a target time, if it has not already
+    private void waitUntil(long targetNanos) {
+        long remaining = targetNanos - uptimeNanos();
+        if (remaining > 0L) {
+            sleep(Duration.ofNanos(remaining));
         }
-        mHelper.checkResult(result);
-        sleep(pause);
     }
 
     /** Close the device connection. */
@@ -316,6 +607,30 @@ public class AoaDevice implements AutoCloseable {
         }
     }
 
+    /** HID event queued for sending at an offset from the start of its action. */
+    private static class HidReport {
+        private final HID mHid;
+        private final byte[] mData;
+        private final long mOffsetNanos;
+
+        private HidReport(HID hid, byte[] data, long offsetNanos) {
+            mHid = hid;
+            mData = data;
+            mOffsetNanos = offsetNanos;
+        }
+    }
+
+    /** HID event which has been sent, and the future result of its transfer. */
+    private static class SentReport {
+        private final int mIndex;
+        private final CompletableFuture<Integer> mResult;
+
+        private SentReport(int index, CompletableFuture<Integer> result) {
+            mIndex = index;
+            mResult = result;
+        }
+    }
+
     /**
      * Human interface device descriptors.
      *
@@ -323,7 +638,7 @@ public class AoaDevice implements AutoCloseable {
      */
     @VisibleForTesting
     enum HID {
-        /** 360 x 640 touch screen: 6-bit padding, 2-bit type, 16-bit X coord., 16-bit Y coord. */
+        /** Touch screen: 6-bit padding, 2-bit type, 16-bit X coord., 16-bit Y coord. */
         TOUCH_SCREEN(
                 new Integer[] {
                     0x05, 0x0D, //      Usage Page (Digitizer)
@@ -342,32 +657,113 @@ public class AoaDevice implements AutoCloseable {
                     0x05, 0x01, //          Usage Page (Generic)
                     0x09, 0x30, //          Usage (X)
                     0x15, 0x00, //          Logical Minimum (0)
-                    0x26, 0x68, 0x01, //    Logical Maximum (360)
+                    0x26, X_MAX, //         Logical Maximum (width)
                     0x75, 0x10, //          Report Size (16)
                     0x95, 0x01, //          Report Count (1)
                     0x81, 0x02, //          Input (Data, Variable, Absolute)
                     0x09, 0x31, //          Usage (Y)
                     0x15, 0x00, //          Logical Minimum (0)
-                    0x26, 0x80, 0x02, //    Logical Maximum (640)
+                    0x26, Y_MAX, //         Logical Maximum (height)
                     0x75, 0x10, //          Report Size (16)
                     0x95, 0x01, //          Report Count (1)
                     0x81, 0x02, //          Input (Data, Variable, Absolute)
                     0xC0, //            End Collection
                 }),
 
-        /** 101-key keyboard: 8-bit keycode. */
+        /**
+         * Two-finger touch screen: for each contact, 6-bit padding, 2-bit type, 8-bit contact ID,
+         * 16-bit X coord. and 16-bit Y coord., followed by an 8-bit contact count.
+         */
+        MULTI_TOUCH_SCREEN(
+                new Integer[] {
+                    0x05, 0x0D, //      Usage Page (Digitizer)
+                    0x09, 0x04, //      Usage (Touch Screen)
+                    0xA1, 0x01, //      Collection (Application)
+                    0x09, 0x22, //          Usage (Finger)
+                    0xA1, 0x02, //          Collection (Logical) - contact 0
+                    0x09, 0x32, //              Usage (In Range)
+                    0x09, 0x42, //              Usage (Tip Switch)
+                    0x15, 0x00, //              Logical Minimum (0)
+                    0x25, 0x01, //              Logical Maximum (1)
+                    0x75, 0x01, //              Report Size (1)
+                    0x95, 0x02, //              Report Count (2)
+                    0x81, 0x02, //              Input (Data, Variable, Absolute)
+                    0x75, 0x01, //              Report Size (1)
+                    0x95, 0x06, //              Report Count (6) - padding
+                    0x81, 0x01, //              Input (Constant)
+                    0x09, 0x51, //              Usage (Contact Identifier)
+                    0x25, 0x01, //              Logical Maximum (1)
+                    0x75, 0x08, //              Report Size (8)
+                    0x95, 0x01, //              Report Count (1)
+                    0x81, 0x02, //              Input (Data, Variable, Absolute)
+                    0x05, 0x01, //              Usage Page (Generic)
+                    0x09, 0x30, //              Usage (X)
+                    0x26, X_MAX, //             Logical Maximum (width)
+                    0x75, 0x10, //              Report Size (16)
+                    0x95, 0x01, //              Report Count (1)
+                    0x81, 0x02, //              Input (Data, Variable, Absolute)
+                    0x09, 0x31, //              Usage (Y)
+                    0x26, Y_MAX, //             Logical Maximum (height)
+                    0x81, 0x02, //              Input (Data, Variable, Absolute)
+                    0x05, 0x0D, //              Usage Page (Digitizer)
+                    0xC0, //                End Collection
+                    0x09, 0x22, //          Usage (Finger)
+                    0xA1, 0x02, //          Collection (Logical) - contact 1
+                    0x09, 0x32, //              Usage (In Range)
+                    0x09, 0x42, //              Usage (Tip Switch)
+                    0x15, 0x00, //              Logical Minimum (0)
+                    0x25, 0x01, //              Logical Maximum (1)
+                    0x75, 0x01, //              Report Size (1)
+                    0x95, 0x02, //              Report Count (2)
+                    0x81, 0x02, //              Input (Data, Variable, Absolute)
+                    0x75, 0x01, //              Report Size (1)
+                    0x95, 0x06, //              Report Count (6) - padding
+                    0x81, 0x01, //              Input (Constant)
+                    0x09, 0x51, //              Usage (Contact Identifier)
+                    0x25, 0x01, //              Logical Maximum (1)
+                    0x75, 0x08, //              Report Size (8)
+                    0x95, 0x01, //              Report Count (1)
+                    0x81, 0x02, //              Input (Data, Variable, Absolute)
+                    0x05, 0x01, //              Usage Page (Generic)
+                    0x09, 0x30, //              Usage (X)
+                    0x26, X_MAX, //             Logical Maximum (width)
+                    0x75, 0x10, //              Report Size (16)
+                    0x95, 0x01, //              Report Count (1)
+                    0x81, 0x02, //              Input (Data, Variable, Absolute)
+                    0x09, 0x31, //              Usage (Y)
+                    0x26, Y_MAX, //             Logical Maximum (height)
+                    0x81, 0x02, //              Input (Data, Variable, Absolute)
+                    0x05, 0x0D, //              Usage Page (Digitizer)
+                    0xC0, //                End Collection
+                    0x09, 0x54, //          Usage (Contact Count)
+                    0x15, 0x00, //          Logical Minimum (0)
+                    0x25, 0x02, //          Logical Maximum (2)
+                    0x75, 0x08, //          Report Size (8)
+                    0x95, 0x01, //          Report Count (1)
+                    0x81, 0x02, //          Input (Data, Variable, Absolute)
+                    0xC0, //            End Collection
+                }),
+
+        /** 101-key keyboard: 8-bit modifier flags, 6 8-bit keycodes. */
         KEYBOARD(
                 new Integer[] {
                     0x05, 0x01, //      Usage Page (Generic)
                     0x09, 0x06, //      Usage (Keyboard)
                     0xA1, 0x01, //      Collection (Application)
                     0x05, 0x07, //          Usage Page (Key Codes)
+                    0x19, 0xE0, //          Usage Minimum (224) - left control
+                    0x29, 0xE7, //          Usage Maximum (231) - right GUI
+                    0x15, 0x00, //          Logical Minimum (0)
+                    0x25, 0x01, //          Logical Maximum (1)
+                    0x75, 0x01, //          Report Size (1)
+                    0x95, 0x08, //          Report Count (8)
+                    0x81, 0x02, //          Input (Data, Variable, Absolute)
                     0x19, 0x00, //          Usage Minimum (0)
                     0x29, 0x65, //          Usage Maximum (101)
                     0x15, 0x00, //          Logical Minimum (0)
                     0x25, 0x65, //          Logical Maximum (101)
                     0x75, 0x08, //          Report Size (8)
-                    0x95, 0x01, //          Report Count (1)
+                    0x95, 0x06, //          Report Count (6)
                     0x81, 0x00, //          Input (Data, Array, Absolute)
                     0xC0, //            End Collection
                 }),
@@ -412,8 +808,22 @@ public class AoaDevice implements AutoCloseable {
             return ordinal();
         }
 
-        byte[] getDescriptor() {
-            return Bytes.toArray(mDescriptor);
+        byte[] getDescriptor(Dimension resolution) {
+            // replace resolution placeholders with 16-bit little-endian values
+            return Bytes.toArray(
+                    mDescriptor.stream()
+                            .flatMap(
+                                    b -> {
+                                        if (b == X_MAX) {
+                                            return Stream.of(
+                                                    resolution.width, resolution.width >> 8);
+                                        } else if (b == Y_MAX) {
+                                            return Stream.of(
+                                                    resolution.height, resolution.height >> 8);
+                                        }
+                                        return Stream.of(b);
+                                    })
+                            .collect(ImmutableList.toImmutableList()));
         }
     }
 }
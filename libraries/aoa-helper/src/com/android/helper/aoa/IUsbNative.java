@@ -15,13 +15,144 @@
  */
 package com.android.helper.aoa;
 
+import com.sun.jna.Callback;
 import com.sun.jna.Library;
+import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
 /** JNA adapter for <a href="https://libusb.info">libusb</a>. */
 interface IUsbNative extends Library {
 
+    /** Error codes: input/output error, no device, timeout, overflow and pipe error (stall). */
+    int LIBUSB_ERROR_IO = -1;
+    int LIBUSB_ERROR_NO_DEVICE = -4;
+    int LIBUSB_ERROR_TIMEOUT = -7;
+    int LIBUSB_ERROR_OVERFLOW = -8;
+    int LIBUSB_ERROR_PIPE = -9;
+    int LIBUSB_ERROR_NO_MEM = -11;
+
+    /** Endpoint direction bit: device to host. */
+    byte LIBUSB_ENDPOINT_IN = (byte) 0x80;
+
+    /** Size of the setup packet at the start of a control transfer's buffer. */
+    int LIBUSB_CONTROL_SETUP_SIZE = 8;
+
+    /** Transfer types: control, bulk and interrupt. */
+    byte LIBUSB_TRANSFER_TYPE_CONTROL = 0;
+    byte LIBUSB_TRANSFER_TYPE_BULK = 2;
+    byte LIBUSB_TRANSFER_TYPE_INTERRUPT = 3;
+
+    /** Transfer statuses. */
+    int LIBUSB_TRANSFER_COMPLETED = 0;
+    int LIBUSB_TRANSFER_ERROR = 1;
+    int LIBUSB_TRANSFER_TIMED_OUT = 2;
+    int LIBUSB_TRANSFER_CANCELLED = 3;
+    int LIBUSB_TRANSFER_STALL = 4;
+    int LIBUSB_TRANSFER_NO_DEVICE = 5;
+    int LIBUSB_TRANSFER_OVERFLOW = 6;
+
+    /** Capability: the library supports hotplug notifications. */
+    int LIBUSB_CAP_HAS_HOTPLUG = 0x0001;
+
+    /** Hotplug event: a device has been plugged in and is ready to use. */
+    int LIBUSB_HOTPLUG_EVENT_DEVICE_ARRIVED = 0x01;
+
+    /** Hotplug flags: no flags set. */
+    int LIBUSB_HOTPLUG_NO_FLAGS = 0;
+
+    /** Hotplug vendor ID, product ID or class wildcard. */
+    int LIBUSB_HOTPLUG_MATCH_ANY = -1;
+
+    /** Hotplug callback, invoked while handling events. */
+    interface HotplugCallback extends Callback {
+
+        /**
+         * Invoked when a matching event occurs. No I/O may be performed on the device.
+         *
+         * @param ctx context of this notification
+         * @param device device this event occurred on
+         * @param event event that occurred
+         * @param user_data user data provided when registering the callback
+         * @return 0 to remain registered, 1 to be deregistered
+         */
+        int invoke(Pointer ctx, Pointer device, int event, Pointer user_data);
+    }
+
+    /** Transfer callback, invoked while handling events once a transfer has finished. */
+    interface TransferCallback extends Callback {
+
+        /**
+         * Invoked when a transfer completes, fails or is cancelled.
+         *
+         * @param transfer pointer to the {@link Transfer} which finished
+         */
+        void invoke(Pointer transfer);
+    }
+
+    /**
+     * Native {@code struct libusb_transfer}, which must be allocated with {@link
+     * #libusb_alloc_transfer} and written before being submitted.
+     */
+    class Transfer extends Structure {
+        public Pointer dev_handle;
+        public byte flags;
+        public byte endpoint;
+        public byte type;
+        public int timeout;
+        public int status;
+        public int length;
+        public int actual_length;
+        public TransferCallback callback;
+        public Pointer user_data;
+        public Pointer buffer;
+        public int num_iso_packets;
+
+        Transfer(Pointer pointer) {
+            super(pointer);
+            read();
+        }
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList(
+                    "dev_handle",
+                    "flags",
+                    "endpoint",
+                    "type",
+                    "timeout",
+                    "status",
+                    "length",
+                    "actual_length",
+                    "callback",
+                    "user_data",
+                    "buffer",
+                    "num_iso_packets");
+        }
+    }
+
+    /** Native {@code struct timeval}, used as the timeout when handling events. */
+    class Timeval extends Structure {
+        public NativeLong tv_sec;
+        public NativeLong tv_usec;
+
+        Timeval(Duration duration) {
+            tv_sec = new NativeLong(duration.getSeconds());
+            tv_usec = new NativeLong(duration.getNano() / 1000);
+        }
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("tv_sec", "tv_usec");
+        }
+    }
+
     /**
      * Initialize libusb, must be called before calling any other function.
      *
@@ -54,6 +185,22 @@ interface IUsbNative extends Library {
      */
     int libusb_get_device_list(Pointer ctx, PointerByReference list);
 
+    /**
+     * Get the number of the bus that a device is connected to.
+     *
+     * @param dev device
+     * @return bus number
+     */
+    byte libusb_get_bus_number(Pointer dev);
+
+    /**
+     * Get the address of a device on the bus it is connected to.
+     *
+     * @param dev device
+     * @return device address
+     */
+    byte libusb_get_device_address(Pointer dev);
+
     /**
      * Frees a list of devices previously discovered using {@link #libusb_get_device_list}.
      *
@@ -129,4 +276,96 @@ interface IUsbNative extends Library {
         byte[] data,
         short wLength,
         int timeout);
+
+    /**
+     * Allocate a transfer.
+     *
+     * @param iso_packets number of isochronous packet descriptors to allocate
+     * @return newly allocated transfer, or {@code null} on error
+     */
+    Pointer libusb_alloc_transfer(int iso_packets);
+
+    /**
+     * Free a transfer allocated with {@link #libusb_alloc_transfer}, which must not be pending.
+     *
+     * @param transfer transfer to free
+     */
+    void libusb_free_transfer(Pointer transfer);
+
+    /**
+     * Submit a transfer, which will invoke its callback once it has finished.
+     *
+     * @param transfer transfer to submit
+     * @return 0 on success, or an error code
+     */
+    int libusb_submit_transfer(Pointer transfer);
+
+    /**
+     * Asynchronously cancel a pending transfer, which will invoke its callback once cancelled.
+     *
+     * @param transfer transfer to cancel
+     * @return 0 on success, or an error code
+     */
+    int libusb_cancel_transfer(Pointer transfer);
+
+    /**
+     * Check at runtime if the library has a given capability.
+     *
+     * @param capability capability to check for
+     * @return non-zero if the capability is supported, 0 otherwise
+     */
+    int libusb_has_capability(int capability);
+
+    /**
+     * Register a hotplug callback function.
+     *
+     * @param ctx context to register this callback with
+     * @param events union of hotplug events to fire the callback on
+     * @param flags hotplug callback flags
+     * @param vendor_id vendor ID to match, or {@link #LIBUSB_HOTPLUG_MATCH_ANY}
+     * @param product_id product ID to match, or {@link #LIBUSB_HOTPLUG_MATCH_ANY}
+     * @param dev_class device class to match, or {@link #LIBUSB_HOTPLUG_MATCH_ANY}
+     * @param cb_fn function to be invoked on a matching event
+     * @param user_data user data to pass to the callback function
+     * @param callback_handle output location for the callback handle
+     * @return 0 on success, or an error code
+     */
+    int libusb_hotplug_register_callback(
+        Pointer ctx,
+        int events,
+        int flags,
+        int vendor_id,
+        int product_id,
+        int dev_class,
+        HotplugCallback cb_fn,
+        Pointer user_data,
+        IntByReference callback_handle);
+
+    /**
+     * Deregister a hotplug callback registered with {@link #libusb_hotplug_register_callback}.
+     *
+     * @param ctx context this callback is registered with
+     * @param callback_handle handle of the callback to deregister
+     */
+    void libusb_hotplug_deregister_callback(Pointer ctx, int callback_handle);
+
+    /**
+     * Handle any pending events, blocking for at most the given timeout.
+     *
+     * @param ctx context to operate on
+     * @param tv maximum time to block waiting for events
+     * @param completed pointer to completion integer to check, or {@code null}
+     * @return 0 on success, or an error code
+     */
+    int libusb_handle_events_timeout_completed(
+        Pointer ctx, Timeval tv, IntByReference completed);
+
+    /**
+     * Handle any pending events, blocking for at most the given timeout.
+     *
+     * @param ctx context to operate on
+     * @param tv maximum time to block waiting for events
+     * @return 0 on success, or an error code
+     */
+    int libusb_handle_events_timeout(Pointer ctx, Timeval tv);
 }
@@ -21,21 +21,52 @@ import static com.android.helper.aoa.AoaDevice.INPUT;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.primitives.Shorts;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sun.jna.Memory;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.PointerByReference;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 /** Connected USB device. */
 public class UsbDevice implements AutoCloseable {
 
+    // Default transfer timeout, so that an unresponsive device cannot block forever
+    static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10L);
+    // Maximum time to wait for pending transfers to be cancelled when closing
+    private static final Duration CANCEL_TIMEOUT = Duration.ofSeconds(1L);
+
     private final IUsbNative mUsb;
+    private final UsbEventLoop mEventLoop;
     private final byte[] mDescriptor = new byte[18];
     private Pointer mHandle;
+    private Duration mTimeout = DEFAULT_TIMEOUT;
+
+    // Asynchronous transfers by native pointer, which must be referenced until they finish
+    private final Map<Pointer, PendingTransfer> mPending = new ConcurrentHashMap<>();
+    private final IUsbNative.TransferCallback mCallback =
+            new IUsbNative.TransferCallback() {
+                @Override
+                public void invoke(Pointer transfer) {
+                    onTransferFinished(transfer);
+                }
+            };
 
-    UsbDevice(@Nonnull IUsbNative usb, @Nonnull Pointer devicePointer) {
+    UsbDevice(
+            @Nonnull IUsbNative usb,
+            @Nonnull Pointer devicePointer,
+            @Nonnull UsbEventLoop eventLoop) {
         mUsb = usb;
+        mEventLoop = eventLoop;
 
         // retrieve device descriptor
         mUsb.libusb_get_device_descriptor(devicePointer, mDescriptor);
@@ -46,8 +77,22 @@ public class UsbDevice implements AutoCloseable {
         mHandle = handle.getValue();
     }
 
+    /** @return transfer timeout, zero if unlimited */
+    @Nonnull
+    public Duration getTimeout() {
+        return mTimeout;
+    }
+
+    /** Set the timeout of subsequent transfers, or zero for an unlimited timeout. */
+    public void setTimeout(@Nonnull Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("Negative timeout: " + timeout);
+        }
+        mTimeout = timeout;
+    }
+
     /**
-     * Performs a synchronous control transaction with unlimited timeout.
+     * Performs a synchronous control transaction.
      *
      * @return number of bytes transferred, or an error code
      */
@@ -60,7 +105,142 @@ public class UsbDevice implements AutoCloseable {
                 (short) index,
                 data,
                 (short) data.length,
-                0);
+                (int) mTimeout.toMillis());
+    }
+
+    /**
+     * Starts an asynchronous control transaction. Transactions are performed in the order in which
+     * they were started, and input data is written to {@code data} before completing.
+     *
+     * @return future number of bytes transferred, or an error code, completed on the event thread
+     */
+    @Nonnull
+    public CompletableFuture<Integer> controlTransferAsync(
+            byte requestType, byte request, int value, int index, @Nonnull byte[] data) {
+        // setup packet with little-endian value, index and length, followed by the data
+        Memory buffer = new Memory(IUsbNative.LIBUSB_CONTROL_SETUP_SIZE + data.length);
+        buffer.write(
+                0,
+                new byte[] {
+                    requestType,
+                    request,
+                    (byte) value,
+                    (byte) (value >> 8),
+                    (byte) index,
+                    (byte) (index >> 8),
+                    (byte) data.length,
+                    (byte) (data.length >> 8)
+                },
+                0,
+                IUsbNative.LIBUSB_CONTROL_SETUP_SIZE);
+        buffer.write(IUsbNative.LIBUSB_CONTROL_SETUP_SIZE, data, 0, data.length);
+        boolean input = (requestType & IUsbNative.LIBUSB_ENDPOINT_IN) != 0;
+        return submit(
+                IUsbNative.LIBUSB_TRANSFER_TYPE_CONTROL,
+                (byte) 0,
+                buffer,
+                (int) buffer.size(),
+                new PendingTransfer(input ? data : null, IUsbNative.LIBUSB_CONTROL_SETUP_SIZE));
+    }
+
+    /**
+     * Starts an asynchronous bulk transfer.
+     *
+     * @see #controlTransferAsync
+     */
+    @Nonnull
+    public CompletableFuture<Integer> bulkTransferAsync(byte endpoint, @Nonnull byte[] data) {
+        return transferAsync(IUsbNative.LIBUSB_TRANSFER_TYPE_BULK, endpoint, data);
+    }
+
+    /**
+     * Starts an asynchronous interrupt transfer.
+     *
+     * @see #controlTransferAsync
+     */
+    @Nonnull
+    public CompletableFuture<Integer> interruptTransferAsync(byte endpoint, @Nonnull byte[] data) {
+        return transferAsync(IUsbNative.LIBUSB_TRANSFER_TYPE_INTERRUPT, endpoint, data);
+    }
+
+    // Start a bulk or interrupt transfer, in the direction of the endpoint
+    private CompletableFuture<Integer> transferAsync(byte type, byte endpoint, byte[] data) {
+        // native buffers cannot be empty
+        Memory buffer = new Memory(Math.max(data.length, 1));
+        buffer.write(0, data, 0, data.length);
+        boolean input = (endpoint & IUsbNative.LIBUSB_ENDPOINT_IN) != 0;
+        return submit(
+                type, endpoint, buffer, data.length, new PendingTransfer(input ? data : null, 0));
+    }
+
+    // Submit a transfer, keeping it referenced until it has finished
+    private CompletableFuture<Integer> submit(
+            byte type, byte endpoint, Memory buffer, int length, PendingTransfer pending) {
+        Pointer handle = checkNotNull(mHandle);
+        Pointer pointer = mUsb.libusb_alloc_transfer(0);
+        if (pointer == null) {
+            return CompletableFuture.completedFuture(IUsbNative.LIBUSB_ERROR_NO_MEM);
+        }
+
+        IUsbNative.Transfer transfer = new IUsbNative.Transfer(pointer);
+        transfer.dev_handle = handle;
+        transfer.endpoint = endpoint;
+        transfer.type = type;
+        transfer.timeout = (int) mTimeout.toMillis();
+        transfer.length = length;
+        transfer.callback = mCallback;
+        transfer.buffer = buffer;
+        transfer.write();
+        pending.mTransfer = transfer;
+        pending.mBuffer = buffer;
+
+        mPending.put(pointer, pending);
+        mEventLoop.start();
+        int result = mUsb.libusb_submit_transfer(pointer);
+        if (result < 0) {
+            mPending.remove(pointer);
+            mUsb.libusb_free_transfer(pointer);
+            pending.mResult.complete(result);
+        }
+        return pending.mResult;
+    }
+
+    // Complete a finished transfer's future with its result, and free it
+    private void onTransferFinished(Pointer pointer) {
+        PendingTransfer pending = mPending.remove(pointer);
+        if (pending == null) {
+            return;
+        }
+        IUsbNative.Transfer transfer = pending.mTransfer;
+        transfer.read();
+        int status = transfer.status;
+        int length = transfer.actual_length;
+        if (status == IUsbNative.LIBUSB_TRANSFER_COMPLETED && pending.mInput != null) {
+            pending.mBuffer.read(
+                    pending.mOffset,
+                    pending.mInput,
+                    0,
+                    Math.min(length, pending.mInput.length));
+        }
+        mUsb.libusb_free_transfer(pointer);
+        pending.mResult.complete(
+                status == IUsbNative.LIBUSB_TRANSFER_COMPLETED ? length : getErrorCode(status));
+    }
+
+    // Convert a transfer status into an error code, as synchronous transfers do
+    private static int getErrorCode(int status) {
+        switch (status) {
+            case IUsbNative.LIBUSB_TRANSFER_TIMED_OUT:
+                return IUsbNative.LIBUSB_ERROR_TIMEOUT;
+            case IUsbNative.LIBUSB_TRANSFER_STALL:
+                return IUsbNative.LIBUSB_ERROR_PIPE;
+            case IUsbNative.LIBUSB_TRANSFER_NO_DEVICE:
+                return IUsbNative.LIBUSB_ERROR_NO_DEVICE;
+            case IUsbNative.LIBUSB_TRANSFER_OVERFLOW:
+                return IUsbNative.LIBUSB_ERROR_OVERFLOW;
+            default:
+                return IUsbNative.LIBUSB_ERROR_IO;
+        }
     }
 
     /**
@@ -106,12 +286,55 @@ public class UsbDevice implements AutoCloseable {
         return isValid() && controlTransfer(INPUT, ACCESSORY_GET_PROTOCOL, 0, 0, new byte[2]) >= 2;
     }
 
-    /** Close the connection if necessary. */
+    /** Close the connection if necessary, cancelling pending transfers. */
     @Override
     public void close() {
         if (isValid()) {
+            cancelPendingTransfers();
             mUsb.libusb_close(mHandle);
             mHandle = null;
         }
     }
+
+    // Cancel pending transfers, which should finish before the connection is closed
+    private void cancelPendingTransfers() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        CompletableFuture<?>[] results =
+                mPending.entrySet().stream()
+                        .map(
+                                entry -> {
+                                    mUsb.libusb_cancel_transfer(entry.getKey());
+                                    return entry.getValue().mResult;
+                                })
+                        .toArray(CompletableFuture<?>[]::new);
+        try {
+            Uninterruptibles.getUninterruptibly(
+                    CompletableFuture.allOf(results),
+                    CANCEL_TIMEOUT.toNanos(),
+                    TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // abandon transfers which could not be cancelled in time
+        }
+    }
+
+    /** Asynchronous transfer which has been submitted, and its result. */
+    private static class PendingTransfer {
+
+        private final byte[] mInput;
+        private final int mOffset;
+        private final CompletableFuture<Integer> mResult = new CompletableFuture<>();
+        private IUsbNative.Transfer mTransfer;
+        private Memory mBuffer;
+
+        /**
+         * @param input array to copy input data to, or {@code null} for output transfers
+         * @param offset position of the data in the transfer buffer
+         */
+        private PendingTransfer(@Nullable byte[] input, int offset) {
+            mInput = input;
+            mOffset = offset;
+        }
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helper.aoa;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sun.jna.Pointer;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/** Background thread which handles libusb events, completing asynchronous transfers. */
+class UsbEventLoop implements AutoCloseable {
+
+    // Maximum time to block handling events, which bounds the time to stop
+    private static final Duration EVENT_TIMEOUT = Duration.ofMillis(100L);
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(1L);
+
+    private final IUsbNative mUsb;
+    private final Pointer mContext;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    UsbEventLoop(@Nonnull IUsbNative usb, @Nonnull Pointer context) {
+        mUsb = usb;
+        mContext = context;
+    }
+
+    /** Start handling events, if not already started. */
+    synchronized void start() {
+        if (mThread == null) {
+            mRunning = true;
+            mThread = new Thread(this::run, "libusb-events");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /** @return true if events are being handled */
+    synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    // Handle events until stopped
+    private void run() {
+        IUsbNative.Timeval timeout = new IUsbNative.Timeval(EVENT_TIMEOUT);
+        while (mRunning) {
+            if (mUsb.libusb_handle_events_timeout(mContext, timeout) < 0) {
+                // avoid spinning if events cannot be handled
+                Uninterruptibles.sleepUninterruptibly(
+                        EVENT_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /** Stop handling events, waiting for the thread to finish. */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mRunning = false;
+        }
+        if (thread != null) {
+            Uninterruptibles.joinUninterruptibly(
+                    thread, STOP_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+}
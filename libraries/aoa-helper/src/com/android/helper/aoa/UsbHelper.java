@@ -21,14 +21,18 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 
+import java.awt.Dimension;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
@@ -43,10 +47,17 @@ import javax.annotation.Nullable;
 public class UsbHelper implements AutoCloseable {
 
     private static final Duration POLL_INTERVAL = Duration.ofSeconds(1L);
+    // Devices are still polled for while waiting for hotplug events, in case a device arrived
+    // before it could be opened.
+    private static final Duration HOTPLUG_POLL_INTERVAL = Duration.ofSeconds(5L);
 
     private final IUsbNative mUsb;
+    private final UsbEventLoop mEventLoop;
     private Pointer mContext;
 
+    // Bus number and address of devices by serial number, verified before use.
+    private final Map<String, Integer> mLocations = new ConcurrentHashMap<>();
+
     public UsbHelper() {
         this((IUsbNative) Native.loadLibrary("usb-1.0", IUsbNative.class));
     }
@@ -58,6 +69,8 @@ public class UsbHelper implements AutoCloseable {
         PointerByReference context = new PointerByReference();
         checkResult(mUsb.libusb_init(context));
         mContext = context.getValue();
+        // handles asynchronous transfers once the first one is submitted
+        mEventLoop = new UsbEventLoop(mUsb, mContext);
     }
 
     /**
@@ -86,7 +99,7 @@ public class UsbHelper implements AutoCloseable {
             for (Pointer devicePointer : list) {
                 // add all valid serial numbers
                 try (UsbDevice device = connect(devicePointer)) {
-                    String serialNumber = device.getSerialNumber();
+                    String serialNumber = getSerialNumber(device, devicePointer);
                     if (serialNumber != null && (!aoaOnly || device.isAoaCompatible())) {
                         serialNumbers.add(serialNumber);
                     }
@@ -98,7 +111,8 @@ public class UsbHelper implements AutoCloseable {
     }
 
     /**
-     * Find a USB device using its serial number.
+     * Find a USB device using its serial number. The device is first looked for where it was last
+     * found, so that other devices do not need to be opened.
      *
      * @param serialNumber device serial number
      * @return USB device or {@code null} if not found
@@ -106,10 +120,30 @@ public class UsbHelper implements AutoCloseable {
     @Nullable
     public UsbDevice getDevice(@Nonnull String serialNumber) {
         try (DeviceList list = new DeviceList()) {
+            Integer cached = mLocations.get(serialNumber);
+            if (cached != null) {
+                for (Pointer devicePointer : list) {
+                    if (getLocation(devicePointer) == cached) {
+                        UsbDevice device = connect(devicePointer);
+                        if (serialNumber.equals(getSerialNumber(device, devicePointer))) {
+                            return device;
+                        }
+                        device.close();
+                        break;
+                    }
+                }
+                // device has moved or is gone
+                mLocations.remove(serialNumber, cached);
+            }
+
             for (Pointer devicePointer : list) {
+                if (cached != null && getLocation(devicePointer) == cached) {
+                    // already checked above
+                    continue;
+                }
                 // check if device has the right serial number
                 UsbDevice device = connect(devicePointer);
-                if (serialNumber.equals(device.getSerialNumber())) {
+                if (serialNumber.equals(getSerialNumber(device, devicePointer))) {
                     return device;
                 }
                 device.close();
@@ -120,9 +154,26 @@ public class UsbHelper implements AutoCloseable {
         return null;
     }
 
+    // Get a device's serial number, and remember where it was found.
+    @Nullable
+    private String getSerialNumber(@Nonnull UsbDevice device, @Nonnull Pointer devicePointer) {
+        String serialNumber = device.getSerialNumber();
+        if (serialNumber != null) {
+            mLocations.put(serialNumber, getLocation(devicePointer));
+        }
+        return serialNumber;
+    }
+
+    // Get a device's bus number and address, which identify it until it is disconnected.
+    private int getLocation(@Nonnull Pointer devicePointer) {
+        int bus = mUsb.libusb_get_bus_number(devicePointer) & 0xFF;
+        int address = mUsb.libusb_get_device_address(devicePointer) & 0xFF;
+        return (bus << 8) | address;
+    }
+
     @VisibleForTesting
     UsbDevice connect(@Nonnull Pointer devicePointer) {
-        return new UsbDevice(mUsb, devicePointer);
+        return new UsbDevice(mUsb, devicePointer, mEventLoop);
     }
 
     /**
@@ -135,14 +186,58 @@ public class UsbHelper implements AutoCloseable {
     @Nullable
     public UsbDevice getDevice(@Nonnull String serialNumber, @Nonnull Duration timeout) {
         Instant start = Instant.now();
-        UsbDevice device = getDevice(serialNumber);
+        // listen before the first lookup, so that a device arriving in between is not missed
+        try (HotplugListener listener = timeout.isZero() ? null : registerHotplugListener()) {
+            UsbDevice device = getDevice(serialNumber);
 
-        while (device == null && timeout.compareTo(Duration.between(start, Instant.now())) > 0) {
-            Uninterruptibles.sleepUninterruptibly(POLL_INTERVAL.toNanos(), TimeUnit.NANOSECONDS);
-            device = getDevice(serialNumber);
+            while (device == null) {
+                Duration remaining = timeout.minus(Duration.between(start, Instant.now()));
+                if (remaining.isNegative() || remaining.isZero()) {
+                    break;
+                }
+
+                if (listener != null) {
+                    // only look again once a device arrives, or after the fallback interval
+                    listener.await(min(remaining, HOTPLUG_POLL_INTERVAL));
+                } else {
+                    Uninterruptibles.sleepUninterruptibly(
+                            POLL_INTERVAL.toNanos(), TimeUnit.NANOSECONDS);
+                }
+                device = getDevice(serialNumber);
+            }
+
+            return device;
         }
+    }
 
-        return device;
+    private static Duration min(Duration a, Duration b) {
+        return a.compareTo(b) < 0 ? a : b;
+    }
+
+    /**
+     * Register for device arrival notifications.
+     *
+     * @return hotplug listener, or {@code null} if hotplug notifications are not supported
+     */
+    @Nullable
+    private HotplugListener registerHotplugListener() {
+        if (mUsb.libusb_has_capability(IUsbNative.LIBUSB_CAP_HAS_HOTPLUG) == 0) {
+            return null;
+        }
+        HotplugListener listener = new HotplugListener();
+        int result =
+                mUsb.libusb_hotplug_register_callback(
+                        checkNotNull(mContext),
+                        IUsbNative.LIBUSB_HOTPLUG_EVENT_DEVICE_ARRIVED,
+                        IUsbNative.LIBUSB_HOTPLUG_NO_FLAGS,
+                        IUsbNative.LIBUSB_HOTPLUG_MATCH_ANY,
+                        IUsbNative.LIBUSB_HOTPLUG_MATCH_ANY,
+                        IUsbNative.LIBUSB_HOTPLUG_MATCH_ANY,
+                        listener,
+                        null,
+                        listener.mHandle);
+        // fall back to polling if registration fails
+        return result < 0 ? null : listener;
     }
 
     /**
@@ -165,19 +260,87 @@ public class UsbHelper implements AutoCloseable {
      */
     @Nullable
     public AoaDevice getAoaDevice(@Nonnull String serialNumber, @Nonnull Duration timeout) {
+        return getAoaDevice(serialNumber, timeout, AoaDevice.DEFAULT_RESOLUTION);
+    }
+
+    /**
+     * Wait for an AOAv2-compatible device using its serial number, and register a touch screen
+     * with a specific logical resolution. Higher resolutions allow more precise touches, as
+     * coordinates are scaled to the device's screen.
+     *
+     * @param serialNumber device serial number
+     * @param timeout maximum time to wait for
+     * @param resolution touch screen resolution, up to 32767 in each dimension
+     * @return AOAv2-compatible device or {@code null} if not found
+     */
+    @Nullable
+    public AoaDevice getAoaDevice(
+            @Nonnull String serialNumber,
+            @Nonnull Duration timeout,
+            @Nonnull Dimension resolution) {
         UsbDevice device = getDevice(serialNumber, timeout);
-        return device != null && device.isAoaCompatible() ? new AoaDevice(this, device) : null;
+        return device != null && device.isAoaCompatible()
+                ? new AoaDevice(this, device, resolution)
+                : null;
     }
 
     /** De-initialize the USB context. */
     @Override
     public void close() {
         if (mContext != null) {
+            mEventLoop.close();
             mUsb.libusb_exit(mContext);
             mContext = null;
         }
     }
 
+    /** Device arrival listener, which must be referenced until it is closed. */
+    private class HotplugListener implements IUsbNative.HotplugCallback, AutoCloseable {
+
+        private final IntByReference mHandle = new IntByReference();
+        // set on whichever thread handles the event
+        private volatile boolean mArrived;
+
+        @Override
+        public int invoke(Pointer ctx, Pointer device, int event, Pointer userData) {
+            // no I/O is allowed here, so devices are looked up after handling events
+            mArrived = true;
+            return 0;
+        }
+
+        /**
+         * Handle events until a device arrives. If events cannot be handled, waits for the polling
+         * interval instead.
+         *
+         * @param timeout maximum time to wait for
+         * @return true if a device arrived
+         */
+        private boolean await(@Nonnull Duration timeout) {
+            Instant end = Instant.now().plus(timeout);
+            Duration remaining = timeout;
+            while (!mArrived && !remaining.isNegative() && !remaining.isZero()) {
+                int result =
+                        mUsb.libusb_handle_events_timeout_completed(
+                                checkNotNull(mContext), new IUsbNative.Timeval(remaining), null);
+                if (result < 0) {
+                    // fall back to polling
+                    Uninterruptibles.sleepUninterruptibly(
+                            min(remaining, POLL_INTERVAL).toNanos(), TimeUnit.NANOSECONDS);
+                    break;
+                }
+                remaining = Duration.between(Instant.now(), end);
+            }
+            boolean arrived = mArrived;
+            mArrived = false;
+            return arrived;
+        }
+
+        @Override
+        public void close() {
+            mUsb.libusb_hotplug_deregister_callback(checkNotNull(mContext), mHandle.getValue());
+        }
+    }
+
     /** USB device pointer list. */
     private class DeviceList implements Iterable<Pointer>, AutoCloseable {
 
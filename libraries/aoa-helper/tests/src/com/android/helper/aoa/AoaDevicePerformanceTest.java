@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helper.aoa;
+
+import static com.android.helper.aoa.AoaDevice.GOOGLE_VID;
+import static com.android.helper.aoa.AoaDevice.STEP_DELAY;
+
+import static org.junit.Assert.assertTrue;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.awt.*;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Performance tests for {@link AoaDevice}, which generate gestures against a fake {@link
+ * IUsbNative} and fail if they regress past a baseline. Transfers complete as soon as they are
+ * submitted, so only the time and memory spent on the host is measured.
+ */
+@RunWith(JUnit4.class)
+public class AoaDevicePerformanceTest {
+
+    // Baselines, with enough headroom that only real regressions fail on a loaded host. Gestures
+    // allocated about 1 KB per event, most of it to write and read each native transfer.
+    private static final double MIN_EVENTS_PER_SECOND = 2_000.0;
+    private static final long MAX_BYTES_PER_EVENT = 4 * 1024L;
+    // Events were sent about 1 ms after their targets. One sent a whole step late would run into
+    // the next step of its gesture.
+    private static final Duration MAX_MEDIAN_LATENCY = STEP_DELAY;
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 500;
+    private static final int LATENCY_ITERATIONS = 5;
+
+    private static final String SERIAL_NUMBER = "serial-number";
+    private static final int ADB_DISABLED_PID = 0x2D00;
+
+    private FakeUsbNative mUsb;
+    private AoaDevice mDevice;
+    private long mNowNanos;
+
+    @Before
+    public void setUp() {
+        mUsb = new FakeUsbNative();
+
+        // fake monotonic clock, advanced by sleeping
+        mNowNanos = 0L;
+        mDevice =
+                new AoaDevice(new UsbHelper(mUsb), createUsbDevice(mUsb)) {
+                    @Override
+                    long uptimeNanos() {
+                        return mNowNanos;
+                    }
+
+                    @Override
+                    public void sleep(@Nonnull Duration duration) {
+                        mNowNanos += duration.toNanos();
+                    }
+                };
+    }
+
+    // Device whose transfers are finished by the fake, without an event thread
+    private static UsbDevice createUsbDevice(IUsbNative usb) {
+        UsbEventLoop eventLoop =
+                new UsbEventLoop(usb, new Memory(1)) {
+                    @Override
+                    synchronized void start() {}
+                };
+        return new UsbDevice(usb, new Memory(1), eventLoop);
+    }
+
+    @Test
+    public void testThroughput() {
+        Runnable scroll = () -> mDevice.scroll(new Point(0, 0), new Point(360, 640));
+        repeat(scroll, WARMUP_ITERATIONS);
+
+        mUsb.mEventCount = 0;
+        long start = System.nanoTime();
+        repeat(scroll, ITERATIONS);
+        long elapsed = System.nanoTime() - start;
+
+        double eventsPerSecond = mUsb.mEventCount / (elapsed / 1e9);
+        assertTrue(
+                String.format(
+                        "Sent %.0f events/s, expected at least %.0f",
+                        eventsPerSecond, MIN_EVENTS_PER_SECOND),
+                eventsPerSecond >= MIN_EVENTS_PER_SECOND);
+    }
+
+    @Test
+    public void testAllocationPerGesture() {
+        assertAllocation("click", () -> mDevice.click(new Point(12, 34)));
+        assertAllocation("scroll", () -> mDevice.scroll(new Point(0, 0), new Point(360, 640)));
+        assertAllocation("pinch", () -> mDevice.pinch(new Point(180, 320), 100));
+        assertAllocation("write", () -> mDevice.write("Hello, World!"));
+    }
+
+    /**
+     * Verifies the latency of waking up to send each event on the real clock. It depends on the
+     * load of the host, so only the median is checked.
+     */
+    @Test
+    public void testSchedulingLatency() {
+        FakeUsbNative usb = new FakeUsbNative();
+        usb.mSendTimes = new ArrayList<>();
+        AoaDevice device = new AoaDevice(new UsbHelper(usb), createUsbDevice(usb));
+        device.setActionDelay(Duration.ZERO);
+
+        // time from each event's target, a step after the previous one, until it is sent
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < LATENCY_ITERATIONS; i++) {
+            usb.mSendTimes.clear();
+            long start = System.nanoTime();
+            device.scroll(new Point(0, 0), new Point(360, 640));
+            for (int j = 0; j < usb.mSendTimes.size(); j++) {
+                latencies.add(usb.mSendTimes.get(j) - start - j * STEP_DELAY.toNanos());
+            }
+        }
+
+        Collections.sort(latencies);
+        Duration median = Duration.ofNanos(latencies.get(latencies.size() / 2));
+        assertTrue(
+                String.format(
+                        "Sent the median event %s late, expected at most %s",
+                        median, MAX_MEDIAN_LATENCY),
+                median.compareTo(MAX_MEDIAN_LATENCY) <= 0);
+    }
+
+    // Verify the memory allocated by a gesture, per event sent, less that of measuring it
+    private void assertAllocation(String name, Runnable gesture) {
+        repeat(gesture, WARMUP_ITERATIONS);
+        repeat(() -> {}, WARMUP_ITERATIONS);
+
+        long allocated = getAllocatedBytes();
+        repeat(() -> {}, ITERATIONS);
+        long baseline = getAllocatedBytes() - allocated;
+
+        mUsb.mEventCount = 0;
+        allocated = getAllocatedBytes();
+        repeat(gesture, ITERATIONS);
+        long bytesPerEvent = (getAllocatedBytes() - allocated - baseline) / mUsb.mEventCount;
+
+        assertTrue(
+                String.format(
+                        "%s allocated %d bytes/event, expected at most %d",
+                        name, bytesPerEvent, MAX_BYTES_PER_EVENT),
+                bytesPerEvent <= MAX_BYTES_PER_EVENT);
+    }
+
+    // Bytes allocated by the current thread, on which transfers also finish
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void repeat(Runnable runnable, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Accessory mode device, which finishes each transfer as soon as it is submitted. Written by
+     * hand rather than mocked, so that only the allocations of {@link AoaDevice} are measured.
+     */
+    private static class FakeUsbNative implements IUsbNative {
+        // Larger than struct libusb_transfer without isochronous packets
+        private static final int TRANSFER_SIZE = 128;
+
+        // transfers finish before the next is allocated, so the same native memory is reused
+        private final Memory mTransfer = new Memory(TRANSFER_SIZE);
+        private final long mStatusOffset;
+        private final long mLengthOffset;
+        private final long mActualLengthOffset;
+        // the device's callback, which is the same for every transfer
+        private TransferCallback mCallback;
+
+        private int mEventCount;
+        private List<Long> mSendTimes;
+
+        FakeUsbNative() {
+            mTransfer.clear();
+            TransferLayout layout = new TransferLayout(mTransfer);
+            mStatusOffset = layout.offsetOf("status");
+            mLengthOffset = layout.offsetOf("length");
+            mActualLengthOffset = layout.offsetOf("actual_length");
+        }
+
+        @Override
+        public int libusb_submit_transfer(Pointer transfer) {
+            if (mSendTimes != null) {
+                mSendTimes.add(System.nanoTime());
+            }
+            mEventCount++;
+            if (mCallback == null) {
+                mCallback = new Transfer(transfer).callback;
+            }
+            transfer.setInt(mStatusOffset, LIBUSB_TRANSFER_COMPLETED);
+            transfer.setInt(mActualLengthOffset, transfer.getInt(mLengthOffset));
+            mCallback.invoke(transfer);
+            return 0;
+        }
+
+        @Override
+        public Pointer libusb_alloc_transfer(int iso_packets) {
+            return mTransfer;
+        }
+
+        @Override
+        public void libusb_free_transfer(Pointer transfer) {}
+
+        @Override
+        public int libusb_cancel_transfer(Pointer transfer) {
+            return 0;
+        }
+
+        @Override
+        public int libusb_init(PointerByReference context) {
+            context.setValue(new Memory(1));
+            return 0;
+        }
+
+        @Override
+        public void libusb_exit(Pointer ctx) {}
+
+        @Override
+        public String libusb_strerror(int errcode) {
+            return "error " + errcode;
+        }
+
+        @Override
+        public int libusb_get_device_list(Pointer ctx, PointerByReference list) {
+            return 0;
+        }
+
+        @Override
+        public byte libusb_get_bus_number(Pointer dev) {
+            return 1;
+        }
+
+        @Override
+        public byte libusb_get_device_address(Pointer dev) {
+            return 1;
+        }
+
+        @Override
+        public void libusb_free_device_list(Pointer list, boolean unref_devices) {}
+
+        @Override
+        public int libusb_open(Pointer dev, PointerByReference dev_handle) {
+            dev_handle.setValue(new Memory(1));
+            return 0;
+        }
+
+        @Override
+        public void libusb_close(Pointer dev_handle) {}
+
+        @Override
+        public int libusb_reset_device(Pointer dev_handle) {
+            return 0;
+        }
+
+        @Override
+        public int libusb_get_device_descriptor(Pointer dev, byte[] desc) {
+            desc[8] = (byte) GOOGLE_VID;
+            desc[9] = (byte) (GOOGLE_VID >> 8);
+            desc[10] = (byte) ADB_DISABLED_PID;
+            desc[11] = (byte) (ADB_DISABLED_PID >> 8);
+            desc[16] = 1; // serial number string index
+            return 0;
+        }
+
+        @Override
+        public int libusb_get_string_descriptor_ascii(
+                Pointer dev_handle, byte desc_index, byte[] data, int length) {
+            byte[] serial = SERIAL_NUMBER.getBytes();
+            System.arraycopy(serial, 0, data, 0, serial.length);
+            return serial.length;
+        }
+
+        @Override
+        public int libusb_control_transfer(
+                Pointer dev_handle,
+                byte bmRequestType,
+                byte bRequest,
+                short wValue,
+                short wIndex,
+                byte[] data,
+                short wLength,
+                int timeout) {
+            return 0;
+        }
+
+        @Override
+        public int libusb_has_capability(int capability) {
+            return 0;
+        }
+
+        @Override
+        public int libusb_hotplug_register_callback(
+                Pointer ctx,
+                int events,
+                int flags,
+                int vendor_id,
+                int product_id,
+                int dev_class,
+                HotplugCallback cb_fn,
+                Pointer user_data,
+                IntByReference callback_handle) {
+            return LIBUSB_ERROR_IO;
+        }
+
+        @Override
+        public void libusb_hotplug_deregister_callback(Pointer ctx, int callback_handle) {}
+
+        @Override
+        public int libusb_handle_events_timeout_completed(
+                Pointer ctx, Timeval tv, IntByReference completed) {
+            return 0;
+        }
+
+        @Override
+        public int libusb_handle_events_timeout(Pointer ctx, Timeval tv) {
+            return 0;
+        }
+    }
+
+    /** Exposes the offsets of transfer fields, so that the fake can set them directly. */
+    private static class TransferLayout extends IUsbNative.Transfer {
+        TransferLayout(Pointer pointer) {
+            super(pointer);
+        }
+
+        long offsetOf(String field) {
+            return fieldOffset(field);
+        }
+    }
+}
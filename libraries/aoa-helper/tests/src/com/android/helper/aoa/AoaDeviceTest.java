@@ -20,17 +20,27 @@ import static com.android.helper.aoa.AoaDevice.ACCESSORY_SEND_HID_EVENT;
 import static com.android.helper.aoa.AoaDevice.ACCESSORY_SET_HID_REPORT_DESC;
 import static com.android.helper.aoa.AoaDevice.ACCESSORY_START;
 import static com.android.helper.aoa.AoaDevice.ACCESSORY_UNREGISTER_HID;
+import static com.android.helper.aoa.AoaDevice.ACTION_DELAY;
 import static com.android.helper.aoa.AoaDevice.DEVICE_NOT_FOUND;
 import static com.android.helper.aoa.AoaDevice.FLING_STEPS;
+import static com.android.helper.aoa.AoaDevice.GESTURE_STEPS;
 import static com.android.helper.aoa.AoaDevice.GOOGLE_VID;
 import static com.android.helper.aoa.AoaDevice.LONG_CLICK;
+import static com.android.helper.aoa.AoaDevice.MAX_KEYS;
+import static com.android.helper.aoa.AoaDevice.MAX_PENDING_EVENTS;
+import static com.android.helper.aoa.AoaDevice.MAX_RESOLUTION;
+import static com.android.helper.aoa.AoaDevice.MODIFIER_NONE;
+import static com.android.helper.aoa.AoaDevice.MODIFIER_SHIFT;
+import static com.android.helper.aoa.AoaDevice.PINCH_RATIO;
 import static com.android.helper.aoa.AoaDevice.SCROLL_STEPS;
+import static com.android.helper.aoa.AoaDevice.STEP_DELAY;
 import static com.android.helper.aoa.AoaDevice.SYSTEM_BACK;
 import static com.android.helper.aoa.AoaDevice.SYSTEM_HOME;
 import static com.android.helper.aoa.AoaDevice.SYSTEM_WAKE;
 import static com.android.helper.aoa.AoaDevice.TOUCH_DOWN;
 import static com.android.helper.aoa.AoaDevice.TOUCH_UP;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -41,6 +51,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -49,6 +60,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Shorts;
 
 import org.junit.Before;
@@ -61,9 +73,17 @@ import org.mockito.verification.VerificationMode;
 
 import java.awt.*;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -80,18 +100,36 @@ public class AoaDeviceTest {
     private static final int ADB_ENABLED_PID = 0x2D01;
 
     private AoaDevice mDevice;
+    private Duration mNow;
+    private final Map<Duration, CompletableFuture<Integer>> mTransfers = new TreeMap<>();
+    private int mFailures;
 
     private UsbHelper mHelper;
     private UsbDevice mDelegate;
 
     @Before
     public void setUp() {
+        mNow = Duration.ZERO;
+
         // valid accessory mode device by default
         mDelegate = mock(UsbDevice.class);
         when(mDelegate.isValid()).thenReturn(true);
         when(mDelegate.getSerialNumber()).thenReturn(SERIAL_NUMBER);
         when(mDelegate.getVendorId()).thenReturn(GOOGLE_VID);
         when(mDelegate.getProductId()).thenReturn(ADB_DISABLED_PID);
+        // complete asynchronous transfers immediately, with the result of synchronous ones
+        when(mDelegate.controlTransferAsync(anyByte(), anyByte(), anyInt(), anyInt(), any()))
+                .then(
+                        invocation -> {
+                            Object[] args = invocation.getArguments();
+                            return CompletableFuture.completedFuture(
+                                    mDelegate.controlTransfer(
+                                            (byte) args[0],
+                                            (byte) args[1],
+                                            (int) args[2],
+                                            (int) args[3],
+                                            (byte[]) args[4]));
+                        });
 
         mHelper = mock(UsbHelper.class);
         when(mHelper.getDevice(anyString(), any())).thenReturn(mDelegate);
@@ -266,10 +304,136 @@ public class AoaDeviceTest {
 
     @Test
     public void testWrite() {
-        mDevice = spy(createDevice());
+        mDevice = createDevice();
         mDevice.write("Test #0123!");
 
-        verify(mDevice).key(0x17, 0x08, 0x16, 0x17, 0x2C, null, 0x27, 0x1E, 0x1F, 0x20, null);
+        assertEquals(
+                Arrays.asList(
+                        new Key(MODIFIER_SHIFT, 0x17), // T
+                        new Key(MODIFIER_NONE, 0x08, 0x16, 0x17, 0x2C), // est<space>
+                        new Key(MODIFIER_SHIFT, 0x20), // #
+                        new Key(MODIFIER_NONE, 0x27, 0x1E, 0x1F, 0x20), // 0123
+                        new Key(MODIFIER_SHIFT, 0x1E)), // !
+                decodeKeys(captureHidEvents(AoaDevice.HID.KEYBOARD)));
+    }
+
+    @Test
+    public void testWriteSkipsUnsupportedCharacters() {
+        mDevice = createDevice();
+        mDevice.write("a\u00e9\u4e2db");
+
+        assertEquals(
+                Arrays.asList(new Key(MODIFIER_NONE, 0x04, 0x05)),
+                decodeKeys(captureHidEvents(AoaDevice.HID.KEYBOARD)));
+    }
+
+    @Test
+    public void testWriteKeyDelay() {
+        mDevice = createDevice();
+        mDevice.setActionDelay(Duration.ZERO);
+        mDevice.setKeyDelay(Duration.ofMillis(1L));
+        String text = String.join("", Collections.nCopies(100, "The quick brown fox. "));
+        Duration start = mNow;
+        mDevice.write(text);
+
+        // reports are paced by the key delay, and there are far fewer of them than characters
+        int reports = AoaDevice.encodeText(text).size();
+        assertTrue(reports < text.length() / 2);
+        assertEquals(start.plus(Duration.ofMillis(reports - 1)), mNow);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeKeyDelay() {
+        mDevice = createDevice();
+        mDevice.setKeyDelay(Duration.ofMillis(-1L));
+    }
+
+    @Test
+    public void testEncodeCharacters() {
+        // letters and digits, with and without shift
+        assertEncodes("a", MODIFIER_NONE, 0x04);
+        assertEncodes("Z", MODIFIER_SHIFT, 0x1D);
+        assertEncodes("1", MODIFIER_NONE, 0x1E);
+        assertEncodes("0", MODIFIER_NONE, 0x27);
+        assertEncodes("!", MODIFIER_SHIFT, 0x1E);
+        assertEncodes("@", MODIFIER_SHIFT, 0x1F);
+        assertEncodes("#", MODIFIER_SHIFT, 0x20);
+        assertEncodes("$", MODIFIER_SHIFT, 0x21);
+        assertEncodes("%", MODIFIER_SHIFT, 0x22);
+        assertEncodes("^", MODIFIER_SHIFT, 0x23);
+        assertEncodes("&", MODIFIER_SHIFT, 0x24);
+        assertEncodes("*", MODIFIER_SHIFT, 0x25);
+        assertEncodes("(", MODIFIER_SHIFT, 0x26);
+        assertEncodes(")", MODIFIER_SHIFT, 0x27);
+        // control keys and whitespace
+        assertEncodes("\n", MODIFIER_NONE, 0x28);
+        assertEncodes("\u001B", MODIFIER_NONE, 0x29);
+        assertEncodes("\b", MODIFIER_NONE, 0x2A);
+        assertEncodes("\t", MODIFIER_NONE, 0x2B);
+        assertEncodes(" ", MODIFIER_NONE, 0x2C);
+        assertEncodes("\u00A0", MODIFIER_NONE, 0x2C);
+        assertEncodes("\u007F", MODIFIER_NONE, 0x4C);
+        // punctuation, with and without shift
+        assertEncodes("-", MODIFIER_NONE, 0x2D);
+        assertEncodes("_", MODIFIER_SHIFT, 0x2D);
+        assertEncodes("=", MODIFIER_NONE, 0x2E);
+        assertEncodes("+", MODIFIER_SHIFT, 0x2E);
+        assertEncodes("[", MODIFIER_NONE, 0x2F);
+        assertEncodes("{", MODIFIER_SHIFT, 0x2F);
+        assertEncodes("]", MODIFIER_NONE, 0x30);
+        assertEncodes("}", MODIFIER_SHIFT, 0x30);
+        assertEncodes("\\", MODIFIER_NONE, 0x31);
+        assertEncodes("|", MODIFIER_SHIFT, 0x31);
+        assertEncodes(";", MODIFIER_NONE, 0x33);
+        assertEncodes(":", MODIFIER_SHIFT, 0x33);
+        assertEncodes("'", MODIFIER_NONE, 0x34);
+        assertEncodes("\"", MODIFIER_SHIFT, 0x34);
+        assertEncodes("`", MODIFIER_NONE, 0x35);
+        assertEncodes("~", MODIFIER_SHIFT, 0x35);
+        assertEncodes(",", MODIFIER_NONE, 0x36);
+        assertEncodes("<", MODIFIER_SHIFT, 0x36);
+        assertEncodes(".", MODIFIER_NONE, 0x37);
+        assertEncodes(">", MODIFIER_SHIFT, 0x37);
+        assertEncodes("/", MODIFIER_NONE, 0x38);
+        assertEncodes("?", MODIFIER_SHIFT, 0x38);
+    }
+
+    @Test
+    public void testEncodeAllPrintableCharacters() {
+        Set<Key> keys = new HashSet<>();
+        for (char c = ' '; c <= '~'; c++) {
+            // pressed and released
+            List<byte[]> reports = AoaDevice.encodeText(String.valueOf(c));
+            assertEquals(2, reports.size());
+            assertArrayEquals(new byte[MAX_KEYS + 1], reports.get(1));
+            // mapped to a distinct key
+            assertTrue(keys.add(new Key(reports.get(0))));
+        }
+    }
+
+    @Test
+    public void testEncodePacksKeys() {
+        // repeated keys start a new report
+        assertEquals(
+                Arrays.asList(
+                        new Key(MODIFIER_NONE, 0x0B, 0x08, 0x0F), // hel
+                        new Key(MODIFIER_NONE, 0x0F, 0x12)), // lo
+                decodeKeys(AoaDevice.encodeText("hello")));
+        // modifier changes start a new report
+        assertEquals(
+                Arrays.asList(
+                        new Key(MODIFIER_NONE, 0x04),
+                        new Key(MODIFIER_SHIFT, 0x04, 0x05),
+                        new Key(MODIFIER_NONE, 0x05)),
+                decodeKeys(AoaDevice.encodeText("aABb")));
+        // at most 6 keys per report
+        assertEquals(
+                Arrays.asList(
+                        new Key(MODIFIER_NONE, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09),
+                        new Key(MODIFIER_NONE, 0x0A, 0x0B)),
+                decodeKeys(AoaDevice.encodeText("abcdefgh")));
+        // nothing to press
+        assertEquals(0, AoaDevice.encodeText("").size());
     }
 
     @Test
@@ -278,12 +442,13 @@ public class AoaDeviceTest {
         mDevice.key(1, null, 2);
 
         InOrder order = inOrder(mDelegate);
+        byte[] release = new byte[MAX_KEYS + 1];
         // press and release 1
-        verifyHidRequest(order, times(1), AoaDevice.HID.KEYBOARD, (byte) 1);
-        verifyHidRequest(order, times(1), AoaDevice.HID.KEYBOARD, (byte) 0);
+        verifyHidRequest(order, times(1), AoaDevice.HID.KEYBOARD, new Key(MODIFIER_NONE, 1).mData);
+        verifyHidRequest(order, times(1), AoaDevice.HID.KEYBOARD, release);
         // skip null, and press and release 2
-        verifyHidRequest(order, times(1), AoaDevice.HID.KEYBOARD, (byte) 2);
-        verifyHidRequest(order, times(1), AoaDevice.HID.KEYBOARD, (byte) 0);
+        verifyHidRequest(order, times(1), AoaDevice.HID.KEYBOARD, new Key(MODIFIER_NONE, 2).mData);
+        verifyHidRequest(order, times(1), AoaDevice.HID.KEYBOARD, release);
     }
 
     @Test
@@ -330,16 +495,294 @@ public class AoaDeviceTest {
                 new Touch(TOUCH_UP, 34, 56));
     }
 
+    // Touch screens
+
+    @Test
+    public void testRegistersResolution() {
+        Dimension resolution = new Dimension(1080, 1920);
+        mDevice = createDevice(resolution);
+        assertEquals(resolution, mDevice.getResolution());
+
+        // logical maximums are replaced with 16-bit little-endian values
+        byte[] descriptor = AoaDevice.HID.TOUCH_SCREEN.getDescriptor(resolution);
+        assertTrue(Bytes.indexOf(descriptor, new byte[] {0x26, 0x38, 0x04}) >= 0);
+        assertTrue(Bytes.indexOf(descriptor, new byte[] {0x26, (byte) 0x80, 0x07}) >= 0);
+        verify(mDelegate)
+                .controlTransfer(
+                        anyByte(),
+                        eq(ACCESSORY_SET_HID_REPORT_DESC),
+                        eq(AoaDevice.HID.TOUCH_SCREEN.getId()),
+                        anyInt(),
+                        eq(descriptor));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testThrowsIfResolutionTooLarge() {
+        mDevice = createDevice(new Dimension(MAX_RESOLUTION + 1, 640));
+    }
+
+    @Test
+    public void testClickHighResolution() {
+        mDevice = createDevice(new Dimension(1080, 1920));
+        mDevice.click(new Point(1000, 1900));
+        mDevice.click(new Point(2000, -10));
+
+        // coordinates are limited to the resolution
+        verifyTouches(
+                new Touch(TOUCH_DOWN, 1000, 1900),
+                new Touch(TOUCH_UP, 1000, 1900),
+                new Touch(TOUCH_DOWN, 1080, 0),
+                new Touch(TOUCH_UP, 1080, 0));
+    }
+
+    @Test
+    public void testMultiTouchReports() {
+        mDevice = createDevice();
+        mDevice.zoom(new Point(0x0102, 0x0203), 8);
+
+        List<byte[]> reports = captureHidEvents(AoaDevice.HID.MULTI_TOUCH_SCREEN);
+        assertEquals(GESTURE_STEPS + 2, reports.size());
+        // both contacts down, 2px either side of the center, followed by the contact count
+        assertArrayEquals(
+                new byte[] {
+                    TOUCH_DOWN, 0, 0x04, 0x01, 0x03, 0x02,
+                    TOUCH_DOWN, 1, 0x00, 0x01, 0x03, 0x02,
+                    2
+                },
+                reports.get(0));
+        // both contacts up, 8px either side of the center
+        assertArrayEquals(
+                new byte[] {
+                    TOUCH_UP, 0, 0x0A, 0x01, 0x03, 0x02,
+                    TOUCH_UP, 1, (byte) 0xFA, 0x00, 0x03, 0x02,
+                    2
+                },
+                reports.get(GESTURE_STEPS + 1));
+    }
+
+    @Test
+    public void testPinch() {
+        mDevice = createDevice();
+        Point center = new Point(180, 320);
+        mDevice.pinch(center, 100);
+
+        List<byte[]> reports = captureHidEvents(AoaDevice.HID.MULTI_TOUCH_SCREEN);
+        assertEquals(GESTURE_STEPS + 2, reports.size());
+        double previous = Double.MAX_VALUE;
+        for (byte[] report : reports) {
+            // contacts move symmetrically towards the center along the X axis
+            Point first = getContact(report, 0);
+            Point second = getContact(report, 1);
+            assertEquals(center.x * 2, first.x + second.x);
+            assertEquals(center.y, first.y);
+            assertEquals(center.y, second.y);
+            assertTrue(first.distance(center) <= previous);
+            previous = first.distance(center);
+        }
+        assertEquals(100.0, getContact(reports.get(0), 0).distance(center), 0.0);
+        assertEquals(100.0 / PINCH_RATIO, previous, 0.0);
+    }
+
+    @Test
+    public void testRotate() {
+        mDevice = createDevice();
+        Point center = new Point(180, 320);
+        mDevice.rotate(center, 100, 90.0);
+
+        List<byte[]> reports = captureHidEvents(AoaDevice.HID.MULTI_TOUCH_SCREEN);
+        for (byte[] report : reports) {
+            // contacts stay on opposite sides of the center, at the same distance
+            assertEquals(100.0, getContact(report, 0).distance(center), 1.0);
+            assertEquals(100.0, getContact(report, 1).distance(center), 1.0);
+        }
+        // quarter turn clockwise, from the X axis to the Y axis
+        assertEquals(new Point(280, 320), getContact(reports.get(0), 0));
+        assertEquals(new Point(80, 320), getContact(reports.get(0), 1));
+        assertEquals(new Point(180, 420), getContact(reports.get(GESTURE_STEPS), 0));
+        assertEquals(new Point(180, 220), getContact(reports.get(GESTURE_STEPS), 1));
+    }
+
+    // Scheduling
+
+    @Test
+    public void testSchedulesEventsAtTargetTimes() {
+        mDevice = createDevice();
+        // each transfer takes 4ms, which is deducted from the 10ms steps
+        List<Duration> sent = recordHidEvents(Duration.ofMillis(4L));
+        Duration start = mNow;
+        mDevice.fling(new Point(0, 0), new Point(FLING_STEPS, 0));
+
+        // events spaced exactly one step apart, with the release after the last step
+        List<Duration> expected = new ArrayList<>();
+        for (int i = 0; i <= FLING_STEPS; i++) {
+            expected.add(start.plus(STEP_DELAY.multipliedBy(i)));
+        }
+        expected.add(start.plus(STEP_DELAY.multipliedBy(FLING_STEPS + 1)));
+        assertEquals(expected, sent);
+        verify(mDevice, atLeastOnce()).sleep(Duration.ofMillis(6L));
+        verify(mDevice, never()).sleep(STEP_DELAY);
+
+        // returns once the action delay after the release has elapsed
+        assertEquals(expected.get(FLING_STEPS + 1).plus(ACTION_DELAY), mNow);
+    }
+
+    @Test
+    public void testSlowTransfersCatchUp() {
+        mDevice = createDevice();
+        // each transfer takes longer than a step
+        List<Duration> sent = recordHidEvents(Duration.ofMillis(15L));
+        clearInvocations(mDevice);
+        Duration start = mNow;
+        mDevice.fling(new Point(0, 0), new Point(FLING_STEPS, 0));
+
+        // events sent back to back without waiting, but the action does not take any longer
+        assertEquals(FLING_STEPS + 2, sent.size());
+        assertEquals(start.plus(Duration.ofMillis(15L).multipliedBy(FLING_STEPS + 1)),
+                sent.get(FLING_STEPS + 1));
+        verify(mDevice, times(1)).sleep(any());
+        assertEquals(start.plus(STEP_DELAY.multipliedBy(FLING_STEPS + 1)).plus(ACTION_DELAY), mNow);
+    }
+
+    @Test
+    public void testPipelinesEvents() {
+        mDevice = createDevice();
+        // each transfer takes 25ms to complete, but does not block
+        List<Duration> sent = new ArrayList<>();
+        doAnswer(
+                        invocation -> {
+                            sent.add(mNow);
+                            CompletableFuture<Integer> result = new CompletableFuture<>();
+                            mTransfers.put(mNow.plusMillis(25L), result);
+                            return result;
+                        })
+                .when(mDelegate)
+                .controlTransferAsync(
+                        anyByte(), eq(ACCESSORY_SEND_HID_EVENT), anyInt(), anyInt(), any());
+        Duration start = mNow;
+        mDevice.fling(new Point(0, 0), new Point(FLING_STEPS, 0));
+
+        // events still spaced exactly one step apart
+        List<Duration> expected = new ArrayList<>();
+        for (int i = 0; i <= FLING_STEPS + 1; i++) {
+            expected.add(start.plus(STEP_DELAY.multipliedBy(i)));
+        }
+        assertEquals(expected, sent);
+        // and all completed before returning
+        assertTrue(mTransfers.isEmpty());
+    }
+
+    @Test
+    public void testLimitsPendingEvents() {
+        mDevice = createDevice();
+        mDevice.setActionDelay(Duration.ZERO);
+        // transfers only complete once the limit of pending events is reached
+        List<CompletableFuture<Integer>> pending = new ArrayList<>();
+        doAnswer(
+                        invocation -> {
+                            assertTrue(pending.size() < MAX_PENDING_EVENTS);
+                            CompletableFuture<Integer> result = new CompletableFuture<>();
+                            pending.add(result);
+                            if (pending.size() == MAX_PENDING_EVENTS) {
+                                pending.forEach(future -> future.complete(0));
+                                pending.clear();
+                            }
+                            return result;
+                        })
+                .when(mDelegate)
+                .controlTransferAsync(
+                        anyByte(), eq(ACCESSORY_SEND_HID_EVENT), anyInt(), anyInt(), any());
+        mDevice.setKeyDelay(Duration.ZERO);
+        mDevice.write(String.join("", Collections.nCopies(MAX_PENDING_EVENTS, "a")));
+
+        // one press and one release for each key
+        verify(mDelegate, times(MAX_PENDING_EVENTS * 2))
+                .controlTransferAsync(
+                        anyByte(), eq(ACCESSORY_SEND_HID_EVENT), anyInt(), anyInt(), any());
+    }
+
+    @Test
+    public void testRetryKeepsRelativeTiming() {
+        mDevice = createDevice();
+        List<Duration> sent = recordHidEvents(Duration.ZERO);
+        // first attempt will fail to find device
+        mFailures = 1;
+
+        mDevice.longClick(new Point(34, 56));
+
+        // release is one long click after the retried press, not after the failed one
+        assertEquals(3, sent.size());
+        assertEquals(sent.get(1).plus(LONG_CLICK), sent.get(2));
+    }
+
+    @Test
+    public void testActionDelay() {
+        mDevice = createDevice();
+        assertEquals(ACTION_DELAY, mDevice.getActionDelay());
+
+        mDevice.setActionDelay(Duration.ZERO);
+        clearInvocations(mDevice);
+        Duration start = mNow;
+        mDevice.click(new Point(12, 34));
+        mDevice.goHome();
+        mDevice.key(1, 2);
+
+        // no waiting at all, apart from the steps between keys
+        assertEquals(start.plus(STEP_DELAY.multipliedBy(3)), mNow);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeActionDelay() {
+        mDevice = createDevice();
+        mDevice.setActionDelay(Duration.ofMillis(-1L));
+    }
+
     // Helpers
 
     private AoaDevice createDevice() {
-        AoaDevice device = new AoaDevice(mHelper, mDelegate) {
+        return createDevice(AoaDevice.DEFAULT_RESOLUTION);
+    }
+
+    private AoaDevice createDevice(Dimension resolution) {
+        // fake monotonic clock, advanced by sleeping
+        AoaDevice device = new AoaDevice(mHelper, mDelegate, resolution) {
+            @Override
+            long uptimeNanos() {
+                return mNow.toNanos();
+            }
+
             @Override
-            public void sleep(@Nonnull Duration duration) {}
+            public void sleep(@Nonnull Duration duration) {
+                mNow = mNow.plus(duration);
+                // complete pending transfers which are due
+                Iterator<Map.Entry<Duration, CompletableFuture<Integer>>> it =
+                        mTransfers.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Duration, CompletableFuture<Integer>> transfer = it.next();
+                    if (transfer.getKey().compareTo(mNow) <= 0) {
+                        transfer.getValue().complete(0);
+                        it.remove();
+                    }
+                }
+            }
         };
         return spy(device);
     }
 
+    // Record the times at which HID events are sent, each taking the specified time to transfer
+    private List<Duration> recordHidEvents(Duration transferTime) {
+        List<Duration> sent = new ArrayList<>();
+        doAnswer(
+                        invocation -> {
+                            sent.add(mNow);
+                            mNow = mNow.plus(transferTime);
+                            return mFailures-- > 0 ? DEVICE_NOT_FOUND : 0;
+                        })
+                .when(mDelegate)
+                .controlTransfer(
+                        anyByte(), eq(ACCESSORY_SEND_HID_EVENT), anyInt(), anyInt(), any());
+        return sent;
+    }
+
     private void verifyRequest(VerificationMode mode, byte request) {
         verify(mDelegate, mode)
                 .controlTransfer(anyByte(), eq(request), anyInt(), anyInt(), any());
@@ -357,6 +800,43 @@ public class AoaDeviceTest {
                 anyByte(), eq(ACCESSORY_SEND_HID_EVENT), eq(hid.getId()), anyInt(), eq(data));
     }
 
+    private List<byte[]> captureHidEvents(AoaDevice.HID hid) {
+        ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+        verify(mDelegate, atLeastOnce())
+                .controlTransfer(
+                        anyByte(),
+                        eq(ACCESSORY_SEND_HID_EVENT),
+                        eq(hid.getId()),
+                        anyInt(),
+                        captor.capture());
+        return captor.getAllValues();
+    }
+
+    // Decode a contact's location from a multi-touch report
+    private Point getContact(byte[] report, int id) {
+        int offset = id * 6;
+        assertEquals(id, report[offset + 1]);
+        return new Point(
+                Shorts.fromBytes(report[offset + 3], report[offset + 2]),
+                Shorts.fromBytes(report[offset + 5], report[offset + 4]));
+    }
+
+    // Check that a string is a single key press with the specified modifiers, followed by a release
+    private void assertEncodes(String value, byte modifiers, int usage) {
+        assertEquals(
+                Arrays.asList(new Key(modifiers, usage)), decodeKeys(AoaDevice.encodeText(value)));
+    }
+
+    // Decode the key presses from keyboard reports, checking that they alternate with releases
+    private List<Key> decodeKeys(List<byte[]> reports) {
+        List<Key> keys = new ArrayList<>();
+        for (int i = 0; i < reports.size(); i += 2) {
+            keys.add(new Key(reports.get(i)));
+            assertArrayEquals(new byte[MAX_KEYS + 1], reports.get(i + 1));
+        }
+        return keys;
+    }
+
     private void verifyTouches(Touch... expected) {
         verifyTouches(Arrays.asList(expected));
     }
@@ -418,4 +898,38 @@ public class AoaDeviceTest {
             return String.format("Touch{%d, %d, %d}", mType, mX, mY);
         }
     }
+
+    /** Keyboard HID event. */
+    private static class Key {
+
+        private final byte[] mData;
+
+        private Key(byte modifiers, int... usages) {
+            mData = new byte[MAX_KEYS + 1];
+            mData[0] = modifiers;
+            for (int i = 0; i < usages.length; i++) {
+                mData[i + 1] = (byte) usages[i];
+            }
+        }
+
+        private Key(byte[] data) {
+            assertEquals(MAX_KEYS + 1, data.length);
+            mData = data;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof Key && Arrays.equals(mData, ((Key) object).mData);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(mData);
+        }
+
+        @Override
+        public String toString() {
+            return "Key" + Arrays.toString(mData);
+        }
+    }
 }
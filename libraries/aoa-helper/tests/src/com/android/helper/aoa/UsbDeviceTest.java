@@ -15,6 +15,8 @@
  */
 package com.android.helper.aoa;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -22,7 +24,10 @@ import static org.mockito.ArgumentMatchers.anyByte;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyShort;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -34,15 +39,24 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 /** Unit tests for {@link UsbDevice} */
 @RunWith(JUnit4.class)
 public class UsbDeviceTest {
 
+    // Larger than struct libusb_transfer without isochronous packets
+    private static final int TRANSFER_SIZE = 128;
+
     private UsbDevice mDevice;
 
     private Pointer mHandle;
     private IUsbNative mUsb;
+    private UsbEventLoop mEventLoop;
 
     @Before
     public void setUp() {
@@ -60,7 +74,11 @@ public class UsbDeviceTest {
                             return 0;
                         });
 
-        mDevice = new UsbDevice(mUsb, mock(Pointer.class));
+        // allocate native memory for asynchronous transfers
+        when(mUsb.libusb_alloc_transfer(anyInt())).then(invocation -> new Memory(TRANSFER_SIZE));
+
+        mEventLoop = mock(UsbEventLoop.class);
+        mDevice = new UsbDevice(mUsb, mock(Pointer.class), mEventLoop);
     }
 
     @Test
@@ -82,7 +100,17 @@ public class UsbDeviceTest {
         verify(mUsb).libusb_control_transfer(eq(mHandle),
                 eq((byte) 1), eq((byte) 2), eq((short) 3), eq((short) 4),
                 eq(data), eq((short) 4), // data and length
-                eq(0)); // timeout
+                eq((int) UsbDevice.DEFAULT_TIMEOUT.toMillis())); // timeout
+    }
+
+    @Test
+    public void testControlTransfer_timeout() {
+        mDevice.setTimeout(Duration.ofMillis(250L));
+        mDevice.controlTransfer((byte) 1, (byte) 2, 3, 4, new byte[0]);
+
+        verify(mUsb).libusb_control_transfer(
+                eq(mHandle), anyByte(), anyByte(), anyShort(), anyShort(), any(), anyShort(),
+                eq(250));
     }
 
     @Test(expected = NullPointerException.class)
@@ -133,4 +161,158 @@ public class UsbDeviceTest {
                 .thenReturn(-1);
         assertFalse(mDevice.isAoaCompatible());
     }
+
+    @Test
+    public void testControlTransferAsync() {
+        byte[] data = new byte[] {1, 2, 3, 4};
+        CompletableFuture<Integer> result =
+                mDevice.controlTransferAsync((byte) 0x40, (byte) 57, 0x0102, 0x0304, data);
+
+        // starts handling events and submits a control transfer
+        verify(mEventLoop).start();
+        IUsbNative.Transfer transfer = getSubmittedTransfer();
+        assertEquals(mHandle, transfer.dev_handle);
+        assertEquals(IUsbNative.LIBUSB_TRANSFER_TYPE_CONTROL, transfer.type);
+        assertEquals(0, transfer.endpoint);
+        assertEquals(UsbDevice.DEFAULT_TIMEOUT.toMillis(), transfer.timeout);
+        // setup packet with little-endian fields, followed by the data
+        assertEquals(12, transfer.length);
+        assertArrayEquals(
+                new byte[] {0x40, 57, 0x02, 0x01, 0x04, 0x03, 4, 0, 1, 2, 3, 4},
+                transfer.buffer.getByteArray(0, 12));
+        assertFalse(result.isDone());
+
+        // completes once the callback is invoked, and frees the transfer
+        finish(transfer, IUsbNative.LIBUSB_TRANSFER_COMPLETED, 4);
+        assertEquals(4, (int) result.join());
+        verify(mUsb).libusb_free_transfer(eq(transfer.getPointer()));
+    }
+
+    @Test
+    public void testControlTransferAsync_input() {
+        byte[] data = new byte[2];
+        CompletableFuture<Integer> result =
+                mDevice.controlTransferAsync((byte) 0xC0, (byte) 51, 0, 0, data);
+
+        // input data is copied from after the setup packet
+        IUsbNative.Transfer transfer = getSubmittedTransfer();
+        transfer.buffer.write(8, new byte[] {2, 0}, 0, 2);
+        finish(transfer, IUsbNative.LIBUSB_TRANSFER_COMPLETED, 2);
+        assertEquals(2, (int) result.join());
+        assertArrayEquals(new byte[] {2, 0}, data);
+    }
+
+    @Test
+    public void testBulkTransferAsync() {
+        byte[] data = new byte[] {5, 6, 7};
+        CompletableFuture<Integer> result = mDevice.bulkTransferAsync((byte) 0x01, data);
+
+        IUsbNative.Transfer transfer = getSubmittedTransfer();
+        assertEquals(IUsbNative.LIBUSB_TRANSFER_TYPE_BULK, transfer.type);
+        assertEquals(0x01, transfer.endpoint);
+        assertEquals(3, transfer.length);
+        assertArrayEquals(data, transfer.buffer.getByteArray(0, 3));
+
+        finish(transfer, IUsbNative.LIBUSB_TRANSFER_COMPLETED, 3);
+        assertEquals(3, (int) result.join());
+    }
+
+    @Test
+    public void testInterruptTransferAsync_input() {
+        byte[] data = new byte[4];
+        CompletableFuture<Integer> result = mDevice.interruptTransferAsync((byte) 0x81, data);
+
+        IUsbNative.Transfer transfer = getSubmittedTransfer();
+        assertEquals(IUsbNative.LIBUSB_TRANSFER_TYPE_INTERRUPT, transfer.type);
+        transfer.buffer.write(0, new byte[] {9, 8}, 0, 2);
+
+        // only the transferred bytes are copied
+        finish(transfer, IUsbNative.LIBUSB_TRANSFER_COMPLETED, 2);
+        assertEquals(2, (int) result.join());
+        assertArrayEquals(new byte[] {9, 8, 0, 0}, data);
+    }
+
+    @Test
+    public void testTransferAsync_failed() {
+        // failures are converted to the error codes of synchronous transfers
+        assertEquals(
+                IUsbNative.LIBUSB_ERROR_TIMEOUT,
+                finishAsync(IUsbNative.LIBUSB_TRANSFER_TIMED_OUT));
+        assertEquals(
+                IUsbNative.LIBUSB_ERROR_NO_DEVICE,
+                finishAsync(IUsbNative.LIBUSB_TRANSFER_NO_DEVICE));
+        assertEquals(IUsbNative.LIBUSB_ERROR_PIPE, finishAsync(IUsbNative.LIBUSB_TRANSFER_STALL));
+        assertEquals(IUsbNative.LIBUSB_ERROR_IO, finishAsync(IUsbNative.LIBUSB_TRANSFER_ERROR));
+    }
+
+    @Test
+    public void testTransferAsync_submitFailed() {
+        when(mUsb.libusb_submit_transfer(any())).thenReturn(IUsbNative.LIBUSB_ERROR_NO_DEVICE);
+        CompletableFuture<Integer> result =
+                mDevice.controlTransferAsync((byte) 0x40, (byte) 57, 0, 0, new byte[1]);
+
+        // completes immediately with the error, and frees the transfer
+        assertEquals(IUsbNative.LIBUSB_ERROR_NO_DEVICE, (int) result.join());
+        verify(mUsb).libusb_free_transfer(any());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testTransferAsync_closed() {
+        mDevice.close();
+        // trying to operate on a closed handle should fail
+        mDevice.controlTransferAsync((byte) 0x40, (byte) 57, 0, 0, new byte[0]);
+    }
+
+    @Test
+    public void testClose_cancelsTransfers() {
+        CompletableFuture<Integer> result = mDevice.bulkTransferAsync((byte) 0x01, new byte[1]);
+        IUsbNative.Transfer transfer = getSubmittedTransfer();
+        // cancelling finishes the transfer
+        when(mUsb.libusb_cancel_transfer(eq(transfer.getPointer())))
+                .then(
+                        invocation -> {
+                            finish(transfer, IUsbNative.LIBUSB_TRANSFER_CANCELLED, 0);
+                            return 0;
+                        });
+
+        mDevice.close();
+
+        // transfer is cancelled before the handle is closed
+        InOrder order = inOrder(mUsb);
+        order.verify(mUsb).libusb_cancel_transfer(eq(transfer.getPointer()));
+        order.verify(mUsb).libusb_close(eq(mHandle));
+        assertEquals(IUsbNative.LIBUSB_ERROR_IO, (int) result.join());
+    }
+
+    @Test
+    public void testClose_noPendingTransfers() {
+        CompletableFuture<Integer> result = mDevice.bulkTransferAsync((byte) 0x01, new byte[1]);
+        finish(getSubmittedTransfer(), IUsbNative.LIBUSB_TRANSFER_COMPLETED, 1);
+        assertEquals(1, (int) result.join());
+
+        mDevice.close();
+        verify(mUsb, never()).libusb_cancel_transfer(any());
+    }
+
+    // Get the last transfer submitted
+    private IUsbNative.Transfer getSubmittedTransfer() {
+        ArgumentCaptor<Pointer> captor = ArgumentCaptor.forClass(Pointer.class);
+        verify(mUsb, atLeastOnce()).libusb_submit_transfer(captor.capture());
+        return new IUsbNative.Transfer(captor.getValue());
+    }
+
+    // Simulate libusb finishing a transfer and invoking its callback
+    private void finish(IUsbNative.Transfer transfer, int status, int length) {
+        transfer.status = status;
+        transfer.actual_length = length;
+        transfer.write();
+        transfer.callback.invoke(transfer.getPointer());
+    }
+
+    // Start a transfer, and finish it with a status
+    private int finishAsync(int status) {
+        CompletableFuture<Integer> result = mDevice.bulkTransferAsync((byte) 0x01, new byte[1]);
+        finish(getSubmittedTransfer(), status, 0);
+        return result.join();
+    }
 }
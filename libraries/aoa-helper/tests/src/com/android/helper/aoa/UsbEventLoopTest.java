@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helper.aoa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link UsbEventLoop} */
+@RunWith(JUnit4.class)
+public class UsbEventLoopTest {
+
+    private static final long TIMEOUT_MS = 1000L;
+
+    private UsbEventLoop mEventLoop;
+
+    private Pointer mContext;
+    private IUsbNative mUsb;
+
+    @Before
+    public void setUp() {
+        mContext = new Memory(1);
+
+        mUsb = mock(IUsbNative.class);
+        // block briefly when handling events, as libusb would
+        when(mUsb.libusb_handle_events_timeout(any(), any()))
+                .then(
+                        invocation -> {
+                            Thread.sleep(1L);
+                            return 0;
+                        });
+
+        mEventLoop = new UsbEventLoop(mUsb, mContext);
+    }
+
+    @After
+    public void tearDown() {
+        mEventLoop.close();
+    }
+
+    @Test
+    public void testStart() {
+        // not started initially
+        assertFalse(mEventLoop.isRunning());
+        verify(mUsb, after(50L).never()).libusb_handle_events_timeout(any(), any());
+
+        // handles events once started
+        mEventLoop.start();
+        assertTrue(mEventLoop.isRunning());
+        verify(mUsb, timeout(TIMEOUT_MS).atLeastOnce())
+                .libusb_handle_events_timeout(eq(mContext), any());
+    }
+
+    @Test
+    public void testStart_alreadyStarted() {
+        mEventLoop.start();
+        mEventLoop.start();
+
+        // only one thread handles events
+        long threads =
+                Thread.getAllStackTraces().keySet().stream()
+                        .filter(thread -> thread.getName().equals("libusb-events"))
+                        .count();
+        assertEquals(1L, threads);
+    }
+
+    @Test
+    public void testClose() {
+        mEventLoop.start();
+        verify(mUsb, timeout(TIMEOUT_MS).atLeastOnce()).libusb_handle_events_timeout(any(), any());
+
+        // stops handling events
+        mEventLoop.close();
+        assertFalse(mEventLoop.isRunning());
+        clearInvocations(mUsb);
+        verify(mUsb, after(50L).never()).libusb_handle_events_timeout(any(), any());
+
+        // can be restarted
+        mEventLoop.start();
+        verify(mUsb, timeout(TIMEOUT_MS).atLeastOnce()).libusb_handle_events_timeout(any(), any());
+    }
+
+    @Test
+    public void testHandleEventsFailed() {
+        when(mUsb.libusb_handle_events_timeout(any(), any())).thenReturn(-1);
+        mEventLoop.start();
+
+        // waits before trying again instead of spinning
+        verify(mUsb, after(50L).atMost(2)).libusb_handle_events_timeout(any(), any());
+    }
+}
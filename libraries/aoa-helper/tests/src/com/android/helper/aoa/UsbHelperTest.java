@@ -20,8 +20,11 @@ import static com.android.helper.aoa.AoaDevice.GOOGLE_VID;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -32,6 +35,7 @@ import static org.mockito.Mockito.when;
 
 import com.google.common.collect.Sets;
 import com.sun.jna.Memory;
+import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.PointerByReference;
 
@@ -40,6 +44,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.time.Duration;
 import java.util.HashSet;
 
 /** Unit tests for {@link UsbHelper} */
@@ -157,6 +162,108 @@ public class UsbHelperTest {
         verify(mUsb, times(1)).libusb_free_device_list(any(), eq(true));
     }
 
+    @Test
+    public void testGetDevice_cached() {
+        Pointer otherPointer = mockDevice(1, mock(UsbDevice.class));
+        Pointer devicePointer = mockDevice(2, mDevice);
+        setDevices(otherPointer, devicePointer);
+
+        // both devices opened on first lookup
+        assertEquals(mDevice, mHelper.getDevice(SERIAL_NUMBER));
+        verify(mHelper, times(1)).connect(eq(otherPointer));
+        verify(mHelper, times(1)).connect(eq(devicePointer));
+
+        // only the cached device opened on subsequent lookups
+        assertEquals(mDevice, mHelper.getDevice(SERIAL_NUMBER));
+        verify(mHelper, times(1)).connect(eq(otherPointer));
+        verify(mHelper, times(2)).connect(eq(devicePointer));
+    }
+
+    @Test
+    public void testGetDevice_cacheInvalidated() {
+        UsbDevice otherDevice = mock(UsbDevice.class);
+        Pointer otherPointer = mockDevice(1, otherDevice);
+        Pointer devicePointer = mockDevice(2, mDevice);
+        setDevices(otherPointer, devicePointer);
+        assertEquals(mDevice, mHelper.getDevice(SERIAL_NUMBER));
+
+        // device moved, cached location has a different device
+        when(mDevice.getSerialNumber()).thenReturn("other-serial-number");
+        when(otherDevice.getSerialNumber()).thenReturn(SERIAL_NUMBER);
+        assertEquals(otherDevice, mHelper.getDevice(SERIAL_NUMBER));
+
+        // device at cached location closed and not reopened
+        verify(mDevice, times(1)).close();
+        verify(mHelper, times(2)).connect(eq(devicePointer));
+    }
+
+    @Test
+    public void testGetDevice_timeout() {
+        when(mDevice.getSerialNumber()).thenReturn(null);
+
+        // polls until timeout if hotplug is not supported
+        assertNull(mHelper.getDevice(SERIAL_NUMBER, Duration.ofMillis(1L)));
+        verify(mUsb, never()).libusb_hotplug_register_callback(
+                any(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt(), any(), any(), any());
+    }
+
+    @Test
+    public void testGetDevice_hotplug() {
+        when(mUsb.libusb_has_capability(IUsbNative.LIBUSB_CAP_HAS_HOTPLUG)).thenReturn(1);
+        IUsbNative.HotplugCallback[] callback = new IUsbNative.HotplugCallback[1];
+        when(mUsb.libusb_hotplug_register_callback(
+                        any(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt(), any(), any(),
+                        any()))
+                .then(
+                        invocation -> {
+                            callback[0] =
+                                    (IUsbNative.HotplugCallback) invocation.getArguments()[6];
+                            return 0;
+                        });
+
+        // device not connected until it arrives while handling events
+        Pointer devicePointer = mockDevice(1, mDevice);
+        setDevices();
+        when(mUsb.libusb_handle_events_timeout_completed(any(), any(), any()))
+                .then(
+                        invocation -> {
+                            setDevices(devicePointer);
+                            callback[0].invoke(
+                                    null,
+                                    devicePointer,
+                                    IUsbNative.LIBUSB_HOTPLUG_EVENT_DEVICE_ARRIVED,
+                                    null);
+                            return 0;
+                        });
+
+        assertSame(mDevice, mHelper.getDevice(SERIAL_NUMBER, Duration.ofMinutes(1L)));
+
+        // looked up again once after the event, and listener deregistered
+        verify(mUsb, times(1)).libusb_handle_events_timeout_completed(any(), any(), any());
+        verify(mUsb, times(2)).libusb_get_device_list(any(), any());
+        verify(mUsb, times(1)).libusb_hotplug_deregister_callback(any(), anyInt());
+    }
+
+    @Test
+    public void testGetDevice_hotplugError() {
+        when(mUsb.libusb_has_capability(IUsbNative.LIBUSB_CAP_HAS_HOTPLUG)).thenReturn(1);
+
+        // device arrives, but events cannot be handled
+        Pointer devicePointer = mockDevice(1, mDevice);
+        setDevices();
+        when(mUsb.libusb_handle_events_timeout_completed(any(), any(), any()))
+                .then(
+                        invocation -> {
+                            setDevices(devicePointer);
+                            return -1;
+                        });
+
+        // falls back to polling instead of throwing
+        assertSame(mDevice, mHelper.getDevice(SERIAL_NUMBER, Duration.ofMinutes(1L)));
+        verify(mUsb, times(1)).libusb_handle_events_timeout_completed(any(), any(), any());
+        verify(mUsb, times(2)).libusb_get_device_list(any(), any());
+    }
+
     @Test
     public void testGetAoaDevice() {
         when(mDevice.isAoaCompatible()).thenReturn(true);
@@ -168,4 +275,31 @@ public class UsbHelperTest {
         when(mDevice.isAoaCompatible()).thenReturn(false);
         assertNull(mHelper.getAoaDevice(SERIAL_NUMBER));
     }
+
+    // Create a device pointer at the given address which connects to the given device.
+    private Pointer mockDevice(int address, UsbDevice device) {
+        Pointer devicePointer = new Memory(1);
+        when(mUsb.libusb_get_bus_number(eq(devicePointer))).thenReturn((byte) 1);
+        when(mUsb.libusb_get_device_address(eq(devicePointer))).thenReturn((byte) address);
+        doReturn(device).when(mHelper).connect(eq(devicePointer));
+        return devicePointer;
+    }
+
+    // Change the devices found when listing devices.
+    private void setDevices(Pointer... devicePointers) {
+        Memory devices = new Memory(Native.POINTER_SIZE * (devicePointers.length + 1));
+        for (int i = 0; i < devicePointers.length; i++) {
+            devices.setPointer(i * Native.POINTER_SIZE, devicePointers[i]);
+        }
+        // stubbed without calling the method, which would run the previous answer
+        doAnswer(
+                        invocation -> {
+                            PointerByReference list =
+                                    (PointerByReference) invocation.getArguments()[1];
+                            list.setValue(devices);
+                            return devicePointers.length;
+                        })
+                .when(mUsb)
+                .libusb_get_device_list(any(), any());
+    }
 }
@@ -19,7 +19,6 @@ package android.platform.helpers;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.app.Instrumentation;
-import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
@@ -42,10 +41,13 @@ import androidx.test.InstrumentationRegistry;
 import android.util.Log;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public abstract class AbstractStandardAppHelper implements IAppHelper {
     private static final String LOG_TAG = AbstractStandardAppHelper.class.getSimpleName();
@@ -56,7 +58,10 @@ public abstract class AbstractStandardAppHelper implements IAppHelper {
     private static final String ERROR_NOT_FOUND =
         "Element %s %s is not found in the application %s";
 
+    private static final String LAUNCH_COMMAND = "am start -W -a %s -c %s -n %s";
+
     private static final long EXIT_WAIT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    private static final long BACK_WAIT_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
 
     private static File sScreenshotDirectory;
 
@@ -68,6 +73,7 @@ public abstract class AbstractStandardAppHelper implements IAppHelper {
     private final boolean mFavorShellCommands;
     private final boolean mPressHomeToExit;
     private final long mLaunchTimeout;
+    private LaunchResult mLastLaunchResult;
 
     public AbstractStandardAppHelper(Instrumentation instr) {
         mInstrumentation = instr;
@@ -110,38 +116,97 @@ public abstract class AbstractStandardAppHelper implements IAppHelper {
         long launchInitiationTimeMs = System.currentTimeMillis();
 
         registerDialogWatchers();
-        if (mFavorShellCommands) {
-            String output = null;
-            try {
-                Log.i(LOG_TAG, String.format("Sending command to launch: %s", pkg));
-                Intent intent =
-                        mInstrumentation
-                                .getContext()
-                                .getPackageManager()
-                                .getLaunchIntentForPackage(pkg);
-                mInstrumentation.getContext().startActivity(intent);
-            } catch (ActivityNotFoundException e) {
-                removeDialogWatchers();
-                throw new RuntimeException(String.format("Failed to find package: %s", pkg), e);
-            }
-        } else {
-            // Launch using the UI and launcher strategy.
-            String id = getLauncherName();
-            if (!mDevice.hasObject(By.pkg(pkg).depth(0))) {
-                getLauncherStrategy().launch(id, pkg);
+        try {
+            if (mFavorShellCommands) {
+                launchWithShellCommand(pkg);
+            } else if (!isAppInForeground()) {
+                // Launch using the UI and launcher strategy.
+                String id = getLauncherName();
+                waitForWindow(pkg, () -> getLauncherStrategy().launch(id, pkg), mLaunchTimeout);
                 Log.i(LOG_TAG, "Launched package: id=" + id + ", pkg=" + pkg);
             }
-        }
 
-        // Ensure the package is in the foreground for success.
-        if (!mDevice.wait(Until.hasObject(By.pkg(pkg).depth(0)), mLaunchTimeout)) {
+            // Ensure the package is in the foreground for success.
+            if (!isActiveWindow(pkg)
+                    && !mDevice.wait(Until.hasObject(By.pkg(pkg).depth(0)), mLaunchTimeout)) {
+                throw new IllegalStateException(
+                        String.format(
+                                "Did not find package, %s, in foreground after %d ms.",
+                                pkg, System.currentTimeMillis() - launchInitiationTimeMs));
+            }
+        } finally {
             removeDialogWatchers();
-            throw new IllegalStateException(
-                    String.format(
-                            "Did not find package, %s, in foreground after %d ms.",
-                            pkg, System.currentTimeMillis() - launchInitiationTimeMs));
         }
-        removeDialogWatchers();
+    }
+
+    /**
+     * Returns the result of the last launch by {@link #open()} with {@code am start -W}, which
+     * reports its times as metrics, or null if it has not launched with a shell command.
+     */
+    public LaunchResult getLastLaunchResult() {
+        return mLastLaunchResult;
+    }
+
+    // am start -W returns once the activity has drawn, so this waits for the launch too.
+    private void launchWithShellCommand(String pkg) {
+        Intent intent =
+                mInstrumentation.getContext().getPackageManager().getLaunchIntentForPackage(pkg);
+        if (intent == null || intent.getComponent() == null) {
+            throw new RuntimeException(String.format("Failed to find package: %s", pkg));
+        }
+        String command =
+                String.format(
+                        LAUNCH_COMMAND,
+                        Intent.ACTION_MAIN,
+                        Intent.CATEGORY_LAUNCHER,
+                        intent.getComponent().flattenToShortString());
+        Log.i(LOG_TAG, String.format("Sending command to launch: %s", command));
+        String output;
+        try {
+            output = mDevice.executeShellCommand(command);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to launch package: %s", pkg), e);
+        }
+        LaunchResult result = LaunchResult.parse(output);
+        Log.i(LOG_TAG, String.format("Launched package: %s, %s", pkg, result));
+        if (!result.isSuccessful()) {
+            throw new RuntimeException(
+                    String.format("Failed to launch package: %s, %s", pkg, result.getErrors()));
+        }
+        mLastLaunchResult = result;
+    }
+
+    /**
+     * Runs an action and waits until a window of the package changes state, e.g. because it has
+     * been shown, or the timeout passes.
+     */
+    private void waitForWindow(String pkg, Runnable action, long timeout) {
+        try {
+            mInstrumentation
+                    .getUiAutomation()
+                    .executeAndWaitForEvent(
+                            action,
+                            event ->
+                                    event.getEventType()
+                                                    == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                                            && pkg.equals(event.getPackageName()),
+                            timeout);
+        } catch (TimeoutException e) {
+            Log.w(LOG_TAG, String.format("No window of %s shown after %d ms.", pkg, timeout));
+        }
+    }
+
+    /** Returns whether the active window, which has input focus, belongs to the package. */
+    private boolean isActiveWindow(String pkg) {
+        AccessibilityNodeInfo root = mInstrumentation.getUiAutomation().getRootInActiveWindow();
+        if (root == null) {
+            return false;
+        }
+        try {
+            return pkg.equals(root.getPackageName());
+        } finally {
+            root.recycle();
+        }
     }
 
     /**
@@ -150,15 +215,21 @@ public abstract class AbstractStandardAppHelper implements IAppHelper {
     @Override
     public void exit() {
         Log.i(LOG_TAG, "Exiting the current application.");
+        String launcher = mDevice.getLauncherPackageName();
         if (mPressHomeToExit) {
-            mDevice.pressHome();
-            mDevice.waitForIdle();
+            if (isActiveWindow(launcher)) {
+                // No window changes state when the launcher is already in front.
+                mDevice.pressHome();
+            } else {
+                waitForWindow(launcher, mDevice::pressHome, EXIT_WAIT_TIMEOUT);
+            }
         } else {
+            // Stop pressing back as soon as the launcher has focus.
             int maxBacks = 4;
-            while (!mDevice.hasObject(getLauncherStrategy().getWorkspaceSelector())
+            while (!isActiveWindow(launcher)
+                    && !mDevice.hasObject(getLauncherStrategy().getWorkspaceSelector())
                     && maxBacks > 0) {
-                mDevice.pressBack();
-                mDevice.waitForIdle();
+                waitForBack();
                 maxBacks--;
             }
 
@@ -167,11 +238,28 @@ public abstract class AbstractStandardAppHelper implements IAppHelper {
             }
         }
         if (!mDevice.wait(
-                Until.hasObject(mLauncherStrategy.getWorkspaceSelector()), EXIT_WAIT_TIMEOUT)) {
+                Until.hasObject(getLauncherStrategy().getWorkspaceSelector()),
+                EXIT_WAIT_TIMEOUT)) {
             throw new IllegalStateException("Failed to exit the app to launcher.");
         }
     }
 
+    // Press back, and wait for the next window to be shown instead of for the device to be idle.
+    private void waitForBack() {
+        try {
+            mInstrumentation
+                    .getUiAutomation()
+                    .executeAndWaitForEvent(
+                            mDevice::pressBack,
+                            event ->
+                                    event.getEventType()
+                                            == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED,
+                            BACK_WAIT_TIMEOUT);
+        } catch (TimeoutException e) {
+            // e.g. a dialog which ignores back, so the next press may still close it
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.platform.helpers;
+
+import static java.lang.reflect.Modifier.isAbstract;
+import static java.lang.reflect.Modifier.isInterface;
+
+import android.util.Log;
+
+import dalvik.system.DexFile;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index from each helper interface, or base class, to the concrete helpers which implement it.
+ * Building it loads every class in the APK, so it is built once and saved with a checksum of the
+ * classes, to be reused until they change.
+ */
+class HelperIndex {
+    private static final String LOG_TAG = HelperIndex.class.getSimpleName();
+    // Bump this if the format of the saved index changes.
+    private static final String VERSION = "1";
+    private static final char SEPARATOR = '\t';
+
+    /** The classes to index, e.g. those in a set of dex files. */
+    interface ClassSource {
+        /** Returns a checksum which changes whenever the classes do. */
+        String getChecksum() throws IOException;
+
+        /** Returns the names of all classes, in a stable order. */
+        List<String> getClassNames() throws IOException;
+    }
+
+    /** The classes in a set of APKs or dex files. */
+    static class DexClassSource implements ClassSource {
+        private final List<String> mPaths;
+
+        DexClassSource(List<String> paths) {
+            mPaths = paths;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>For an APK, this combines the checksums its zip directory holds for each dex file, so
+         * that only the directory is read.
+         */
+        @Override
+        public String getChecksum() throws IOException {
+            CRC32 checksum = new CRC32();
+            for (String path : mPaths) {
+                update(checksum, path);
+                try (ZipFile zip = new ZipFile(path)) {
+                    Enumeration<? extends ZipEntry> entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        if (entry.getName().endsWith(".dex")) {
+                            update(checksum, entry.getName() + SEPARATOR + entry.getCrc());
+                        }
+                    }
+                } catch (IOException e) {
+                    // not an APK, so checksum the whole dex file
+                    update(checksum, new File(path));
+                }
+            }
+            return Long.toHexString(checksum.getValue());
+        }
+
+        @Override
+        public List<String> getClassNames() throws IOException {
+            List<String> classNames = new ArrayList<>();
+            for (String path : mPaths) {
+                DexFile dex = new DexFile(path);
+                try {
+                    classNames.addAll(Collections.list(dex.entries()));
+                } finally {
+                    dex.close();
+                }
+            }
+            return classNames;
+        }
+
+        private static void update(CRC32 checksum, String value) {
+            checksum.update(value.getBytes(StandardCharsets.UTF_8));
+            checksum.update(0);
+        }
+
+        private static void update(CRC32 checksum, File file) throws IOException {
+            byte[] buffer = new byte[8192];
+            try (InputStream in = new FileInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    checksum.update(buffer, 0, read);
+                }
+            }
+        }
+    }
+
+    // Implementation class names for each base class name, in the order of the class source.
+    private final Map<String, List<String>> mImplementations;
+
+    private HelperIndex(Map<String, List<String>> implementations) {
+        mImplementations = implementations;
+    }
+
+    /**
+     * Returns the index saved in {@code cacheFile} if it matches the checksum of the classes, or
+     * else builds the index and saves it there.
+     *
+     * @param cacheFile where to save the index, or null not to
+     */
+    static HelperIndex load(ClassSource source, ClassLoader loader, File cacheFile)
+            throws IOException {
+        String checksum = VERSION + SEPARATOR + source.getChecksum();
+        if (cacheFile != null && cacheFile.exists()) {
+            try {
+                HelperIndex index = read(cacheFile, checksum);
+                if (index != null) {
+                    return index;
+                }
+                Log.i(LOG_TAG, "Classes changed, rebuilding the helper index.");
+            } catch (IOException e) {
+                Log.w(LOG_TAG, String.format("Failed to read the helper index %s", cacheFile), e);
+            }
+        }
+
+        HelperIndex index = build(source.getClassNames(), loader);
+        if (cacheFile != null) {
+            try {
+                index.write(cacheFile, checksum);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, String.format("Failed to save the helper index %s", cacheFile), e);
+            }
+        }
+        return index;
+    }
+
+    /** Loads each class, and indexes the concrete helpers under each of their supertypes. */
+    static HelperIndex build(List<String> classNames, ClassLoader loader) {
+        Map<String, List<String>> implementations = new LinkedHashMap<>();
+        for (String className : classNames) {
+            Class<?> clazz;
+            try {
+                clazz = loader.loadClass(className);
+            } catch (ClassNotFoundException | LinkageError e) {
+                Log.w(LOG_TAG, String.format("Class not found: %s", className));
+                continue;
+            }
+            // Skip non-instantiable classes
+            if (isAbstract(clazz.getModifiers())
+                    || isInterface(clazz.getModifiers())
+                    || !IAppHelper.class.isAssignableFrom(clazz)) {
+                continue;
+            }
+            for (Class<?> base : getSupertypes(clazz)) {
+                List<String> names = implementations.get(base.getName());
+                if (names == null) {
+                    names = new ArrayList<>();
+                    implementations.put(base.getName(), names);
+                }
+                names.add(className);
+            }
+        }
+        return new HelperIndex(implementations);
+    }
+
+    // All classes and interfaces a class can be assigned to, except itself.
+    private static Set<Class<?>> getSupertypes(Class<?> clazz) {
+        Set<Class<?>> supertypes = new HashSet<>();
+        Deque<Class<?>> pending = new ArrayDeque<>();
+        pending.add(clazz);
+        while (!pending.isEmpty()) {
+            Class<?> type = pending.remove();
+            if (type.getSuperclass() != null && supertypes.add(type.getSuperclass())) {
+                pending.add(type.getSuperclass());
+            }
+            for (Class<?> parent : type.getInterfaces()) {
+                if (supertypes.add(parent)) {
+                    pending.add(parent);
+                }
+            }
+        }
+        return supertypes;
+    }
+
+    /** Returns the names of the concrete helpers which implement or extend {@code base}. */
+    List<String> get(Class<?> base) {
+        List<String> names = mImplementations.get(base.getName());
+        return names != null ? Collections.unmodifiableList(names) : Collections.emptyList();
+    }
+
+    // Returns null if the index was saved for other classes.
+    private static HelperIndex read(File file, String checksum) throws IOException {
+        try (BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(
+                                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!checksum.equals(reader.readLine())) {
+                return null;
+            }
+            Map<String, List<String>> implementations = new LinkedHashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(SEPARATOR);
+                if (separator < 0) {
+                    throw new IOException(String.format("Malformed line: %s", line));
+                }
+                implementations.put(
+                        line.substring(0, separator),
+                        Arrays.asList(line.substring(separator + 1).split("\t")));
+            }
+            return new HelperIndex(implementations);
+        }
+    }
+
+    // Write to a temporary file first, so that a partly written index is never read.
+    private void write(File file, String checksum) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer =
+                new BufferedWriter(
+                        new OutputStreamWriter(
+                                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            writer.write(checksum);
+            writer.write('\n');
+            for (Map.Entry<String, List<String>> entry : mImplementations.entrySet()) {
+                writer.write(entry.getKey());
+                for (String name : entry.getValue()) {
+                    writer.write(SEPARATOR);
+                    writer.write(name);
+                }
+                writer.write('\n');
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException(String.format("Failed to rename %s", temp));
+        }
+    }
+}
@@ -16,16 +16,11 @@
 
 package android.platform.helpers;
 
-import static java.lang.reflect.Modifier.isAbstract;
-import static java.lang.reflect.Modifier.isInterface;
-
 import android.app.Instrumentation;
 import android.content.Context;
 import android.support.test.uiautomator.UiDevice;
 import android.util.Log;
 
-import dalvik.system.DexFile;
-
 import java.io.File;
 import java.io.IOException;
 import java.lang.ClassLoader;
@@ -37,9 +32,9 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The HelperManager class is used to remove any explicit or hard-coded dependencies on app helper
@@ -58,9 +53,14 @@ import java.util.List;
  * <p>
  * Including and using this strategy will prune the explicit dependency tree for the App Helper
  * Library and provide a more robust library for use across the Android source tree.
+ * <p>
+ * The classes are indexed by the helper interfaces they implement the first time a helper is
+ * requested, and the index is saved in the cache directory of the instrumentation until the APK
+ * changes. Each helper is instantiated at most once, when it is first requested.
  */
 public class HelperManager {
     private static final String LOG_TAG = HelperManager.class.getSimpleName();
+    private static final String INDEX_FILE = "helper-index";
     private static HelperManager sInstance;
 
     /**
@@ -116,21 +116,44 @@ public class HelperManager {
         return sInstance;
     }
 
-    private Instrumentation mInstrumentation;
-    private List<String> mClasses;
+    private final Instrumentation mInstrumentation;
+    private final HelperIndex.ClassSource mClassSource;
+    private final File mIndexFile;
+    private final ClassLoader mLoader = HelperManager.class.getClassLoader();
+    // Built when the first helper is requested.
+    private HelperIndex mIndex;
+    // Helper instances by implementation class name, and the resolved helper for each request.
+    private final Map<String, IAppHelper> mInstances = new HashMap<>();
+    private final Map<String, IAppHelper> mResolved = new HashMap<>();
 
     private HelperManager(List<String> paths, Instrumentation instr) {
+        this(new HelperIndex.DexClassSource(paths), getIndexFile(instr), instr);
+    }
+
+    /**
+     * @param indexFile where to save the index of the classes, or null not to
+     */
+    HelperManager(HelperIndex.ClassSource classSource, File indexFile, Instrumentation instr) {
         mInstrumentation = instr;
-        // Collect all of the available classes
-        mClasses = new ArrayList<String>();
-        try {
-            for (String path : paths) {
-                DexFile dex = new DexFile(path);
-                mClasses.addAll(Collections.list(dex.entries()));
+        mClassSource = classSource;
+        mIndexFile = indexFile;
+    }
+
+    private static File getIndexFile(Instrumentation instr) {
+        Context context = instr.getContext();
+        File cacheDir = context != null ? context.getCacheDir() : null;
+        return cacheDir != null ? new File(cacheDir, INDEX_FILE) : null;
+    }
+
+    private HelperIndex getIndex() {
+        if (mIndex == null) {
+            try {
+                mIndex = HelperIndex.load(mClassSource, mLoader, mIndexFile);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to retrieve the dex file.", e);
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to retrieve the dex file.");
         }
+        return mIndex;
     }
 
     /*
@@ -169,21 +192,25 @@ public class HelperManager {
      * @throws RuntimeException if no implementation is found
      * @return a concrete implementation of base
      */
-    public <T extends IAppHelper> T get(Class<T> base, String prefix) {
-        List<T> implementations = getAll(base);
-        List<T> matching = new ArrayList<>();
-        for (T implementation : implementations) {
-            if (implementation.getClass().getSimpleName().startsWith(prefix)) {
-                Log.i(LOG_TAG, "Found matching implementation: "
-                        + implementation.getClass().getSimpleName());
-                matching.add(implementation);
-            }
+    public synchronized <T extends IAppHelper> T get(Class<T> base, String prefix) {
+        String key = base.getName() + "#" + prefix;
+        IAppHelper resolved = mResolved.get(key);
+        if (resolved != null) {
+            return base.cast(resolved);
         }
 
-        if (!matching.isEmpty()) {
-            T result = matching.get(0);
-            Log.i(LOG_TAG, "Selecting implementation: " + result.getClass().getSimpleName());
-            return result;
+        // Only instantiate the first implementation which matches
+        for (String className : getIndex().get(base)) {
+            Class<?> clazz = loadClass(className);
+            if (clazz != null && clazz.getSimpleName().startsWith(prefix)) {
+                Log.i(LOG_TAG, "Found matching implementation: " + clazz.getSimpleName());
+                T result = base.cast(getInstance(clazz));
+                if (result != null) {
+                    Log.i(LOG_TAG, "Selecting implementation: " + clazz.getSimpleName());
+                    mResolved.put(key, result);
+                    return result;
+                }
+            }
         }
 
         throw new RuntimeException(
@@ -196,45 +223,55 @@ public class HelperManager {
      * @param base the interface base class to find an implementation for
      * @return a list of all concrete implementations we could find
      */
-    public <T extends IAppHelper> List<T> getAll(Class<T> base) {
-        ClassLoader loader = HelperManager.class.getClassLoader();
+    public synchronized <T extends IAppHelper> List<T> getAll(Class<T> base) {
         List<T> implementations = new ArrayList<>();
-
-        // Iterate and search for the implementation
-        for (String className : mClasses) {
-            Class<?> clazz = null;
-            try {
-                clazz = loader.loadClass(className);
-                // Skip non-instantiable classes
-                if (isAbstract(clazz.getModifiers()) || isInterface(clazz.getModifiers())) {
-                    continue;
-                }
-            } catch (ClassNotFoundException e) {
-                Log.w(LOG_TAG, String.format("Class not found: %s", className));
-                continue;
-            }
-            if (base.isAssignableFrom(clazz) && !clazz.equals(base)) {
-
-                // Instantiate the implementation class and return
-                try {
-                    Constructor<?> constructor = clazz.getConstructor(Instrumentation.class);
-                    implementations.add((T)constructor.newInstance(mInstrumentation));
-                } catch (NoSuchMethodException e) {
-                    Log.w(LOG_TAG, String.format("Failed to find a matching constructor for %s",
-                            className), e);
-                } catch (IllegalAccessException e) {
-                    Log.w(LOG_TAG, String.format("Failed to access the constructor %s",
-                            className), e);
-                } catch (InstantiationException e) {
-                    Log.w(LOG_TAG, String.format("Failed to instantiate %s",
-                            className), e);
-                } catch (InvocationTargetException e) {
-                    Log.w(LOG_TAG, String.format("Exception encountered instantiating %s",
-                            className), e);
+        for (String className : getIndex().get(base)) {
+            Class<?> clazz = loadClass(className);
+            if (clazz != null) {
+                IAppHelper implementation = getInstance(clazz);
+                if (implementation != null) {
+                    implementations.add(base.cast(implementation));
                 }
             }
         }
-
         return implementations;
     }
+
+    private Class<?> loadClass(String className) {
+        try {
+            return mLoader.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            Log.w(LOG_TAG, String.format("Class not found: %s", className));
+            return null;
+        }
+    }
+
+    // Returns the instance of a helper class, instantiating it if needed, or null if that fails.
+    private IAppHelper getInstance(Class<?> clazz) {
+        String className = clazz.getName();
+        IAppHelper instance = mInstances.get(className);
+        if (instance != null) {
+            return instance;
+        }
+
+        // Instantiate the implementation class
+        try {
+            Constructor<?> constructor = clazz.getConstructor(Instrumentation.class);
+            instance = (IAppHelper) constructor.newInstance(mInstrumentation);
+            mInstances.put(className, instance);
+        } catch (NoSuchMethodException e) {
+            Log.w(LOG_TAG, String.format("Failed to find a matching constructor for %s",
+                    className), e);
+        } catch (IllegalAccessException e) {
+            Log.w(LOG_TAG, String.format("Failed to access the constructor %s",
+                    className), e);
+        } catch (InstantiationException e) {
+            Log.w(LOG_TAG, String.format("Failed to instantiate %s",
+                    className), e);
+        } catch (InvocationTargetException e) {
+            Log.w(LOG_TAG, String.format("Exception encountered instantiating %s",
+                    className), e);
+        }
+        return instance;
+    }
 }
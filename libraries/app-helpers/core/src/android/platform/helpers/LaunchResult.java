@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.platform.helpers;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of launching an activity with {@code am start -W}, parsed from its output, e.g.
+ *
+ * <pre>
+ * Starting: Intent { act=android.intent.action.MAIN cmp=com.android.settings/.Settings }
+ * Status: ok
+ * LaunchState: COLD
+ * Activity: com.android.settings/.Settings
+ * TotalTime: 451
+ * WaitTime: 467
+ * Complete
+ * </pre>
+ */
+public class LaunchResult {
+    public static final String TOTAL_TIME_METRIC = "app-launch-total-time-ms";
+    public static final String WAIT_TIME_METRIC = "app-launch-wait-time-ms";
+
+    /** The value of the times which were not reported. */
+    public static final long UNKNOWN_TIME = -1;
+
+    private static final String STATUS_OK = "ok";
+
+    private String mStatus;
+    private String mLaunchState;
+    private String mActivity;
+    private long mTotalTimeMs = UNKNOWN_TIME;
+    private long mWaitTimeMs = UNKNOWN_TIME;
+    private boolean mComplete;
+    private final List<String> mErrors = new ArrayList<>();
+    private final List<String> mWarnings = new ArrayList<>();
+
+    private LaunchResult() {}
+
+    /** Parses the output of {@code am start -W}, ignoring any lines it does not recognize. */
+    public static LaunchResult parse(String output) {
+        LaunchResult result = new LaunchResult();
+        for (String line : output.split("\r?\n")) {
+            line = line.trim();
+            if ("Complete".equals(line)) {
+                result.mComplete = true;
+                continue;
+            }
+            int separator = line.indexOf(':');
+            if (separator < 0) {
+                continue;
+            }
+            String value = line.substring(separator + 1).trim();
+            switch (line.substring(0, separator)) {
+                case "Status":
+                    result.mStatus = value;
+                    break;
+                case "LaunchState":
+                    result.mLaunchState = value;
+                    break;
+                case "Activity":
+                    result.mActivity = value;
+                    break;
+                case "TotalTime":
+                    result.mTotalTimeMs = parseTime(value);
+                    break;
+                case "WaitTime":
+                    result.mWaitTimeMs = parseTime(value);
+                    break;
+                case "Error":
+                    result.mErrors.add(value);
+                    break;
+                case "Warning":
+                    result.mWarnings.add(value);
+                    break;
+                default:
+                    // e.g. "Starting", "ThisTime" or "Error type 3"
+            }
+        }
+        return result;
+    }
+
+    private static long parseTime(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return UNKNOWN_TIME;
+        }
+    }
+
+    /** Returns whether the activity was started, or an existing task brought to the front. */
+    public boolean isSuccessful() {
+        return STATUS_OK.equals(mStatus) && mErrors.isEmpty();
+    }
+
+    /** Returns the status, e.g. "ok" or "timeout", or null if there was none. */
+    public String getStatus() {
+        return mStatus;
+    }
+
+    /** Returns the launch state, e.g. "COLD", "WARM" or "HOT", or null on older releases. */
+    public String getLaunchState() {
+        return mLaunchState;
+    }
+
+    /** Returns the activity which was displayed, or null if there was none. */
+    public String getActivity() {
+        return mActivity;
+    }
+
+    /** Returns the time until the activity was drawn, or {@link #UNKNOWN_TIME}. */
+    public long getTotalTimeMs() {
+        return mTotalTimeMs;
+    }
+
+    /** Returns the time {@code am} waited for the launch, or {@link #UNKNOWN_TIME}. */
+    public long getWaitTimeMs() {
+        return mWaitTimeMs;
+    }
+
+    /** Returns whether the launch completed, rather than timing out. */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(mErrors);
+    }
+
+    /** Returns the warnings, e.g. that the task was brought to the front instead of started. */
+    public List<String> getWarnings() {
+        return Collections.unmodifiableList(mWarnings);
+    }
+
+    /** Returns the times which were reported, in milliseconds. */
+    public Bundle getMetrics() {
+        Bundle metrics = new Bundle();
+        if (mTotalTimeMs != UNKNOWN_TIME) {
+            metrics.putLong(TOTAL_TIME_METRIC, mTotalTimeMs);
+        }
+        if (mWaitTimeMs != UNKNOWN_TIME) {
+            metrics.putLong(WAIT_TIME_METRIC, mWaitTimeMs);
+        }
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "LaunchResult{status=%s, state=%s, activity=%s, total=%d ms, wait=%d ms, "
+                        + "errors=%s, warnings=%s}",
+                mStatus, mLaunchState, mActivity, mTotalTimeMs, mWaitTimeMs, mErrors, mWarnings);
+    }
+}
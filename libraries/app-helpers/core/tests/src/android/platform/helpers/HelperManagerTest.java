@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.platform.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.Instrumentation;
+import android.support.test.uiautomator.UiWatcher;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test the logic for {@link HelperManager} and {@link HelperIndex}
+ */
+@RunWith(JUnit4.class)
+public class HelperManagerTest {
+    private static final String LOG_TAG = HelperManagerTest.class.getSimpleName();
+    private static final int RESOLUTION_COUNT = 1000;
+
+    // Instances created of each fake helper class.
+    private static final Map<Class<?>, Integer> sInstanceCounts = new HashMap<>();
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    private FakeClassSource mClassSource;
+    private File mIndexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        sInstanceCounts.clear();
+        mClassSource =
+                new FakeClassSource(
+                        "checksum",
+                        FakeHelper.class.getName(),
+                        FirstFakeHelper.class.getName(),
+                        HelperManagerTest.class.getName(),
+                        OtherFakeHelper.class.getName(),
+                        "android.platform.helpers.MissingHelper");
+        mIndexFile = new File(mTemporaryFolder.getRoot(), "index");
+    }
+
+    /** Tests that the first concrete implementation is returned, or the first with a prefix. */
+    @Test
+    public void testGet() {
+        HelperManager manager = createManager();
+        assertThat(manager.get(IFakeHelper.class)).isInstanceOf(FirstFakeHelper.class);
+        assertThat(manager.get(IFakeHelper.class, "Other")).isInstanceOf(OtherFakeHelper.class);
+        assertThat(manager.get(FakeHelper.class, "Other")).isInstanceOf(OtherFakeHelper.class);
+        assertThat(manager.getAll(IFakeHelper.class)).hasSize(2);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testGetMissing() {
+        createManager().get(IFakeHelper.class, "Missing");
+    }
+
+    /** Tests that helpers are instantiated once, and only when they are requested. */
+    @Test
+    public void testCachesInstances() {
+        HelperManager manager = createManager();
+        IFakeHelper first = manager.get(IFakeHelper.class);
+        assertThat(sInstanceCounts).containsExactly(FirstFakeHelper.class, 1);
+
+        assertThat(manager.get(IFakeHelper.class)).isSameAs(first);
+        assertThat(manager.get(FakeHelper.class, "First")).isSameAs(first);
+        assertThat(manager.getAll(IFakeHelper.class).get(0)).isSameAs(first);
+        assertThat(manager.getAll(IFakeHelper.class).get(1))
+                .isSameAs(manager.get(IFakeHelper.class, "Other"));
+        assertThat(sInstanceCounts)
+                .containsExactly(FirstFakeHelper.class, 1, OtherFakeHelper.class, 1);
+    }
+
+    /** Tests that the classes are only listed once, when the first helper is requested. */
+    @Test
+    public void testIndexesOnce() {
+        HelperManager manager = createManager();
+        assertThat(mClassSource.mListCount).isEqualTo(0);
+
+        manager.get(IFakeHelper.class);
+        manager.get(IFakeHelper.class, "Other");
+        manager.getAll(IFakeHelper.class);
+        assertThat(mClassSource.mListCount).isEqualTo(1);
+        assertThat(mIndexFile.exists()).isTrue();
+    }
+
+    /** Tests that a saved index is reused while the checksum of the classes matches. */
+    @Test
+    public void testReusesSavedIndex() {
+        createManager().get(IFakeHelper.class);
+        mClassSource.mListCount = 0;
+
+        HelperManager manager = createManager();
+        assertThat(manager.get(IFakeHelper.class, "Other")).isInstanceOf(OtherFakeHelper.class);
+        assertThat(mClassSource.mListCount).isEqualTo(0);
+    }
+
+    /** Tests that the index is rebuilt when the checksum of the classes changes. */
+    @Test
+    public void testRebuildsIndexWhenClassesChange() {
+        createManager().get(IFakeHelper.class);
+        mClassSource =
+                new FakeClassSource(
+                        "changed",
+                        OtherFakeHelper.class.getName(),
+                        FirstFakeHelper.class.getName());
+
+        HelperManager manager = createManager();
+        assertThat(manager.get(IFakeHelper.class)).isInstanceOf(OtherFakeHelper.class);
+        assertThat(mClassSource.mListCount).isEqualTo(1);
+
+        // and the rebuilt index is saved
+        mClassSource.mListCount = 0;
+        assertThat(createManager().get(IFakeHelper.class)).isInstanceOf(OtherFakeHelper.class);
+        assertThat(mClassSource.mListCount).isEqualTo(0);
+    }
+
+    /** Tests that an unreadable index is rebuilt. */
+    @Test
+    public void testRebuildsCorruptIndex() throws IOException {
+        createManager().get(IFakeHelper.class);
+        List<String> lines = Files.readAllLines(mIndexFile.toPath(), StandardCharsets.UTF_8);
+        Files.write(mIndexFile.toPath(), Arrays.asList(lines.get(0), "corrupt"));
+        mClassSource.mListCount = 0;
+
+        assertThat(createManager().get(IFakeHelper.class)).isInstanceOf(FirstFakeHelper.class);
+        assertThat(mClassSource.mListCount).isEqualTo(1);
+    }
+
+    /**
+     * Benchmarks resolving a helper from the classes of this APK: building the index, reading the
+     * saved index, and resolving again with the same manager.
+     */
+    @Test
+    public void testResolutionTime() {
+        HelperIndex.ClassSource apk =
+                new HelperIndex.DexClassSource(
+                        Arrays.asList(
+                                InstrumentationRegistry.getContext().getPackageCodePath()));
+
+        long start = System.nanoTime();
+        new HelperManager(apk, mIndexFile, mInstrumentation).get(IFakeHelper.class);
+        long buildNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        HelperManager manager = new HelperManager(apk, mIndexFile, mInstrumentation);
+        manager.get(IFakeHelper.class);
+        long loadNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RESOLUTION_COUNT; i++) {
+            manager.get(IFakeHelper.class);
+        }
+        long cachedNs = (System.nanoTime() - start) / RESOLUTION_COUNT;
+
+        Log.i(LOG_TAG, String.format(
+                "Resolution time: %d ms to build the index, %d ms to load it, %d us when cached",
+                TimeUnit.NANOSECONDS.toMillis(buildNs),
+                TimeUnit.NANOSECONDS.toMillis(loadNs),
+                TimeUnit.NANOSECONDS.toMicros(cachedNs)));
+        assertThat(loadNs).isLessThan(buildNs);
+        assertThat(cachedNs).isLessThan(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private HelperManager createManager() {
+        return new HelperManager(mClassSource, mIndexFile, mInstrumentation);
+    }
+
+    /** Lists a fixed set of classes, and counts how often they are listed. */
+    private static class FakeClassSource implements HelperIndex.ClassSource {
+        private final String mChecksum;
+        private final List<String> mClassNames;
+        private int mListCount;
+
+        FakeClassSource(String checksum, String... classNames) {
+            mChecksum = checksum;
+            mClassNames = Arrays.asList(classNames);
+        }
+
+        @Override
+        public String getChecksum() {
+            return mChecksum;
+        }
+
+        @Override
+        public List<String> getClassNames() {
+            mListCount++;
+            return new ArrayList<>(mClassNames);
+        }
+    }
+
+    /** A helper interface with fake implementations. */
+    public interface IFakeHelper extends IAppHelper {}
+
+    /** Base class for fake helpers, which counts their instances. */
+    public abstract static class FakeHelper implements IFakeHelper {
+        public FakeHelper(Instrumentation instr) {
+            sInstanceCounts.merge(getClass(), 1, Integer::sum);
+        }
+
+        @Override
+        public void open() {}
+
+        @Override
+        public void exit() {}
+
+        @Override
+        public void dismissInitialDialogs() {}
+
+        @Override
+        public String getPackage() {
+            return "com.example";
+        }
+
+        @Override
+        public String getLauncherName() {
+            return getClass().getSimpleName();
+        }
+
+        @Override
+        public String getVersion() {
+            return "1";
+        }
+
+        @Override
+        public boolean isAppInForeground() {
+            return false;
+        }
+
+        @Override
+        public boolean captureScreenshot(String name) {
+            return false;
+        }
+
+        @Override
+        public boolean sendTextEvents(String text, long delay) {
+            return false;
+        }
+
+        @Override
+        public void registerWatcher(String name, UiWatcher watcher) {}
+
+        @Override
+        public void removeWatcher(String name) {}
+    }
+
+    public static class FirstFakeHelper extends FakeHelper {
+        public FirstFakeHelper(Instrumentation instr) {
+            super(instr);
+        }
+    }
+
+    public static class OtherFakeHelper extends FakeHelper {
+        public OtherFakeHelper(Instrumentation instr) {
+            super(instr);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.platform.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit test the parsing of {@code am start -W} output by {@link LaunchResult}
+ */
+@RunWith(JUnit4.class)
+public class LaunchResultTest {
+    private static final String COLD_LAUNCH =
+            "Starting: Intent { act=android.intent.action.MAIN "
+                    + "cat=[android.intent.category.LAUNCHER] "
+                    + "cmp=com.android.settings/.Settings }\n"
+                    + "Status: ok\n"
+                    + "LaunchState: COLD\n"
+                    + "Activity: com.android.settings/.Settings\n"
+                    + "TotalTime: 451\n"
+                    + "WaitTime: 467\n"
+                    + "Complete\n";
+
+    // Releases before Q report ThisTime, and no launch state.
+    private static final String LEGACY_LAUNCH =
+            "Starting: Intent { act=android.intent.action.MAIN "
+                    + "cmp=com.android.settings/.Settings }\r\n"
+                    + "Status: ok\r\n"
+                    + "Activity: com.android.settings/.Settings\r\n"
+                    + "ThisTime: 320\r\n"
+                    + "TotalTime: 320\r\n"
+                    + "WaitTime: 341\r\n"
+                    + "Complete\r\n";
+
+    private static final String BROUGHT_TO_FRONT =
+            "Starting: Intent { act=android.intent.action.MAIN "
+                    + "cmp=com.android.settings/.Settings }\n"
+                    + "Warning: Activity not started, its current task has been brought to the "
+                    + "front\n"
+                    + "Status: ok\n"
+                    + "LaunchState: UNKNOWN (0)\n"
+                    + "Activity: com.android.settings/.Settings\n"
+                    + "WaitTime: 12\n"
+                    + "Complete\n";
+
+    private static final String MISSING_ACTIVITY =
+            "Starting: Intent { act=android.intent.action.MAIN cmp=com.example/.Missing }\n"
+                    + "Error type 3\n"
+                    + "Error: Activity class {com.example/com.example.Missing} does not exist.\n";
+
+    private static final String TIMEOUT =
+            "Starting: Intent { act=android.intent.action.MAIN cmp=com.example/.Slow }\n"
+                    + "Status: timeout\n"
+                    + "LaunchState: COLD\n"
+                    + "Activity: com.example/.Slow\n"
+                    + "WaitTime: 10023\n"
+                    + "Complete\n";
+
+    @Test
+    public void testParseColdLaunch() {
+        LaunchResult result = LaunchResult.parse(COLD_LAUNCH);
+        assertThat(result.isSuccessful()).isTrue();
+        assertThat(result.isComplete()).isTrue();
+        assertThat(result.getStatus()).isEqualTo("ok");
+        assertThat(result.getLaunchState()).isEqualTo("COLD");
+        assertThat(result.getActivity()).isEqualTo("com.android.settings/.Settings");
+        assertThat(result.getTotalTimeMs()).isEqualTo(451);
+        assertThat(result.getWaitTimeMs()).isEqualTo(467);
+        assertThat(result.getErrors()).isEmpty();
+        assertThat(result.getWarnings()).isEmpty();
+
+        Bundle metrics = result.getMetrics();
+        assertThat(metrics.keySet())
+                .containsExactly(LaunchResult.TOTAL_TIME_METRIC, LaunchResult.WAIT_TIME_METRIC);
+        assertThat(metrics.getLong(LaunchResult.TOTAL_TIME_METRIC)).isEqualTo(451);
+        assertThat(metrics.getLong(LaunchResult.WAIT_TIME_METRIC)).isEqualTo(467);
+    }
+
+    @Test
+    public void testParseLegacyLaunch() {
+        LaunchResult result = LaunchResult.parse(LEGACY_LAUNCH);
+        assertThat(result.isSuccessful()).isTrue();
+        assertThat(result.getLaunchState()).isNull();
+        assertThat(result.getActivity()).isEqualTo("com.android.settings/.Settings");
+        assertThat(result.getTotalTimeMs()).isEqualTo(320);
+        assertThat(result.getWaitTimeMs()).isEqualTo(341);
+    }
+
+    /** Tests that bringing a task to the front succeeds, without a total time. */
+    @Test
+    public void testParseBroughtToFront() {
+        LaunchResult result = LaunchResult.parse(BROUGHT_TO_FRONT);
+        assertThat(result.isSuccessful()).isTrue();
+        assertThat(result.getWarnings()).hasSize(1);
+        assertThat(result.getTotalTimeMs()).isEqualTo(LaunchResult.UNKNOWN_TIME);
+        assertThat(result.getWaitTimeMs()).isEqualTo(12);
+        assertThat(result.getMetrics().keySet())
+                .containsExactly(LaunchResult.WAIT_TIME_METRIC);
+    }
+
+    @Test
+    public void testParseError() {
+        LaunchResult result = LaunchResult.parse(MISSING_ACTIVITY);
+        assertThat(result.isSuccessful()).isFalse();
+        assertThat(result.isComplete()).isFalse();
+        assertThat(result.getStatus()).isNull();
+        assertThat(result.getErrors())
+                .containsExactly(
+                        "Activity class {com.example/com.example.Missing} does not exist.");
+        assertThat(result.getMetrics().isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testParseTimeout() {
+        LaunchResult result = LaunchResult.parse(TIMEOUT);
+        assertThat(result.isSuccessful()).isFalse();
+        assertThat(result.getStatus()).isEqualTo("timeout");
+        assertThat(result.getWaitTimeMs()).isEqualTo(10023);
+    }
+
+    @Test
+    public void testParseEmpty() {
+        LaunchResult result = LaunchResult.parse("");
+        assertThat(result.isSuccessful()).isFalse();
+        assertThat(result.getTotalTimeMs()).isEqualTo(LaunchResult.UNKNOWN_TIME);
+    }
+}
@@ -24,7 +24,6 @@ import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.IBinder;
-import android.os.SystemClock;
 import android.support.test.uiautomator.UiDevice;
 import android.test.AndroidTestRunner;
 import android.test.InstrumentationTestCase;
@@ -50,7 +49,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -74,6 +72,8 @@ public class AuptTestRunner extends InstrumentationTestRunner {
     private static final Long ANR_DELAY = 30000L;
     private static final Long DEFAULT_SUITE_TIMEOUT = 0L;
     private static final Long DEFAULT_TEST_TIMEOUT = 10L;
+    /** The number of threads left running by tests that timed out, reported in the results. */
+    static final String LEAKED_THREADS_KEY = "aupt_leaked_threads";
     private static final SimpleDateFormat SCREENSHOT_DATE_FORMAT =
         new SimpleDateFormat("dd-mm-yy:HH:mm:ss:SSS");
 
@@ -93,6 +93,9 @@ public class AuptTestRunner extends InstrumentationTestRunner {
     private long mDumpheapInterval;
     private long mDumpheapThreshold;
     private long mMaxDumpheaps;
+    private long mDumpheapMinInterval;
+    private long mDumpheapBudget;
+    private boolean mDumpheapCompress;
 
     /* String Parameters */
     private List<String> mJars = new ArrayList<>();
@@ -110,8 +113,8 @@ public class AuptTestRunner extends InstrumentationTestRunner {
     /* Logging */
     private ProcessStatusTracker mProcessTracker;
     private List<MemHealthRecord> mMemHealthRecords = new ArrayList<>();
-    private Map<String, Long> mDumpheapCount = new HashMap<>();
-    private Map<String, Long> mLastDumpheap = new HashMap<>();
+    private MemHealthRecord.History mMemHealthHistory = new MemHealthRecord.History();
+    private HeapDumper mHeapDumper;
 
     /* Test Initialization */
     @Override
@@ -128,6 +131,9 @@ public class AuptTestRunner extends InstrumentationTestRunner {
         mDumpheapThreshold = parseLongParam("dumpheapThreshold", 200 * 1024 * 1024);
         mDumpheapInterval = parseLongParam("dumpheapInterval", 60 * 60 * 1000);
         mMaxDumpheaps = parseLongParam("maxDumpheaps", 5);
+        mDumpheapMinInterval = parseLongParam("dumpheapMinInterval", 0);
+        mDumpheapBudget = parseLongParam("dumpheapBudget", 0);
+        mDumpheapCompress = parseBoolParam("dumpheapCompress", false);
         mSeed = parseLongParam("seed", new Random().nextLong());
 
         // Option: -e finishCommand 'a;b;c;d'
@@ -197,7 +203,13 @@ public class AuptTestRunner extends InstrumentationTestRunner {
                 TimeUnit.MINUTES.toMillis(parseLongParam("pagetypeinfoInterval", 0)),
                 TimeUnit.MINUTES.toMillis(parseLongParam("traceInterval", 0)),
                 TimeUnit.MINUTES.toMillis(parseLongParam("bugreportzInterval", 0)),
-                mResultsDirectory, this);
+                mResultsDirectory, this,
+                // Option: -e compressLogs true
+                parseBoolParam("compressLogs", false),
+                // Option: -e logRetentionSizeMb 512 -e logRetentionAge 1440
+                new LogRetentionPolicy(
+                        parseLongParam("logRetentionSizeMb", 0) * 1024 * 1024,
+                        TimeUnit.MINUTES.toMillis(parseLongParam("logRetentionAge", 0))));
 
         // Make our TestRunner and make sure we injectInstrumentation.
         mRunner = new DexTestRunner(this, mScheduler, mJars,
@@ -237,6 +249,19 @@ public class AuptTestRunner extends InstrumentationTestRunner {
         super.onCreate(params);
     }
 
+    /* Test Completion */
+    @Override
+    public void finish(int resultCode, Bundle results) {
+        if (results != null && mRunner != null) {
+            results.putInt(LEAKED_THREADS_KEY, mRunner.getLeakedThreadCount());
+        }
+        if (mHeapDumper != null) {
+            mHeapDumper.shutdown();
+        }
+
+        super.finish(resultCode, results);
+    }
+
     /* Option-parsing helpers */
 
     private long parseLongParam(String key, long alternative) throws NumberFormatException {
@@ -323,67 +348,40 @@ public class AuptTestRunner extends InstrumentationTestRunner {
         private Thread mHeapDumpThread;
 
         private class InternalHeapDumper implements Runnable {
-            private void recordDumpheap(String proc, long pss) throws IOException {
-                if (!mDumpheapEnabled) {
-                    return;
-                }
-                Long count = mDumpheapCount.get(proc);
-                if (count == null) {
-                    count = 0L;
-                }
-                Long lastDumpheap = mLastDumpheap.get(proc);
-                if (lastDumpheap == null) {
-                    lastDumpheap = 0L;
-                }
-                long currentTime = SystemClock.uptimeMillis();
-                if (pss > mDumpheapThreshold && count < mMaxDumpheaps &&
-                        currentTime - lastDumpheap > mDumpheapInterval) {
-                    recordDumpheap(proc);
-                    mDumpheapCount.put(proc, count + 1);
-                    mLastDumpheap.put(proc, currentTime);
-                }
-            }
-
-            private void recordDumpheap(String proc) throws IOException {
-                long count = mDumpheapCount.get(proc);
-
-                String filename = String.format("dumpheap-%s-%d", proc, count);
-                String tempFilename = "/data/local/tmp/" + filename;
-                String finalFilename = mResultsDirectory + "/" + filename;
-
-                AuptTestRunner.this.getUiAutomation().executeShellCommand(
-                        String.format("am dumpheap %s %s", proc, tempFilename));
-
-                SystemClock.sleep(3000);
-
-                AuptTestRunner.this.getUiAutomation().executeShellCommand(
-                        String.format("cp %s %s", tempFilename, finalFilename));
-            }
-
             public void run() {
                 try {
                     while (true) {
                         Thread.sleep(mDumpheapInterval);
 
+                        // Dumps are taken and copied on the HeapDumper's own thread.
                         for(String proc : mMemoryTrackedProcesses) {
-                            recordDumpheap(proc);
+                            mHeapDumper.requestDump(proc);
                         }
                     }
                 } catch (InterruptedException iex) {
-                } catch (IOException ioex) {
-                    Log.e(LOG_TAG, "Failed to write heap dump!", ioex);
                 }
             }
         }
 
         @Override
         public void startTest(Test test) {
+            if (!mDumpheapEnabled) {
+                return;
+            }
+            if (mHeapDumper == null) {
+                mHeapDumper = new HeapDumper(AuptTestRunner.this, mResultsDirectory,
+                        mMaxDumpheaps, mDumpheapMinInterval, mDumpheapBudget, mDumpheapCompress);
+            }
+
             mHeapDumpThread = new Thread(new InternalHeapDumper());
             mHeapDumpThread.start();
         }
 
         @Override
         public void endTest(Test test) {
+            if (mHeapDumpThread == null) {
+                return;
+            }
             try {
                 mHeapDumpThread.interrupt();
                 mHeapDumpThread.join();
@@ -426,9 +424,12 @@ public class AuptTestRunner extends InstrumentationTestRunner {
             recordMemHealth();
 
             try {
-                MemHealthRecord.saveVerbose(mMemHealthRecords,
+                // Only the records collected since the last test are written out, so the cost of
+                // each save stays the same over a long run.
+                mMemHealthHistory.addAll(mMemHealthRecords);
+                mMemHealthHistory.saveVerbose(
                         new File(mResultsDirectory, "memory-health.txt").getPath());
-                MemHealthRecord.saveCsv(mMemHealthRecords,
+                MemHealthRecord.appendCsv(mMemHealthRecords,
                         new File(mResultsDirectory, "memory-health-details.txt").getPath());
 
                 mMemHealthRecords.clear();
@@ -17,27 +17,42 @@
 package android.support.test.aupt;
 
 import android.app.Instrumentation;
-import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Periodically saves the logs of each enabled {@link LogGenerator} into the results directory.
+ *
+ * Each generator is scheduled independently at its own interval. The cheap generators share a
+ * small thread pool, so they can run in parallel, while the expensive ones (bugreports) run on
+ * their own thread so that they never delay the others.
+ */
 public class DataCollector {
     private static final String TAG = "AuptDataCollector";
+    // The number of threads shared by the cheap generators.
+    static final int SAMPLER_THREADS = 2;
+    private static final long STOP_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
 
-    private final AtomicBoolean mStopped = new AtomicBoolean(true);
-    private final Map<LogGenerator, Long> generatorsWithIntervals = new HashMap<>();
-    private final Map<LogGenerator, Long> mLastUpdate = new HashMap<>();
+    private final Map<LogGenerator, Long> generatorsWithIntervals =
+            new EnumMap<>(LogGenerator.class);
     private final Instrumentation instrumentation;
     private final String resultsDirectory;
-    private final long mSleepInterval;
+    private final boolean mCompress;
+    private final LogRetentionPolicy mRetentionPolicy;
+    // Serializes the retention policy across generators, separately from starting and stopping.
+    private final Object mRetentionLock = new Object();
 
-    private Thread mThread;
+    private ScheduledExecutorService mSamplerExecutor;
+    private ScheduledExecutorService mExpensiveExecutor;
 
     /**
      * Add a generator iff the interval is valid (i.e. > 0).
@@ -52,9 +67,25 @@ public class DataCollector {
                          long cpuinfoInterval,   long fragmentationInterval, long ionHeapInterval,
                          long pagetypeinfoInterval, long traceInterval,
                          long bugreportzInterval, File outputLocation, Instrumentation instr) {
+        this(bugreportInterval, graphicsInterval, meminfoInterval, cpuinfoInterval,
+                fragmentationInterval, ionHeapInterval, pagetypeinfoInterval, traceInterval,
+                bugreportzInterval, outputLocation, instr, false, LogRetentionPolicy.KEEP_ALL);
+    }
+
+    /**
+     * @param compress whether to gzip the logs as they are written
+     * @param retentionPolicy the policy applied to the logs after each one is written
+     */
+    public DataCollector(long bugreportInterval, long graphicsInterval,      long meminfoInterval,
+                         long cpuinfoInterval,   long fragmentationInterval, long ionHeapInterval,
+                         long pagetypeinfoInterval, long traceInterval,
+                         long bugreportzInterval, File outputLocation, Instrumentation instr,
+                         boolean compress, LogRetentionPolicy retentionPolicy) {
 
         resultsDirectory = outputLocation.getPath();
         instrumentation = instr;
+        mCompress = compress;
+        mRetentionPolicy = retentionPolicy;
 
         if (bugreportzInterval > 0) {
             put(LogGenerator.BUGREPORTZ, bugreportzInterval);
@@ -72,100 +103,124 @@ public class DataCollector {
         put(LogGenerator.MEM_INFO, meminfoInterval);
         put(LogGenerator.PAGETYPE_INFO, pagetypeinfoInterval);
         put(LogGenerator.TRACE, traceInterval);
-
-        mSleepInterval = gcd(generatorsWithIntervals.values());
     }
 
     public synchronized void start() {
-        if (mStopped.getAndSet(false)) {
-            /* Initialize the LastUpdates to the current time */
-            for (Map.Entry<LogGenerator, Long> entry : generatorsWithIntervals.entrySet()) {
-                if (entry.getValue() > 0) {
-                    Log.d(TAG, "Collecting " + entry.getKey() + " logs every " +
-                        entry.getValue() + " milliseconds");
+        if (mSamplerExecutor == null) {
+            mSamplerExecutor = createExecutor(SAMPLER_THREADS, "AuptDataCollector");
+            mExpensiveExecutor = createExecutor(1, "AuptDataCollector-expensive");
 
-                    mLastUpdate.put(entry.getKey(), SystemClock.uptimeMillis());
-                }
+            for (Map.Entry<LogGenerator, Long> entry : generatorsWithIntervals.entrySet()) {
+                LogGenerator generator = entry.getKey();
+                long interval = entry.getValue();
+                Log.d(TAG, "Collecting " + generator + " logs every " +
+                        interval + " milliseconds");
+
+                // Delays are measured from the end of the previous run, so a slow generator is
+                // never run concurrently with itself and cannot queue up a backlog of runs.
+                ScheduledExecutorService executor =
+                        generator.isExpensive() ? mExpensiveExecutor : mSamplerExecutor;
+                executor.scheduleWithFixedDelay(
+                        new CollectTask(generator), interval, interval, TimeUnit.MILLISECONDS);
             }
-
-            mThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    loop();
-                }
-            });
-            mThread.start();
         } else {
             Log.e(TAG, "Tried to start a started DataCollector!");
         }
     }
 
-    public synchronized void stop() {
-        if (!mStopped.getAndSet(true)) {
-            mThread.interrupt();
-
-            try {
-                mThread.join();
-            } catch (InterruptedException e) {
-                // ignore
+    public void stop() {
+        ScheduledExecutorService samplerExecutor;
+        ScheduledExecutorService expensiveExecutor;
+        synchronized (this) {
+            if (mSamplerExecutor == null) {
+                Log.e(TAG, "Tried to stop a stoppped DataCollector!");
+                return;
             }
-        } else {
-            Log.e(TAG, "Tried to stop a stoppped DataCollector!");
+            samplerExecutor = mSamplerExecutor;
+            expensiveExecutor = mExpensiveExecutor;
+            mSamplerExecutor = null;
+            mExpensiveExecutor = null;
+            samplerExecutor.shutdownNow();
+            expensiveExecutor.shutdownNow();
+        }
+
+        // Wait without holding the lock, so that running collections can finish.
+        try {
+            samplerExecutor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            expensiveExecutor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // ignore
         }
     }
 
-    private void loop() {
-        if (mSleepInterval <= 0) {
+    /** Saves the logs of {@code generator} and then applies the retention policy. */
+    void collect(LogGenerator generator) {
+        try {
+            save(generator);
+        } catch (IOException ex) {
+            Log.e(TAG, "Error writing results in " + resultsDirectory +
+                    ": " + ex.toString());
+        } catch (InterruptedException e) {
+            // Stopped while saving; restore the flag so the executor sees it.
+            Thread.currentThread().interrupt();
             return;
         }
 
-        while (!mStopped.get()) {
-            try {
-                for (Map.Entry<LogGenerator, Long> entry : generatorsWithIntervals.entrySet()) {
-                    Long t = SystemClock.uptimeMillis() - mLastUpdate.get(entry.getKey());
-
-                    if (entry.getValue() > 0 && t >= entry.getValue()) {
-                        try {
-                            entry.getKey().save(instrumentation, resultsDirectory);
-                        } catch (IOException ex) {
-                            Log.e(TAG, "Error writing results in " + resultsDirectory +
-                                    ": " + ex.toString());
-                        }
-
-                        mLastUpdate.put(entry.getKey(), SystemClock.uptimeMillis());
-                    }
-                }
-
-                Thread.sleep(mSleepInterval);
-            } catch (InterruptedException e) {
-                // Ignore.
+        applyRetentionPolicy();
+    }
+
+    /** Deletes the logs that fall outside of the retention policy. */
+    void applyRetentionPolicy() {
+        synchronized (mRetentionLock) {
+            for (File file :
+                    mRetentionPolicy.apply(new File(resultsDirectory), currentTimeMillis())) {
+                Log.d(TAG, "Deleted log " + file + " under the retention policy");
             }
         }
     }
 
-    private long gcd(Collection<Long> values) {
-        if (values.size() < 1) {
-            return 0;
+    /** The periodic task that collects the logs of one generator. */
+    class CollectTask implements Runnable {
+        private final LogGenerator mGenerator;
+
+        CollectTask(LogGenerator generator) {
+            mGenerator = generator;
         }
 
-        long gcdSoFar = values.iterator().next();
+        LogGenerator getGenerator() {
+            return mGenerator;
+        }
 
-        for (Long value : values) {
-            gcdSoFar = gcd(gcdSoFar, value);
+        @Override
+        public void run() {
+            try {
+                collect(mGenerator);
+            } catch (RuntimeException e) {
+                // An exception escaping would cancel every later collection of this generator.
+                Log.e(TAG, "Error collecting " + mGenerator + " logs", e);
+            }
         }
+    }
+
+    /** Override this for unit testing. */
+    ScheduledExecutorService createExecutor(int threads, final String name) {
+        return Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + mCount.incrementAndGet());
+            }
+        });
+    }
 
-        return gcdSoFar;
+    /** Override this for unit testing. */
+    void save(LogGenerator generator) throws IOException, InterruptedException {
+        generator.save(instrumentation, resultsDirectory, mCompress);
     }
 
-    private long gcd(long a, long b) {
-        if (a == 0) {
-            return b;
-        } else if (b == 0) {
-            return a;
-        } else if (a > b) {
-            return gcd(b, a % b);
-        } else {
-            return gcd(a, b % a);
-        }
+    /** Override this for unit testing. */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
     }
 }
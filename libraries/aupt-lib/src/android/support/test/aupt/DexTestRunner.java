@@ -32,12 +32,16 @@ import junit.framework.TestSuite;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -47,6 +51,7 @@ import java.util.concurrent.TimeoutException;
  *
  * - Custom ClassLoading from given dexed Jars
  * - Custom test scheduling (via Scheduler)
+ * - Running each test on a reusable worker thread, which is replaced if the test times out
  *
  * In addition to the parameters in the constructor, be sure to run setTest or setTestClassName
  * before attempting to runTest.
@@ -57,6 +62,10 @@ class DexTestRunner extends AndroidTestRunner {
     /* Constants */
     static final String DEFAULT_JAR_PATH = "/data/local/tmp/";
     static final String DEX_OPT_PATH = "dex-test-opt";
+    static final String WORKER_THREAD_NAME = "AuptTestWorker";
+
+    /** Class loaders by dex path, shared by every runner in the process. */
+    private static final Map<String, DexClassLoader> sLoaders = new HashMap<>();
 
     /* Private fields */
     private final List<TestListener> mTestListeners = new ArrayList<>();
@@ -72,9 +81,33 @@ class DexTestRunner extends AndroidTestRunner {
     protected Scheduler mScheduler;
     protected long mSuiteEndTime;
 
-    /** A temporary ExecutorService to manage running the current test. */
+    /** The ExecutorService running tests on its worker thread, replaced when a test hangs. */
     private ExecutorService mExecutorService;
 
+    /** The worker thread of the current ExecutorService. */
+    private volatile Thread mWorker;
+
+    /** The worker threads of ExecutorServices replaced after their test timed out. */
+    private final List<Thread> mAbandonedWorkers = new ArrayList<>();
+
+    private int mCreatedThreadCount;
+
+    /** Names, counts and tracks the worker threads. */
+    private final ThreadFactory mThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            synchronized (mAbandonedWorkers) {
+                mCreatedThreadCount++;
+                Thread worker = new Thread(runnable,
+                        String.format("%s-%d", WORKER_THREAD_NAME, mCreatedThreadCount));
+                // A hung test should not keep the instrumentation process alive.
+                worker.setDaemon(true);
+                mWorker = worker;
+                return worker;
+            }
+        }
+    };
+
     /** The current test. */
     private TestCase mTestCase;
 
@@ -105,44 +138,51 @@ class DexTestRunner extends AndroidTestRunner {
     public synchronized void runTest(final TestResult testResult) {
         mTestResult = testResult;
         mSuiteEndTime = System.currentTimeMillis() + mSuiteTimeoutMillis;
+        mExecutorService = Executors.newSingleThreadExecutor(mThreadFactory);
 
-        for (final TestCase testCase : mScheduler.apply(mTestCases)) {
-            // Timeout the suite if we've passed the end time.
-            if (mSuiteTimeoutMillis != 0 && System.currentTimeMillis() > mSuiteEndTime) {
-                Log.w(LOG_TAG, String.format("Ending suite after %d mins running.",
-                        TimeUnit.MILLISECONDS.toMinutes(mSuiteTimeoutMillis)));
-                break;
-            }
+        try {
+            for (final TestCase testCase : mScheduler.apply(mTestCases)) {
+                // Timeout the suite if we've passed the end time.
+                if (mSuiteTimeoutMillis != 0 && System.currentTimeMillis() > mSuiteEndTime) {
+                    Log.w(LOG_TAG, String.format("Ending suite after %d mins running.",
+                            TimeUnit.MILLISECONDS.toMinutes(mSuiteTimeoutMillis)));
+                    break;
+                }
+
+                mTestCase = testCase;
+
+                // A Future that calls testCase::run. The reasoning behind using a thread here
+                // is that AuptTestRunner should be able to interrupt it (via killTest) if it runs
+                // too long; and interrupting the main thread here without actually exiting is
+                // tricky.
+                Future<TestResult> result =
+                        mExecutorService.submit(
+                                new Callable<TestResult>() {
+                                    @Override
+                                    public TestResult call() throws Exception {
+                                        testCase.run(testResult);
+                                        return testResult;
+                                    }
+                                });
 
-            mExecutorService = Executors.newSingleThreadExecutor();
-            mTestCase = testCase;
-
-            // A Future that calls testCase::run. The reasoning behind using a thread here
-            // is that AuptTestRunner should be able to interrupt it (via killTest) if it runs
-            // too long; and interrupting the main thread here without actually exiting is tricky.
-            Future<TestResult> result =
-                    mExecutorService.submit(
-                            new Callable<TestResult>() {
-                                @Override
-                                public TestResult call() throws Exception {
-                                    testCase.run(testResult);
-                                    return testResult;
-                                }
-                            });
-
-            try {
-                // Run our test-running thread and wait on it.
-                result.get(mTestTimeoutMillis, TimeUnit.MILLISECONDS);
-            } catch (TimeoutException e) {
-                killTest(e);
-            } catch (ExecutionException e) {
-                onError(testCase, e.getCause());
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            } finally {
-                mExecutorService.shutdownNow();
-                mTestCase = null;
+                try {
+                    // Run our test-running thread and wait on it.
+                    result.get(mTestTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    killTest(e);
+                } catch (ExecutionException e) {
+                    onError(testCase, e.getCause());
+                } catch (InterruptedException e) {
+                    // Every later wait would be interrupted too, so end the suite here.
+                    killTest(e);
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    mTestCase = null;
+                }
             }
+        } finally {
+            mExecutorService.shutdownNow();
         }
     }
 
@@ -152,8 +192,38 @@ class DexTestRunner extends AndroidTestRunner {
             // First, tell our listeners.
             onError(mTestCase, e);
 
-            // Kill the test.
+            // Kill the test, and replace its worker since the test may not respond to the
+            // interrupt. Reusing the ExecutorService would queue every later test behind it.
             mExecutorService.shutdownNow();
+            synchronized (mAbandonedWorkers) {
+                if (mWorker != null) {
+                    mAbandonedWorkers.add(mWorker);
+                    mWorker = null;
+                }
+            }
+            mExecutorService = Executors.newSingleThreadExecutor(mThreadFactory);
+        }
+    }
+
+    /** Returns the number of worker threads created so far. */
+    int getCreatedThreadCount() {
+        synchronized (mAbandonedWorkers) {
+            return mCreatedThreadCount;
+        }
+    }
+
+    /**
+     * Returns the number of worker threads still running a test that timed out, which is the
+     * number of threads leaked by hung tests.
+     */
+    int getLeakedThreadCount() {
+        synchronized (mAbandonedWorkers) {
+            for (Iterator<Thread> workers = mAbandonedWorkers.iterator(); workers.hasNext(); ) {
+                if (!workers.next().isAlive()) {
+                    workers.remove();
+                }
+            }
+            return mAbandonedWorkers.size();
         }
     }
 
@@ -324,8 +394,13 @@ class DexTestRunner extends AndroidTestRunner {
         return mLoader;
     }
 
+    /**
+     * Returns the class loader of the given jars, reusing the one made for a previous suite if
+     * none of the jars have changed since.
+     */
     DexClassLoader makeLoader(List<String> jars) {
         StringBuilder jarFiles = new StringBuilder();
+        StringBuilder key = new StringBuilder();
 
         for (String jar : jars) {
             if (new File(jar).exists() && new File(jar).canRead()) {
@@ -334,6 +409,7 @@ class DexTestRunner extends AndroidTestRunner {
                 }
 
                 jarFiles.append(jar);
+                key.append(jar).append('@').append(new File(jar).lastModified()).append(';');
             } else {
                 throw new IllegalArgumentException(
                         "Jar file does not exist or not accessible: "  + jar);
@@ -343,11 +419,18 @@ class DexTestRunner extends AndroidTestRunner {
         File optDir = new File(mInstrumentation.getTargetContext().getCacheDir(), DEX_OPT_PATH);
 
         if (optDir.exists() || optDir.mkdirs()) {
-            return new DexClassLoader(
-                    jarFiles.toString(),
-                    optDir.getAbsolutePath(),
-                    null,
-                    DexTestRunner.class.getClassLoader());
+            synchronized (sLoaders) {
+                DexClassLoader loader = sLoaders.get(key.toString());
+                if (loader == null) {
+                    loader = new DexClassLoader(
+                            jarFiles.toString(),
+                            optDir.getAbsolutePath(),
+                            null,
+                            DexTestRunner.class.getClassLoader());
+                    sLoaders.put(key.toString(), loader);
+                }
+                return loader;
+            }
         } else {
             throw new RuntimeException(
                     "Failed to create dex optimization directory: " + optDir.getAbsolutePath());
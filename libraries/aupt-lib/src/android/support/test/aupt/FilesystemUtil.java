@@ -25,27 +25,69 @@ import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 
 public class FilesystemUtil {
     private static final String TAG = FilesystemUtil.class.getSimpleName();
 
+    /** The suffix of gzipped files. */
+    public static final String GZIP_SUFFIX = ".gz";
+
+    /** The size of the direct buffer used to pipe between files, which can be hundreds of MB. */
+    static final int PIPE_BUFFER_SIZE = 256 * 1024;
+    /** The size of the byte array used to pipe to or from other streams. */
+    static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> sPipeBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(PIPE_BUFFER_SIZE));
+
     /** Save the output of a process to a file */
     public static void saveProcessOutput(Instrumentation instr, String command, File file)
             throws IOException {
-        Log.d(TAG, String.format("Saving command \"%s\" output into file %s",
-                command, file.getAbsolutePath()));
+        saveProcessOutput(instr, command, file, false);
+    }
 
+    /**
+     * Save the output of a process to a file, gzipping it as it is streamed if {@code compress}
+     * is set. The file name is used as given.
+     */
+    public static void saveProcessOutput(
+            Instrumentation instr, String command, File file, boolean compress)
+            throws IOException {
+        Log.d(TAG, String.format("Saving command \"%s\" output into %sfile %s",
+                command, compress ? "gzipped " : "", file.getAbsolutePath()));
+
+        OutputStream out = openOutput(file, compress);
+        try {
+            saveProcessOutput(instr, command, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Open a file for writing, gzipping what is written to it if {@code compress} is set. */
+    static OutputStream openOutput(File file, boolean compress) throws IOException {
         OutputStream out = new FileOutputStream(file);
-        saveProcessOutput(instr, command, out);
-        out.close();
+        if (compress) {
+            try {
+                return new GZIPOutputStream(out, PIPE_BUFFER_SIZE);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+        return out;
     }
 
     /** Send the output of a process to an OutputStream. */
@@ -78,11 +120,27 @@ public class FilesystemUtil {
     /** Save a bugreport to the given file */
     public static void saveBugreport(Instrumentation instr, String filename)
             throws IOException, InterruptedException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        String cmdline = String.format("/system/bin/sh -c /system/bin/bugreport>%s",
-                templateToFilename(filename));
-        saveProcessOutput(instr, cmdline, baos);
-        baos.close();
+        saveBugreport(instr, filename, false);
+    }
+
+    /**
+     * Save a bugreport to the given file, or gzip it into the file with a ".gz" suffix if {@code
+     * compress} is set.
+     */
+    public static void saveBugreport(Instrumentation instr, String filename, boolean compress)
+            throws IOException, InterruptedException {
+        if (compress) {
+            // The output has to pass through this process to be compressed.
+            saveProcessOutput(instr, "/system/bin/bugreport",
+                    new File(templateToFilename(filename) + GZIP_SUFFIX), true);
+        } else {
+            // Let the shell write the file, so the output never passes through this process.
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            String cmdline = String.format("/system/bin/sh -c /system/bin/bugreport>%s",
+                    templateToFilename(filename));
+            saveProcessOutput(instr, cmdline, baos);
+            baos.close();
+        }
     }
 
     /** Save a bugreport to the given file */
@@ -126,19 +184,45 @@ public class FilesystemUtil {
         return String.format(filenameTemplate, sdf.format(new Date()));
     }
 
-    /** Pipe an inputstream to an outputstream. This matches Apache's IOUtils::copy */
-    private static void pipe(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[4096];
-        int bytesRead = 0;
-
+    /**
+     * Pipe an inputstream to an outputstream, closing the inputstream. This matches Apache's
+     * IOUtils::copy, but when both ends are file streams, including the pipes of
+     * ParcelFileDescriptors, they are copied through their channels with a large direct buffer,
+     * which is reused by each thread.
+     *
+     * @return the number of bytes piped
+     */
+    static long pipe(InputStream in, OutputStream out) throws IOException {
         try {
-            while (bytesRead >= 0) {
-                out.write(buffer, 0, bytesRead);
-                bytesRead = in.read(buffer);
+            if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+                return pipe(((FileInputStream) in).getChannel(),
+                        ((FileOutputStream) out).getChannel());
             }
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+            return total;
         } finally {
             in.close();
             out.flush();
         }
     }
+
+    private static long pipe(FileChannel source, FileChannel target) throws IOException {
+        ByteBuffer buffer = sPipeBuffer.get();
+        buffer.clear();
+        long total = 0;
+
+        while (source.read(buffer) >= 0 || buffer.position() > 0) {
+            buffer.flip();
+            total += target.write(buffer);
+            buffer.compact();
+        }
+
+        return total;
+    }
 }
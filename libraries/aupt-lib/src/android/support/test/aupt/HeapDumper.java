@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import android.app.Instrumentation;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Takes heap dumps of processes with {@code am dumpheap} on a background thread, and copies them
+ * into the results directory.
+ *
+ * {@code am dumpheap} returns before the dump is written, so a dump is complete once the size of
+ * its file stops changing. Dumps are taken one at a time, at most once per minimum interval, and
+ * are skipped once a process reaches its maximum number of dumps or the byte budget is used up.
+ */
+class HeapDumper {
+    private static final String TAG = "AuptHeapDumper";
+    static final String STAGING_DIRECTORY = "/data/local/tmp";
+    // How long the size of a dump must stay the same for the dump to be complete.
+    static final long STABLE_MS = TimeUnit.SECONDS.toMillis(3);
+    static final long POLL_INTERVAL_MS = 500;
+    static final long TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Instrumentation mInstrumentation;
+    private final File mOutputDirectory;
+    private final long mMaxDumpsPerProcess;
+    private final long mMinIntervalMs;
+    private final long mMaxBytes;
+    private final boolean mCompress;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Map<String, Long> mDumpCounts = new HashMap<>();
+    private final Set<String> mPending = new HashSet<>();
+    private long mBytesUsed;
+    private long mLastDumpEndMs = -1;
+
+    /**
+     * @param maxBytes the total size of the copied dumps, or 0 for no limit
+     * @param minIntervalMs the time from the end of one dump to the start of the next
+     */
+    HeapDumper(Instrumentation instrumentation, File outputDirectory, long maxDumpsPerProcess,
+            long minIntervalMs, long maxBytes, boolean compress) {
+        mInstrumentation = instrumentation;
+        mOutputDirectory = outputDirectory;
+        mMaxDumpsPerProcess = maxDumpsPerProcess;
+        mMinIntervalMs = minIntervalMs;
+        mMaxBytes = maxBytes;
+        mCompress = compress;
+    }
+
+    /**
+     * Queues a heap dump of {@code proc}, unless it already has one queued or has reached the
+     * limits.
+     *
+     * @return whether a dump was queued
+     */
+    synchronized boolean requestDump(final String proc) {
+        Long count = mDumpCounts.get(proc);
+        if (count == null) {
+            count = 0L;
+        }
+        if (count >= mMaxDumpsPerProcess || isOverBudget() || mPending.contains(proc)) {
+            return false;
+        }
+
+        final long index = count;
+        mDumpCounts.put(proc, count + 1);
+        mPending.add(proc);
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(proc, index);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save heap dump of " + proc, e);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while saving heap dump of " + proc);
+                } finally {
+                    synchronized (HeapDumper.this) {
+                        mPending.remove(proc);
+                        mLastDumpEndMs = uptimeMillis();
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /** Stops taking heap dumps, abandoning any in progress. */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    synchronized long getBytesUsed() {
+        return mBytesUsed;
+    }
+
+    private synchronized boolean isOverBudget() {
+        return mMaxBytes > 0 && mBytesUsed >= mMaxBytes;
+    }
+
+    /** Takes a heap dump of {@code proc} and copies it to the output directory. */
+    void dump(String proc, long index) throws IOException, InterruptedException {
+        long waitMs;
+        synchronized (this) {
+            waitMs = mLastDumpEndMs < 0 ? 0 : mLastDumpEndMs + mMinIntervalMs - uptimeMillis();
+        }
+        if (waitMs > 0) {
+            sleep(waitMs);
+        }
+
+        String filename = String.format("dumpheap-%s-%d", proc, index);
+        File staging = new File(STAGING_DIRECTORY, filename);
+        File output = new File(mOutputDirectory,
+                mCompress ? filename + FilesystemUtil.GZIP_SUFFIX : filename);
+
+        try {
+            runShellCommand(String.format("am dumpheap %s %s", proc, staging.getPath()));
+            long size = waitForCompletion(staging, STABLE_MS, TIMEOUT_MS);
+
+            synchronized (this) {
+                if (mMaxBytes > 0 && mBytesUsed + size > mMaxBytes) {
+                    Log.w(TAG, String.format("Skipping heap dump of %s: %d bytes would exceed the"
+                            + " budget of %d bytes.", proc, size, mMaxBytes));
+                    return;
+                }
+            }
+
+            long copied = copy(staging, output, mCompress);
+            synchronized (this) {
+                mBytesUsed += copied;
+            }
+            Log.i(TAG, String.format("Saved %d byte heap dump of %s to %s", copied, proc, output));
+        } finally {
+            runShellCommand("rm -f " + staging.getPath());
+        }
+    }
+
+    /**
+     * Waits until the size of {@code file} is non-zero and has not changed for {@code stableMs}.
+     *
+     * @return the final size of the file
+     * @throws IOException if that does not happen within {@code timeoutMs}
+     */
+    long waitForCompletion(File file, long stableMs, long timeoutMs)
+            throws IOException, InterruptedException {
+        long startMs = uptimeMillis();
+        long size = file.length();
+        long stableSinceMs = startMs;
+
+        while (size == 0 || uptimeMillis() - stableSinceMs < stableMs) {
+            if (uptimeMillis() - startMs > timeoutMs) {
+                throw new IOException(String.format(
+                        "%s did not stop growing within %d ms; it is %d bytes.",
+                        file, timeoutMs, size));
+            }
+            sleep(POLL_INTERVAL_MS);
+
+            long current = file.length();
+            if (current != size) {
+                size = current;
+                stableSinceMs = uptimeMillis();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copies {@code from} to {@code to}, gzipping it if {@code compress} is set, without holding
+     * the whole file in memory.
+     *
+     * @return the number of bytes written
+     */
+    static long copy(File from, File to, boolean compress) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileChannel source = in.getChannel();
+            if (!compress) {
+                FileOutputStream out = new FileOutputStream(to);
+                try {
+                    FileChannel target = out.getChannel();
+                    long size = source.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                    return position;
+                } finally {
+                    out.close();
+                }
+            }
+
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(to), COPY_BUFFER_SIZE);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                while (source.read(buffer) >= 0) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            } finally {
+                out.close();
+            }
+            return to.length();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Override this for unit testing. */
+    void runShellCommand(String command) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FilesystemUtil.saveProcessOutput(mInstrumentation, command, output);
+    }
+
+    /** Override this for unit testing. */
+    long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    /** Override this for unit testing. */
+    void sleep(long ms) throws InterruptedException {
+        Thread.sleep(ms);
+    }
+}
@@ -21,10 +21,11 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.regex.Pattern;
 
 enum LogGenerator {
-    BUGREPORT(new BugreportGenerator()),
-    BUGREPORTZ(new BugreportzGenerator()),
+    BUGREPORT(new BugreportGenerator(), true),
+    BUGREPORTZ(new BugreportzGenerator(), true),
     GRAPHICS_STATS(new GraphicsGenerator()),
     MEM_INFO(new CompactMemInfoGenerator()),
     CPU_INFO(new CpuInfoGenerator()),
@@ -35,30 +36,47 @@ enum LogGenerator {
 
     private static final String TAG = "AuptDataCollector";
 
-    /** Save the output of a process to a log file with the given name template. */
+    /** Matches the names of the files written by the generators, compressed or not. */
+    private static final Pattern LOG_FILE_PATTERN = Pattern.compile(
+            "(bugreport|compact-meminfo|cpuinfo|graphics|ion-audio|ion-system|pagetypeinfo|trace"
+            + "|unusable-index)-\\d{4}(-\\d{2}){5}\\.txt(\\.gz)?");
+
+    /** Returns whether {@code fileName} is the name of a log written by a generator. */
+    static boolean isLogFile(String fileName) {
+        return LOG_FILE_PATTERN.matcher(fileName).matches();
+    }
+
+    /**
+     * Save the output of a process to a log file with the given name template, gzipped with a
+     * ".gz" suffix if {@code compress} is set.
+     */
     private static void saveLog(
             Instrumentation instr,
             String command,
-            String template) throws IOException {
+            String template,
+            boolean compress) throws IOException {
+        String fileName = FilesystemUtil.templateToFilename(template);
         FilesystemUtil.saveProcessOutput(
             instr,
             command,
-            new File(FilesystemUtil.templateToFilename(template)));
+            new File(compress ? fileName + FilesystemUtil.GZIP_SUFFIX : fileName),
+            compress);
     }
 
     /* Generator Types */
 
     protected interface Generator {
-        void save(Instrumentation instr, String logDir)
+        void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException;
     }
 
     private static class CompactMemInfoGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
-                saveLog(instr, "dumpsys meminfo -c -S", logDir + "/compact-meminfo-%s.txt");
+                saveLog(instr, "dumpsys meminfo -c -S", logDir + "/compact-meminfo-%s.txt",
+                        compress);
             } catch (IOException ioe) {
                 Log.w(TAG, "Error while saving dumpsys meminfo -c: " + ioe.getMessage());
             }
@@ -67,10 +85,10 @@ enum LogGenerator {
 
     private static class CpuInfoGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
-                saveLog(instr, "dumpsys cpuinfo", logDir + "/cpuinfo-%s.txt");
+                saveLog(instr, "dumpsys cpuinfo", logDir + "/cpuinfo-%s.txt", compress);
             } catch (IOException ioe) {
                 Log.w(TAG, "Error while saving dumpsys cpuinfo : " + ioe.getMessage());
             }
@@ -79,10 +97,10 @@ enum LogGenerator {
 
     private static class BugreportGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
-                FilesystemUtil.saveBugreport(instr, logDir + "/bugreport-%s.txt");
+                FilesystemUtil.saveBugreport(instr, logDir + "/bugreport-%s.txt", compress);
             } catch (IOException e) {
                 Log.w(TAG, String.format("Failed to take bugreport: %s", e.getMessage()));
             }
@@ -91,7 +109,7 @@ enum LogGenerator {
 
     private static class BugreportzGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
                 FilesystemUtil.saveBugreportz(instr);
@@ -103,10 +121,11 @@ enum LogGenerator {
 
     private static class FragmentationGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
-                saveLog(instr, "cat /d/extfrag/unusable_index", logDir + "/unusable-index-%s.txt");
+                saveLog(instr, "cat /d/extfrag/unusable_index", logDir + "/unusable-index-%s.txt",
+                        compress);
             } catch (IOException e) {
                 Log.w(TAG, String.format("Failed to save frangmentation: %s", e.getMessage()));
             }
@@ -115,10 +134,10 @@ enum LogGenerator {
 
     private static class GraphicsGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
-                saveLog(instr, "dumpsys graphicsstats", logDir + "/graphics-%s.txt");
+                saveLog(instr, "dumpsys graphicsstats", logDir + "/graphics-%s.txt", compress);
             } catch (IOException e) {
                 Log.w(TAG, String.format("Failed to save graphicsstats: %s", e.getMessage()));
             }
@@ -127,11 +146,11 @@ enum LogGenerator {
 
     private static class IonHeapGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
-                saveLog(instr, "cat /d/ion/heaps/audio", logDir + "/ion-audio-%s.txt");
-                saveLog(instr, "cat /d/ion/heaps/system", logDir + "/ion-system-%s.txt");
+                saveLog(instr, "cat /d/ion/heaps/audio", logDir + "/ion-audio-%s.txt", compress);
+                saveLog(instr, "cat /d/ion/heaps/system", logDir + "/ion-system-%s.txt", compress);
             } catch (IOException e) {
                 Log.w(TAG, String.format("Failed to save ION heap: %s", e.getMessage()));
             }
@@ -140,10 +159,10 @@ enum LogGenerator {
 
     private static class PageTypeInfoGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
-                saveLog(instr, "cat /proc/pagetypeinfo", logDir + "/pagetypeinfo-%s.txt");
+                saveLog(instr, "cat /proc/pagetypeinfo", logDir + "/pagetypeinfo-%s.txt", compress);
             } catch (IOException e) {
                 Log.w(TAG, String.format("Failed to save pagetypeinfo: %s", e.getMessage()));
             }
@@ -152,10 +171,11 @@ enum LogGenerator {
 
     private static class TraceGenerator implements Generator {
         @Override
-        public void save(Instrumentation instr, String logDir)
+        public void save(Instrumentation instr, String logDir, boolean compress)
                 throws IOException, InterruptedException {
             try {
-                saveLog(instr, "cat /sys/kernel/debug/tracing/trace", logDir + "/trace-%s.txt");
+                saveLog(instr, "cat /sys/kernel/debug/tracing/trace", logDir + "/trace-%s.txt",
+                        compress);
             } catch (IOException e) {
                 Log.w(TAG, String.format("Failed to save trace: %s", e.getMessage()));
             }
@@ -164,13 +184,27 @@ enum LogGenerator {
 
     // Individual LogGenerator instance methods
     private final Generator mGenerator;
+    private final boolean mExpensive;
 
     LogGenerator (Generator generator) {
+        this(generator, false);
+    }
+
+    LogGenerator (Generator generator, boolean expensive) {
         mGenerator = generator;
+        mExpensive = expensive;
+    }
+
+    /**
+     * Returns whether this generator can take long enough to delay the others, and so should not
+     * share their threads.
+     */
+    public boolean isExpensive() {
+        return mExpensive;
     }
 
-    public void save(Instrumentation instr, String logDir)
+    public void save(Instrumentation instr, String logDir, boolean compress)
             throws IOException, InterruptedException {
-        mGenerator.save(instr, logDir);
+        mGenerator.save(instr, logDir, compress);
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Bounds the disk used by the logs of a {@link DataCollector}, so that multi-day runs do not fill
+ * the external storage.
+ *
+ * Logs older than the maximum age are deleted, and then the oldest logs are deleted until the
+ * total size is within the maximum size. Only files written by a {@link LogGenerator} are ever
+ * deleted; a non-positive limit disables that half of the policy.
+ */
+public class LogRetentionPolicy {
+    private static final String TAG = "AuptDataCollector";
+
+    /** A policy that keeps every log. */
+    public static final LogRetentionPolicy KEEP_ALL = new LogRetentionPolicy(0, 0);
+
+    private final long mMaxBytes;
+    private final long mMaxAgeMs;
+
+    public LogRetentionPolicy(long maxBytes, long maxAgeMs) {
+        mMaxBytes = maxBytes;
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    public boolean isEnabled() {
+        return mMaxBytes > 0 || mMaxAgeMs > 0;
+    }
+
+    /**
+     * Deletes the logs in {@code logDir} that fall outside of this policy at {@code nowMs}.
+     *
+     * @return the deleted files, oldest first
+     */
+    public List<File> apply(File logDir, long nowMs) {
+        List<File> deleted = new ArrayList<>();
+        if (!isEnabled()) {
+            return deleted;
+        }
+
+        File[] files = logDir.listFiles();
+        if (files == null) {
+            return deleted;
+        }
+
+        // Modification times and sizes are read once, since logs may still be written while they
+        // are sorted, and a time that changed mid-sort would break the comparator.
+        List<LogFile> logs = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && LogGenerator.isLogFile(file.getName())) {
+                logs.add(new LogFile(file));
+            }
+        }
+        // Files are sorted by name to break ties, as modification times are only second-precise
+        // on some filesystems and the names of logs of one type sort by date.
+        LogFile[] sorted = logs.toArray(new LogFile[logs.size()]);
+        Arrays.sort(sorted, new Comparator<LogFile>() {
+            @Override
+            public int compare(LogFile a, LogFile b) {
+                int byTime = Long.compare(a.mLastModified, b.mLastModified);
+                return byTime != 0 ? byTime : a.mFile.getName().compareTo(b.mFile.getName());
+            }
+        });
+
+        long totalBytes = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            totalBytes += sorted[i].mLength;
+        }
+
+        for (int i = 0; i < sorted.length; i++) {
+            boolean expired = mMaxAgeMs > 0 && nowMs - sorted[i].mLastModified > mMaxAgeMs;
+            boolean overBudget = mMaxBytes > 0 && totalBytes > mMaxBytes;
+            if (!expired && !overBudget) {
+                // Every later file is newer, so neither limit can apply to it.
+                break;
+            }
+            File file = sorted[i].mFile;
+            if (file.delete()) {
+                totalBytes -= sorted[i].mLength;
+                deleted.add(file);
+            } else {
+                Log.w(TAG, "Could not delete expired log " + file);
+            }
+        }
+
+        return deleted;
+    }
+
+    /** A log, with its modification time and size when the policy was applied. */
+    private static class LogFile {
+        final File mFile;
+        final long mLastModified;
+        final long mLength;
+
+        LogFile(File file) {
+            mFile = file;
+            mLastModified = file.lastModified();
+            mLength = file.length();
+        }
+    }
+}
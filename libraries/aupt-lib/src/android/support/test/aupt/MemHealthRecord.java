@@ -19,37 +19,54 @@ package android.support.test.aupt;
 import android.app.Instrumentation;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 class MemHealthRecord {
+    /** The memory metrics parsed from a process's meminfo, in kB. */
+    enum Metric {
+        // Memory health state
+        NATIVE_HEAP("Native Heap\\s+\\d+\\s+(\\d+)"),
+        DALVIK_HEAP("Dalvik Heap\\s+\\d+\\s+(\\d+)"),
+        PSS("TOTAL\\s+(\\d+)"),
+
+        // App summary metrics
+        SUMMARY_JAVA_HEAP("Java Heap:\\s+(\\d+)"),
+        SUMMARY_NATIVE_HEAP("Native Heap:\\s+(\\d+)"),
+        SUMMARY_CODE("Code:\\s+(\\d+)"),
+        SUMMARY_STACK("Stack:\\s+(\\d+)"),
+        SUMMARY_GRAPHICS("Graphics:\\s+(\\d+)"),
+        SUMMARY_OTHER("Private Other:\\s+(\\d+)"),
+        SUMMARY_SYSTEM("System:\\s+(\\d+)"),
+        SUMMARY_OVERALL_PSS("TOTAL:\\s+(\\d+)");
+
+        // Compiled once, as meminfo is parsed for every tracked process before and after each test
+        private final Pattern mPattern;
+
+        Metric(String pattern) {
+            mPattern = Pattern.compile(pattern);
+        }
+    }
+
+    static final String CSV_HEADER = "name,time,native_heap,dalvik_heap,pss,context";
+
     // Process State
     private final String mProcName;
     private final boolean mInForeground;
 
     // Memory health state
     private final long mTimeMs;
-    private final long mDalvikHeap;
-    private final long mNativeHeap;
-    private final long mPss;
-
-    // App summary metrics
-    private final long mAsJavaHeap;
-    private final long mAsNativeHeap;
-    private final long mAsCode;
-    private final long mAsStack;
-    private final long mAsGraphics;
-    private final long mAsOther;
-    private final long mAsSystem;
-    private final long mAsOverallPss;
+    private final long[] mValues = new long[Metric.values().length];
 
     public MemHealthRecord(String procName, long timeMs, long dalvikHeap, long nativeHeap, long pss,
             long asJavaHeap, long asNativeHeap, long asCode, long asStack,
@@ -57,17 +74,17 @@ class MemHealthRecord {
             boolean inForeground) {
         mProcName = procName;
         mTimeMs = timeMs;
-        mDalvikHeap = dalvikHeap;
-        mNativeHeap = nativeHeap;
-        mPss = pss;
-        mAsJavaHeap = asJavaHeap;
-        mAsNativeHeap = asNativeHeap;
-        mAsCode = asCode;
-        mAsStack = asStack;
-        mAsGraphics = asGraphics;
-        mAsOther = asOther;
-        mAsSystem = asSystem;
-        mAsOverallPss = asOverallPss;
+        mValues[Metric.DALVIK_HEAP.ordinal()] = dalvikHeap;
+        mValues[Metric.NATIVE_HEAP.ordinal()] = nativeHeap;
+        mValues[Metric.PSS.ordinal()] = pss;
+        mValues[Metric.SUMMARY_JAVA_HEAP.ordinal()] = asJavaHeap;
+        mValues[Metric.SUMMARY_NATIVE_HEAP.ordinal()] = asNativeHeap;
+        mValues[Metric.SUMMARY_CODE.ordinal()] = asCode;
+        mValues[Metric.SUMMARY_STACK.ordinal()] = asStack;
+        mValues[Metric.SUMMARY_GRAPHICS.ordinal()] = asGraphics;
+        mValues[Metric.SUMMARY_OTHER.ordinal()] = asOther;
+        mValues[Metric.SUMMARY_SYSTEM.ordinal()] = asSystem;
+        mValues[Metric.SUMMARY_OVERALL_PSS.ordinal()] = asOverallPss;
         mInForeground = inForeground;
     }
 
@@ -77,6 +94,22 @@ class MemHealthRecord {
         this(procName, timeMs, dalvikHeap, nativeHeap, pss, 0, 0, 0, 0, 0, 0, 0, 0, inForeground);
     }
 
+    public String getProcName() {
+        return mProcName;
+    }
+
+    public long getTimeMs() {
+        return mTimeMs;
+    }
+
+    public boolean isInForeground() {
+        return mInForeground;
+    }
+
+    public long get(Metric metric) {
+        return mValues[metric.ordinal()];
+    }
+
     /* Static methods */
 
     static List<MemHealthRecord> get(
@@ -88,434 +121,211 @@ class MemHealthRecord {
         List<MemHealthRecord> records = new ArrayList<>();
 
         for (String procName : procNames) {
-            String meminfo = getMeminfoOutput(instr, procName);
-            int nativeHeap = parseMeminfoLine(meminfo, "Native Heap\\s+\\d+\\s+(\\d+)");
-            int dalvikHeap = parseMeminfoLine(meminfo, "Dalvik Heap\\s+\\d+\\s+(\\d+)");
-            int pss = parseMeminfoLine(meminfo, "TOTAL\\s+(\\d+)");
-
-            int asJavaHeap = parseMeminfoLine(meminfo, "Java Heap:\\s+(\\d+)");
-            int asNativeHeap = parseMeminfoLine(meminfo, "Native Heap:\\s+(\\d+)");
-            int asCode = parseMeminfoLine(meminfo, "Code:\\s+(\\d+)");
-            int asStack = parseMeminfoLine(meminfo, "Stack:\\s+(\\d+)");
-            int asGraphics = parseMeminfoLine(meminfo, "Graphics:\\s+(\\d+)");
-            int asOther = parseMeminfoLine(meminfo, "Private Other:\\s+(\\d+)");
-            int asSystem = parseMeminfoLine(meminfo, "System:\\s+(\\d+)");
-            int asOverallPss = parseMeminfoLine(meminfo, "TOTAL:\\s+(\\d+)");
-
-            if (nativeHeap < 0 || dalvikHeap < 0 || pss < 0) {
-                continue;
+            MemHealthRecord record = parse(procName, getMeminfoOutput(instr, procName), timeMs,
+                    foregroundProcs.contains(procName));
+            if (record != null) {
+                records.add(record);
             }
-
-            records.add(new MemHealthRecord(
-                    procName, timeMs, dalvikHeap, nativeHeap, pss, asJavaHeap,
-                    asNativeHeap, asCode, asStack, asGraphics, asOther, asSystem,
-                    asOverallPss, foregroundProcs.contains(procName)));
         }
 
         return records;
     }
 
-    static void saveVerbose(Collection<MemHealthRecord> allRecords, String fileName)
-            throws IOException {
-        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
-
-        Map<String, List<MemHealthRecord>> fgRecords = getRecordMap(allRecords, true);
-        Map<String, List<MemHealthRecord>> bgRecords = getRecordMap(allRecords, false);
-
-        out.println("Foreground");
-
-        for (Map.Entry<String, List<MemHealthRecord>> entry : fgRecords.entrySet()) {
-            String procName = entry.getKey();
-            List<MemHealthRecord> records = entry.getValue();
-
-            List<Long> nativeHeap = getForegroundNativeHeap(records);
-            List<Long> dalvikHeap = getForegroundDalvikHeap(records);
-            List<Long> pss = getForegroundPss(records);
-            List<Long> asJavaHeap = getForegroundSummaryJavaHeap(records);
-            List<Long> asNativeHeap = getForegroundSummaryNativeHeap(records);
-            List<Long> asCode = getForegroundSummaryCode(records);
-            List<Long> asStack = getForegroundSummaryStack(records);
-            List<Long> asGraphics = getForegroundSummaryGraphics(records);
-            List<Long> asOther = getForegroundSummaryOther(records);
-            List<Long> asSystem = getForegroundSummarySystem(records);
-            List<Long> asOverallPss = getForegroundSummaryOverallPss(records);
-
-            // nativeHeap, dalvikHeap, and pss all have the same size, just use one
-            if (nativeHeap.isEmpty()) {
-                continue;
-            }
-
-            out.println(procName);
-            out.printf("Average Native Heap: %d\n", getAverage(nativeHeap));
-            out.printf("Average Dalvik Heap: %d\n", getAverage(dalvikHeap));
-            out.printf("Average PSS: %d\n", getAverage(pss));
-            out.printf("Peak Native Heap: %d\n", getMax(nativeHeap));
-            out.printf("Peak Dalvik Heap: %d\n", getMax(dalvikHeap));
-            out.printf("Peak PSS: %d\n", getMax(pss));
-            out.printf("Count %d\n", nativeHeap.size());
-
-            out.printf("Average Summary Java Heap: %d\n", getAverage(asJavaHeap));
-            out.printf("Average Summary Native Heap: %d\n", getAverage(asNativeHeap));
-            out.printf("Average Summary Code: %d\n", getAverage(asCode));
-            out.printf("Average Summary Stack: %d\n", getAverage(asStack));
-            out.printf("Average Summary Graphics: %d\n", getAverage(asGraphics));
-            out.printf("Average Summary Other: %d\n", getAverage(asOther));
-            out.printf("Average Summary System: %d\n", getAverage(asSystem));
-            out.printf("Average Summary Overall Pss: %d\n", getAverage(asOverallPss));
+    /**
+     * Parses the {@code dumpsys meminfo} output of a process, or returns null if it does not have
+     * the native heap, dalvik heap and pss.
+     */
+    static MemHealthRecord parse(
+            String procName, String meminfo, long timeMs, boolean inForeground) {
+        long[] values = new long[Metric.values().length];
+        for (Metric metric : Metric.values()) {
+            values[metric.ordinal()] = parseMeminfoLine(meminfo, metric.mPattern);
         }
 
-        out.println("Background");
-        for (Map.Entry<String, List<MemHealthRecord>> entry : bgRecords.entrySet()) {
-            String procName = entry.getKey();
-            List<MemHealthRecord> records = entry.getValue();
-
-            List<Long> nativeHeap = getBackgroundNativeHeap(records);
-            List<Long> dalvikHeap = getBackgroundDalvikHeap(records);
-            List<Long> pss = getBackgroundPss(records);
-            List<Long> asJavaHeap = getBackgroundSummaryJavaHeap(records);
-            List<Long> asNativeHeap = getBackgroundSummaryNativeHeap(records);
-            List<Long> asCode = getBackgroundSummaryCode(records);
-            List<Long> asStack = getBackgroundSummaryStack(records);
-            List<Long> asGraphics = getBackgroundSummaryGraphics(records);
-            List<Long> asOther = getBackgroundSummaryOther(records);
-            List<Long> asSystem = getBackgroundSummarySystem(records);
-            List<Long> asOverallPss = getBackgroundSummaryOverallPss(records);
-
-            // nativeHeap, dalvikHeap, and pss all have the same size, just use one
-            if (nativeHeap.isEmpty()) {
-                continue;
-            }
-
-            out.println(procName);
-            out.printf("Average Native Heap: %d\n", getAverage(nativeHeap));
-            out.printf("Average Dalvik Heap: %d\n", getAverage(dalvikHeap));
-            out.printf("Average PSS: %d\n", getAverage(pss));
-            out.printf("Peak Native Heap: %d\n", getMax(nativeHeap));
-            out.printf("Peak Dalvik Heap: %d\n", getMax(dalvikHeap));
-            out.printf("Peak PSS: %d\n", getMax(pss));
-            out.printf("Count %d\n", nativeHeap.size());
-
-            out.printf("Average Summary Java Heap: %d\n", getAverage(asJavaHeap));
-            out.printf("Average Summary Native Heap: %d\n", getAverage(asNativeHeap));
-            out.printf("Average Summary Code: %d\n", getAverage(asCode));
-            out.printf("Average Summary Stack: %d\n", getAverage(asStack));
-            out.printf("Average Summary Graphics: %d\n", getAverage(asGraphics));
-            out.printf("Average Summary Other: %d\n", getAverage(asOther));
-            out.printf("Average Summary System: %d\n", getAverage(asSystem));
-            out.printf("Average Summary Overall Pss: %d\n", getAverage(asOverallPss));
+        if (values[Metric.NATIVE_HEAP.ordinal()] < 0
+                || values[Metric.DALVIK_HEAP.ordinal()] < 0
+                || values[Metric.PSS.ordinal()] < 0) {
+            return null;
         }
 
-        out.close();
+        MemHealthRecord record = new MemHealthRecord(procName, timeMs, 0, 0, 0, inForeground);
+        System.arraycopy(values, 0, record.mValues, 0, values.length);
+        return record;
     }
 
     /**
      * NOTE (rsloan): I've meaningfully changed this format because the previous iteration was a
      *                horrific mix of CSV and not-CSV
+     *
+     * <p>Appends {@code records} to the CSV file, writing the header first if the file is new, so
+     * that each call costs the same however long the run has been going.
      */
-    static void saveCsv(Collection<MemHealthRecord> allRecords, String fileName) throws IOException{
+    static void appendCsv(Collection<MemHealthRecord> records, String fileName)
+            throws IOException {
+        boolean isNew = !new File(fileName).exists() || new File(fileName).length() == 0;
         PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
 
-        out.printf("name,time,native_heap,dalvik_heap,pss,context\n");
-        for (MemHealthRecord record : allRecords) {
-            out.printf("%s,%d,%d,%d,%s\n",
-                    record.mProcName, record.mTimeMs, record.mNativeHeap,
-                    record.mDalvikHeap, record.mInForeground ? "foreground" : "background");
-        }
-
-        out.close();
-    }
-
-    /* Getters defined on a Collection<MemHealthRecord> */
-
-    public static List<Long> getForegroundDalvikHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mDalvikHeap);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getBackgroundDalvikHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mDalvikHeap);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getForegroundNativeHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mNativeHeap);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getBackgroundNativeHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mNativeHeap);
-            }
+        if (isNew) {
+            out.printf("%s\n", CSV_HEADER);
         }
-        return ret;
-    }
-
-    public static List<Long> getForegroundPss(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mPss);
-            }
+        for (MemHealthRecord record : records) {
+            out.printf("%s,%d,%d,%d,%d,%s\n",
+                    record.mProcName, record.mTimeMs, record.get(Metric.NATIVE_HEAP),
+                    record.get(Metric.DALVIK_HEAP), record.get(Metric.PSS),
+                    record.mInForeground ? "foreground" : "background");
         }
-        return ret;
-    }
 
-    public static List<Long> getBackgroundPss(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mPss);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getForegroundSummaryJavaHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsJavaHeap);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getBackgroundSummaryJavaHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsJavaHeap);
-            }
-        }
-        return ret;
+        out.close();
     }
 
-    public static List<Long> getForegroundSummaryNativeHeap(
-            Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsNativeHeap);
-            }
-        }
-        return ret;
-    }
+    /* Utility Methods */
 
-    public static List<Long> getBackgroundSummaryNativeHeap(
-            Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsNativeHeap);
-            }
+    private static int parseMeminfoLine(String meminfo, Pattern pattern)
+    {
+        Matcher m = pattern.matcher(meminfo);
+        if (m.find()) {
+            return Integer.parseInt(m.group(1));
+        } else {
+            return -1;
         }
-        return ret;
     }
 
-    public static List<Long> getForegroundSummaryCode(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsCode);
-            }
-        }
-        return ret;
+    public static String getMeminfoOutput(Instrumentation instr, String processName)
+            throws IOException {
+        return getProcessOutput(instr, "dumpsys meminfo " + processName);
     }
 
-    public static List<Long> getBackgroundSummaryCode(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsCode);
-            }
-        }
-        return ret;
+    public static String getProcessOutput(Instrumentation instr, String command)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FilesystemUtil.saveProcessOutput(instr, command, baos);
+        baos.close();
+        return baos.toString();
     }
 
-    public static List<Long> getForegroundSummaryStack(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsStack);
+    /**
+     * The history of the records of one process in one context, stored as a primitive column per
+     * metric, with the count, sums and peaks maintained as records are added so that summaries
+     * take constant time.
+     */
+    static class Series {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final long[][] mColumns = new long[Metric.values().length][INITIAL_CAPACITY];
+        private long[] mTimesMs = new long[INITIAL_CAPACITY];
+        private final long[] mSums = new long[Metric.values().length];
+        private final long[] mMaxes = new long[Metric.values().length];
+        private int mCount;
+
+        void add(MemHealthRecord record) {
+            if (mCount == mTimesMs.length) {
+                int capacity = mCount * 2;
+                mTimesMs = Arrays.copyOf(mTimesMs, capacity);
+                for (int i = 0; i < mColumns.length; i++) {
+                    mColumns[i] = Arrays.copyOf(mColumns[i], capacity);
+                }
             }
-        }
-        return ret;
-    }
-
-    public static List<Long> getBackgroundSummaryStack(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsStack);
+            mTimesMs[mCount] = record.mTimeMs;
+            for (int i = 0; i < mColumns.length; i++) {
+                long value = record.mValues[i];
+                mColumns[i][mCount] = value;
+                mSums[i] += value;
+                mMaxes[i] = mCount == 0 ? value : Math.max(mMaxes[i], value);
             }
+            mCount++;
         }
-        return ret;
-    }
 
-    public static List<Long> getForegroundSummaryGraphics(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsGraphics);
-            }
+        int getCount() {
+            return mCount;
         }
-        return ret;
-    }
 
-    public static List<Long> getBackgroundSummaryGraphics(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsGraphics);
-            }
+        long getTimeMs(int index) {
+            checkIndex(index);
+            return mTimesMs[index];
         }
-        return ret;
-    }
 
-    public static List<Long> getForegroundSummaryOther(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsOther);
-            }
+        long get(Metric metric, int index) {
+            checkIndex(index);
+            return mColumns[metric.ordinal()][index];
         }
-        return ret;
-    }
 
-    public static List<Long> getBackgroundSummaryOther(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsOther);
-            }
+        long getAverage(Metric metric) {
+            return mCount == 0 ? 0 : mSums[metric.ordinal()] / mCount;
         }
-        return ret;
-    }
 
-    public static List<Long> getForegroundSummarySystem(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsSystem);
-            }
+        long getMax(Metric metric) {
+            return mMaxes[metric.ordinal()];
         }
-        return ret;
-    }
 
-    public static List<Long> getBackgroundSummarySystem(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsSystem);
+        private void checkIndex(int index) {
+            if (index < 0 || index >= mCount) {
+                throw new IndexOutOfBoundsException(
+                        String.format("Index %d out of %d records", index, mCount));
             }
         }
-        return ret;
     }
 
-    public static List<Long> getForegroundSummaryOverallPss(
-            Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsOverallPss);
-            }
-        }
-        return ret;
-    }
+    /** The {@link Series} of every process, in foreground and background, over a whole run. */
+    static class History {
+        private final Map<String, Series> mForeground = new LinkedHashMap<>();
+        private final Map<String, Series> mBackground = new LinkedHashMap<>();
 
-    public static List<Long> getBackgroundSummaryOverallPss(
-            Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsOverallPss);
+        void addAll(Collection<MemHealthRecord> records) {
+            for (MemHealthRecord record : records) {
+                Map<String, Series> series = record.mInForeground ? mForeground : mBackground;
+                if (!series.containsKey(record.mProcName)) {
+                    series.put(record.mProcName, new Series());
+                }
+                series.get(record.mProcName).add(record);
             }
         }
-        return ret;
-    }
 
-    /* Utility Methods */
-
-    private static Long getMax(Collection<Long> samples) {
-        Long max = null;
-        for (Long sample : samples) {
-            if (max == null || sample > max) {
-                max = sample;
-            }
+        /** Returns the series of {@code procName} in the given context, or null if none. */
+        Series get(String procName, boolean inForeground) {
+            return (inForeground ? mForeground : mBackground).get(procName);
         }
-        return max;
-    }
 
-    private static Long getAverage(Collection<Long> samples) {
-        if (samples.size() == 0) {
-            return null;
-        }
+        /** Overwrites the file with a summary of every process over the run so far. */
+        void saveVerbose(String fileName) throws IOException {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, false)));
 
-        double sum = 0;
-        for (Long sample : samples) {
-            sum += sample;
-        }
-        return (long) (sum / samples.size());
-    }
+            out.println("Foreground");
+            printSummaries(out, mForeground);
+            out.println("Background");
+            printSummaries(out, mBackground);
 
-    private static int parseMeminfoLine(String meminfo, String pattern)
-    {
-        Pattern p = Pattern.compile(pattern);
-        Matcher m = p.matcher(meminfo);
-        if (m.find()) {
-            return Integer.parseInt(m.group(1));
-        } else {
-            return -1;
+            out.close();
         }
-    }
-
-    public static String getMeminfoOutput(Instrumentation instr, String processName)
-            throws IOException {
-        return getProcessOutput(instr, "dumpsys meminfo " + processName);
-    }
-
-    public static String getProcessOutput(Instrumentation instr, String command)
-            throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        FilesystemUtil.saveProcessOutput(instr, command, baos);
-        baos.close();
-        return baos.toString();
-    }
 
-    private static Map<String, List<MemHealthRecord>> getRecordMap(
-            Collection<MemHealthRecord> allRecords,
-            boolean inForeground) {
-
-        Map<String, List<MemHealthRecord>> records = new HashMap<>();
-
-        for (MemHealthRecord record : allRecords) {
-            if (record.mInForeground == inForeground) {
-                if (!records.containsKey(record.mProcName)) {
-                    records.put(record.mProcName, new ArrayList<MemHealthRecord>());
-                }
-
-                records.get(record.mProcName).add(record);
+        private static void printSummaries(PrintWriter out, Map<String, Series> allSeries) {
+            for (Map.Entry<String, Series> entry : allSeries.entrySet()) {
+                Series series = entry.getValue();
+
+                out.println(entry.getKey());
+                out.printf("Average Native Heap: %d\n", series.getAverage(Metric.NATIVE_HEAP));
+                out.printf("Average Dalvik Heap: %d\n", series.getAverage(Metric.DALVIK_HEAP));
+                out.printf("Average PSS: %d\n", series.getAverage(Metric.PSS));
+                out.printf("Peak Native Heap: %d\n", series.getMax(Metric.NATIVE_HEAP));
+                out.printf("Peak Dalvik Heap: %d\n", series.getMax(Metric.DALVIK_HEAP));
+                out.printf("Peak PSS: %d\n", series.getMax(Metric.PSS));
+                out.printf("Count %d\n", series.getCount());
+
+                out.printf("Average Summary Java Heap: %d\n",
+                        series.getAverage(Metric.SUMMARY_JAVA_HEAP));
+                out.printf("Average Summary Native Heap: %d\n",
+                        series.getAverage(Metric.SUMMARY_NATIVE_HEAP));
+                out.printf("Average Summary Code: %d\n", series.getAverage(Metric.SUMMARY_CODE));
+                out.printf("Average Summary Stack: %d\n",
+                        series.getAverage(Metric.SUMMARY_STACK));
+                out.printf("Average Summary Graphics: %d\n",
+                        series.getAverage(Metric.SUMMARY_GRAPHICS));
+                out.printf("Average Summary Other: %d\n",
+                        series.getAverage(Metric.SUMMARY_OTHER));
+                out.printf("Average Summary System: %d\n",
+                        series.getAverage(Metric.SUMMARY_SYSTEM));
+                out.printf("Average Summary Overall Pss: %d\n",
+                        series.getAverage(Metric.SUMMARY_OVERALL_PSS));
             }
         }
-
-        return records;
     }
-
 }
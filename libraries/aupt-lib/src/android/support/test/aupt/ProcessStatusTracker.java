@@ -45,6 +45,15 @@ public class ProcessStatusTracker implements IProcessStatusTracker {
     private final int PS_PATTERN_PID_GROUP = 1;
     private final int PS_PATTERN_PKG_GROUP = 2;
 
+    // Lists every process with only the columns needed, on devices with toybox ps
+    static final String PS_PID_NAME_COMMAND = "ps -A -o PID,NAME";
+    // Lists every process in the full format, on devices with toolbox ps
+    static final String PS_COMMAND = "ps";
+    // Example return line from "adb shell ps -A -o PID,NAME" for the pattern below
+    //   PID NAME
+    //  1234 com.android.chrome
+    private final Pattern PS_PID_NAME_PATTERN_MATCH = Pattern.compile("\\s*(\\d+)\\s+(.+)");
+
     private Map<String, Integer> mPidTracker;
     private Set<String> mPidExclusions;
 
@@ -183,36 +192,69 @@ public class ProcessStatusTracker implements IProcessStatusTracker {
     public List<RunningAppProcessInfo> getRunningAppProcesses() {
         List<RunningAppProcessInfo> results = new ArrayList<RunningAppProcessInfo>();
 
-        Set<String> procSet = mPidTracker.keySet();
-        // Enumerate status for all currently tracked processes
-        for (String proc : procSet) {
-            // Execute shell command and parse results
-            BufferedReader stream = executeShellCommand("ps");
-            try {
-                String line;
-                while ((line = stream.readLine()) != null) {
-                    Matcher matcher = PS_PATTERN_MATCH.matcher(line);
-                    // Find a line that matches the process name exactly
-                    if (matcher.matches() && matcher.group(PS_PATTERN_PKG_GROUP).equals(proc)) {
-                        int pid = Integer.valueOf(matcher.group(PS_PATTERN_PID_GROUP));
-                        results.add(new RunningAppProcessInfo(proc, pid, null));
+        // Take a single snapshot of all processes and look up every tracked process in it
+        Map<String, List<Integer>> snapshot = getProcessSnapshot(PS_PID_NAME_COMMAND);
+        if (snapshot != null && snapshot.isEmpty()) {
+            // ps does not support the options, fall back to the full format
+            snapshot = getProcessSnapshot(PS_COMMAND);
+        }
+        if (snapshot == null) {
+            return null;
+        }
+        for (String proc : mPidTracker.keySet()) {
+            List<Integer> pids = snapshot.get(proc);
+            if (pids == null) {
+                continue;
+            }
+            for (int pid : pids) {
+                results.add(new RunningAppProcessInfo(proc, pid, null));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Runs the ps {@code command} once and indexes its output by process name
+     * @param command the ps command to be executed in the adb shell
+     * @result a map from process name to the pids of the processes with that name, or null if
+     * the output could not be read
+     */
+    private Map<String, List<Integer>> getProcessSnapshot(String command) {
+        Map<String, List<Integer>> snapshot = new HashMap<String, List<Integer>>();
+        BufferedReader stream = executeShellCommand(command);
+        try {
+            String line;
+            while ((line = stream.readLine()) != null) {
+                Matcher matcher = PS_PATTERN_MATCH.matcher(line);
+                if (!matcher.matches()) {
+                    matcher = PS_PID_NAME_PATTERN_MATCH.matcher(line);
+                    if (!matcher.matches()) {
+                        continue;
                     }
                 }
-            } catch (IOException exception) {
-                Log.e(TAG, "Error with buffered reader", exception);
-                return null;
-            } finally {
-                try {
-                    if (stream != null) {
-                        stream.close();
-                    }
-                } catch (IOException exception) {
-                    Log.e(TAG, "Error with closing the stream", exception);
+                String name = matcher.group(PS_PATTERN_PKG_GROUP);
+                int pid = Integer.valueOf(matcher.group(PS_PATTERN_PID_GROUP));
+                List<Integer> pids = snapshot.get(name);
+                if (pids == null) {
+                    pids = new ArrayList<Integer>();
+                    snapshot.put(name, pids);
                 }
+                pids.add(pid);
+            }
+        } catch (IOException exception) {
+            Log.e(TAG, "Error with buffered reader", exception);
+            return null;
+        } finally {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (IOException exception) {
+                Log.e(TAG, "Error with closing the stream", exception);
             }
         }
-
-        return results;
+        return snapshot;
     }
 
     // TODO: Create subclass for shell commands used by this and GraphicsStatsMonitor
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/** Unit tests for {@link DataCollector}. */
+@RunWith(JUnit4.class)
+public class DataCollectorTest {
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+    // Much shorter than the time that stop() waits for running collections.
+    private static final long STOP_JOIN_MS = TimeUnit.SECONDS.toMillis(5);
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /** Tests that each generator is scheduled at its own interval. */
+    @Test
+    public void testIndependentSchedules() {
+        FakeDataCollector collector = new FakeDataCollector(
+                60 * MINUTE_MS, 0, MINUTE_MS, 7 * MINUTE_MS, LogRetentionPolicy.KEEP_ALL);
+        collector.start();
+
+        assertThat(collector.getIntervals()).containsExactly(
+                LogGenerator.BUGREPORT, 60 * MINUTE_MS,
+                LogGenerator.MEM_INFO, MINUTE_MS,
+                LogGenerator.CPU_INFO, 7 * MINUTE_MS);
+        collector.stop();
+    }
+
+    /** Tests that expensive generators do not share threads with the cheap ones. */
+    @Test
+    public void testExpensiveGeneratorsSeparated() {
+        FakeDataCollector collector = new FakeDataCollector(
+                60 * MINUTE_MS, 0, MINUTE_MS, 7 * MINUTE_MS, LogRetentionPolicy.KEEP_ALL);
+        collector.start();
+
+        RecordingExecutor expensive = collector.getExecutor(LogGenerator.BUGREPORT);
+        assertThat(expensive.getCorePoolSize()).isEqualTo(1);
+        assertThat(collector.getExecutor(LogGenerator.MEM_INFO)).isNotSameAs(expensive);
+        assertThat(collector.getExecutor(LogGenerator.MEM_INFO))
+                .isSameAs(collector.getExecutor(LogGenerator.CPU_INFO));
+        assertThat(collector.getExecutor(LogGenerator.MEM_INFO).getCorePoolSize())
+                .isEqualTo(DataCollector.SAMPLER_THREADS);
+        collector.stop();
+    }
+
+    /** Tests that logs outside of the retention policy are deleted after each collection. */
+    @Test
+    public void testRetentionAfterCollection() throws IOException {
+        FakeDataCollector collector = new FakeDataCollector(
+                0, 0, MINUTE_MS, 0, new LogRetentionPolicy(0, 10 * MINUTE_MS));
+        collector.start();
+
+        // Each collection writes a log stamped with the fake clock, one minute apart.
+        for (int i = 0; i < 15; i++) {
+            collector.advance(MINUTE_MS);
+            collector.runScheduled(LogGenerator.MEM_INFO);
+        }
+
+        assertThat(mTemporaryFolder.getRoot().list()).hasLength(11);
+        assertThat(collector.getSaved()).hasSize(15);
+        collector.stop();
+    }
+
+    /** Tests that a failed collection does not stop later collections of the same generator. */
+    @Test
+    public void testCollectionAfterError() {
+        FakeDataCollector collector = new FakeDataCollector(
+                0, 0, MINUTE_MS, 0, LogRetentionPolicy.KEEP_ALL);
+        collector.start();
+
+        collector.failNextSave();
+        collector.runScheduled(LogGenerator.MEM_INFO);
+        collector.advance(MINUTE_MS);
+        collector.runScheduled(LogGenerator.MEM_INFO);
+
+        assertThat(collector.getSaved()).hasSize(2);
+        assertThat(mTemporaryFolder.getRoot().list()).hasLength(1);
+        collector.stop();
+    }
+
+    /** Tests that stopping does not block a running collection from finishing. */
+    @Test
+    public void testStopWhileCollecting() throws InterruptedException {
+        final FakeDataCollector collector = new FakeDataCollector(
+                0, 0, MINUTE_MS, 0, new LogRetentionPolicy(0, 10 * MINUTE_MS));
+        collector.start();
+        CountDownLatch release = collector.blockNextSave();
+        collector.runScheduledInBackground(LogGenerator.MEM_INFO);
+        collector.awaitSaving();
+
+        Thread stopper = new Thread(collector::stop);
+        stopper.start();
+        while (!collector.getExecutor(LogGenerator.MEM_INFO).isShutdown()) {
+            Thread.yield();
+        }
+        release.countDown();
+        stopper.join(STOP_JOIN_MS);
+
+        assertThat(stopper.isAlive()).isFalse();
+        assertThat(mTemporaryFolder.getRoot().list()).hasLength(1);
+    }
+
+    /** Tests that logs are gzipped as they are written when compression is enabled. */
+    @Test
+    public void testCompressedOutput() throws IOException {
+        DataCollector collector = new DataCollector(0, 0, 0, 0, 0, 0, 0, 0, 0,
+                mTemporaryFolder.getRoot(), InstrumentationRegistry.getInstrumentation(), true,
+                LogRetentionPolicy.KEEP_ALL);
+        collector.collect(LogGenerator.CPU_INFO);
+
+        File[] files = mTemporaryFolder.getRoot().listFiles();
+        assertThat(files).hasLength(1);
+        assertThat(files[0].getName()).endsWith(".txt.gz");
+        assertThat(LogGenerator.isLogFile(files[0].getName())).isTrue();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(files[0]))));
+        assertThat(reader.readLine()).isNotNull();
+        reader.close();
+    }
+
+    /** A {@link ScheduledThreadPoolExecutor} that records its periodic tasks without running. */
+    private static class RecordingExecutor extends ScheduledThreadPoolExecutor {
+        private final Map<Runnable, Long> mDelays = new HashMap<>();
+
+        RecordingExecutor(int threads) {
+            super(threads);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(
+                Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            assertThat(initialDelay).isEqualTo(delay);
+            mDelays.put(command, unit.toMillis(delay));
+            return null;
+        }
+    }
+
+    /**
+     * A {@link DataCollector} with a fake clock, whose generators write empty logs named by the
+     * fake clock, and whose periodic tasks are only run when asked.
+     */
+    private class FakeDataCollector extends DataCollector {
+        private final List<RecordingExecutor> mExecutors = new ArrayList<>();
+        private final List<LogGenerator> mSaved = new ArrayList<>();
+        private long mNowMs = TimeUnit.DAYS.toMillis(100);
+        private boolean mFailNextSave;
+        private final CountDownLatch mSaving = new CountDownLatch(1);
+        private CountDownLatch mRelease;
+
+        FakeDataCollector(long bugreportInterval, long graphicsInterval, long meminfoInterval,
+                long cpuinfoInterval, LogRetentionPolicy retentionPolicy) {
+            super(bugreportInterval, graphicsInterval, meminfoInterval, cpuinfoInterval, 0, 0, 0,
+                    0, 0, mTemporaryFolder.getRoot(), null, false, retentionPolicy);
+        }
+
+        void failNextSave() {
+            mFailNextSave = true;
+        }
+
+        /** Blocks the next save, ignoring interrupts, until the returned latch is released. */
+        CountDownLatch blockNextSave() {
+            mRelease = new CountDownLatch(1);
+            return mRelease;
+        }
+
+        void awaitSaving() throws InterruptedException {
+            mSaving.await();
+        }
+
+        void advance(long ms) {
+            mNowMs += ms;
+        }
+
+        List<LogGenerator> getSaved() {
+            return mSaved;
+        }
+
+        Map<LogGenerator, Long> getIntervals() {
+            Map<LogGenerator, Long> intervals = new HashMap<>();
+            for (RecordingExecutor executor : mExecutors) {
+                for (Map.Entry<Runnable, Long> entry : executor.mDelays.entrySet()) {
+                    intervals.put(getGenerator(entry.getKey()), entry.getValue());
+                }
+            }
+            return intervals;
+        }
+
+        RecordingExecutor getExecutor(LogGenerator generator) {
+            for (RecordingExecutor executor : mExecutors) {
+                for (Runnable task : executor.mDelays.keySet()) {
+                    if (getGenerator(task) == generator) {
+                        return executor;
+                    }
+                }
+            }
+            return null;
+        }
+
+        void runScheduled(LogGenerator generator) {
+            for (RecordingExecutor executor : mExecutors) {
+                for (Runnable task : executor.mDelays.keySet()) {
+                    if (getGenerator(task) == generator) {
+                        task.run();
+                    }
+                }
+            }
+        }
+
+        void runScheduledInBackground(LogGenerator generator) {
+            RecordingExecutor executor = getExecutor(generator);
+            for (Runnable task : executor.mDelays.keySet()) {
+                if (getGenerator(task) == generator) {
+                    executor.execute(task);
+                }
+            }
+        }
+
+        private LogGenerator getGenerator(Runnable task) {
+            return ((CollectTask) task).getGenerator();
+        }
+
+        @Override
+        ScheduledExecutorService createExecutor(int threads, String name) {
+            RecordingExecutor executor = new RecordingExecutor(threads);
+            mExecutors.add(executor);
+            return executor;
+        }
+
+        @Override
+        void save(LogGenerator generator) throws IOException {
+            mSaving.countDown();
+            if (mRelease != null) {
+                awaitUninterruptibly(mRelease);
+                mRelease = null;
+            }
+            mSaved.add(generator);
+            if (mFailNextSave) {
+                mFailNextSave = false;
+                throw new IllegalStateException("Failed to save " + generator);
+            }
+            File log = new File(mTemporaryFolder.getRoot(),
+                    String.format("cpuinfo-2019-01-01-00-%02d-%02d.txt",
+                            mNowMs / MINUTE_MS % 60, mNowMs / 1000 % 60));
+            new FileOutputStream(log).close();
+            log.setLastModified(mNowMs);
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return mNowMs;
+        }
+
+        private void awaitUninterruptibly(CountDownLatch latch) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.InstrumentationRegistry;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import junit.framework.TestSuite;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Unit tests for {@link DexTestRunner}. */
+@RunWith(JUnit4.class)
+public class DexTestRunnerTest {
+    private static final long TIMEOUT_MS = 100;
+    private static final long JOIN_MS = 5000;
+
+    private static final Set<Thread> sThreads = new HashSet<>();
+    private static volatile boolean sReleased;
+
+    private final List<junit.framework.Test> mErrors =
+            Collections.synchronizedList(new ArrayList<junit.framework.Test>());
+    private DexTestRunner mRunner;
+
+    @Before
+    public void setUp() {
+        sThreads.clear();
+        sReleased = false;
+        mRunner = newRunner(TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() {
+        sReleased = true;
+    }
+
+    private DexTestRunner newRunner(long timeoutMs) {
+        DexTestRunner runner = new DexTestRunner(
+                InstrumentationRegistry.getInstrumentation(),
+                Scheduler.sequential(1L),
+                Arrays.<String>asList(),
+                timeoutMs,
+                0);
+        runner.addTestListener(new TestListener() {
+            @Override
+            public void addError(junit.framework.Test test, Throwable t) {
+                mErrors.add(test);
+            }
+
+            @Override
+            public void addFailure(junit.framework.Test test, AssertionFailedError t) {}
+
+            @Override
+            public void endTest(junit.framework.Test test) {}
+
+            @Override
+            public void startTest(junit.framework.Test test) {}
+        });
+        return runner;
+    }
+
+    /**
+     * Tests that passing tests all run on the same worker thread, which is shut down after the
+     * suite.
+     */
+    @Test
+    public void testWorkerReused() throws InterruptedException {
+        mRunner.setTest(suite(new PassingTest(), new PassingTest(), new PassingTest()));
+        mRunner.runTest();
+
+        assertThat(sThreads).hasSize(1);
+        assertThat(mRunner.getCreatedThreadCount()).isEqualTo(1);
+        assertThat(mErrors).isEmpty();
+        Thread worker = recordedThreads().get(0);
+        worker.join(JOIN_MS);
+        assertThat(worker.isAlive()).isFalse();
+    }
+
+    /** Tests that tests which hang until interrupted leave no threads behind. */
+    @Test
+    public void testInterruptibleHangsDoNotLeak() throws InterruptedException {
+        mRunner.setTest(suite(new SleepingTest(), new SleepingTest(), new SleepingTest(),
+                new PassingTest()));
+        mRunner.runTest();
+
+        assertThat(mErrors).hasSize(3);
+        assertThat(mRunner.getCreatedThreadCount()).isEqualTo(4);
+        for (Thread thread : sThreads) {
+            thread.join(JOIN_MS);
+        }
+        assertThat(mRunner.getLeakedThreadCount()).isEqualTo(0);
+    }
+
+    /**
+     * Tests that tests which ignore interrupts are counted as leaked, only leak their own thread
+     * and do not block the tests after them.
+     */
+    @Test
+    public void testUninterruptibleHangsCounted() throws InterruptedException {
+        mRunner.setTest(suite(new SpinningTest(), new SpinningTest(), new PassingTest(),
+                new PassingTest()));
+        mRunner.runTest();
+
+        assertThat(mErrors).hasSize(2);
+        // One thread for each hung test, and one shared by the passing tests.
+        assertThat(mRunner.getCreatedThreadCount()).isEqualTo(3);
+        assertThat(sThreads).hasSize(3);
+        assertThat(mRunner.getLeakedThreadCount()).isEqualTo(2);
+
+        sReleased = true;
+        for (Thread thread : sThreads) {
+            thread.join(JOIN_MS);
+        }
+        assertThat(mRunner.getLeakedThreadCount()).isEqualTo(0);
+    }
+
+    /**
+     * Tests that an interrupt ends the suite, without running the later tests, and that the
+     * worker is shut down.
+     */
+    @Test
+    public void testInterruptEndsSuite() throws InterruptedException {
+        mRunner = newRunner(JOIN_MS);
+        mRunner.setTest(suite(new SleepingTest(), new PassingTest(), new PassingTest()));
+        final Thread runnerThread = Thread.currentThread();
+        Thread interrupter = new Thread(() -> {
+            while (recordedThreads().isEmpty()) {
+                Thread.yield();
+            }
+            runnerThread.interrupt();
+        });
+        interrupter.start();
+        mRunner.runTest();
+        // The runner keeps the interrupt, which is cleared before waiting here.
+        assertThat(Thread.interrupted()).isTrue();
+        interrupter.join();
+
+        assertThat(mErrors).hasSize(1);
+        assertThat(mRunner.getCreatedThreadCount()).isEqualTo(1);
+        List<Thread> threads = recordedThreads();
+        assertThat(threads).hasSize(1);
+        threads.get(0).join(JOIN_MS);
+        assertThat(threads.get(0).isAlive()).isFalse();
+    }
+
+    private static TestSuite suite(TestCase... tests) {
+        TestSuite suite = new TestSuite();
+        for (TestCase test : tests) {
+            suite.addTest(test);
+        }
+        return suite;
+    }
+
+    private static List<Thread> recordedThreads() {
+        synchronized (sThreads) {
+            return new ArrayList<>(sThreads);
+        }
+    }
+
+    private static void recordThread() {
+        synchronized (sThreads) {
+            sThreads.add(Thread.currentThread());
+        }
+    }
+
+    /** A test that passes immediately. */
+    public static class PassingTest extends TestCase {
+        public PassingTest() {
+            super("testPass");
+        }
+
+        public void testPass() {
+            recordThread();
+        }
+    }
+
+    /** A test that hangs until it is interrupted. */
+    public static class SleepingTest extends TestCase {
+        public SleepingTest() {
+            super("testSleep");
+        }
+
+        public void testSleep() {
+            recordThread();
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                // The runner gave up on this test.
+            }
+        }
+    }
+
+    /** A test that ignores interrupts and hangs until released. */
+    public static class SpinningTest extends TestCase {
+        public SpinningTest() {
+            super("testSpin");
+        }
+
+        public void testSpin() {
+            recordThread();
+            while (!sReleased) {
+                Thread.yield();
+            }
+        }
+    }
+}
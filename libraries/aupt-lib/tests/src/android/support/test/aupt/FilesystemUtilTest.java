@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/** Unit tests for {@link FilesystemUtil}. */
+@RunWith(JUnit4.class)
+public class FilesystemUtilTest {
+    // Not a multiple of the pipe buffer size, so the last read is partial.
+    private static final int LARGE_SIZE = 16 * FilesystemUtil.PIPE_BUFFER_SIZE + 12345;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /** Tests that a large stream is piped to a file byte for byte. */
+    @Test
+    public void testPipeStreamToFile() throws IOException {
+        byte[] contents = randomBytes(LARGE_SIZE);
+        File file = mTemporaryFolder.newFile("out");
+
+        OutputStream out = new FileOutputStream(file);
+        assertThat(FilesystemUtil.pipe(new ByteArrayInputStream(contents), out))
+                .isEqualTo(LARGE_SIZE);
+        out.close();
+
+        assertThat(Arrays.equals(read(new FileInputStream(file)), contents)).isTrue();
+    }
+
+    /** Tests that a large file is piped to a stream byte for byte. */
+    @Test
+    public void testPipeFileToStream() throws IOException {
+        byte[] contents = randomBytes(LARGE_SIZE);
+        File file = write(contents);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(FilesystemUtil.pipe(new FileInputStream(file), out)).isEqualTo(LARGE_SIZE);
+
+        assertThat(Arrays.equals(out.toByteArray(), contents)).isTrue();
+    }
+
+    /** Tests that a large file is piped to a file, channel to channel, byte for byte. */
+    @Test
+    public void testPipeFileToFile() throws IOException {
+        byte[] contents = randomBytes(LARGE_SIZE);
+        File file = write(contents);
+        File copy = mTemporaryFolder.newFile("copy");
+
+        OutputStream out = new FileOutputStream(copy);
+        assertThat(FilesystemUtil.pipe(new FileInputStream(file), out)).isEqualTo(LARGE_SIZE);
+        out.close();
+
+        assertThat(Arrays.equals(read(new FileInputStream(copy)), contents)).isTrue();
+    }
+
+    /** Tests that a large stream is gzipped on the fly byte for byte. */
+    @Test
+    public void testPipeCompressed() throws IOException {
+        byte[] contents = randomBytes(LARGE_SIZE);
+        File file = new File(mTemporaryFolder.getRoot(), "out" + FilesystemUtil.GZIP_SUFFIX);
+
+        OutputStream out = FilesystemUtil.openOutput(file, true);
+        FilesystemUtil.pipe(new FileInputStream(write(contents)), out);
+        out.close();
+
+        byte[] decompressed = read(new GZIPInputStream(new FileInputStream(file)));
+        assertThat(Arrays.equals(decompressed, contents)).isTrue();
+    }
+
+    /** Tests that an empty stream produces an empty file. */
+    @Test
+    public void testPipeEmpty() throws IOException {
+        File file = mTemporaryFolder.newFile("out");
+
+        OutputStream out = new FileOutputStream(file);
+        assertThat(FilesystemUtil.pipe(new ByteArrayInputStream(new byte[0]), out)).isEqualTo(0);
+        out.close();
+
+        assertThat(file.length()).isEqualTo(0);
+    }
+
+    private File write(byte[] contents) throws IOException {
+        File file = File.createTempFile("input", null, mTemporaryFolder.getRoot());
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(contents);
+        out.close();
+        return file;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
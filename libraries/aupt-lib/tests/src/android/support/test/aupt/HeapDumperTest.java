@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/** Unit tests for {@link HeapDumper}. */
+@RunWith(JUnit4.class)
+public class HeapDumperTest {
+    private static final long STABLE_MS = 3000;
+    private static final long TIMEOUT_MS = 60000;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /** Tests that completion waits for the file to stop growing for the stable period. */
+    @Test
+    public void testWaitsForGrowthToStop() throws Exception {
+        File file = mTemporaryFolder.newFile("dump");
+        // The file grows on each of the first 10 polls.
+        GrowingHeapDumper dumper = new GrowingHeapDumper(file, 10);
+
+        assertThat(dumper.waitForCompletion(file, STABLE_MS, TIMEOUT_MS)).isEqualTo(10 * 1024);
+        long stablePolls = STABLE_MS / HeapDumper.POLL_INTERVAL_MS;
+        assertThat(dumper.mPolls).isEqualTo(10 + stablePolls);
+    }
+
+    /** Tests that an empty file is not mistaken for a complete dump. */
+    @Test
+    public void testWaitsForDumpToStart() throws Exception {
+        File file = mTemporaryFolder.newFile("dump");
+        // Nothing is written for the first 20 polls, longer than the stable period.
+        GrowingHeapDumper dumper = new GrowingHeapDumper(file, 25);
+        dumper.mDelayPolls = 20;
+
+        assertThat(dumper.waitForCompletion(file, STABLE_MS, TIMEOUT_MS)).isEqualTo(5 * 1024);
+    }
+
+    /** Tests that a file that never stops growing times out. */
+    @Test
+    public void testTimeout() throws Exception {
+        File file = mTemporaryFolder.newFile("dump");
+        GrowingHeapDumper dumper = new GrowingHeapDumper(file, Integer.MAX_VALUE);
+
+        try {
+            dumper.waitForCompletion(file, STABLE_MS, TIMEOUT_MS);
+            Assert.fail("A file that keeps growing should time out.");
+        } catch (IOException e) {
+            assertThat(e).hasMessageThat().contains("did not stop growing");
+        }
+        assertThat(dumper.mNowMs).isAtMost(TIMEOUT_MS + HeapDumper.POLL_INTERVAL_MS);
+    }
+
+    /** Tests that a dump is copied unchanged, or gzipped. */
+    @Test
+    public void testCopy() throws IOException {
+        byte[] contents = new byte[300 * 1024];
+        new Random(0).nextBytes(contents);
+        File from = mTemporaryFolder.newFile("dump");
+        FileOutputStream out = new FileOutputStream(from);
+        out.write(contents);
+        out.close();
+
+        File plain = new File(mTemporaryFolder.getRoot(), "plain");
+        assertThat(HeapDumper.copy(from, plain, false)).isEqualTo(contents.length);
+        assertThat(Arrays.equals(read(new FileInputStream(plain)), contents)).isTrue();
+
+        File gzipped = new File(mTemporaryFolder.getRoot(), "gzipped");
+        assertThat(HeapDumper.copy(from, gzipped, true)).isEqualTo(gzipped.length());
+        assertThat(Arrays.equals(
+                read(new GZIPInputStream(new FileInputStream(gzipped))), contents)).isTrue();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /** A {@link HeapDumper} with a fake clock, whose file grows by 1 KB on each poll. */
+    private static class GrowingHeapDumper extends HeapDumper {
+        private final File mFile;
+        private final int mGrowPolls;
+        private int mDelayPolls;
+        private int mPolls;
+        private long mNowMs;
+
+        GrowingHeapDumper(File file, int growPolls) {
+            super(null, file.getParentFile(), 1, 0, 0, false);
+            mFile = file;
+            mGrowPolls = growPolls;
+        }
+
+        @Override
+        long uptimeMillis() {
+            return mNowMs;
+        }
+
+        @Override
+        void sleep(long ms) throws InterruptedException {
+            mNowMs += ms;
+            mPolls++;
+            if (mPolls > mDelayPolls && mPolls <= mGrowPolls) {
+                try {
+                    FileOutputStream out = new FileOutputStream(mFile, true);
+                    out.write(new byte[1024]);
+                    out.close();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+    }
+}
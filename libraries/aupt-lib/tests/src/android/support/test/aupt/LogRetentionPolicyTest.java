@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link LogRetentionPolicy}. */
+@RunWith(JUnit4.class)
+public class LogRetentionPolicyTest {
+    private static final long NOW_MS = TimeUnit.DAYS.toMillis(100);
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /** Tests that logs older than the maximum age are deleted. */
+    @Test
+    public void testMaxAge() throws IOException {
+        File oldest = createLog("cpuinfo-2019-01-01-00-00-00.txt", 10, NOW_MS - 3 * HOUR_MS);
+        File old = createLog("trace-2019-01-01-01-00-00.txt.gz", 10, NOW_MS - 2 * HOUR_MS);
+        File recent = createLog("cpuinfo-2019-01-01-02-00-00.txt", 10, NOW_MS - HOUR_MS / 2);
+
+        LogRetentionPolicy policy = new LogRetentionPolicy(0, HOUR_MS);
+        assertThat(policy.apply(mTemporaryFolder.getRoot(), NOW_MS))
+                .containsExactly(oldest, old)
+                .inOrder();
+        assertThat(recent.exists()).isTrue();
+    }
+
+    /** Tests that the oldest logs are deleted until the total size is within the maximum. */
+    @Test
+    public void testMaxSize() throws IOException {
+        File first = createLog("compact-meminfo-2019-01-01-00-00-00.txt", 100, NOW_MS - 3);
+        File second = createLog("graphics-2019-01-01-00-00-01.txt", 100, NOW_MS - 2);
+        File third = createLog("ion-audio-2019-01-01-00-00-02.txt", 100, NOW_MS - 1);
+
+        LogRetentionPolicy policy = new LogRetentionPolicy(250, 0);
+        assertThat(policy.apply(mTemporaryFolder.getRoot(), NOW_MS)).containsExactly(first);
+        assertThat(second.exists()).isTrue();
+        assertThat(third.exists()).isTrue();
+    }
+
+    /** Tests that files not written by a log generator are never deleted. */
+    @Test
+    public void testKeepsOtherFiles() throws IOException {
+        File summary = createLog("memory-health.txt", 1000, 0);
+        File details = createLog("memory-health-details.txt", 1000, 0);
+        File log = createLog("pagetypeinfo-2019-01-01-00-00-00.txt", 1000, 0);
+
+        LogRetentionPolicy policy = new LogRetentionPolicy(1, HOUR_MS);
+        assertThat(policy.apply(mTemporaryFolder.getRoot(), NOW_MS)).containsExactly(log);
+        assertThat(summary.exists()).isTrue();
+        assertThat(details.exists()).isTrue();
+    }
+
+    /** Tests that nothing is deleted when the policy is disabled. */
+    @Test
+    public void testKeepAll() throws IOException {
+        File log = createLog("cpuinfo-2019-01-01-00-00-00.txt", 1000, 0);
+        assertThat(LogRetentionPolicy.KEEP_ALL.apply(mTemporaryFolder.getRoot(), NOW_MS))
+                .isEmpty();
+        assertThat(log.exists()).isTrue();
+    }
+
+    private File createLog(String name, int size, long lastModifiedMs) throws IOException {
+        File file = mTemporaryFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[size]);
+        out.close();
+        assertThat(file.setLastModified(lastModifiedMs)).isTrue();
+        return file;
+    }
+}
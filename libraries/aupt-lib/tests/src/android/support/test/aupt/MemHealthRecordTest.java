@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.support.test.aupt.MemHealthRecord.History;
+import android.support.test.aupt.MemHealthRecord.Metric;
+import android.support.test.aupt.MemHealthRecord.Series;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link MemHealthRecord}. */
+@RunWith(JUnit4.class)
+public class MemHealthRecordTest {
+    // Abridged from "dumpsys meminfo com.android.chrome".
+    private static final String MEMINFO =
+            "Applications Memory Usage (in Kilobytes):\n"
+                    + "** MEMINFO in pid 3301 [com.android.chrome] **\n"
+                    + "                   Pss  Private  Private  SwapPss     Heap     Heap\n"
+                    + "                 Total    Dirty    Clean    Dirty     Size    Alloc\n"
+                    + "                ------   ------   ------   ------   ------   ------\n"
+                    + "  Native Heap    21308    21240        0        0    36864    30427\n"
+                    + "  Dalvik Heap     4523     4396        0        0     8467     4234\n"
+                    + "        TOTAL    61275    37912    12184        0    45331    34661\n"
+                    + "\n"
+                    + " App Summary\n"
+                    + "                       Pss(KB)\n"
+                    + "                        ------\n"
+                    + "           Java Heap:     6252\n"
+                    + "         Native Heap:    21240\n"
+                    + "                Code:    15668\n"
+                    + "               Stack:      744\n"
+                    + "            Graphics:     2676\n"
+                    + "       Private Other:     3516\n"
+                    + "              System:    11179\n"
+                    + "\n"
+                    + "               TOTAL:    61275       TOTAL SWAP PSS:        0\n";
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /** Tests that every metric is parsed from the meminfo output. */
+    @Test
+    public void testParse() {
+        MemHealthRecord record = MemHealthRecord.parse("com.android.chrome", MEMINFO, 1000, true);
+        assertThat(record.getProcName()).isEqualTo("com.android.chrome");
+        assertThat(record.getTimeMs()).isEqualTo(1000);
+        assertThat(record.isInForeground()).isTrue();
+        assertThat(record.get(Metric.NATIVE_HEAP)).isEqualTo(21240);
+        assertThat(record.get(Metric.DALVIK_HEAP)).isEqualTo(4396);
+        assertThat(record.get(Metric.PSS)).isEqualTo(61275);
+        assertThat(record.get(Metric.SUMMARY_JAVA_HEAP)).isEqualTo(6252);
+        assertThat(record.get(Metric.SUMMARY_NATIVE_HEAP)).isEqualTo(21240);
+        assertThat(record.get(Metric.SUMMARY_CODE)).isEqualTo(15668);
+        assertThat(record.get(Metric.SUMMARY_STACK)).isEqualTo(744);
+        assertThat(record.get(Metric.SUMMARY_GRAPHICS)).isEqualTo(2676);
+        assertThat(record.get(Metric.SUMMARY_OTHER)).isEqualTo(3516);
+        assertThat(record.get(Metric.SUMMARY_SYSTEM)).isEqualTo(11179);
+        assertThat(record.get(Metric.SUMMARY_OVERALL_PSS)).isEqualTo(61275);
+    }
+
+    /** Tests that no record is parsed for a process that is not running. */
+    @Test
+    public void testParseMissingProcess() {
+        String meminfo = "No process found for: com.android.chrome\n";
+        assertThat(MemHealthRecord.parse("com.android.chrome", meminfo, 0, true)).isNull();
+    }
+
+    /** Tests that the series summaries match those computed over all of the records. */
+    @Test
+    public void testSeriesSummaries() {
+        History history = new History();
+        long[] pss = {100, 300, 200};
+        for (int i = 0; i < 40; i++) {
+            history.addAll(Arrays.asList(
+                    new MemHealthRecord("proc", i, 0, 0, pss[i % 3], true),
+                    new MemHealthRecord("proc", i, 0, 0, 7, false)));
+        }
+        Series foreground = history.get("proc", true);
+        assertThat(foreground.getCount()).isEqualTo(40);
+        assertThat(foreground.getMax(Metric.PSS)).isEqualTo(300);
+        // 14 * 100 + 13 * 300 + 13 * 200 = 7900
+        assertThat(foreground.getAverage(Metric.PSS)).isEqualTo(7900 / 40);
+        assertThat(foreground.get(Metric.PSS, 39)).isEqualTo(100);
+        assertThat(foreground.getTimeMs(39)).isEqualTo(39);
+        assertThat(history.get("proc", false).getAverage(Metric.PSS)).isEqualTo(7);
+        assertThat(history.get("other", true)).isNull();
+    }
+
+    /** Tests that the CSV header is written once and each row has a value for every column. */
+    @Test
+    public void testAppendCsv() throws IOException {
+        File file = new File(mTemporaryFolder.getRoot(), "memory-health-details.txt");
+        MemHealthRecord.appendCsv(
+                Arrays.asList(new MemHealthRecord("proc", 1, 2, 3, 4, true)), file.getPath());
+        MemHealthRecord.appendCsv(
+                Arrays.asList(new MemHealthRecord("proc", 5, 6, 7, 8, false)), file.getPath());
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertThat(lines)
+                .containsExactly(
+                        MemHealthRecord.CSV_HEADER,
+                        "proc,1,3,2,4,foreground",
+                        "proc,5,7,6,8,background")
+                .inOrder();
+    }
+
+    /** Tests that the summary file is rewritten with the summary of the whole run. */
+    @Test
+    public void testSaveVerbose() throws IOException {
+        File file = new File(mTemporaryFolder.getRoot(), "memory-health.txt");
+        History history = new History();
+        history.addAll(Arrays.asList(new MemHealthRecord("proc", 1, 10, 20, 30, true)));
+        history.saveVerbose(file.getPath());
+        history.addAll(Arrays.asList(new MemHealthRecord("proc", 2, 30, 40, 50, true)));
+        history.saveVerbose(file.getPath());
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertThat(lines.subList(0, 9))
+                .containsExactly(
+                        "Foreground",
+                        "proc",
+                        "Average Native Heap: 30",
+                        "Average Dalvik Heap: 20",
+                        "Average PSS: 40",
+                        "Peak Native Heap: 40",
+                        "Peak Dalvik Heap: 30",
+                        "Peak PSS: 50",
+                        "Count 2")
+                .inOrder();
+        assertThat(lines.get(lines.size() - 1)).isEqualTo("Background");
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.ActivityManager.RunningAppProcessInfo;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Unit tests for {@link ProcessStatusTracker}. */
+@RunWith(JUnit4.class)
+public class ProcessStatusTrackerTest {
+    private static final String[] TRACKED = {
+        "com.android.chrome",
+        "com.google.android.gms",
+        "com.android.systemui",
+        "com.android.not.running",
+    };
+
+    // Captured from "ps -A -o PID,NAME" on a device with toybox ps.
+    private static final String PS_PID_NAME_OUTPUT =
+            "  PID NAME\n"
+                    + "    1 init\n"
+                    + "  612 system_server\n"
+                    + " 1043 com.android.systemui\n"
+                    + " 2210 com.google.android.gms\n"
+                    + " 2215 com.google.android.gms.persistent\n"
+                    + " 3301 com.android.chrome\n"
+                    + " 3350 com.android.chrome:sandboxed_process0\n";
+
+    // Captured from "ps" on a device with toolbox ps, listing the same processes.
+    private static final String PS_OUTPUT =
+            "USER      PID   PPID  VSIZE  RSS   WCHAN              PC  NAME\n"
+                    + "root      1     0     10632  2228  SyS_epoll_ 0000000000 S init\n"
+                    + "system    612   525   2260036 168360 SyS_epoll_ 0000000000 S system_server\n"
+                    + "u0_a23    1043  525   1804524 130016 SyS_epoll_ 0000000000 S "
+                    + "com.android.systemui\n"
+                    + "u0_a8     2210  525   1721344 87236 SyS_epoll_ 0000000000 S "
+                    + "com.google.android.gms\n"
+                    + "u0_a8     2215  525   1743012 95312 SyS_epoll_ 0000000000 S "
+                    + "com.google.android.gms.persistent\n"
+                    + "u0_a70    3301  525   1699216 110468 SyS_epoll_ 0000000000 S "
+                    + "com.android.chrome\n"
+                    + "u0_i1     3350  525   1512840 61284 SyS_epoll_ 0000000000 S "
+                    + "com.android.chrome:sandboxed_process0\n";
+
+    /** Tests that all tracked processes are found with a single ps invocation. */
+    @Test
+    public void testSingleShellCommand() {
+        FakeProcessStatusTracker tracker = new FakeProcessStatusTracker(TRACKED);
+        tracker.setOutput(ProcessStatusTracker.PS_PID_NAME_COMMAND, PS_PID_NAME_OUTPUT);
+        tracker.getRunningAppProcesses();
+        assertThat(tracker.getCommands())
+                .containsExactly(ProcessStatusTracker.PS_PID_NAME_COMMAND);
+    }
+
+    /** Tests that the snapshot results match running ps once per tracked process. */
+    @Test
+    public void testMatchesPerProcessResults() {
+        FakeProcessStatusTracker tracker = new FakeProcessStatusTracker(TRACKED);
+        tracker.setOutput(ProcessStatusTracker.PS_PID_NAME_COMMAND, PS_PID_NAME_OUTPUT);
+        assertThat(describe(tracker.getRunningAppProcesses()))
+                .containsExactlyElementsIn(getPerProcessResults(PS_OUTPUT));
+        assertThat(describe(tracker.getRunningAppProcesses()))
+                .containsExactly(
+                        "com.android.chrome:3301",
+                        "com.google.android.gms:2210",
+                        "com.android.systemui:1043");
+    }
+
+    /** Tests that the full ps format is used when ps does not support the options. */
+    @Test
+    public void testFallbackToFullFormat() {
+        FakeProcessStatusTracker tracker = new FakeProcessStatusTracker(TRACKED);
+        tracker.setOutput(ProcessStatusTracker.PS_PID_NAME_COMMAND, "bad -A\n");
+        tracker.setOutput(ProcessStatusTracker.PS_COMMAND, PS_OUTPUT);
+        assertThat(describe(tracker.getRunningAppProcesses()))
+                .containsExactlyElementsIn(getPerProcessResults(PS_OUTPUT));
+        assertThat(tracker.getCommands())
+                .containsExactly(
+                        ProcessStatusTracker.PS_PID_NAME_COMMAND, ProcessStatusTracker.PS_COMMAND)
+                .inOrder();
+    }
+
+    /** Tests that processes sharing a name are all reported, as with per-process ps. */
+    @Test
+    public void testDuplicateProcessNames() {
+        String output = PS_PID_NAME_OUTPUT + " 4000 com.android.chrome\n";
+        String legacyOutput =
+                PS_OUTPUT + "u0_a70    4000  525   1699216 110468 SyS_epoll_ 0000000000 S "
+                        + "com.android.chrome\n";
+        FakeProcessStatusTracker tracker = new FakeProcessStatusTracker(TRACKED);
+        tracker.setOutput(ProcessStatusTracker.PS_PID_NAME_COMMAND, output);
+        assertThat(describe(tracker.getRunningAppProcesses()))
+                .containsExactlyElementsIn(getPerProcessResults(legacyOutput));
+    }
+
+    /** Tests that a restart of a tracked process is detected from the snapshots. */
+    @Test
+    public void testRestartDetected() {
+        FakeProcessStatusTracker tracker = new FakeProcessStatusTracker(TRACKED);
+        tracker.setOutput(ProcessStatusTracker.PS_PID_NAME_COMMAND, PS_PID_NAME_OUTPUT);
+        tracker.setAllowProcessTracking("com.android.chrome");
+        tracker.verifyRunningProcess();
+        tracker.setOutput(
+                ProcessStatusTracker.PS_PID_NAME_COMMAND,
+                PS_PID_NAME_OUTPUT.replace(" 3301 ", " 5000 "));
+        try {
+            tracker.verifyRunningProcess();
+            Assert.fail("A restarted process should terminate the run.");
+        } catch (AuptTerminator e) {
+            assertThat(e).hasMessageThat().contains("3301 -> 5000");
+        }
+    }
+
+    /** Tests that the death of a tracked process is detected from the snapshots. */
+    @Test
+    public void testDeathDetected() {
+        FakeProcessStatusTracker tracker = new FakeProcessStatusTracker(TRACKED);
+        tracker.setOutput(ProcessStatusTracker.PS_PID_NAME_COMMAND, PS_PID_NAME_OUTPUT);
+        tracker.setAllowProcessTracking("com.android.systemui");
+        tracker.setOutput(
+                ProcessStatusTracker.PS_PID_NAME_COMMAND,
+                PS_PID_NAME_OUTPUT.replace(" 1043 com.android.systemui\n", ""));
+        try {
+            tracker.verifyRunningProcess();
+            Assert.fail("A dead process should terminate the run.");
+        } catch (AuptTerminator e) {
+            assertThat(e).hasMessageThat().contains("com.android.systemui has died");
+        }
+    }
+
+    /** Returns "name:pid" for each of the {@code processes}. */
+    private static List<String> describe(List<RunningAppProcessInfo> processes) {
+        List<String> results = new ArrayList<>();
+        for (RunningAppProcessInfo info : processes) {
+            results.add(info.processName + ":" + info.pid);
+        }
+        return results;
+    }
+
+    /**
+     * Returns "name:pid" for each of the tracked processes found by parsing the full {@code
+     * psOutput} once per process, as the tracker used to.
+     */
+    private static List<String> getPerProcessResults(String psOutput) {
+        Pattern pattern =
+                Pattern.compile(
+                        "\\w+\\s+(\\d+)\\s+\\w+\\s+\\d+\\s+\\d+\\s+\\w+\\s+[0-9a-f]+\\s+\\w+"
+                                + "\\s+(.+)");
+        List<String> results = new ArrayList<>();
+        for (String proc : TRACKED) {
+            for (String line : psOutput.split("\n")) {
+                Matcher matcher = pattern.matcher(line);
+                if (matcher.matches() && matcher.group(2).equals(proc)) {
+                    results.add(proc + ":" + Integer.valueOf(matcher.group(1)));
+                }
+            }
+        }
+        return results;
+    }
+
+    /** A {@link ProcessStatusTracker} that returns canned shell command output. */
+    private static class FakeProcessStatusTracker extends ProcessStatusTracker {
+        private final Map<String, String> mOutputs = new HashMap<>();
+        private final List<String> mCommands = new ArrayList<>();
+
+        FakeProcessStatusTracker(String[] processes) {
+            super(processes);
+        }
+
+        void setOutput(String command, String output) {
+            mOutputs.put(command, output);
+        }
+
+        List<String> getCommands() {
+            return mCommands;
+        }
+
+        @Override
+        public BufferedReader executeShellCommand(String command) {
+            mCommands.add(command);
+            String output = mOutputs.get(command);
+            return new BufferedReader(new StringReader(output == null ? "" : output));
+        }
+    }
+}
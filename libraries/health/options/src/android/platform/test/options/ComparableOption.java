@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.option;
+
+/**
+ * An option whose values are ordered and may be constrained to an inclusive range, for example:
+ *
+ * <pre>
+ * @Rule public IntegerOption iterations = new IntegerOption("iterations").setRange(1, 100);
+ * </pre>
+ */
+public abstract class ComparableOption<T extends Comparable<T>> extends TestOption<T> {
+    private T mMin;
+    private T mMax;
+
+    public ComparableOption(String optionName) {
+        super(optionName);
+    }
+
+    /** Sets the inclusive range of allowed values. Either bound may be null to leave it open. */
+    public <S extends ComparableOption<T>> S setRange(T min, T max) {
+        if (min != null && max != null && min.compareTo(max) > 0) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid range [%s, %s] for option %s.", min, max, this));
+        }
+        mMin = min;
+        mMax = max;
+        return (S) this;
+    }
+
+    @Override
+    protected void validate(T value) {
+        if ((mMin != null && value.compareTo(mMin) < 0)
+                || (mMax != null && value.compareTo(mMax) > 0)) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "%s is out of range [%s, %s].",
+                            value,
+                            mMin == null ? "-inf" : mMin,
+                            mMax == null ? "inf" : mMax));
+        }
+    }
+}
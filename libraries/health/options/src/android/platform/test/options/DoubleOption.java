@@ -16,7 +16,7 @@
 package android.platform.test.option;
 
 /** A double option for a scenario. */
-public class DoubleOption extends TestOption<Double> {
+public class DoubleOption extends ComparableOption<Double> {
     public DoubleOption(String optionName) {
         super(optionName);
     }
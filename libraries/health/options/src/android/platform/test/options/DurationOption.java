@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.option;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A duration option for a scenario, in milliseconds. Values are a number with an optional unit of
+ * "ms", "s", "m", "h" or "d", e.g. "200ms" or "5s"; a bare number is in milliseconds.
+ */
+public class DurationOption extends ComparableOption<Long> {
+    private static final Pattern DURATION_PATTERN =
+            Pattern.compile("^\\s*(\\d+)\\s*(ms|s|m|h|d)?\\s*$");
+
+    public DurationOption(String optionName) {
+        super(optionName);
+    }
+
+    @Override
+    protected Long parseValueFromString(String value) {
+        Matcher matcher = DURATION_PATTERN.matcher(value);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "\"%s\" is not a duration such as \"200ms\", \"5s\" or \"1m\".",
+                            value));
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2) == null ? "ms" : matcher.group(2);
+        switch (unit) {
+            case "s":
+                return TimeUnit.SECONDS.toMillis(amount);
+            case "m":
+                return TimeUnit.MINUTES.toMillis(amount);
+            case "h":
+                return TimeUnit.HOURS.toMillis(amount);
+            case "d":
+                return TimeUnit.DAYS.toMillis(amount);
+            default:
+                return amount;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.option;
+
+import java.util.Arrays;
+
+/** An enum option for a scenario, whose values are matched to constant names ignoring case. */
+public class EnumOption<E extends Enum<E>> extends TestOption<E> {
+    private final Class<E> mEnumClass;
+
+    public EnumOption(String optionName, Class<E> enumClass) {
+        super(optionName);
+        mEnumClass = enumClass;
+    }
+
+    @Override
+    protected Object getParserKey() {
+        return mEnumClass;
+    }
+
+    @Override
+    protected E parseValueFromString(String value) {
+        for (E constant : mEnumClass.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value.trim())) {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException(
+                String.format(
+                        "\"%s\" is not one of %s.",
+                        value, Arrays.toString(mEnumClass.getEnumConstants())));
+    }
+}
@@ -16,7 +16,7 @@
 package android.platform.test.option;
 
 /** An integer option for a scenario. */
-public class IntegerOption extends TestOption<Integer> {
+public class IntegerOption extends ComparableOption<Integer> {
     public IntegerOption(String optionName) {
         super(optionName);
     }
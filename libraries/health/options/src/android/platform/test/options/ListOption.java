@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.option;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * A comma-separated list option for a scenario, whose elements are parsed by the provided function,
+ * for example:
+ *
+ * <pre>
+ * @Rule public ListOption<Integer> sizes = new ListOption<>("sizes", Integer::valueOf);
+ * </pre>
+ *
+ * <p>The parsed list is unmodifiable. An empty argument is an empty list.
+ */
+public class ListOption<T> extends TestOption<List<T>> {
+    private static final String SEPARATOR = ",";
+
+    private final Function<String, T> mElementParser;
+
+    public ListOption(String optionName, Function<String, T> elementParser) {
+        super(optionName);
+        mElementParser = elementParser;
+    }
+
+    @Override
+    protected Object getParserKey() {
+        return mElementParser;
+    }
+
+    @Override
+    protected List<T> parseValueFromString(String value) {
+        List<T> elements = new ArrayList<>();
+        if (value.trim().isEmpty()) {
+            return Collections.unmodifiableList(elements);
+        }
+        String[] parts = value.split(Pattern.quote(SEPARATOR), -1);
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                elements.add(mElementParser.apply(parts[i].trim()));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(
+                        String.format(
+                                "Element %d \"%s\" is invalid: %s", i, parts[i], e.getMessage()),
+                        e);
+            }
+        }
+        return Collections.unmodifiableList(elements);
+    }
+}
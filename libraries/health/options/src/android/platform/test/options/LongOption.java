@@ -16,7 +16,7 @@
 package android.platform.test.option;
 
 /** A long option for a scenario. */
-public class LongOption extends TestOption<Long> {
+public class LongOption extends ComparableOption<Long> {
     public LongOption(String optionName) {
         super(optionName);
     }
@@ -23,6 +23,11 @@ import org.junit.runner.Description;
 import org.junit.rules.TestRule;
 import org.junit.runners.model.Statement;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A base class whose implementations encompass options for a scenario test.
  *
@@ -40,8 +45,15 @@ import org.junit.runners.model.Statement;
  *
  * <p>To supply value for the above option, use {@code -e sample-option some_value} in the
  * instrumentation command.
+ *
+ * <p>Arguments are fixed for an instrumentation run, so each distinct argument value is parsed once
+ * per option type, parser and name and the parsed value is shared by every later test. Parsed
+ * values must therefore be immutable.
  */
 public abstract class TestOption<T> implements TestRule {
+    // Parsed values keyed by option type, parser key, option name and argument value.
+    private static final Map<List<Object>, Object> sParsedValues = new ConcurrentHashMap<>();
+
     private String mOptionName;
     private T mDefaultValue;
     private boolean mIsRequired;
@@ -68,13 +80,15 @@ public abstract class TestOption<T> implements TestRule {
                     mValue = mDefaultValue;
                 } else {
                     // All `am instrument -e` arguments are provided as Strings.
+                    String argument = arguments.getString(mOptionName);
                     try {
-                        mValue = parseValueFromString(arguments.getString(mOptionName));
+                        mValue = getParsedValue(argument);
+                        validate(mValue);
                     } catch (Exception e) {
                         throw new RuntimeException(
                                 String.format(
-                                        "Error parsing option %s for test %s.",
-                                        TestOption.this, description),
+                                        "Error parsing option %s with value \"%s\" for test %s: %s",
+                                        TestOption.this, argument, description, e.getMessage()),
                                 e);
                     }
                 }
@@ -133,6 +147,43 @@ public abstract class TestOption<T> implements TestRule {
      */
     protected abstract T parseValueFromString(String value);
 
+    /**
+     * Throws an {@link IllegalArgumentException} describing why {@code value} is not allowed. All
+     * values are allowed by default.
+     */
+    protected void validate(T value) {}
+
+    /**
+     * Returns what, besides the option type, determines how arguments are parsed, e.g. the enum
+     * class of an {@link EnumOption}. Options of the same type and name only share parsed values
+     * if their parser keys are equal. Returns null by default.
+     */
+    protected Object getParserKey() {
+        return null;
+    }
+
+    /** Returns the parsed {@code argument}, parsing it only if it has not been parsed before. */
+    @SuppressWarnings("unchecked")
+    private T getParsedValue(String argument) {
+        List<Object> key = Arrays.asList(getClass(), getParserKey(), mOptionName, argument);
+        Object value = sParsedValues.get(key);
+        if (value == null) {
+            value = parseValueFromString(argument);
+            if (value != null) {
+                sParsedValues.put(key, value);
+            }
+        }
+        return (T) value;
+    }
+
+    /**
+     * Forgets the values parsed so far. Runners which change the instrumentation arguments between
+     * tests call this once the changed arguments are no longer used.
+     */
+    public static void clearParsedValues() {
+        sParsedValues.clear();
+    }
+
     @VisibleForTesting
     Bundle getArguments() {
         return InstrumentationRegistry.getArguments();
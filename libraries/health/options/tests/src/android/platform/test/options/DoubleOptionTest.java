@@ -84,4 +84,38 @@ public class DoubleOptionTest {
         Statement withOption = option.apply(testStatement, Description.EMPTY);
         withOption.evaluate();
     }
+
+    /** Test that a value within the range is accepted. */
+    @Test
+    public void testRange_valid() throws Throwable {
+        TestableDoubleOption option = new TestableDoubleOption(OPTION_NAME).setRange(0.0, 1.0);
+        option.stubValue("0.5");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Double.valueOf("0.5"), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option throws for a value outside of the range. */
+    @Test
+    public void testRange_outOfRange() throws Throwable {
+        mThrown.expectMessage("out of range");
+
+        TestableDoubleOption option = new TestableDoubleOption(OPTION_NAME).setRange(0.0, 1.0);
+        option.stubValue("1.5");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        option.get();
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.option;
+
+import android.os.Bundle;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/** Unit tests for {@link DurationOption}. */
+public class DurationOptionTest {
+    @Rule public ExpectedException mThrown = ExpectedException.none();
+
+    private static final String OPTION_NAME = "option";
+
+    private static class TestableDurationOption extends DurationOption {
+        private Bundle mArguments = new Bundle();
+        private String mName;
+
+        public TestableDurationOption(String name) {
+            super(name);
+            mName = name;
+        }
+
+        @Override
+        Bundle getArguments() {
+            return mArguments;
+        }
+
+        public void stubValue(String value) {
+            mArguments.putString(mName, value);
+        }
+    }
+
+    /** Test that a duration in milliseconds is parsed to milliseconds. */
+    @Test
+    public void testParsing_milliseconds() throws Throwable {
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME);
+        option.stubValue("200ms");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Long.valueOf(200L), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that a duration in seconds is parsed to milliseconds. */
+    @Test
+    public void testParsing_seconds() throws Throwable {
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME);
+        option.stubValue("5s");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Long.valueOf(5000L), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that a duration in minutes is parsed to milliseconds. */
+    @Test
+    public void testParsing_minutes() throws Throwable {
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME);
+        option.stubValue("2m");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Long.valueOf(120000L), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that a duration in hours is parsed to milliseconds. */
+    @Test
+    public void testParsing_hours() throws Throwable {
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME);
+        option.stubValue("1h");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Long.valueOf(3600000L), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that a duration in days is parsed to milliseconds. */
+    @Test
+    public void testParsing_days() throws Throwable {
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME);
+        option.stubValue("1d");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Long.valueOf(86400000L), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that a duration without a unit is parsed as milliseconds. */
+    @Test
+    public void testParsing_noUnit() throws Throwable {
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME);
+        option.stubValue("150");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Long.valueOf(150L), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option throws for an unknown unit. */
+    @Test
+    public void testParsing_unknownUnit() throws Throwable {
+        mThrown.expectMessage("is not a duration");
+
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME);
+        option.stubValue("5 fortnights");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        option.get();
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option throws for a negative duration. */
+    @Test
+    public void testParsing_negative() throws Throwable {
+        mThrown.expectMessage("is not a duration");
+
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME);
+        option.stubValue("-5s");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        option.get();
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option throws for a duration outside of the range. */
+    @Test
+    public void testRange_outOfRange() throws Throwable {
+        mThrown.expectMessage("out of range");
+
+        TestableDurationOption option = new TestableDurationOption(OPTION_NAME).setRange(0L, 1000L);
+        option.stubValue("2s");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        option.get();
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+}
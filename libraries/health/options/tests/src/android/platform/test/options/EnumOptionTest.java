@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.option;
+
+import android.os.Bundle;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/** Unit tests for {@link EnumOption}. */
+public class EnumOptionTest {
+    @Rule public ExpectedException mThrown = ExpectedException.none();
+
+    private static final String OPTION_NAME = "option";
+
+    private enum Orientation {
+        PORTRAIT,
+        LANDSCAPE
+    }
+
+    private static class TestableEnumOption extends EnumOption<Orientation> {
+        private Bundle mArguments = new Bundle();
+        private String mName;
+
+        public TestableEnumOption(String name) {
+            super(name, Orientation.class);
+            mName = name;
+        }
+
+        @Override
+        Bundle getArguments() {
+            return mArguments;
+        }
+
+        public void stubValue(String value) {
+            mArguments.putString(mName, value);
+        }
+    }
+
+    private enum Rotation {
+        PORTRAIT,
+        LANDSCAPE,
+        SEASCAPE
+    }
+
+    private static class TestableRotationOption extends EnumOption<Rotation> {
+        private Bundle mArguments = new Bundle();
+
+        public TestableRotationOption(String name) {
+            super(name, Rotation.class);
+            mArguments.putString(name, "LANDSCAPE");
+        }
+
+        @Override
+        Bundle getArguments() {
+            return mArguments;
+        }
+    }
+
+    /** Test that the option is parsed correctly for a constant name. */
+    @Test
+    public void testParsing_valid() throws Throwable {
+        TestableEnumOption option = new TestableEnumOption(OPTION_NAME);
+        option.stubValue("LANDSCAPE");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Orientation.LANDSCAPE, option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option is parsed ignoring case. */
+    @Test
+    public void testParsing_ignoresCase() throws Throwable {
+        TestableEnumOption option = new TestableEnumOption(OPTION_NAME);
+        option.stubValue("portrait");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Orientation.PORTRAIT, option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option throws and lists the allowed values for an unknown name. */
+    @Test
+    public void testParsing_invalid() throws Throwable {
+        mThrown.expectMessage("is not one of [PORTRAIT, LANDSCAPE]");
+
+        TestableEnumOption option = new TestableEnumOption(OPTION_NAME);
+        option.stubValue("upside-down");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        option.get();
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that options which differ only in their enum classes do not share values. */
+    @Test
+    public void testParsing_differentEnums() throws Throwable {
+        TestableEnumOption orientation = new TestableEnumOption(OPTION_NAME);
+        orientation.stubValue("LANDSCAPE");
+        TestableRotationOption rotation = new TestableRotationOption(OPTION_NAME);
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Orientation.LANDSCAPE, orientation.get());
+                        Assert.assertEquals(Rotation.LANDSCAPE, rotation.get());
+                    }
+                };
+        Statement withOptions =
+                rotation.apply(
+                        orientation.apply(testStatement, Description.EMPTY), Description.EMPTY);
+        withOptions.evaluate();
+    }
+}
@@ -84,4 +84,38 @@ public class IntegerOptionTest {
         Statement withOption = option.apply(testStatement, Description.EMPTY);
         withOption.evaluate();
     }
+
+    /** Test that a value within the range is accepted. */
+    @Test
+    public void testRange_valid() throws Throwable {
+        TestableIntegerOption option = new TestableIntegerOption(OPTION_NAME).setRange(1, 10);
+        option.stubValue("7");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Integer.valueOf("7"), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option throws for a value outside of the range. */
+    @Test
+    public void testRange_outOfRange() throws Throwable {
+        mThrown.expectMessage("out of range");
+
+        TestableIntegerOption option = new TestableIntegerOption(OPTION_NAME).setRange(1, 10);
+        option.stubValue("11");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        option.get();
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.option;
+
+import android.os.Bundle;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/** Unit tests for {@link ListOption}. */
+public class ListOptionTest {
+    @Rule public ExpectedException mThrown = ExpectedException.none();
+
+    private static final String OPTION_NAME = "option";
+
+    private static class TestableIntegerListOption extends ListOption<Integer> {
+        private Bundle mArguments = new Bundle();
+        private String mName;
+
+        public TestableIntegerListOption(String name) {
+            super(name, Integer::valueOf);
+            mName = name;
+        }
+
+        @Override
+        Bundle getArguments() {
+            return mArguments;
+        }
+
+        public void stubValue(String value) {
+            mArguments.putString(mName, value);
+        }
+    }
+
+    private static class TestableParserListOption<T> extends ListOption<T> {
+        private Bundle mArguments = new Bundle();
+
+        public TestableParserListOption(String name, Function<String, T> elementParser) {
+            super(name, elementParser);
+            mArguments.putString(name, "1,2");
+        }
+
+        @Override
+        Bundle getArguments() {
+            return mArguments;
+        }
+    }
+
+    /** Test that the option is parsed correctly for a list of valid elements. */
+    @Test
+    public void testParsing_valid() throws Throwable {
+        TestableIntegerListOption option = new TestableIntegerListOption(OPTION_NAME);
+        option.stubValue("1, 2,3");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Arrays.asList(1, 2, 3), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that an empty argument is parsed to an empty list. */
+    @Test
+    public void testParsing_empty() throws Throwable {
+        TestableIntegerListOption option = new TestableIntegerListOption(OPTION_NAME);
+        option.stubValue("");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Collections.emptyList(), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option throws and names the invalid element. */
+    @Test
+    public void testParsing_invalidElement() throws Throwable {
+        mThrown.expectMessage("Element 1 \"two\" is invalid");
+
+        TestableIntegerListOption option = new TestableIntegerListOption(OPTION_NAME);
+        option.stubValue("1,two,3");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        option.get();
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the parsed list cannot be modified. */
+    @Test
+    public void testParsing_unmodifiable() throws Throwable {
+        mThrown.expect(UnsupportedOperationException.class);
+
+        TestableIntegerListOption option = new TestableIntegerListOption(OPTION_NAME);
+        option.stubValue("1");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        List<Integer> values = option.get();
+                        values.add(2);
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that options which differ only in their element parsers do not share values. */
+    @Test
+    public void testParsing_differentParsers() throws Throwable {
+        TestableParserListOption<Integer> integers =
+                new TestableParserListOption<>(OPTION_NAME, Integer::valueOf);
+        TestableParserListOption<Long> longs =
+                new TestableParserListOption<>(OPTION_NAME, Long::valueOf);
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Arrays.asList(1, 2), integers.get());
+                        Assert.assertEquals(Arrays.asList(1L, 2L), longs.get());
+                    }
+                };
+        Statement withOptions =
+                longs.apply(integers.apply(testStatement, Description.EMPTY), Description.EMPTY);
+        withOptions.evaluate();
+    }
+}
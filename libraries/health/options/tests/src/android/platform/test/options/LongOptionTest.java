@@ -84,4 +84,38 @@ public class LongOptionTest {
         Statement withOption = option.apply(testStatement, Description.EMPTY);
         withOption.evaluate();
     }
+
+    /** Test that a value within the range is accepted. */
+    @Test
+    public void testRange_valid() throws Throwable {
+        TestableLongOption option = new TestableLongOption(OPTION_NAME).setRange(1L, 10L);
+        option.stubValue("7");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        Assert.assertEquals(Long.valueOf("7"), option.get());
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
+
+    /** Test that the option throws for a value outside of the range. */
+    @Test
+    public void testRange_outOfRange() throws Throwable {
+        mThrown.expectMessage("out of range");
+
+        TestableLongOption option = new TestableLongOption(OPTION_NAME).setRange(1L, 10L);
+        option.stubValue("0");
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        option.get();
+                    }
+                };
+        Statement withOption = option.apply(testStatement, Description.EMPTY);
+        withOption.evaluate();
+    }
 }
@@ -18,6 +18,7 @@ package android.platform.test.option;
 import android.os.Bundle;
 
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -40,6 +41,7 @@ public class TestOptionTest {
         // value.
         private Bundle mArguments = new Bundle();
         private String mName;
+        private int mParseCount;
 
         public TestableOption(String name) {
             super(name);
@@ -48,6 +50,7 @@ public class TestOptionTest {
 
         @Override
         public String parseValueFromString(String value) {
+            mParseCount++;
             // Mimick invalid argument behavior.
             if (value == VALUE_INVALID) {
                 throw new RuntimeException("Invalid argument");
@@ -56,6 +59,17 @@ public class TestOptionTest {
             return value;
         }
 
+        @Override
+        protected void validate(String value) {
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("Empty value");
+            }
+        }
+
+        public int getParseCount() {
+            return mParseCount;
+        }
+
         @Override
         Bundle getArguments() {
             return mArguments;
@@ -66,6 +80,11 @@ public class TestOptionTest {
         }
     }
 
+    @Before
+    public void setUp() {
+        TestOption.clearParsedValues();
+    }
+
     /** Test that a valid argument is properly accessed. */
     @Test
     public void testSuppliedValue_valid() throws Throwable {
@@ -235,4 +254,80 @@ public class TestOptionTest {
         // Run the "test statement" directly without running the option rule, which should throw.
         testStatement.evaluate();
     }
+
+    /** Test that an argument is parsed once and shared by later options of the same name. */
+    @Test
+    public void testParsedValueIsCached() throws Throwable {
+        TestableOption first = new TestableOption(OPTION_NAME);
+        first.stubValue(VALUE_VALID);
+        first.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+        first.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+        TestableOption second = new TestableOption(OPTION_NAME);
+        second.stubValue(VALUE_VALID);
+        second.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+
+        Assert.assertEquals(VALUE_VALID, second.get());
+        Assert.assertEquals(1, first.getParseCount());
+        Assert.assertEquals(0, second.getParseCount());
+    }
+
+    /** Test that a different argument value or option name is parsed separately. */
+    @Test
+    public void testParsedValueCacheIsKeyed() throws Throwable {
+        TestableOption option = new TestableOption(OPTION_NAME);
+        option.stubValue(VALUE_VALID);
+        option.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+        option.stubValue("other");
+        option.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+        Assert.assertEquals("other", option.get());
+        TestableOption otherName = new TestableOption("other-option");
+        otherName.stubValue(VALUE_VALID);
+        otherName.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+
+        Assert.assertEquals(2, option.getParseCount());
+        Assert.assertEquals(1, otherName.getParseCount());
+    }
+
+    /** Test that a failed parse is not cached. */
+    @Test
+    public void testInvalidValueIsNotCached() throws Throwable {
+        TestableOption option = new TestableOption(OPTION_NAME);
+        option.stubValue(VALUE_INVALID);
+        for (int i = 0; i < 2; i++) {
+            try {
+                option.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+                Assert.fail("An invalid value should have thrown.");
+            } catch (RuntimeException e) {
+                // Expected.
+            }
+        }
+        Assert.assertEquals(2, option.getParseCount());
+    }
+
+    /** Test that a parsing error names the option, its value and the reason. */
+    @Test
+    public void testErrorNamesArgument() throws Throwable {
+        mThrown.expectMessage("\"option\" with value \"invalid\"");
+        mThrown.expectMessage("Invalid argument");
+
+        TestableOption option = new TestableOption(OPTION_NAME);
+        option.stubValue(VALUE_INVALID);
+        option.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+    }
+
+    /** Test that a value failing validation is rejected with the reason. */
+    @Test
+    public void testValidationFailure() throws Throwable {
+        mThrown.expectMessage("Empty value");
+
+        TestableOption option = new TestableOption(OPTION_NAME);
+        option.stubValue("");
+        option.apply(EMPTY_STATEMENT, Description.EMPTY).evaluate();
+    }
+
+    private static final Statement EMPTY_STATEMENT =
+            new Statement() {
+                @Override
+                public void evaluate() throws Throwable {}
+            };
 }
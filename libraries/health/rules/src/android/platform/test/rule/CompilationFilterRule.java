@@ -21,12 +21,29 @@ import androidx.annotation.VisibleForTesting;
 
 import com.google.common.collect.ImmutableList;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.junit.runner.Description;
 import org.junit.runners.model.InitializationError;
 
-/** This rule compiles the applications with the specified filter, or skips if unspecified. */
+/**
+ * This rule compiles the applications with the specified filter, or skips if unspecified.
+ *
+ * <p>Applications that are already compiled with the filter, according to the dexopt state dump,
+ * are skipped unless the force option is set. Applications may be compiled in parallel.
+ */
 public class CompilationFilterRule extends TestWatcher {
     //
     private static final String LOG_TAG = CompilationFilterRule.class.getSimpleName();
@@ -35,7 +52,17 @@ public class CompilationFilterRule extends TestWatcher {
     private static final ImmutableList<String> COMPILE_FILTER_LIST =
             ImmutableList.of("speed", "speed-profile", "quicken", "verify");
     @VisibleForTesting static final String COMPILE_FILTER_OPTION = "compilation-filter";
+    @VisibleForTesting static final String COMPILE_FORCE_OPTION = "compilation-force";
+    @VisibleForTesting static final String COMPILE_PARALLELISM_OPTION = "compilation-parallelism";
     @VisibleForTesting static final String COMPILE_SUCCESS = "Success";
+    // Dexopt state constants, with the ART service dump as a fallback on newer releases.
+    @VisibleForTesting static final String DEXOPT_DUMP_CMD = "dumpsys package dexopt";
+    @VisibleForTesting static final String ART_DUMP_CMD = "pm art dump";
+    private static final Pattern PACKAGE_PATTERN = Pattern.compile("^\\s*\\[([\\w.]+)\\]\\s*$");
+    private static final Pattern FILTER_PATTERN =
+            Pattern.compile("compilation_filter=([\\w-]+)");
+    private static final Pattern STATUS_PATTERN = Pattern.compile("\\[status=([\\w-]+)");
+    private static final String SECONDARY_DEX_HEADER = "known secondary dex files:";
 
     private String[] mApplications;
 
@@ -61,13 +88,114 @@ public class CompilationFilterRule extends TestWatcher {
                     String.format(
                             "Unknown compiler filter: %s, not part of %s", filter, filterOptions));
         }
-        // Compile each application in sequence.
+        // Skip applications that are already compiled with the filter, unless forced.
+        List<String> toCompile = new ArrayList<>();
+        boolean force = Boolean.parseBoolean(getArguments().getString(COMPILE_FORCE_OPTION));
+        Map<String, Set<String>> currentFilters = force ? new HashMap<>() : getCompilerFilters();
         for (String app : mApplications) {
-            String response = executeShellCommand(String.format(COMPILE_CMD_FORMAT, filter, app));
-            if (!response.contains(COMPILE_SUCCESS)) {
-                Log.d(LOG_TAG, String.format("Received response: %s", response));
-                throw new RuntimeException(String.format("Failed to compile %s.", app));
+            Set<String> current = currentFilters.get(app);
+            if (current != null && current.size() == 1 && current.contains(filter)) {
+                Log.d(LOG_TAG, String.format("Skipping %s, already compiled with %s.", app, filter));
+            } else {
+                toCompile.add(app);
+            }
+        }
+        compile(toCompile, filter, getParallelism());
+    }
+
+    /** Compiles each of the {@code apps}, with at most {@code parallelism} at a time. */
+    private void compile(List<String> apps, String filter, int parallelism) {
+        if (parallelism <= 1 || apps.size() <= 1) {
+            // Compile each application in sequence.
+            for (String app : apps) {
+                compile(app, filter);
+            }
+            return;
+        }
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(parallelism, apps.size()));
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (String app : apps) {
+                results.add(executor.submit(() -> compile(app, filter)));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while compiling.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void compile(String app, String filter) {
+        String response = executeShellCommand(String.format(COMPILE_CMD_FORMAT, filter, app));
+        if (!response.contains(COMPILE_SUCCESS)) {
+            Log.d(LOG_TAG, String.format("Received response: %s", response));
+            throw new RuntimeException(String.format("Failed to compile %s.", app));
+        }
+    }
+
+    private int getParallelism() {
+        String value = getArguments().getString(COMPILE_PARALLELISM_OPTION, "1");
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid value for %s: %s", COMPILE_PARALLELISM_OPTION, value),
+                    e);
+        }
+    }
+
+    /** Returns the compiler filters of every package from the device's dexopt state. */
+    private Map<String, Set<String>> getCompilerFilters() {
+        Map<String, Set<String>> filters =
+                parseCompilerFilters(executeShellCommand(DEXOPT_DUMP_CMD));
+        if (filters.isEmpty()) {
+            filters = parseCompilerFilters(executeShellCommand(ART_DUMP_CMD));
+        }
+        return filters;
+    }
+
+    /**
+     * Parses a {@code dumpsys package dexopt} or {@code pm art dump} output into the set of
+     * compiler filters used for the primary dex files of each package, across paths and ABIs.
+     */
+    @VisibleForTesting
+    static Map<String, Set<String>> parseCompilerFilters(String dump) {
+        Map<String, Set<String>> filters = new HashMap<>();
+        Set<String> current = null;
+        for (String line : dump.split("\\n")) {
+            Matcher packageMatcher = PACKAGE_PATTERN.matcher(line);
+            if (packageMatcher.matches()) {
+                current = new HashSet<>();
+                filters.put(packageMatcher.group(1), current);
+                continue;
+            }
+            if (current == null) {
+                continue;
+            }
+            if (line.trim().startsWith(SECONDARY_DEX_HEADER)) {
+                // Secondary dex files are compiled separately, so ignore them.
+                current = null;
+                continue;
+            }
+            Matcher filterMatcher = FILTER_PATTERN.matcher(line);
+            Matcher statusMatcher = STATUS_PATTERN.matcher(line);
+            if (filterMatcher.find()) {
+                current.add(filterMatcher.group(1));
+            } else if (statusMatcher.find()) {
+                current.add(statusMatcher.group(1));
             }
         }
+        filters.values().removeIf(Set::isEmpty);
+        return filters;
     }
 }
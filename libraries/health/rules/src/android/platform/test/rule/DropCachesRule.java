@@ -18,16 +18,46 @@ package android.platform.test.rule;
 import androidx.annotation.VisibleForTesting;
 import org.junit.runner.Description;
 
+import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * This rule will drop caches before running each test method.
+ *
+ * <p>After syncing and dropping caches, the rule polls the "Cached:" value of /proc/meminfo until
+ * it falls below a threshold or levels off, instead of sleeping for a fixed time. The residual
+ * cache and the time waited are reported as metrics.
  */
 public class DropCachesRule extends TestWatcher {
     private static final String LOG_TAG = DropCachesRule.class.getSimpleName();
 
     @VisibleForTesting static final String KEY_DROP_CACHE = "drop-cache";
+    @VisibleForTesting static final String KEY_THRESHOLD_KB = "drop-cache-threshold-kb";
+    @VisibleForTesting static final String KEY_TIMEOUT_MS = "drop-cache-timeout-ms";
+    @VisibleForTesting static final String KEY_POLL_INTERVAL_MS = "drop-cache-poll-interval-ms";
+    @VisibleForTesting static final long DEFAULT_THRESHOLD_KB = 0;
+    @VisibleForTesting static final long DEFAULT_TIMEOUT_MS = 3000;
+    @VisibleForTesting static final long DEFAULT_POLL_INTERVAL_MS = 50;
+    // The cache is considered settled once a poll reduces it by less than this.
+    @VisibleForTesting static final long LEVEL_OFF_KB = 512;
+
+    @VisibleForTesting static final String SYNC_CMD = "sync";
+    @VisibleForTesting static final String DROP_CACHES_CMD = "echo 3 > /proc/sys/vm/drop_caches";
+    @VisibleForTesting static final String CACHED_KB_METRIC_FORMAT = "drop_caches_cached_kb_%s#%s";
+    @VisibleForTesting static final String WAIT_MS_METRIC_FORMAT = "drop_caches_wait_ms_%s#%s";
+
+    private static final String MEMINFO_PATH = "/proc/meminfo";
+    private static final Pattern CACHED_PATTERN =
+            Pattern.compile("^Cached:\\s*(\\d+) kB$", Pattern.MULTILINE);
+
     private static boolean mDropCache = true;
 
     @Override
@@ -38,8 +68,100 @@ public class DropCachesRule extends TestWatcher {
             return;
         }
 
-        executeShellCommand("echo 3 > /proc/sys/vm/drop_caches");
-        // TODO: b/117868612 to identify the root cause for additional wait.
-        SystemClock.sleep(3000);
+        // Write back dirty pages first so that they can be dropped too.
+        executeShellCommand(SYNC_CMD);
+        executeShellCommand(DROP_CACHES_CMD);
+
+        long start = uptimeMillis();
+        long cachedKb = waitForCacheDrop(start);
+        long waitMs = uptimeMillis() - start;
+        Log.v(LOG_TAG, String.format("Cached memory is %d kB after %d ms.", cachedKb, waitMs));
+
+        Bundle metrics = new Bundle();
+        metrics.putLong(
+                String.format(
+                        CACHED_KB_METRIC_FORMAT,
+                        description.getClassName(),
+                        description.getMethodName()),
+                cachedKb);
+        metrics.putLong(
+                String.format(
+                        WAIT_MS_METRIC_FORMAT,
+                        description.getClassName(),
+                        description.getMethodName()),
+                waitMs);
+        sendMetrics(metrics);
+    }
+
+    /**
+     * Polls the cached memory until it is at most the threshold, stops decreasing, or the timeout
+     * since {@code start} elapses, and returns the last value read, or -1 if it is unavailable.
+     */
+    private long waitForCacheDrop(long start) {
+        long thresholdKb = getLongArgument(KEY_THRESHOLD_KB, DEFAULT_THRESHOLD_KB);
+        long timeoutMs = getLongArgument(KEY_TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+        long intervalMs = getLongArgument(KEY_POLL_INTERVAL_MS, DEFAULT_POLL_INTERVAL_MS);
+
+        long cachedKb = readCachedKb();
+        while (cachedKb > thresholdKb && uptimeMillis() - start < timeoutMs) {
+            sleep(intervalMs);
+            long previousKb = cachedKb;
+            cachedKb = readCachedKb();
+            if (cachedKb < 0 || previousKb - cachedKb < LEVEL_OFF_KB) {
+                break;
+            }
+        }
+        return cachedKb;
+    }
+
+    /** Returns the "Cached:" value of /proc/meminfo in kB, or -1 if it cannot be read. */
+    private long readCachedKb() {
+        String meminfo = readMeminfo();
+        Matcher matcher = CACHED_PATTERN.matcher(meminfo);
+        if (!matcher.find()) {
+            Log.w(LOG_TAG, "Unable to find the cached memory in /proc/meminfo.");
+            return -1;
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private long getLongArgument(String key, long defaultValue) {
+        String value = getArguments().getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid value for %s: %s", key, value), e);
+        }
+    }
+
+    /**
+     * Returns the contents of /proc/meminfo, or an empty string if it cannot be read.
+     *
+     * <p>Override this for unit testing the cache polling.
+     */
+    @VisibleForTesting
+    protected String readMeminfo() {
+        try {
+            return new String(Files.readAllBytes(Paths.get(MEMINFO_PATH)), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to read /proc/meminfo.", e);
+            return "";
+        }
+    }
+
+    /** Override this for unit testing the cache polling. */
+    @VisibleForTesting
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    /** Override this for unit testing the cache polling. */
+    @VisibleForTesting
+    protected void sleep(long ms) {
+        SystemClock.sleep(ms);
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.platform.test.rule;
+
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * A fixed-size, log-linear histogram of non-negative durations in the style of HdrHistogram.
+ *
+ * <p>Values below {@code 2^PRECISION_BITS} are counted exactly. Every larger power-of-two range is
+ * split into {@code 2^(PRECISION_BITS - 1)} equally sized buckets, so a reported percentile is
+ * within {@link #MAX_RELATIVE_ERROR} of a recorded value. Values above {@link #MAX_TRACKABLE} are
+ * counted in the highest bucket. Memory use is constant regardless of the number of values.
+ */
+class LatencyHistogram {
+    @VisibleForTesting static final int PRECISION_BITS = 8;
+    // About 73 minutes in nanoseconds.
+    @VisibleForTesting static final long MAX_TRACKABLE = (1L << 42) - 1;
+    @VisibleForTesting static final double MAX_RELATIVE_ERROR = 1.0 / (1 << PRECISION_BITS);
+
+    private static final int SUB_BUCKET_COUNT = 1 << PRECISION_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private final long[] mCounts = new long[indexOf(MAX_TRACKABLE) + 1];
+    private long mTotalCount;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+    private double mSum;
+
+    /** Records a single {@code value}, which must be non-negative. */
+    void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Cannot record negative value %d.", value));
+        }
+        mCounts[indexOf(Math.min(value, MAX_TRACKABLE))]++;
+        mTotalCount++;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+        mSum += value;
+    }
+
+    long getCount() {
+        return mTotalCount;
+    }
+
+    long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    long getMax() {
+        return mMax;
+    }
+
+    double getMean() {
+        return mTotalCount == 0 ? 0 : mSum / mTotalCount;
+    }
+
+    /**
+     * Returns the value at {@code percentile}, in the range [0, 100], as the midpoint of the bucket
+     * holding it, clamped to the recorded minimum and maximum.
+     */
+    long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        double clamped = Math.min(Math.max(percentile, 0), 100);
+        long rank = Math.max(1, (long) Math.ceil(clamped / 100 * mTotalCount));
+        if (rank >= mTotalCount) {
+            return mMax;
+        }
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                long value = lowestValueAt(i) + (bucketWidthAt(i) - 1) / 2;
+                return Math.min(Math.max(value, getMin()), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    @VisibleForTesting
+    int getBucketCount() {
+        return mCounts.length;
+    }
+
+    @VisibleForTesting
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - (PRECISION_BITS - 1);
+        int subBucket = (int) (value >>> shift);
+        return (shift + 1) * SUB_BUCKET_HALF + subBucket - SUB_BUCKET_HALF;
+    }
+
+    private static long lowestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return subBucket << shift;
+    }
+
+    private static long bucketWidthAt(int index) {
+        return index < SUB_BUCKET_COUNT ? 1 : 1L << (index / SUB_BUCKET_HALF - 1);
+    }
+}
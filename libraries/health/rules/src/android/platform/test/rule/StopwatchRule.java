@@ -18,12 +18,16 @@ package android.platform.test.rule;
 
 import android.app.Instrumentation;
 import android.os.Bundle;
+import android.os.SystemClock;
 import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 
 import org.junit.rules.Stopwatch;
 import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -31,6 +35,17 @@ import java.util.concurrent.TimeUnit;
  * report the test time as key value pair to the instrumentation. For now, the rule will only report
  * metric when the test succeed.
  *
+ * <p>In histogram mode, the rule instead records {@link SystemClock#elapsedRealtimeNanos} durations
+ * into a {@link LatencyHistogram} shared by every iteration of the same method, and reports
+ * percentiles for each method once the class finishes. Iterations that a runner renamed by
+ * appending an "iteration-separator" and iteration number, as {@code Microbenchmark} does, are
+ * recorded into the histogram of the original method. For this, the rule must be applied to both
+ * the class and its methods from a single static field:
+ *
+ * <pre>
+ * &#64;ClassRule &#64;Rule public static StopwatchRule sStopwatch = new StopwatchRule(true);
+ * </pre>
+ *
  * <p>TODO: Consider implementing generic metric reporting library or tight listeners to report
  * metric.
  */
@@ -42,10 +57,57 @@ public class StopwatchRule extends Stopwatch {
     @VisibleForTesting static final int INST_STATUS_IN_PROGRESS = 2;
 
     @VisibleForTesting static final String METRIC_FORMAT = "duration_ms_%s#%s";
+    @VisibleForTesting static final String HISTOGRAM_METRIC_FORMAT = "duration_ns_%s_%s#%s";
+    @VisibleForTesting static final double[] PERCENTILES = {50, 90, 95, 99, 99.9};
+    @VisibleForTesting static final String ITERATION_SEP_OPTION = "iteration-separator";
+    @VisibleForTesting static final String ITERATION_SEP_DEFAULT = "$";
+
+    private final boolean mHistogram;
+    // Histograms keyed by un-renamed method, in the order that methods first finished.
+    private final Map<Description, LatencyHistogram> mHistograms = new LinkedHashMap<>();
 
     private Bundle mResult = new Bundle();
     private Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
 
+    public StopwatchRule() {
+        this(false);
+    }
+
+    /**
+     * @param histogram whether to record nanosecond durations into a histogram per method and
+     *     report percentiles at the end of the class, instead of reporting each duration
+     */
+    public StopwatchRule(boolean histogram) {
+        mHistogram = histogram;
+    }
+
+    @Override
+    public Statement apply(Statement base, Description description) {
+        if (!mHistogram) {
+            return super.apply(base, description);
+        }
+        if (description.isSuite()) {
+            return new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    try {
+                        base.evaluate();
+                    } finally {
+                        reportHistograms();
+                    }
+                }
+            };
+        }
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                long start = elapsedRealtimeNanos();
+                base.evaluate();
+                recordDuration(elapsedRealtimeNanos() - start, description);
+            }
+        };
+    }
+
     /**
      * The method will report test time as milliseconds to instrumentation.
      *
@@ -67,6 +129,93 @@ public class StopwatchRule extends Stopwatch {
         reportMetric(nanos, description);
     }
 
+    /** Records a successful test's duration into the histogram for its method. */
+    private void recordDuration(long nanos, Description description) {
+        String separator = getArguments().getString(ITERATION_SEP_OPTION, ITERATION_SEP_DEFAULT);
+        Description method =
+                Description.createTestDescription(
+                        stripIteration(description.getClassName(), separator),
+                        stripIteration(description.getMethodName(), separator));
+        mHistograms.computeIfAbsent(method, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    /** Returns {@code name} without a trailing {@code separator} and iteration number, if any. */
+    @VisibleForTesting
+    static String stripIteration(String name, String separator) {
+        int index = name.lastIndexOf(separator);
+        if (separator.isEmpty() || index < 0) {
+            return name;
+        }
+        String iteration = name.substring(index + separator.length());
+        if (iteration.isEmpty() || !iteration.chars().allMatch(Character::isDigit)) {
+            return name;
+        }
+        return name.substring(0, index);
+    }
+
+    /** Reports the percentiles of every method's histogram to instrumentation and clears them. */
+    private void reportHistograms() {
+        if (mHistograms.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Description, LatencyHistogram> entry : mHistograms.entrySet()) {
+            String className = entry.getKey().getClassName();
+            String methodName = entry.getKey().getMethodName();
+            LatencyHistogram histogram = entry.getValue();
+            for (double percentile : PERCENTILES) {
+                mResult.putLong(
+                        getHistogramMetricKey(percentileName(percentile), className, methodName),
+                        histogram.getValueAtPercentile(percentile));
+            }
+            mResult.putLong(
+                    getHistogramMetricKey("min", className, methodName), histogram.getMin());
+            mResult.putLong(
+                    getHistogramMetricKey("max", className, methodName), histogram.getMax());
+            mResult.putLong(
+                    getHistogramMetricKey("mean", className, methodName),
+                    Math.round(histogram.getMean()));
+            mResult.putLong(
+                    getHistogramMetricKey("count", className, methodName), histogram.getCount());
+        }
+        mHistograms.clear();
+        mInstrumentation.sendStatus(INST_STATUS_IN_PROGRESS, mResult);
+    }
+
+    @VisibleForTesting
+    static String getHistogramMetricKey(String statistic, String className, String methodName) {
+        return String.format(HISTOGRAM_METRIC_FORMAT, statistic, className, methodName);
+    }
+
+    /** Returns a key-friendly name for {@code percentile}, e.g. "p50" or "p99_9". */
+    @VisibleForTesting
+    static String percentileName(double percentile) {
+        String value =
+                percentile == Math.rint(percentile)
+                        ? String.valueOf((long) percentile)
+                        : String.valueOf(percentile);
+        return "p" + value.replace('.', '_');
+    }
+
+    /**
+     * Returns the current time for histogram mode.
+     *
+     * <p>Override this for unit testing timing.
+     */
+    @VisibleForTesting
+    protected long elapsedRealtimeNanos() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Returns the {@link Bundle} containing registered arguments.
+     *
+     * <p>Override this for unit testing iteration renaming.
+     */
+    @VisibleForTesting
+    protected Bundle getArguments() {
+        return InstrumentationRegistry.getArguments();
+    }
+
     @VisibleForTesting
     Bundle getMetric() {
         return mResult;
@@ -28,6 +28,8 @@ import java.io.IOException;
  */
 public class TestWatcher extends org.junit.rules.TestWatcher {
     private static final String LOG_TAG = TestWatcher.class.getSimpleName();
+    // Metrics are reported under the "status in progress" to be associated with the running test.
+    private static final int INST_STATUS_IN_PROGRESS = 2;
 
     private UiDevice mDevice;
 
@@ -70,4 +72,13 @@ public class TestWatcher extends org.junit.rules.TestWatcher {
     protected Context getContext() {
         return InstrumentationRegistry.getContext();
     }
+
+    /**
+     * Reports {@code metrics} to the instrumentation for the running test.
+     *
+     * <p>Override this for unit testing metric reporting.
+     */
+    protected void sendMetrics(Bundle metrics) {
+        InstrumentationRegistry.getInstrumentation().sendStatus(INST_STATUS_IN_PROGRESS, metrics);
+    }
 }
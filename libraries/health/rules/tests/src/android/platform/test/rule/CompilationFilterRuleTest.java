@@ -19,6 +19,7 @@ import static org.junit.Assert.fail;
 import static com.google.common.truth.Truth.assertThat;
 
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import org.junit.Test;
 import org.junit.runner.Description;
@@ -28,7 +29,11 @@ import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.Statement;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Unit test the logic for {@link CompilationFilterRule} */
 @RunWith(JUnit4.class)
@@ -94,7 +99,13 @@ public class CompilationFilterRuleTest {
         rule.apply(rule.getTestStatement(), TEST_DESC).evaluate();
         String compileCmd =
                 String.format(CompilationFilterRule.COMPILE_CMD_FORMAT, "speed", "example.package");
-        assertThat(rule.getOperations()).containsExactly(compileCmd, "test").inOrder();
+        assertThat(rule.getOperations())
+                .containsExactly(
+                        CompilationFilterRule.DEXOPT_DUMP_CMD,
+                        CompilationFilterRule.ART_DUMP_CMD,
+                        compileCmd,
+                        "test")
+                .inOrder();
     }
 
     /** Tests that this rule will compile multiple apps before the test, if supplied. */
@@ -119,12 +130,246 @@ public class CompilationFilterRuleTest {
                 String.format(
                         CompilationFilterRule.COMPILE_CMD_FORMAT, "speed", "example.package2");
         assertThat(rule.getOperations())
-                .containsExactly(compileCmd1, compileCmd2, "test")
+                .containsExactly(
+                        CompilationFilterRule.DEXOPT_DUMP_CMD,
+                        CompilationFilterRule.ART_DUMP_CMD,
+                        compileCmd1,
+                        compileCmd2,
+                        "test")
+                .inOrder();
+    }
+
+    /** Tests that apps already compiled with the filter are skipped. */
+    @Test
+    public void testAlreadyCompiledAppIsSkipped() throws Throwable {
+        Bundle bundle = new Bundle();
+        bundle.putString(CompilationFilterRule.COMPILE_FILTER_OPTION, "speed-profile");
+        TestableCompilationFilterRule rule =
+                new DumpingCompilationFilterRule(
+                        bundle, DEXOPT_DUMP_P, "com.google.android.apps.maps", "example.package");
+        rule.apply(rule.getTestStatement(), TEST_DESC).evaluate();
+        assertThat(rule.getOperations())
+                .containsExactly(
+                        CompilationFilterRule.DEXOPT_DUMP_CMD,
+                        String.format(
+                                CompilationFilterRule.COMPILE_CMD_FORMAT,
+                                "speed-profile",
+                                "example.package"),
+                        "test")
+                .inOrder();
+    }
+
+    /** Tests that apps compiled with the filter for only some ABIs are compiled. */
+    @Test
+    public void testPartiallyCompiledAppIsCompiled() throws Throwable {
+        Bundle bundle = new Bundle();
+        bundle.putString(CompilationFilterRule.COMPILE_FILTER_OPTION, "speed");
+        TestableCompilationFilterRule rule =
+                new DumpingCompilationFilterRule(bundle, DEXOPT_DUMP_P, "com.android.settings");
+        rule.apply(rule.getTestStatement(), TEST_DESC).evaluate();
+        assertThat(rule.getOperations())
+                .containsExactly(
+                        CompilationFilterRule.DEXOPT_DUMP_CMD,
+                        String.format(
+                                CompilationFilterRule.COMPILE_CMD_FORMAT,
+                                "speed",
+                                "com.android.settings"),
+                        "test")
+                .inOrder();
+    }
+
+    /** Tests that the force option compiles without checking the current filter. */
+    @Test
+    public void testForceCompilesAlreadyCompiledApp() throws Throwable {
+        Bundle bundle = new Bundle();
+        bundle.putString(CompilationFilterRule.COMPILE_FILTER_OPTION, "speed-profile");
+        bundle.putString(CompilationFilterRule.COMPILE_FORCE_OPTION, "true");
+        TestableCompilationFilterRule rule =
+                new DumpingCompilationFilterRule(
+                        bundle, DEXOPT_DUMP_P, "com.google.android.apps.maps");
+        rule.apply(rule.getTestStatement(), TEST_DESC).evaluate();
+        assertThat(rule.getOperations())
+                .containsExactly(
+                        String.format(
+                                CompilationFilterRule.COMPILE_CMD_FORMAT,
+                                "speed-profile",
+                                "com.google.android.apps.maps"),
+                        "test")
                 .inOrder();
     }
 
+    /** Tests that the ART service dump is used when the dexopt dump has no packages. */
+    @Test
+    public void testArtDumpFallback() throws Throwable {
+        Bundle bundle = new Bundle();
+        bundle.putString(CompilationFilterRule.COMPILE_FILTER_OPTION, "verify");
+        TestableCompilationFilterRule rule =
+                new TestableCompilationFilterRule(bundle, "com.google.android.gm") {
+                    @Override
+                    protected String executeShellCommand(String cmd) {
+                        super.executeShellCommand(cmd);
+                        return cmd.equals(CompilationFilterRule.ART_DUMP_CMD) ? ART_DUMP : "";
+                    }
+                };
+        rule.apply(rule.getTestStatement(), TEST_DESC).evaluate();
+        assertThat(rule.getOperations())
+                .containsExactly(
+                        CompilationFilterRule.DEXOPT_DUMP_CMD,
+                        CompilationFilterRule.ART_DUMP_CMD,
+                        "test")
+                .inOrder();
+    }
+
+    /** Tests that apps are compiled in parallel with a bounded number of workers. */
+    @Test
+    public void testParallelCompilation() throws Throwable {
+        Bundle bundle = new Bundle();
+        bundle.putString(CompilationFilterRule.COMPILE_FILTER_OPTION, "speed");
+        bundle.putString(CompilationFilterRule.COMPILE_FORCE_OPTION, "true");
+        bundle.putString(CompilationFilterRule.COMPILE_PARALLELISM_OPTION, "2");
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        String[] apps = {"example.package1", "example.package2", "example.package3",
+                "example.package4", "example.package5"};
+        TestableCompilationFilterRule rule =
+                new TestableCompilationFilterRule(bundle, apps) {
+                    @Override
+                    protected String executeShellCommand(String cmd) {
+                        super.executeShellCommand(cmd);
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        SystemClock.sleep(50);
+                        running.decrementAndGet();
+                        return CompilationFilterRule.COMPILE_SUCCESS;
+                    }
+                };
+        rule.apply(rule.getTestStatement(), TEST_DESC).evaluate();
+        List<String> expected = new ArrayList<>();
+        for (String app : apps) {
+            expected.add(String.format(CompilationFilterRule.COMPILE_CMD_FORMAT, "speed", app));
+        }
+        expected.add("test");
+        assertThat(rule.getOperations()).containsExactlyElementsIn(expected);
+        assertThat(rule.getOperations().get(apps.length)).isEqualTo("test");
+        assertThat(maxRunning.get()).isEqualTo(2);
+    }
+
+    /** Tests that a failure in a parallel compilation is thrown. */
+    @Test
+    public void testParallelCompilationFailureThrows() throws Throwable {
+        Bundle bundle = new Bundle();
+        bundle.putString(CompilationFilterRule.COMPILE_FILTER_OPTION, "speed");
+        bundle.putString(CompilationFilterRule.COMPILE_FORCE_OPTION, "true");
+        bundle.putString(CompilationFilterRule.COMPILE_PARALLELISM_OPTION, "2");
+        TestableCompilationFilterRule rule =
+                new TestableCompilationFilterRule(bundle, "example.package1", "bad.package") {
+                    @Override
+                    protected String executeShellCommand(String cmd) {
+                        super.executeShellCommand(cmd);
+                        return cmd.contains("bad.package")
+                                ? "Error"
+                                : CompilationFilterRule.COMPILE_SUCCESS;
+                    }
+                };
+        try {
+            rule.apply(rule.getTestStatement(), TEST_DESC).evaluate();
+            fail("An exception should have been thrown about compilation failure, but wasn't.");
+        } catch (RuntimeException e) {
+            assertThat(e).hasMessageThat().contains("bad.package");
+        }
+        assertThat(rule.getOperations()).doesNotContain("test");
+    }
+
+    /** Tests parsing a dexopt dump from Android P, which ignores secondary dex files. */
+    @Test
+    public void testParseDexoptDump_p() {
+        Map<String, Set<String>> filters =
+                CompilationFilterRule.parseCompilerFilters(DEXOPT_DUMP_P);
+        assertThat(filters).hasSize(2);
+        assertThat(filters.get("com.google.android.apps.maps")).containsExactly("speed-profile");
+        assertThat(filters.get("com.android.settings")).containsExactly("speed", "quicken");
+    }
+
+    /** Tests parsing a dexopt dump from Android O, where the status is the oat file state. */
+    @Test
+    public void testParseDexoptDump_o() {
+        Map<String, Set<String>> filters =
+                CompilationFilterRule.parseCompilerFilters(DEXOPT_DUMP_O);
+        assertThat(filters).hasSize(1);
+        assertThat(filters.get("com.android.chrome")).containsExactly("speed");
+    }
+
+    /** Tests parsing an ART service dump. */
+    @Test
+    public void testParseArtDump() {
+        Map<String, Set<String>> filters = CompilationFilterRule.parseCompilerFilters(ART_DUMP);
+        assertThat(filters).hasSize(2);
+        assertThat(filters.get("com.google.android.gm")).containsExactly("verify");
+        assertThat(filters.get("com.android.systemui")).containsExactly("speed");
+    }
+
+    /** Tests parsing output without any dexopt state. */
+    @Test
+    public void testParseEmptyDump() {
+        assertThat(CompilationFilterRule.parseCompilerFilters("")).isEmpty();
+        assertThat(
+                        CompilationFilterRule.parseCompilerFilters(
+                                CompilationFilterRule.COMPILE_SUCCESS))
+                .isEmpty();
+    }
+
+    private static final String DEXOPT_DUMP_P =
+            "Dexopt state:\n"
+                    + "  [com.google.android.apps.maps]\n"
+                    + "    path: /data/app/com.google.android.apps.maps-Xbd6g8Q==/base.apk\n"
+                    + "      arm64: [status=speed-profile] [reason=install]\n"
+                    + "    known secondary dex files:\n"
+                    + "      /data/user/0/com.google.android.apps.maps/app_dex/a.dex\n"
+                    + "        arm64: [status=run-from-apk] [reason=unknown]\n"
+                    + "  [com.android.settings]\n"
+                    + "    path: /system/priv-app/Settings/Settings.apk\n"
+                    + "      arm64: [status=speed] [reason=install]\n"
+                    + "      arm: [status=quicken] [reason=install]\n";
+
+    private static final String DEXOPT_DUMP_O =
+            "Dexopt state:\n"
+                    + "  [com.android.chrome]\n"
+                    + "    Instruction Set: arm\n"
+                    + "      path: /data/app/com.android.chrome-1/base.apk\n"
+                    + "      status: /data/app/com.android.chrome-1/oat/arm/base.odex"
+                    + "[status=kOatUpToDate, compilation_filter=speed]\n";
+
+    private static final String ART_DUMP =
+            "[com.google.android.gm]\n"
+                    + "  path: /data/app/~~8hQ==/com.google.android.gm-1w==/base.apk\n"
+                    + "    arm64: [status=verify] [reason=install] [primary-abi]\n"
+                    + "      [location is /data/app/~~8hQ==/com.google.android.gm-1w==/oat/arm64"
+                    + "/base.odex]\n"
+                    + "[com.android.systemui]\n"
+                    + "  path: /system_ext/priv-app/SystemUI/SystemUI.apk\n"
+                    + "    arm64: [status=speed] [reason=prebuilt] [primary-abi]\n"
+                    + "      [location is /system_ext/priv-app/SystemUI/oat/arm64/SystemUI.odex]\n"
+                    + "Current GC: CollectorTypeCMC\n";
+
+    /** A {@link TestableCompilationFilterRule} that returns {@code dump} for the dexopt dump. */
+    private static class DumpingCompilationFilterRule extends TestableCompilationFilterRule {
+        private final String mDump;
+
+        DumpingCompilationFilterRule(Bundle bundle, String dump, String... applications) {
+            super(bundle, applications);
+            mDump = dump;
+        }
+
+        @Override
+        protected String executeShellCommand(String cmd) {
+            super.executeShellCommand(cmd);
+            return cmd.equals(CompilationFilterRule.DEXOPT_DUMP_CMD)
+                    ? mDump
+                    : CompilationFilterRule.COMPILE_SUCCESS;
+        }
+    }
+
     private static class TestableCompilationFilterRule extends CompilationFilterRule {
-        private List<String> mOperations = new ArrayList<>();
+        private List<String> mOperations = Collections.synchronizedList(new ArrayList<>());
         private Bundle mBundle;
 
         public TestableCompilationFilterRule(Bundle bundle, String... applications) {
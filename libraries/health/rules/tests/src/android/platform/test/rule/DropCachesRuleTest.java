@@ -25,7 +25,10 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.junit.runners.model.Statement;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
 /**
@@ -33,16 +36,21 @@ import java.util.List;
  */
 @RunWith(JUnit4.class)
 public class DropCachesRuleTest {
+    private static final String METRIC_CACHED =
+            String.format(DropCachesRule.CACHED_KB_METRIC_FORMAT, "clzz", "mthd");
+    private static final String METRIC_WAIT =
+            String.format(DropCachesRule.WAIT_MS_METRIC_FORMAT, "clzz", "mthd");
+
     /**
-     * Tests that the drop caches command is run before the test method.
+     * Tests that the sync and drop caches commands are run before the test method.
      */
     @Test
     public void testDropCachesCommand() throws Throwable {
-        TestableDropCachesRule rule = new TestableDropCachesRule(new Bundle());
+        TestableDropCachesRule rule = new TestableDropCachesRule(new Bundle(), 100L);
         rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
             .evaluate();
         assertThat(rule.getOperations()).containsExactly(
-                "echo 3 > /proc/sys/vm/drop_caches", "test")
+                "sync", "echo 3 > /proc/sys/vm/drop_caches", "test")
             .inOrder();
     }
 
@@ -53,20 +61,105 @@ public class DropCachesRuleTest {
     public void testNoDropCacheFlag() throws Throwable {
         Bundle noDropCacheBundle = new Bundle();
         noDropCacheBundle.putString(DropCachesRule.KEY_DROP_CACHE, "false");
-        TestableDropCachesRule rule = new TestableDropCachesRule(noDropCacheBundle);
+        TestableDropCachesRule rule = new TestableDropCachesRule(noDropCacheBundle, 100L);
 
         rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
             .evaluate();
         assertThat(rule.getOperations()).containsExactly("test")
             .inOrder();
+        assertThat(rule.getMetrics()).isNull();
+    }
+
+    /**
+     * Tests that polling stops once the cached memory falls below the threshold.
+     */
+    @Test
+    public void testWaitsUntilBelowThreshold() throws Throwable {
+        Bundle args = new Bundle();
+        args.putString(DropCachesRule.KEY_THRESHOLD_KB, "1000");
+        TestableDropCachesRule rule =
+                new TestableDropCachesRule(args, 500000L, 200000L, 900L, 800L);
+        rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
+            .evaluate();
+        assertThat(rule.getSleeps()).containsExactly(50L, 50L);
+        assertThat(rule.getMetrics().getLong(METRIC_CACHED)).isEqualTo(900L);
+        assertThat(rule.getMetrics().getLong(METRIC_WAIT)).isEqualTo(100L);
+    }
+
+    /**
+     * Tests that no polling happens when the cache is already below the threshold.
+     */
+    @Test
+    public void testAlreadyBelowThreshold() throws Throwable {
+        Bundle args = new Bundle();
+        args.putString(DropCachesRule.KEY_THRESHOLD_KB, "1000");
+        TestableDropCachesRule rule = new TestableDropCachesRule(args, 100L);
+        rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
+            .evaluate();
+        assertThat(rule.getSleeps()).isEmpty();
+        assertThat(rule.getMetrics().getLong(METRIC_CACHED)).isEqualTo(100L);
+        assertThat(rule.getMetrics().getLong(METRIC_WAIT)).isEqualTo(0L);
+    }
+
+    /**
+     * Tests that polling stops once the cached memory levels off.
+     */
+    @Test
+    public void testWaitsUntilLevelledOff() throws Throwable {
+        TestableDropCachesRule rule =
+                new TestableDropCachesRule(new Bundle(), 500000L, 300000L, 299900L, 1000L);
+        rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
+            .evaluate();
+        assertThat(rule.getSleeps()).containsExactly(50L, 50L);
+        assertThat(rule.getMetrics().getLong(METRIC_CACHED)).isEqualTo(299900L);
+    }
+
+    /**
+     * Tests that polling stops at the timeout while the cache is still dropping.
+     */
+    @Test
+    public void testTimeout() throws Throwable {
+        Bundle args = new Bundle();
+        args.putString(DropCachesRule.KEY_TIMEOUT_MS, "200");
+        args.putString(DropCachesRule.KEY_POLL_INTERVAL_MS, "40");
+        TestableDropCachesRule rule =
+                new TestableDropCachesRule(
+                        args, 900000L, 800000L, 700000L, 600000L, 500000L, 400000L, 300000L);
+        rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
+            .evaluate();
+        assertThat(rule.getSleeps()).containsExactly(40L, 40L, 40L, 40L, 40L);
+        assertThat(rule.getMetrics().getLong(METRIC_CACHED)).isEqualTo(400000L);
+        assertThat(rule.getMetrics().getLong(METRIC_WAIT)).isEqualTo(200L);
+    }
+
+    /**
+     * Tests that an unreadable meminfo does not block the test.
+     */
+    @Test
+    public void testUnreadableMeminfo() throws Throwable {
+        TestableDropCachesRule rule = new TestableDropCachesRule(new Bundle());
+        rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
+            .evaluate();
+        assertThat(rule.getSleeps()).isEmpty();
+        assertThat(rule.getMetrics().getLong(METRIC_CACHED)).isEqualTo(-1L);
+        assertThat(rule.getOperations()).contains("test");
     }
 
     private static class TestableDropCachesRule extends DropCachesRule {
         private List<String> mOperations = new ArrayList<>();
+        private List<Long> mSleeps = new ArrayList<>();
+        private Deque<Long> mCachedKb;
         private Bundle mBundle;
+        private Bundle mMetrics;
+        private long mUptime;
 
-        public TestableDropCachesRule(Bundle bundle) {
+        /**
+         * @param cachedKb the successive "Cached:" values of the fake meminfo, where the last
+         *     value repeats; with none, the meminfo is unreadable
+         */
+        public TestableDropCachesRule(Bundle bundle, Long... cachedKb) {
             mBundle = bundle;
+            mCachedKb = new ArrayDeque<>(Arrays.asList(cachedKb));
         }
 
         @Override
@@ -80,10 +173,49 @@ public class DropCachesRuleTest {
             return mBundle;
         }
 
+        @Override
+        protected String readMeminfo() {
+            if (mCachedKb.isEmpty()) {
+                return "";
+            }
+            long cachedKb = mCachedKb.size() > 1 ? mCachedKb.pop() : mCachedKb.peek();
+            return String.format(
+                    "MemTotal:        3794764 kB\n"
+                            + "MemFree:          101812 kB\n"
+                            + "Buffers:           14360 kB\n"
+                            + "Cached:          %d kB\n"
+                            + "SwapCached:            0 kB\n",
+                    cachedKb);
+        }
+
+        @Override
+        protected long uptimeMillis() {
+            return mUptime;
+        }
+
+        @Override
+        protected void sleep(long ms) {
+            mSleeps.add(ms);
+            mUptime += ms;
+        }
+
+        @Override
+        protected void sendMetrics(Bundle metrics) {
+            mMetrics = metrics;
+        }
+
         public List<String> getOperations() {
             return mOperations;
         }
 
+        public List<Long> getSleeps() {
+            return mSleeps;
+        }
+
+        public Bundle getMetrics() {
+            return mMetrics;
+        }
+
         public Statement getTestStatement() {
             return new Statement() {
                 @Override
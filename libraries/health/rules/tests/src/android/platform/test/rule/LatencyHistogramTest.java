@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.platform.test.rule;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Unit test the accuracy bounds of {@link LatencyHistogram}. */
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+    private static final double[] PERCENTILES = {0.1, 1, 10, 25, 50, 75, 90, 99, 99.9, 100};
+
+    /** Tests that small values are recorded exactly. */
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0; value < 100; value++) {
+            histogram.record(value);
+        }
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getMin()).isEqualTo(0);
+        assertThat(histogram.getMax()).isEqualTo(99);
+        assertThat(histogram.getMean()).isWithin(1e-9).of(49.5);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(49);
+        assertThat(histogram.getValueAtPercentile(90)).isEqualTo(89);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(99);
+    }
+
+    /** Tests that percentiles over many orders of magnitude are within the relative error bound. */
+    @Test
+    public void testPercentilesWithinErrorBound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(0);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // Log-uniform between 1ns and about 70s.
+            values[i] = (long) Math.exp(random.nextDouble() * 25);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : PERCENTILES) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long estimate = histogram.getValueAtPercentile(percentile);
+            assertThat((double) Math.abs(estimate - exact))
+                    .isAtMost(exact * LatencyHistogram.MAX_RELATIVE_ERROR);
+        }
+        assertThat(histogram.getMin()).isEqualTo(values[0]);
+        assertThat(histogram.getMax()).isEqualTo(values[values.length - 1]);
+    }
+
+    /** Tests that bucket indices are contiguous and increase with value. */
+    @Test
+    public void testBucketIndicesAreMonotonic() {
+        int previous = LatencyHistogram.indexOf(0);
+        for (long value = 1; value < 1 << 20; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            assertThat(index - previous).isAnyOf(0, 1);
+            previous = index;
+        }
+        assertThat(LatencyHistogram.indexOf(LatencyHistogram.MAX_TRACKABLE))
+                .isEqualTo(new LatencyHistogram().getBucketCount() - 1);
+    }
+
+    /** Tests that memory use does not grow with the number of recorded values. */
+    @Test
+    public void testConstantMemory() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int buckets = histogram.getBucketCount();
+        for (long i = 0; i < 1000000; i++) {
+            histogram.record(i * 1000);
+        }
+        histogram.record(Long.MAX_VALUE);
+        assertThat(histogram.getBucketCount()).isEqualTo(buckets);
+        assertThat(histogram.getCount()).isEqualTo(1000001);
+        assertThat(histogram.getMax()).isEqualTo(Long.MAX_VALUE);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    /** Tests that an empty histogram reports zeroes. */
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0);
+        assertThat(histogram.getMin()).isEqualTo(0);
+        assertThat(histogram.getMax()).isEqualTo(0);
+    }
+
+    /** Tests that negative values are rejected. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        new LatencyHistogram().record(-1);
+    }
+}
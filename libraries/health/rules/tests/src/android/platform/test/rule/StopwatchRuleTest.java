@@ -17,6 +17,8 @@
 package android.platform.test.rule;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import android.app.Instrumentation;
@@ -29,6 +31,10 @@ import org.junit.runners.JUnit4;
 import org.junit.runners.model.Statement;
 import org.mockito.Mockito;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
 @RunWith(JUnit4.class)
 public class StopwatchRuleTest {
 
@@ -70,4 +76,166 @@ public class StopwatchRuleTest {
                 .evaluate();
         verify(instr).sendStatus(StopwatchRule.INST_STATUS_IN_PROGRESS, rule.getMetric());
     }
+
+    @Test
+    public void testHistogramSharedAcrossIterations() throws Throwable {
+        FakeClockStopwatchRule rule = new FakeClockStopwatchRule();
+        Instrumentation instr = Mockito.mock(Instrumentation.class);
+        rule.setInstrumentation(instr);
+        Description method = Description.createTestDescription("clzz", "method");
+        Description other = Description.createTestDescription("clzz", "other");
+        Statement iterations =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        // 100 iterations of 1..100us, then one iteration of another method.
+                        for (long i = 1; i <= 100; i++) {
+                            rule.setNextDuration(i * 1000);
+                            rule.apply(EMPTY_STATEMENT, method).evaluate();
+                        }
+                        rule.setNextDuration(5);
+                        rule.apply(EMPTY_STATEMENT, other).evaluate();
+                        // Nothing is reported until the class finishes.
+                        verify(instr, never()).sendStatus(Mockito.anyInt(), Mockito.any());
+                    }
+                };
+        rule.apply(iterations, suite(method, other)).evaluate();
+
+        verify(instr).sendStatus(StopwatchRule.INST_STATUS_IN_PROGRESS, rule.getMetric());
+        Bundle metric = rule.getMetric();
+        assertEquals(100, metric.getLong(key("count", "method")));
+        assertEquals(1000, metric.getLong(key("min", "method")));
+        assertEquals(100000, metric.getLong(key("max", "method")));
+        assertEquals(50500, metric.getLong(key("mean", "method")));
+        assertEquals(50000, metric.getLong(key("p50", "method")), 50000 * 0.004);
+        assertEquals(90000, metric.getLong(key("p90", "method")), 90000 * 0.004);
+        assertEquals(99000, metric.getLong(key("p99", "method")), 99000 * 0.004);
+        assertEquals(100000, metric.getLong(key("p99_9", "method")));
+        assertEquals(1, metric.getLong(key("count", "other")));
+        assertEquals(5, metric.getLong(key("p50", "other")));
+        // No per-iteration millisecond keys are reported.
+        assertFalse(
+                metric.containsKey(String.format(StopwatchRule.METRIC_FORMAT, "clzz", "method")));
+    }
+
+    @Test
+    public void testHistogramSkipsFailures() throws Throwable {
+        FakeClockStopwatchRule rule = new FakeClockStopwatchRule();
+        Instrumentation instr = Mockito.mock(Instrumentation.class);
+        rule.setInstrumentation(instr);
+        Description method = Description.createTestDescription("clzz", "method");
+        Statement iterations =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        rule.setNextDuration(1000);
+                        rule.apply(EMPTY_STATEMENT, method).evaluate();
+                        rule.setNextDuration(2000);
+                        try {
+                            rule.apply(FAILING_STATEMENT, method).evaluate();
+                        } catch (AssertionError e) {
+                            // Expected.
+                        }
+                    }
+                };
+        rule.apply(iterations, suite(method)).evaluate();
+        assertEquals(1, rule.getMetric().getLong(key("count", "method")));
+        assertEquals(1000, rule.getMetric().getLong(key("max", "method")));
+    }
+
+    @Test
+    public void testHistogramSharedAcrossRenamedIterations() throws Throwable {
+        FakeClockStopwatchRule rule = new FakeClockStopwatchRule();
+        rule.setInstrumentation(Mockito.mock(Instrumentation.class));
+        Description method = Description.createTestDescription("clzz", "method");
+        Statement iterations =
+                new Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        // Iterations renamed by Microbenchmark, e.g. "clzz$1#method".
+                        for (long i = 1; i <= 3; i++) {
+                            rule.setNextDuration(i * 1000);
+                            rule.apply(
+                                            EMPTY_STATEMENT,
+                                            Description.createTestDescription(
+                                                    "clzz$" + i, "method"))
+                                    .evaluate();
+                        }
+                    }
+                };
+        rule.apply(iterations, suite(method)).evaluate();
+
+        Bundle metric = rule.getMetric();
+        assertEquals(3, metric.getLong(key("count", "method")));
+        assertEquals(3000, metric.getLong(key("max", "method")));
+        assertFalse(
+                metric.containsKey(
+                        StopwatchRule.getHistogramMetricKey("count", "clzz$1", "method")));
+    }
+
+    @Test
+    public void testStripIteration() {
+        assertEquals("clzz", StopwatchRule.stripIteration("clzz$12", "$"));
+        assertEquals("clzz", StopwatchRule.stripIteration("clzz_12", "_"));
+        assertEquals("Outer$Inner", StopwatchRule.stripIteration("Outer$Inner", "$"));
+        assertEquals("Outer$Inner", StopwatchRule.stripIteration("Outer$Inner$3", "$"));
+        assertEquals("clzz$", StopwatchRule.stripIteration("clzz$", "$"));
+    }
+
+    @Test
+    public void testPercentileName() {
+        assertEquals("p50", StopwatchRule.percentileName(50));
+        assertEquals("p99_9", StopwatchRule.percentileName(99.9));
+    }
+
+    /** Returns the description of class "clzz", which, without children, would be a test. */
+    private static Description suite(Description... methods) {
+        Description suite = Description.createSuiteDescription("clzz");
+        for (Description method : methods) {
+            suite.addChild(method);
+        }
+        return suite;
+    }
+
+    private static String key(String statistic, String method) {
+        return StopwatchRule.getHistogramMetricKey(statistic, "clzz", method);
+    }
+
+    private static final Statement EMPTY_STATEMENT =
+            new Statement() {
+                @Override
+                public void evaluate() throws Throwable {}
+            };
+
+    private static final Statement FAILING_STATEMENT =
+            new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    throw new AssertionError("failure");
+                }
+            };
+
+    /** A histogram-mode {@link StopwatchRule} whose clock advances by a set duration per read. */
+    private static class FakeClockStopwatchRule extends StopwatchRule {
+        private final Deque<Long> mTimes = new ArrayDeque<>();
+
+        FakeClockStopwatchRule() {
+            super(true);
+        }
+
+        void setNextDuration(long nanos) {
+            mTimes.clear();
+            mTimes.addAll(Arrays.asList(0L, nanos));
+        }
+
+        @Override
+        protected long elapsedRealtimeNanos() {
+            return mTimes.pop();
+        }
+
+        @Override
+        protected Bundle getArguments() {
+            return new Bundle();
+        }
+    }
 }
@@ -22,6 +22,7 @@ import android.os.Bundle;
 import android.os.SystemClock;
 import android.platform.test.longevity.proto.Configuration.Scenario;
 import android.platform.test.longevity.proto.Configuration.Scenario.ExtraArg;
+import android.platform.test.option.TestOption;
 import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 
@@ -126,6 +127,8 @@ public class ScheduledScenarioRunner extends LongevityClassRunner {
         // Restore the arguments to the state prior to the scenario.
         InstrumentationRegistry.registerInstance(
                 InstrumentationRegistry.getInstrumentation(), mArguments);
+        // Option values parsed from the scenario's arguments are not used again.
+        TestOption.clearParsedValues();
         // If there are remaining scenarios, idle until the next one starts.
         if (mShouldIdle) {
             performIdleBeforeNextScenario(getTimeRemaining());
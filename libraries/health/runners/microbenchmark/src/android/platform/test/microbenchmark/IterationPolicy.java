@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.microbenchmark;
+
+import android.os.Bundle;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.List;
+
+/**
+ * Decides how many times the {@link Microbenchmark} runner repeats a method when adaptive
+ * iteration is enabled. A method is first repeated, unmeasured, until its timing is stable and then
+ * repeated, measured, until the 95% confidence interval of its mean is narrow enough.
+ */
+class IterationPolicy {
+    @VisibleForTesting static final String WARMUP_OPTION = "warmup-until-stable";
+    @VisibleForTesting static final String WARMUP_WINDOW_OPTION = "warmup-window";
+    @VisibleForTesting static final int WARMUP_WINDOW_DEFAULT = 5;
+    @VisibleForTesting static final String WARMUP_THRESHOLD_OPTION = "warmup-threshold";
+    @VisibleForTesting static final double WARMUP_THRESHOLD_DEFAULT = 0.05;
+    @VisibleForTesting static final String MAX_WARMUP_OPTION = "max-warmup-iterations";
+    @VisibleForTesting static final int MAX_WARMUP_DEFAULT = 50;
+    @VisibleForTesting static final String TARGET_CI_OPTION = "target-ci-width";
+    @VisibleForTesting static final String MIN_ITERATIONS_OPTION = "min-iterations";
+    @VisibleForTesting static final int MIN_ITERATIONS_DEFAULT = 5;
+    @VisibleForTesting static final String MAX_ITERATIONS_OPTION = "max-iterations";
+    @VisibleForTesting static final int MAX_ITERATIONS_DEFAULT = 100;
+    @VisibleForTesting static final String OUTLIER_THRESHOLD_OPTION = "outlier-threshold";
+    // Shared with the iterations option of {@link android.platform.test.composer.Iterate}.
+    @VisibleForTesting static final String ITERATIONS_OPTION = "iterations";
+
+    private final boolean mWarmup;
+    private final int mWarmupWindow;
+    private final double mWarmupThreshold;
+    private final int mMaxWarmup;
+    private final double mTargetCiWidth;
+    private final int mMinIterations;
+    private final int mMaxIterations;
+    private final double mOutlierThreshold;
+    private final int mIterations;
+
+    IterationPolicy(Bundle arguments) {
+        mWarmup = Boolean.valueOf(arguments.getString(WARMUP_OPTION));
+        mWarmupWindow = getInt(arguments, WARMUP_WINDOW_OPTION, WARMUP_WINDOW_DEFAULT);
+        mWarmupThreshold = getDouble(arguments, WARMUP_THRESHOLD_OPTION, WARMUP_THRESHOLD_DEFAULT);
+        mMaxWarmup = getInt(arguments, MAX_WARMUP_OPTION, MAX_WARMUP_DEFAULT);
+        mTargetCiWidth = getDouble(arguments, TARGET_CI_OPTION, 0);
+        mMinIterations = Math.max(2, getInt(arguments, MIN_ITERATIONS_OPTION,
+                MIN_ITERATIONS_DEFAULT));
+        mMaxIterations = Math.max(mMinIterations, getInt(arguments, MAX_ITERATIONS_OPTION,
+                MAX_ITERATIONS_DEFAULT));
+        mOutlierThreshold = getDouble(arguments, OUTLIER_THRESHOLD_OPTION, 0);
+        mIterations = getInt(arguments, ITERATIONS_OPTION, 1);
+        if (mWarmupWindow < 1) {
+            throw new IllegalArgumentException(
+                    String.format("The %s option must be positive.", WARMUP_WINDOW_OPTION));
+        }
+    }
+
+    /** Returns whether any of the adaptive iteration options are set. */
+    boolean isEnabled() {
+        return mWarmup || mTargetCiWidth > 0 || mOutlierThreshold > 0;
+    }
+
+    boolean isWarmupEnabled() {
+        return mWarmup;
+    }
+
+    /**
+     * Returns whether warmup can stop, which is when the mean of the last window of samples is
+     * within the threshold of the mean of the window before it, or the warmup limit is reached.
+     */
+    boolean isWarmupComplete(List<Long> samples) {
+        if (!mWarmup || samples.size() >= mMaxWarmup) {
+            return true;
+        }
+        int size = samples.size();
+        if (size < 2 * mWarmupWindow) {
+            return false;
+        }
+        double previous = mean(samples.subList(size - 2 * mWarmupWindow, size - mWarmupWindow));
+        double current = mean(samples.subList(size - mWarmupWindow, size));
+        return previous > 0 && Math.abs(current - previous) / previous <= mWarmupThreshold;
+    }
+
+    /**
+     * Returns whether measurement can stop. With a target confidence interval width, this is when
+     * the relative width of the 95% confidence interval of the (trimmed) mean falls below the
+     * target, bounded by the minimum and maximum iterations; otherwise it is after the fixed number
+     * of iterations.
+     */
+    boolean isMeasurementComplete(List<Long> samples) {
+        int size = samples.size();
+        if (mTargetCiWidth <= 0) {
+            return size >= mIterations;
+        }
+        if (size >= mMaxIterations) {
+            return true;
+        }
+        if (size < mMinIterations) {
+            return false;
+        }
+        return summarize(samples).getRelativeCi95Width() <= mTargetCiWidth;
+    }
+
+    /** Returns the statistics of {@code samples}, with outliers trimmed if enabled. */
+    SampleStatistics summarize(List<Long> samples) {
+        return SampleStatistics.trimmed(samples, mOutlierThreshold);
+    }
+
+    private static double mean(List<Long> samples) {
+        double sum = 0;
+        for (long sample : samples) {
+            sum += sample;
+        }
+        return sum / samples.size();
+    }
+
+    private static int getInt(Bundle arguments, String option, int defaultValue) {
+        String value = arguments.getString(option);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    String.format("The %s option must be an integer, got \"%s\".", option, value),
+                    e);
+        }
+    }
+
+    private static double getDouble(Bundle arguments, String option, double defaultValue) {
+        String value = arguments.getString(option);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    String.format("The %s option must be a number, got \"%s\".", option, value),
+                    e);
+        }
+    }
+}
@@ -25,12 +25,16 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.LongSupplier;
 
 import org.junit.rules.TestRule;
 import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
 import org.junit.runner.notification.RunNotifier;
 import org.junit.runners.BlockJUnit4ClassRunner;
 import org.junit.runners.model.InitializationError;
@@ -41,6 +45,12 @@ import org.junit.runners.model.Statement;
  * The {@code Microbenchmark} runner allows you to run test methods repeatedly and with {@link
  * TightMethodRule}s in order to reliably measure a specific test method in isolation. Samples are
  * soon to follow.
+ *
+ * <p>By default, each method is repeated a fixed number of times. If any of the {@link
+ * IterationPolicy} options are supplied, each method is instead timed and repeated adaptively: it
+ * is optionally warmed up until its timing is stable, then measured until the 95% confidence
+ * interval of its mean is narrow enough, and the summary statistics are reported to the
+ * instrumentation.
  */
 public class Microbenchmark extends BlockJUnit4ClassRunner {
     private Bundle mArguments;
@@ -50,12 +60,24 @@ public class Microbenchmark extends BlockJUnit4ClassRunner {
     // A constant to indicate that the iteration number is not set.
     @VisibleForTesting static final int ITERATION_NOT_SET = -1;
     public static final String RENAME_ITERATION_OPTION = "rename-iterations";
+    /**
+     * Metrics will be reported under the "status in progress" for test cases to be associated with
+     * the running use cases.
+     */
+    @VisibleForTesting static final int INST_STATUS_IN_PROGRESS = 2;
+    @VisibleForTesting static final String METRIC_FORMAT = "microbenchmark_%s_%s#%s";
 
     private String mIterationSep = ITERATION_SEP_DEFAULT;
 
     private boolean mRenameIterations;
     private Map<Description, Integer> mIterations = new HashMap<>();
 
+    private final IterationPolicy mPolicy;
+    private LongSupplier mClock = System::nanoTime;
+    // The samples of the method currently being timed, or null if timing is disabled.
+    private List<Long> mSamples;
+    private boolean mWarmingUp;
+
     /**
      * Called reflectively on classes annotated with {@code @RunWith(Microbenchmark.class)}.
      */
@@ -76,6 +98,7 @@ public class Microbenchmark extends BlockJUnit4ClassRunner {
                 arguments.containsKey(ITERATION_SEP_OPTION)
                         ? arguments.getString(ITERATION_SEP_OPTION)
                         : mIterationSep;
+        mPolicy = new IterationPolicy(arguments);
     }
 
     /**
@@ -86,6 +109,10 @@ public class Microbenchmark extends BlockJUnit4ClassRunner {
     @Override
     protected Statement methodInvoker(FrameworkMethod method, Object test) {
         Statement start = super.methodInvoker(method, test);
+        // Time only the test method itself when iterating adaptively.
+        if (mPolicy.isEnabled()) {
+            start = getTimingStatement(start);
+        }
         // Wrap the inner-most test method with trace points.
         start = getTracePointRule().apply(start, describeChild(method));
         // Invoke special @TightMethodRules that wrap @Test methods.
@@ -102,12 +129,37 @@ public class Microbenchmark extends BlockJUnit4ClassRunner {
         return new TracePointRule();
     }
 
+    /** Returns a {@link Statement} that records the duration of {@code base} when it succeeds. */
+    private Statement getTimingStatement(Statement base) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                long start = mClock.getAsLong();
+                base.evaluate();
+                long duration = mClock.getAsLong() - start;
+                if (mSamples != null) {
+                    mSamples.add(duration);
+                }
+            }
+        };
+    }
+
+    /** Replaces the nanosecond clock used to time methods. */
+    @VisibleForTesting
+    void setClock(LongSupplier clock) {
+        mClock = clock;
+    }
+
     /**
-     * Returns a list of repeated {@link FrameworkMethod}s to execute.
+     * Returns a list of repeated {@link FrameworkMethod}s to execute. When iterating adaptively,
+     * each method is listed once and repeated by {@link #runChild}.
      */
     @Override
     protected List<FrameworkMethod> getChildren() {
-       return new Iterate<FrameworkMethod>().apply(mArguments, super.getChildren());
+        if (mPolicy.isEnabled()) {
+            return super.getChildren();
+        }
+        return new Iterate<FrameworkMethod>().apply(mArguments, super.getChildren());
     }
 
     /**
@@ -151,7 +203,7 @@ public class Microbenchmark extends BlockJUnit4ClassRunner {
     @Override
     protected Description describeChild(FrameworkMethod method) {
         Description original = super.describeChild(method);
-        if (!mRenameIterations) {
+        if (!mRenameIterations || mWarmingUp) {
             return original;
         }
         return Description.createTestDescription(
@@ -160,11 +212,74 @@ public class Microbenchmark extends BlockJUnit4ClassRunner {
     }
 
     /**
-     * Keep track of the number of iterations for a particular method and
-     * set the current iteration count for changing the current description.
+     * Runs {@code method} once, or, when iterating adaptively, warms it up and repeats it until the
+     * {@link IterationPolicy} is satisfied and then reports its timing statistics.
      */
     @Override
     protected void runChild(final FrameworkMethod method, RunNotifier notifier) {
+        if (!mPolicy.isEnabled() || isIgnored(method)) {
+            runIteration(method, notifier);
+            return;
+        }
+        int warmupIterations = warmUp(method);
+        List<Long> samples = new ArrayList<>();
+        mSamples = samples;
+        try {
+            while (!mPolicy.isMeasurementComplete(samples)) {
+                int before = samples.size();
+                runIteration(method, notifier);
+                // Stop repeating a method that fails or is skipped, as it will not produce samples.
+                if (samples.size() == before) {
+                    break;
+                }
+            }
+        } finally {
+            mSamples = null;
+        }
+        reportStatistics(super.describeChild(method), warmupIterations, samples);
+    }
+
+    /**
+     * Runs {@code method} without reporting results until its timing is stable, and returns the
+     * number of warmup iterations. A failure is left to be reported by the measured iterations.
+     */
+    private int warmUp(FrameworkMethod method) {
+        if (!mPolicy.isWarmupEnabled()) {
+            return 0;
+        }
+        RunNotifier warmupNotifier = new RunNotifier();
+        final boolean[] failed = {false};
+        warmupNotifier.addListener(
+                new RunListener() {
+                    @Override
+                    public void testFailure(Failure failure) {
+                        failed[0] = true;
+                    }
+
+                    @Override
+                    public void testAssumptionFailure(Failure failure) {
+                        failed[0] = true;
+                    }
+                });
+        List<Long> samples = new ArrayList<>();
+        mSamples = samples;
+        mWarmingUp = true;
+        try {
+            while (!failed[0] && !mPolicy.isWarmupComplete(samples)) {
+                super.runChild(method, warmupNotifier);
+            }
+        } finally {
+            mWarmingUp = false;
+            mSamples = null;
+        }
+        return samples.size();
+    }
+
+    /**
+     * Keep track of the number of iterations for a particular method and
+     * set the current iteration count for changing the current description.
+     */
+    private void runIteration(final FrameworkMethod method, RunNotifier notifier) {
         if (mRenameIterations) {
             Description original = super.describeChild(method);
             mIterations.computeIfPresent(original, (k, v) -> v + 1);
@@ -172,4 +287,45 @@ public class Microbenchmark extends BlockJUnit4ClassRunner {
         }
         super.runChild(method, notifier);
     }
+
+    /** Reports the timing statistics of {@code samples} for {@code description}. */
+    private void reportStatistics(Description description, int warmupIterations,
+            List<Long> samples) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        SampleStatistics stats = mPolicy.summarize(samples);
+        Bundle metrics = new Bundle();
+        putMetric(metrics, description, "iterations", samples.size());
+        putMetric(metrics, description, "warmup_iterations", warmupIterations);
+        putMetric(metrics, description, "outliers", stats.getOutliers());
+        putMetric(metrics, description, "mean_ns", stats.getMean());
+        putMetric(metrics, description, "median_ns", stats.getMedian());
+        putMetric(metrics, description, "stddev_ns", stats.getStdDev());
+        putMetric(metrics, description, "min_ns", stats.getMin());
+        putMetric(metrics, description, "max_ns", stats.getMax());
+        if (!Double.isInfinite(stats.getRelativeCi95Width())) {
+            putMetric(metrics, description, "ci95_ns", stats.getCi95HalfWidth());
+            putMetric(metrics, description, "relative_ci95", stats.getRelativeCi95Width());
+        }
+        sendMetrics(metrics);
+    }
+
+    private static void putMetric(Bundle metrics, Description description, String name,
+            double value) {
+        metrics.putString(
+                String.format(METRIC_FORMAT, name, description.getClassName(),
+                        description.getMethodName()),
+                value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value));
+    }
+
+    /**
+     * Sends {@code metrics} to the instrumentation.
+     *
+     * <p>Override this for unit testing metric reporting.
+     */
+    @VisibleForTesting
+    protected void sendMetrics(Bundle metrics) {
+        InstrumentationRegistry.getInstrumentation().sendStatus(INST_STATUS_IN_PROGRESS, metrics);
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.test.microbenchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable summary of a set of timing samples, in nanoseconds, used by the {@link
+ * Microbenchmark} runner to decide when to stop iterating and what to report.
+ */
+final class SampleStatistics {
+    /**
+     * Two-sided 95% critical values of Student's t-distribution, indexed by degrees of freedom
+     * minus one. Beyond the table, the normal approximation is used.
+     */
+    private static final double[] T_CRITICAL_95 = {
+        12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+        2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+        2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042,
+    };
+    private static final double Z_CRITICAL_95 = 1.960;
+    // Scales the median absolute deviation to be comparable to a standard deviation.
+    private static final double MAD_SCALE = 0.6745;
+
+    private final int mCount;
+    private final int mOutliers;
+    private final double mMean;
+    private final double mMedian;
+    private final double mStdDev;
+    private final long mMin;
+    private final long mMax;
+
+    private SampleStatistics(long[] sorted, int outliers) {
+        mCount = sorted.length;
+        mOutliers = outliers;
+        mMin = mCount > 0 ? sorted[0] : 0;
+        mMax = mCount > 0 ? sorted[mCount - 1] : 0;
+        mMedian = median(sorted);
+        double sum = 0;
+        for (long sample : sorted) {
+            sum += sample;
+        }
+        mMean = mCount > 0 ? sum / mCount : 0;
+        double squares = 0;
+        for (long sample : sorted) {
+            squares += (sample - mMean) * (sample - mMean);
+        }
+        mStdDev = mCount > 1 ? Math.sqrt(squares / (mCount - 1)) : 0;
+    }
+
+    /**
+     * Summarizes the {@code samples} after discarding outliers, which are samples whose modified
+     * z-score, based on the median absolute deviation, exceeds {@code threshold}. A non-positive
+     * {@code threshold} disables trimming.
+     */
+    static SampleStatistics trimmed(List<Long> samples, double threshold) {
+        long[] sorted = toSortedArray(samples);
+        if (threshold <= 0 || sorted.length < 3) {
+            return new SampleStatistics(sorted, 0);
+        }
+        double median = median(sorted);
+        double[] deviations = new double[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            deviations[i] = Math.abs(sorted[i] - median);
+        }
+        Arrays.sort(deviations);
+        double mad = median(deviations);
+        if (mad == 0) {
+            return new SampleStatistics(sorted, 0);
+        }
+        List<Long> kept = new ArrayList<>();
+        for (long sample : sorted) {
+            if (MAD_SCALE * Math.abs(sample - median) / mad <= threshold) {
+                kept.add(sample);
+            }
+        }
+        return new SampleStatistics(toSortedArray(kept), sorted.length - kept.size());
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    int getOutliers() {
+        return mOutliers;
+    }
+
+    double getMean() {
+        return mMean;
+    }
+
+    double getMedian() {
+        return mMedian;
+    }
+
+    double getStdDev() {
+        return mStdDev;
+    }
+
+    long getMin() {
+        return mMin;
+    }
+
+    long getMax() {
+        return mMax;
+    }
+
+    /** Returns the half-width of the 95% confidence interval of the mean. */
+    double getCi95HalfWidth() {
+        if (mCount < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int df = mCount - 1;
+        double critical = df <= T_CRITICAL_95.length ? T_CRITICAL_95[df - 1] : Z_CRITICAL_95;
+        return critical * mStdDev / Math.sqrt(mCount);
+    }
+
+    /**
+     * Returns the full width of the 95% confidence interval of the mean relative to the mean, or
+     * infinity if it is undefined.
+     */
+    double getRelativeCi95Width() {
+        return mMean > 0 ? 2 * getCi95HalfWidth() / mMean : Double.POSITIVE_INFINITY;
+    }
+
+    private static long[] toSortedArray(List<Long> samples) {
+        long[] sorted = new long[samples.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static double median(long[] sorted) {
+        int n = sorted.length;
+        if (n == 0) {
+            return 0;
+        }
+        return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2.0;
+    }
+
+    private static double median(double[] sorted) {
+        int n = sorted.length;
+        if (n == 0) {
+            return 0;
+        }
+        return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2.0;
+    }
+}
@@ -33,7 +33,9 @@ import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.Statement;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.LongSupplier;
 
 /**
  * Unit tests for the {@link Microbenchmark} runner.
@@ -179,6 +181,102 @@ public final class MicrobenchmarkTest {
             .inOrder();
     }
 
+    /** Tests that fixed iterations are timed and reported with outliers trimmed. */
+    @Test
+    public void testOutlierTrimming() throws InitializationError {
+        Bundle args = new Bundle();
+        args.putString("iterations", "5");
+        args.putString("outlier-threshold", "3.5");
+        TimedMicrobenchmark runner = new TimedMicrobenchmark(args, 100L, 101L, 99L, 100L, 10000L);
+        Result result = new JUnitCore().run(runner);
+        assertThat(result.wasSuccessful()).isTrue();
+        assertThat(result.getRunCount()).isEqualTo(5);
+        assertThat(runner.getMetric("iterations")).isEqualTo("5");
+        assertThat(runner.getMetric("warmup_iterations")).isEqualTo("0");
+        assertThat(runner.getMetric("outliers")).isEqualTo("1");
+        assertThat(runner.getMetric("mean_ns")).isEqualTo("100");
+        assertThat(runner.getMetric("min_ns")).isEqualTo("99");
+        assertThat(runner.getMetric("max_ns")).isEqualTo("101");
+    }
+
+    /** Tests that a stable method stops as soon as the confidence interval is narrow enough. */
+    @Test
+    public void testConfidenceIntervalStopsAtMinimum() throws InitializationError {
+        Bundle args = new Bundle();
+        args.putString("target-ci-width", "0.05");
+        args.putString("min-iterations", "5");
+        TimedMicrobenchmark runner = new TimedMicrobenchmark(args, 100L, 101L, 99L, 100L, 100L);
+        Result result = new JUnitCore().run(runner);
+        assertThat(result.wasSuccessful()).isTrue();
+        assertThat(result.getRunCount()).isEqualTo(5);
+        assertThat(runner.getMetric("iterations")).isEqualTo("5");
+        assertThat(Double.parseDouble(runner.getMetric("relative_ci95"))).isLessThan(0.05);
+    }
+
+    /** Tests that a noisy method stops at the maximum iterations. */
+    @Test
+    public void testConfidenceIntervalStopsAtMaximum() throws InitializationError {
+        Bundle args = new Bundle();
+        args.putString("target-ci-width", "0.01");
+        args.putString("min-iterations", "2");
+        args.putString("max-iterations", "8");
+        TimedMicrobenchmark runner =
+                new TimedMicrobenchmark(
+                        args, 100L, 300L, 100L, 300L, 100L, 300L, 100L, 300L, 100L, 300L);
+        Result result = new JUnitCore().run(runner);
+        assertThat(result.wasSuccessful()).isTrue();
+        assertThat(result.getRunCount()).isEqualTo(8);
+        assertThat(runner.getMetric("iterations")).isEqualTo("8");
+        assertThat(runner.getMetric("mean_ns")).isEqualTo("200");
+    }
+
+    /** Tests that warmup runs until stable, is excluded from results, and is not measured. */
+    @Test
+    public void testWarmupUntilStable() throws InitializationError {
+        Bundle args = new Bundle();
+        args.putString("warmup-until-stable", "true");
+        args.putString("warmup-window", "2");
+        args.putString("warmup-threshold", "0.05");
+        args.putString("iterations", "3");
+        TimedMicrobenchmark runner =
+                new TimedMicrobenchmark(args, 1000L, 500L, 250L, 120L, 100L, 100L, 100L, 100L, 50L);
+        Result result = new JUnitCore().run(runner);
+        assertThat(result.wasSuccessful()).isTrue();
+        assertThat(result.getRunCount()).isEqualTo(3);
+        assertThat(runner.getMetric("warmup_iterations")).isEqualTo("8");
+        assertThat(runner.getMetric("iterations")).isEqualTo("3");
+        assertThat(runner.getMetric("mean_ns")).isEqualTo("50");
+    }
+
+    /** Tests that warmup stops at its limit when the timing never stabilizes. */
+    @Test
+    public void testWarmupStopsAtMaximum() throws InitializationError {
+        Bundle args = new Bundle();
+        args.putString("warmup-until-stable", "true");
+        args.putString("warmup-window", "2");
+        args.putString("max-warmup-iterations", "6");
+        TimedMicrobenchmark runner =
+                new TimedMicrobenchmark(args, 100L, 300L, 500L, 700L, 900L, 1100L, 1300L);
+        Result result = new JUnitCore().run(runner);
+        assertThat(result.wasSuccessful()).isTrue();
+        assertThat(result.getRunCount()).isEqualTo(1);
+        assertThat(runner.getMetric("warmup_iterations")).isEqualTo("6");
+        assertThat(runner.getMetric("mean_ns")).isEqualTo("1300");
+    }
+
+    /** Tests that a failing method is not repeated until the maximum iterations. */
+    @Test
+    public void testFailureStopsIterating() throws InitializationError {
+        Bundle args = new Bundle();
+        args.putString("warmup-until-stable", "true");
+        args.putString("target-ci-width", "0.01");
+        TimedMicrobenchmark runner = new TimedMicrobenchmark(FailingTimedTest.class, args, 100L);
+        Result result = new JUnitCore().run(runner);
+        assertThat(result.getRunCount()).isEqualTo(1);
+        assertThat(result.getFailureCount()).isEqualTo(1);
+        assertThat(runner.getMetrics()).isNull();
+    }
+
     /**
      * An extensions of the {@link Microbenchmark} runner that logs the start and end of collecting
      * traces. It also passes the operation log to the provided test {@code Class}, if it is a
@@ -274,4 +372,105 @@ public final class MicrobenchmarkTest {
             }
         }
     }
+
+    /**
+     * A clock that advances by the next of a sequence of synthetic durations each time a {@link
+     * TimedTest} runs, repeating the last duration once the sequence is exhausted.
+     */
+    public static class FakeClock implements LongSupplier {
+        private final List<Long> mDurations;
+        private int mIndex;
+        private long mNow;
+
+        FakeClock(List<Long> durations) {
+            mDurations = durations;
+        }
+
+        void advance() {
+            mNow += mDurations.get(Math.min(mIndex++, mDurations.size() - 1));
+        }
+
+        @Override
+        public long getAsLong() {
+            return mNow;
+        }
+    }
+
+    /**
+     * An extension of the {@link Microbenchmark} runner that times with a {@link FakeClock} and
+     * captures the reported metrics.
+     */
+    public static class TimedMicrobenchmark extends Microbenchmark {
+        private final FakeClock mClock;
+        private Bundle mMetrics;
+
+        TimedMicrobenchmark(Bundle arguments, Long... durations) throws InitializationError {
+            this(TimedTest.class, arguments, durations);
+        }
+
+        TimedMicrobenchmark(Class<?> klass, Bundle arguments, Long... durations)
+                throws InitializationError {
+            super(klass, arguments);
+            mClock = new FakeClock(Arrays.asList(durations));
+            setClock(mClock);
+        }
+
+        @Override
+        protected Object createTest() throws Exception {
+            Object test = super.createTest();
+            ((TimedTest) test).setClock(mClock);
+            return test;
+        }
+
+        @Override
+        protected TracePointRule getTracePointRule() {
+            return new TracePointRule() {
+                @Override
+                protected void beginSection(String sectionTag) {}
+
+                @Override
+                protected void endSection() {}
+            };
+        }
+
+        @Override
+        protected void sendMetrics(Bundle metrics) {
+            mMetrics = metrics;
+        }
+
+        Bundle getMetrics() {
+            return mMetrics;
+        }
+
+        String getMetric(String name) {
+            return mMetrics.getString(
+                    String.format(
+                            Microbenchmark.METRIC_FORMAT, name, TimedTest.class.getName(),
+                            "testMethod"));
+        }
+    }
+
+    /** A test that takes the next synthetic duration of its {@link FakeClock} to run. */
+    public static class TimedTest {
+        private FakeClock mClock;
+
+        void setClock(FakeClock clock) {
+            mClock = clock;
+        }
+
+        @Test
+        public void testMethod() {
+            mClock.advance();
+        }
+    }
+
+    /** A {@link TimedTest} that always fails. */
+    public static class FailingTimedTest extends TimedTest {
+        @Test
+        @Override
+        public void testMethod() {
+            super.testMethod();
+            throw new AssertionError("failure");
+        }
+    }
 }
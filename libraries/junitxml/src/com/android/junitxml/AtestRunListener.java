@@ -21,15 +21,22 @@ import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 import org.junit.runner.notification.RunListener;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * {@link RunListener} to write JUnit4 test status to File, then atest could use this file to get
  * real time status}.
+ *
+ * <p>The file is kept open for the run. Events are buffered and flushed every {@code
+ * flushInterval} events, and when the run finishes.
  */
 public class AtestRunListener extends RunListener {
 
@@ -63,14 +70,34 @@ public class AtestRunListener extends RunListener {
 
     private final String mSuiteName;
 
+    private final int mFlushInterval;
+
+    private Writer mWriter;
+
+    private JsonWriter mJsonWriter;
+
+    private int mUnflushedEvents;
+
+    /** Flushes every event, as atest reads the file while the tests run. */
     public AtestRunListener(String suiteName, File reportFile, int totalCount) {
+        this(suiteName, reportFile, totalCount, 1);
+    }
+
+    /**
+     * @param flushInterval number of events to buffer before writing them to the file
+     */
+    public AtestRunListener(String suiteName, File reportFile, int totalCount, int flushInterval) {
+        if (flushInterval < 1) {
+            throw new IllegalArgumentException("Invalid flush interval: " + flushInterval);
+        }
         mSuiteName = suiteName;
         mReportFile = reportFile;
         mTotalCount = totalCount;
+        mFlushInterval = flushInterval;
     }
 
     @Override
-    public void testRunStarted(Description description) {
+    public synchronized void testRunStarted(Description description) {
         Map<String, Object> moduleStartEventData = new HashMap<>();
         moduleStartEventData.put(MODULE_NAME_KEY, mSuiteName);
         printEvent(StatusKeys.TEST_MODULE_STARTED, moduleStartEventData);
@@ -83,15 +110,16 @@ public class AtestRunListener extends RunListener {
     }
 
     @Override
-    public void testRunFinished(Result result) {
+    public synchronized void testRunFinished(Result result) {
         Map<String, Object> eventData = new HashMap<>();
         eventData.put(TIME_KEY, result.getRunTime());
         printEvent(StatusKeys.TEST_RUN_ENDED, eventData);
         printEvent(StatusKeys.TEST_MODULE_ENDED, new HashMap<>());
+        close();
     }
 
     @Override
-    public void testFailure(Failure failure) {
+    public synchronized void testFailure(Failure failure) {
         Description description = failure.getDescription();
         Map<String, Object> eventData = new HashMap<>();
         eventData.put(CLASSNAME_KEY, description.getClassName());
@@ -101,7 +129,7 @@ public class AtestRunListener extends RunListener {
     }
 
     @Override
-    public void testStarted(Description description) {
+    public synchronized void testStarted(Description description) {
         Map<String, Object> eventData = new HashMap<>();
         eventData.put(START_TIME_KEY, System.currentTimeMillis());
         eventData.put(CLASSNAME_KEY, description.getClassName());
@@ -110,7 +138,7 @@ public class AtestRunListener extends RunListener {
     }
 
     @Override
-    public void testFinished(Description description) {
+    public synchronized void testFinished(Description description) {
         Map<String, Object> eventData = new HashMap<>();
         eventData.put(END_TIME_KEY, System.currentTimeMillis());
         eventData.put(CLASSNAME_KEY, description.getClassName());
@@ -119,7 +147,7 @@ public class AtestRunListener extends RunListener {
     }
 
     @Override
-    public void testIgnored(Description description) {
+    public synchronized void testIgnored(Description description) {
         Map<String, Object> eventData = new HashMap<>();
         eventData.put(TESTNAME_KEY, description.getMethodName());
         eventData.put(CLASSNAME_KEY, description.getClassName());
@@ -131,34 +159,48 @@ public class AtestRunListener extends RunListener {
     }
 
     private void printEvent(String key, Map<String, Object> event) {
-        if (mReportFile.canWrite()) {
-            try {
-                try (FileWriter fw = new FileWriter(mReportFile, true)) {
-                    String eventLog = String.format("%s %s\n\n", key, toJson(event));
-                    fw.append(eventLog);
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        try {
+            if (mWriter == null) {
+                open();
+            }
+            mWriter.write(key);
+            mWriter.write(' ');
+            mJsonWriter.writeObject(event);
+            mWriter.write("\n\n");
+            if (++mUnflushedEvents >= mFlushInterval) {
+                mWriter.flush();
+                mUnflushedEvents = 0;
             }
-        } else {
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void open() throws IOException {
+        if (!mReportFile.canWrite()) {
             throw new RuntimeException(
                     String.format(
                             "report file: %s is not writable", mReportFile.getAbsolutePath()));
         }
+        mWriter =
+                new BufferedWriter(
+                        new OutputStreamWriter(
+                                new FileOutputStream(mReportFile, true), StandardCharsets.UTF_8));
+        mJsonWriter = new JsonWriter(mWriter);
     }
 
-    private String toJson(Map<String, Object> data) {
-        StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, Object> entry : data.entrySet()) {
-            sb.append(",");
-            sb.append("\"").append(entry.getKey()).append("\":");
-            if (entry.getValue() instanceof Number) {
-                sb.append(entry.getValue().toString());
-            } else {
-                sb.append("\"").append(entry.getValue()).append("\"");
+    /** Writes any buffered events and closes the file, which is reopened by later events. */
+    public synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                mWriter = null;
+                mJsonWriter = null;
+                mUnflushedEvents = 0;
             }
         }
-        sb.replace(0, 1, "{").append("}");
-        return sb.toString();
     }
 }
@@ -16,40 +16,68 @@
 
 package com.android.junitxml;
 
-import org.junit.Test;
 import org.junit.internal.TextListener;
+import org.junit.runner.Description;
 import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
 import org.junit.runner.Result;
+import org.junit.runner.Runner;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Method;
-import java.util.stream.Stream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 /**
  * A JUnit runner that is intended to use as replacement of JUnitCore
  * which in addition to printing the test failures to stdout, will
  * write the results in XML format to the path specified in the env
- * variable XML_OUTPUT_FILE.
+ * variable XML_OUTPUT_FILE. If XML_PROPERTY_FILTER is set, only the system properties whose names
+ * match that regular expression are written to the XML.
+ *
+ * <p>With {@code --parallel N}, test classes run on N threads, and the results of each class are
+ * written to the XML in the order the classes were given. With {@code --shard-index I} and
+ * {@code --shard-count C}, only the classes whose names hash to shard I of C run, so that each
+ * shard runs the same classes on every machine.
  *
  * <p>To use this runner:
  *     {@code TEST_WORKSPACE=[...]
  *            XML_OUTPUT_FILE=[...]
+ *            XML_PROPERTY_FILTER=[...]
  *            java -cp junitxml.jar [...] \
- *            com.android.junitxml.JUnitXmlRunner [Test classes]}
+ *            com.android.junitxml.JUnitXmlRunner [--parallel N] \
+ *            [--shard-index I --shard-count C] [Test classes]}
  */
 public class JUnitXmlRunner {
 
+    private static final String PARALLEL_OPTION = "--parallel";
+
+    private static final String SHARD_INDEX_OPTION = "--shard-index";
+
+    private static final String SHARD_COUNT_OPTION = "--shard-count";
+
     private static XmlRunListener getRunListener() {
         String outputFile = System.getenv("XML_OUTPUT_FILE");
         String suiteName = System.getenv("TEST_WORKSPACE");
+        String propertyFilter = System.getenv("XML_PROPERTY_FILTER");
         if (outputFile != null && outputFile.length() > 0) {
             try {
+                Pattern pattern =
+                        Pattern.compile(propertyFilter != null ? propertyFilter : ".*");
                 return new XmlRunListener(
                         new FileOutputStream(outputFile),
-                        suiteName != null ? suiteName : "Unknown test suite");
+                        suiteName != null ? suiteName : "Unknown test suite",
+                        name -> pattern.matcher(name).matches());
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
             }
@@ -70,52 +98,256 @@ public class JUnitXmlRunner {
     }
 
     public static void main(String... args) {
-        JUnitCore core = new JUnitCore();
         try {
-            Class[] as =
-                    Stream.of(args)
-                            .map(
-                                    test -> {
-                                        try {
-                                            return Class.forName(test);
-                                        } catch (ClassNotFoundException e) {
-                                            throw new RuntimeException(e);
-                                        }
-                                    })
-                            .toArray(Class[]::new);
-            TextListener textListener = new TextListener(System.out);
-            core.addListener(textListener);
-            XmlRunListener xmlListener = getRunListener();
-            if (xmlListener != null) {
-                core.addListener(xmlListener);
-            }
+            Options options = Options.parse(args);
+            List<Runner> runners = getRunners(options.getShard());
+            List<RunListener> listeners = new ArrayList<>();
+            listeners.add(new TextListener(System.out));
 
             // Add AtestRunListener to communicate with ATest.
-            AtestRunListener atestRunListener = getAtestRunListener(calcTestCount(as));
+            AtestRunListener atestRunListener = getAtestRunListener(countTests(runners));
             if (atestRunListener != null) {
-                core.addListener(atestRunListener);
+                listeners.add(atestRunListener);
             }
-            Result result = core.run(as);
+            XmlRunListener xmlListener = getRunListener();
+            Result result = run(runners, options.getParallelism(), xmlListener, listeners);
             if (xmlListener != null) {
                 xmlListener.endTestSuite();
             }
             System.exit(result.wasSuccessful() ? 0 : 1);
-        } catch (IOException e) {
+        } catch (IOException | ClassNotFoundException | InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static int calcTestCount(Class[] as) {
+    /** Creates a runner for each class, without running anything. */
+    static List<Runner> getRunners(List<String> classNames) throws ClassNotFoundException {
+        List<Runner> runners = new ArrayList<>(classNames.size());
+        for (String className : classNames) {
+            runners.add(Request.aClass(Class.forName(className)).getRunner());
+        }
+        return runners;
+    }
+
+    /** Counts the tests the runners will run, from their descriptions. */
+    static int countTests(List<Runner> runners) {
         int count = 0;
-        for (Class cls : as) {
-            Method[] declaredMethods = cls.getMethods();
-            for (Method method : declaredMethods) {
-                if (method.isAnnotationPresent(Test.class)) {
-                    count++;
+        for (Runner runner : runners) {
+            count += runner.getDescription().testCount();
+        }
+        return count;
+    }
+
+    /**
+     * Runs each runner with its own {@link JUnitCore}, on up to {@code parallelism} threads.
+     *
+     * @param xmlListener receives the results of the runners, or null. In a parallel run, each
+     *     runner reports to a separate fragment, which holds a file only while the runner runs
+     * @param listeners receive the events of all runners, one at a time, with a single {@link
+     *     RunListener#testRunStarted} and {@link RunListener#testRunFinished} around them
+     */
+    static Result run(
+            List<Runner> runners,
+            int parallelism,
+            XmlRunListener xmlListener,
+            List<RunListener> listeners)
+            throws InterruptedException {
+        Result result = new Result();
+        List<RunListener> allListeners = new ArrayList<>(listeners);
+        allListeners.add(0, result.createListener());
+        RunListener testListener = new SynchronizedTestListener(allListeners);
+
+        Description description = Description.createSuiteDescription("classes");
+        List<JUnitCore> cores = new ArrayList<>(runners.size());
+        for (Runner runner : runners) {
+            description.addChild(runner.getDescription());
+            JUnitCore core = new JUnitCore();
+            core.addListener(testListener);
+            if (xmlListener != null) {
+                // fragments are created in order, so the report does not depend on scheduling
+                core.addListener(parallelism == 1 ? xmlListener : xmlListener.createFragment());
+            }
+            cores.add(core);
+        }
+
+        fireTestRunStarted(allListeners, description);
+        if (parallelism == 1) {
+            for (int i = 0; i < runners.size(); i++) {
+                cores.get(i).run(runners.get(i));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try {
+                List<Future<Result>> futures = new ArrayList<>(runners.size());
+                for (int i = 0; i < runners.size(); i++) {
+                    JUnitCore core = cores.get(i);
+                    Runner runner = runners.get(i);
+                    futures.add(executor.submit(() -> core.run(runner)));
+                }
+                for (Future<Result> future : futures) {
+                    future.get();
                 }
+            } catch (ExecutionException e) {
+                // JUnitCore reports failures to the listeners, so this is a bug in a runner
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdownNow();
             }
         }
-        return count;
+        fireTestRunFinished(allListeners, result);
+        return result;
     }
-}
 
+    private static void fireTestRunStarted(List<RunListener> listeners, Description description) {
+        for (RunListener listener : listeners) {
+            try {
+                listener.testRunStarted(description);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void fireTestRunFinished(List<RunListener> listeners, Result result) {
+        for (RunListener listener : listeners) {
+            try {
+                listener.testRunFinished(result);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Whether a class runs in a shard, by a hash of its name which is the same on every JVM. */
+    static boolean isInShard(String className, int shardIndex, int shardCount) {
+        return Math.floorMod(className.hashCode(), shardCount) == shardIndex;
+    }
+
+    /** Command line options, followed by the test classes. */
+    static class Options {
+
+        private int mParallelism = 1;
+
+        private int mShardIndex = 0;
+
+        private int mShardCount = 1;
+
+        private final List<String> mClassNames = new ArrayList<>();
+
+        static Options parse(String... args) {
+            Options options = new Options();
+            boolean hasShardIndex = false;
+            boolean hasShardCount = false;
+            int i = 0;
+            for (; i < args.length && args[i].startsWith("--"); i++) {
+                String option = args[i];
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                int value = parseInt(option, args[++i]);
+                switch (option) {
+                    case PARALLEL_OPTION:
+                        if (value < 1) {
+                            throw new IllegalArgumentException(
+                                    PARALLEL_OPTION + " must be positive: " + value);
+                        }
+                        options.mParallelism = value;
+                        break;
+                    case SHARD_INDEX_OPTION:
+                        options.mShardIndex = value;
+                        hasShardIndex = true;
+                        break;
+                    case SHARD_COUNT_OPTION:
+                        options.mShardCount = value;
+                        hasShardCount = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            if (hasShardIndex != hasShardCount) {
+                throw new IllegalArgumentException(
+                        SHARD_INDEX_OPTION + " and " + SHARD_COUNT_OPTION + " must both be set");
+            }
+            if (options.mShardCount < 1
+                    || options.mShardIndex < 0
+                    || options.mShardIndex >= options.mShardCount) {
+                throw new IllegalArgumentException(
+                        "Invalid shard " + options.mShardIndex + " of " + options.mShardCount);
+            }
+            options.mClassNames.addAll(Arrays.asList(args).subList(i, args.length));
+            return options;
+        }
+
+        private static int parseInt(String option, String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+            }
+        }
+
+        int getParallelism() {
+            return mParallelism;
+        }
+
+        /** The classes to run in this shard, in the order they were given. */
+        List<String> getShard() {
+            List<String> shard = new ArrayList<>();
+            for (String className : mClassNames) {
+                if (isInShard(className, mShardIndex, mShardCount)) {
+                    shard.add(className);
+                }
+            }
+            return shard;
+        }
+    }
+
+    /**
+     * Forwards test events from several {@link JUnitCore}s to listeners which are not thread-safe.
+     * Each core only synchronizes the events it fires itself.
+     */
+    private static class SynchronizedTestListener extends RunListener {
+
+        private final List<RunListener> mListeners;
+
+        SynchronizedTestListener(List<RunListener> listeners) {
+            mListeners = listeners;
+        }
+
+        @Override
+        public synchronized void testStarted(Description description) throws Exception {
+            for (RunListener listener : mListeners) {
+                listener.testStarted(description);
+            }
+        }
+
+        @Override
+        public synchronized void testFinished(Description description) throws Exception {
+            for (RunListener listener : mListeners) {
+                listener.testFinished(description);
+            }
+        }
+
+        @Override
+        public synchronized void testFailure(Failure failure) throws Exception {
+            for (RunListener listener : mListeners) {
+                listener.testFailure(failure);
+            }
+        }
+
+        @Override
+        public synchronized void testAssumptionFailure(Failure failure) {
+            for (RunListener listener : mListeners) {
+                listener.testAssumptionFailure(failure);
+            }
+        }
+
+        @Override
+        public synchronized void testIgnored(Description description) throws Exception {
+            for (RunListener listener : mListeners) {
+                listener.testIgnored(description);
+            }
+        }
+    }
+}
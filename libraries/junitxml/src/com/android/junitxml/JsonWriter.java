@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.junitxml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes flat JSON objects to a {@link Writer} as they are produced. Strings are escaped so that
+ * the output is always valid, single-line JSON, whatever the test messages contain.
+ */
+class JsonWriter {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Writer mWriter;
+
+    JsonWriter(Writer writer) {
+        mWriter = writer;
+    }
+
+    /** Writes an object with string, number, boolean or null values. */
+    void writeObject(Map<String, ?> object) throws IOException {
+        mWriter.write('{');
+        boolean first = true;
+        for (Map.Entry<String, ?> entry : object.entrySet()) {
+            if (!first) {
+                mWriter.write(',');
+            }
+            first = false;
+            writeString(entry.getKey());
+            mWriter.write(':');
+            writeValue(entry.getValue());
+        }
+        mWriter.write('}');
+    }
+
+    void writeValue(Object value) throws IOException {
+        if (value == null) {
+            mWriter.write("null");
+        } else if (value instanceof Boolean) {
+            mWriter.write(value.toString());
+        } else if (value instanceof Number && isFinite((Number) value)) {
+            mWriter.write(value.toString());
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    void writeString(String value) throws IOException {
+        mWriter.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    mWriter.write("\\\"");
+                    break;
+                case '\\':
+                    mWriter.write("\\\\");
+                    break;
+                case '\b':
+                    mWriter.write("\\b");
+                    break;
+                case '\f':
+                    mWriter.write("\\f");
+                    break;
+                case '\n':
+                    mWriter.write("\\n");
+                    break;
+                case '\r':
+                    mWriter.write("\\r");
+                    break;
+                case '\t':
+                    mWriter.write("\\t");
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    // valid in JSON, but line terminators to some readers
+                    writeUnicodeEscape(c);
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writeUnicodeEscape(c);
+                    } else if (Character.isHighSurrogate(c)
+                            && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        mWriter.write(c);
+                        mWriter.write(value.charAt(++i));
+                    } else if (Character.isSurrogate(c)) {
+                        // an unpaired surrogate cannot be encoded as UTF-8
+                        writeUnicodeEscape(c);
+                    } else {
+                        mWriter.write(c);
+                    }
+            }
+        }
+        mWriter.write('"');
+    }
+
+    private void writeUnicodeEscape(char c) throws IOException {
+        mWriter.write("\\u");
+        mWriter.write(HEX_DIGITS[(c >> 12) & 0xF]);
+        mWriter.write(HEX_DIGITS[(c >> 8) & 0xF]);
+        mWriter.write(HEX_DIGITS[(c >> 4) & 0xF]);
+        mWriter.write(HEX_DIGITS[c & 0xF]);
+    }
+
+    // NaN and infinity have no JSON representation, so are written as strings.
+    private static boolean isFinite(Number number) {
+        if (number instanceof Double || number instanceof Float) {
+            double value = number.doubleValue();
+            return !Double.isNaN(value) && !Double.isInfinite(value);
+        }
+        return true;
+    }
+}
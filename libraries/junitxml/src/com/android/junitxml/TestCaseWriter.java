@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.junitxml;
+
+import org.junit.Ignore;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link RunListener} which writes each test case to a temporary file as soon as it finishes, and
+ * counts the results, for {@link XmlRunListener} to copy into a suite.
+ *
+ * <p>The file is only opened when the first test case is written, and is closed when the run it
+ * listens to finishes, so that a listener only holds a file while its tests run.
+ */
+class TestCaseWriter extends RunListener implements XmlConstants {
+
+    private static final double ONE_SECOND = 1000.0;
+
+    private static final String TESTCASE_NAME_UNKNOWN = "unknown";
+
+    private File mFile;
+
+    private Writer mWriter;
+
+    private XmlWriter mTestCases;
+
+    // Tests which have started but not finished, with their results so far.
+    private final Map<Description, TestCase> mRunningTests = new HashMap<>();
+
+    private int mTestCount;
+
+    private int mFailureCount;
+
+    private int mErrorCount;
+
+    private int mSkippedCount;
+
+    private boolean mClosed;
+
+    synchronized int getTestCount() {
+        return mTestCount;
+    }
+
+    synchronized int getFailureCount() {
+        return mFailureCount;
+    }
+
+    synchronized int getErrorCount() {
+        return mErrorCount;
+    }
+
+    synchronized int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /** Whether the file is open, i.e. test cases have been written and the run has not ended. */
+    synchronized boolean isOpen() {
+        return mWriter != null && !mClosed;
+    }
+
+    /** Writes tests which never finished, e.g. because of a timeout, and closes the file. */
+    synchronized void close() throws IOException {
+        if (!mClosed) {
+            for (TestCase testCase : new ArrayList<>(mRunningTests.values())) {
+                writeTestCase(testCase);
+            }
+            if (mWriter != null) {
+                mWriter.close();
+            }
+            mClosed = true;
+        }
+    }
+
+    /** Copies the test cases into a suite, after {@link #close()}. */
+    synchronized void copyTo(XmlWriter suite) throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        try (Reader testCases =
+                new InputStreamReader(new FileInputStream(mFile), StandardCharsets.UTF_8)) {
+            suite.copy(testCases);
+        }
+    }
+
+    synchronized void delete() {
+        if (mFile != null) {
+            mFile.delete();
+        }
+    }
+
+    @Override
+    public synchronized void testRunFinished(org.junit.runner.Result result) throws Exception {
+        close();
+    }
+
+    @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
+    @Override
+    public synchronized void testFailure(Failure failure) throws Exception {
+        Description description = failure.getDescription();
+        TestCase testCase = getTestCase(description);
+
+        String message = failure.getMessage();
+        boolean isFailure = failure.getException() instanceof AssertionError;
+        testCase.mResults.add(
+                new Result(
+                        isFailure ? ELEMENT_FAILURE : ELEMENT_ERROR,
+                        message != null && message.length() > 0 ? message : null,
+                        description.getClassName(),
+                        failure.getTrace()));
+        if (isFailure) {
+            testCase.mFailed = true;
+        } else {
+            testCase.mErrored = true;
+        }
+        finishIfNotStarted(testCase);
+    }
+
+    @Override
+    public synchronized void testFinished(Description description) throws Exception {
+        writeTestCase(getTestCase(description));
+    }
+
+    @Override
+    public synchronized void testStarted(Description description) throws Exception {
+        mRunningTests.put(description, new TestCase(description));
+    }
+
+    @Override
+    public synchronized void testIgnored(Description description) throws Exception {
+        Ignore ignoreAnnotation = description.getAnnotation(Ignore.class);
+        formatSkip(description, ignoreAnnotation != null ? ignoreAnnotation.value() : null, false);
+    }
+
+    @Override
+    public synchronized void testAssumptionFailure(Failure failure) {
+        try {
+            formatSkip(failure.getDescription(), failure.getMessage(), true);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Only assumption failures are counted as skipped in the suite, not ignored tests.
+    private void formatSkip(Description description, String message, boolean countSkipped)
+            throws IOException {
+        TestCase testCase = getTestCase(description);
+        testCase.mResults.add(new Result(ELEMENT_SKIPPED, message, null, null));
+        testCase.mSkipped |= countSkipped;
+        finishIfNotStarted(testCase);
+    }
+
+    // Get the results of a test, which need not have started, e.g. if it is ignored or its class
+    // failed to initialize.
+    private TestCase getTestCase(Description description) {
+        TestCase testCase = mRunningTests.get(description);
+        return testCase != null ? testCase : new TestCase(description);
+    }
+
+    // Tests which were never started are not followed by testFinished, so write them now.
+    private void finishIfNotStarted(TestCase testCase) throws IOException {
+        if (!mRunningTests.containsKey(testCase.mDescription)) {
+            writeTestCase(testCase);
+        }
+    }
+
+    private void writeTestCase(TestCase testCase) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("Test finished after the suite ended");
+        }
+        open();
+        mRunningTests.remove(testCase.mDescription);
+        mTestCount++;
+        if (testCase.mFailed) {
+            mFailureCount++;
+        }
+        if (testCase.mErrored) {
+            mErrorCount++;
+        }
+        if (testCase.mSkipped) {
+            mSkippedCount++;
+        }
+
+        final String methodName = testCase.mDescription.getMethodName();
+        mTestCases
+                .startElement(ELEMENT_TESTCASE)
+                .attribute(
+                        ATTR_TESTCASE_NAME,
+                        methodName == null ? TESTCASE_NAME_UNKNOWN : methodName)
+                // a TestSuite can contain Tests from multiple classes,
+                // even tests with the same name - disambiguate them.
+                .attribute(ATTR_TESTCASE_CLASSNAME, testCase.mDescription.getClassName())
+                .attribute(
+                        ATTR_TESTCASE_TIME,
+                        "" + ((System.currentTimeMillis() - testCase.mStartTime) / ONE_SECOND));
+        for (Result result : testCase.mResults) {
+            mTestCases.startElement(result.mElement);
+            if (result.mMessage != null) {
+                mTestCases.attribute(ATTR_FAILURE_MESSAGE, result.mMessage);
+            }
+            if (result.mType != null) {
+                mTestCases.attribute(ATTR_FAILURE_TYPE, result.mType);
+            }
+            if (result.mTrace != null) {
+                mTestCases.text(result.mTrace);
+            }
+            mTestCases.endElement();
+        }
+        mTestCases.endElement();
+        // keep results on disk if the run crashes
+        mTestCases.flush();
+    }
+
+    private void open() throws IOException {
+        if (mTestCases != null) {
+            return;
+        }
+        try {
+            mFile = File.createTempFile("junitxml", ".xml");
+            mFile.deleteOnExit();
+            mWriter =
+                    new BufferedWriter(
+                            new OutputStreamWriter(
+                                    new FileOutputStream(mFile), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IOException("Unable to create temporary results file", e);
+        }
+        mTestCases = new XmlWriter(mWriter, 1);
+    }
+
+    /** Results of a test which has not been written yet. */
+    private static class TestCase {
+
+        private final Description mDescription;
+
+        private final long mStartTime = System.currentTimeMillis();
+
+        private final List<Result> mResults = new ArrayList<>(1);
+
+        private boolean mFailed;
+
+        private boolean mErrored;
+
+        private boolean mSkipped;
+
+        TestCase(Description description) {
+            mDescription = description;
+        }
+    }
+
+    /** A failure, error or skip, written as a child of its test case. */
+    private static class Result {
+
+        private final String mElement;
+
+        private final String mMessage;
+
+        private final String mType;
+
+        private final String mTrace;
+
+        Result(String element, String message, String type, String trace) {
+            mElement = element;
+            mMessage = message;
+            mType = type;
+            mTrace = trace;
+        }
+    }
+}
@@ -16,13 +16,9 @@
 
 package com.android.junitxml;
 
-import org.junit.Ignore;
 import org.junit.runner.Description;
 import org.junit.runner.notification.Failure;
 import org.junit.runner.notification.RunListener;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -31,91 +27,78 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Hashtable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.util.TreeMap;
+import java.util.function.Predicate;
 
 /**
  * {@link RunListener} to write JUnit4 test results to XML in a format adapted from the schema used
  * by Ant in {@code org.apache.tools.ant.taskdefs.optional.junit.XMLJUnitResultFormatter}.
+ *
+ * <p>Each test case is written to a temporary file as soon as it finishes, so memory use does not
+ * grow with the number of tests, and results are not lost if the run crashes. The suite, whose
+ * attributes count the tests, is written around them by {@link #endTestSuite()}.
+ *
+ * <p>Tests which run concurrently can instead be reported to separate fragments from {@link
+ * #createFragment()}, which are written after the tests reported to this listener, in the order
+ * they were created.
  */
 public class XmlRunListener extends RunListener implements XmlConstants {
 
     private static final double ONE_SECOND = 1000.0;
 
-    private static final String TESTCASE_NAME_UNKNOWN = "unknown";
-
-    private Document mDocument;
-
-    private Element mRootElement;
-
-    private final Hashtable<Description, Element> mTestElements = new Hashtable<>();
-
-    private final Set<Description> mFailedTests = new HashSet<>();
+    private final OutputStream mOutputStream;
 
-    private final Set<Description> mErrorTests = new HashSet<>();
+    private final String mSuiteName;
 
-    private final Set<Description> mSkippedTests = new HashSet<>();
+    // System properties, sorted by name.
+    private final Map<String, String> mProperties = new TreeMap<>();
 
-    private final Set<Description> mIgnoredTests = new HashSet<>();
+    private final TestCaseWriter mTestCases = new TestCaseWriter();
 
-    private final Hashtable<Description, Long> mTestStarts = new Hashtable<>();
-
-    private OutputStream mOutputStream;
+    private final List<TestCaseWriter> mFragments = new ArrayList<>();
 
     private long mStartTime;
 
-    private static DocumentBuilder getDocumentBuilder() {
-        try {
-            return DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        } catch (final Exception exc) {
-            throw new ExceptionInInitializerError(exc);
-        }
+    public XmlRunListener(OutputStream out, String suiteName) {
+        this(out, suiteName, name -> true);
     }
 
-    public XmlRunListener(OutputStream out, String suiteName) {
-        mDocument = getDocumentBuilder().newDocument();
-        mRootElement = mDocument.createElement(ELEMENT_TESTSUITE);
+    /**
+     * @param propertyFilter selects the names of the system properties to write to the report
+     */
+    public XmlRunListener(OutputStream out, String suiteName, Predicate<String> propertyFilter) {
         mOutputStream = out;
-        startTestSuite(suiteName);
+        mSuiteName = suiteName;
+        startTestSuite(propertyFilter);
     }
 
-    private void startTestSuite(String suiteName) {
-        mRootElement.setAttribute(ATTR_TESTSUITE_NAME, suiteName);
-
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-        String timestamp = simpleDateFormat.format(new Date());
-        mRootElement.setAttribute(ATTR_TESTSUITE_TIME, timestamp);
-
-        mRootElement.setAttribute(ATTR_TESTSUITE_HOSTNAME, getHostname());
-
-        Element propsElement = mDocument.createElement(ELEMENT_PROPERTIES);
-        mRootElement.appendChild(propsElement);
+    private void startTestSuite(Predicate<String> propertyFilter) {
         mStartTime = System.currentTimeMillis();
         final Properties props = System.getProperties();
         if (props != null) {
-            for (Object name : props.keySet()) {
-                Element propElement = mDocument.createElement(ELEMENT_PROPERTY);
-                propElement.setAttribute(ATTR_PROPERTY_NAME, (String) name);
-                propElement.setAttribute(ATTR_PROPERTY_VALUE, props.getProperty((String) name));
-                propsElement.appendChild(propElement);
+            for (String name : props.stringPropertyNames()) {
+                if (propertyFilter.test(name)) {
+                    mProperties.put(name, props.getProperty(name));
+                }
             }
         }
     }
 
+    /**
+     * Creates a listener for tests which are reported separately, e.g. because they run on another
+     * thread. Its results are written to the suite by {@link #endTestSuite()}.
+     */
+    synchronized RunListener createFragment() {
+        TestCaseWriter fragment = new TestCaseWriter();
+        mFragments.add(fragment);
+        return fragment;
+    }
+
     private String getHostname() {
         String hostname = "localhost";
         try {
@@ -129,145 +112,105 @@ public class XmlRunListener extends RunListener implements XmlConstants {
         return hostname;
     }
 
-    public void endTestSuite() throws IOException {
-        mRootElement.setAttribute(ATTR_TESTSUITE_TESTS, "" + mTestStarts.size());
-        mRootElement.setAttribute(ATTR_TESTSUITE_FAILURES, "" + mFailedTests.size());
-        mRootElement.setAttribute(ATTR_TESTSUITE_ERRORS, "" + mErrorTests.size());
-        mRootElement.setAttribute(ATTR_TESTSUITE_SKIPPED, "" + mSkippedTests.size());
-
-        mRootElement.setAttribute(
-                ATTR_TESTSUITE_TIME,
-                "" + ((System.currentTimeMillis() - mStartTime) / ONE_SECOND));
-        if (mOutputStream != null) {
-            Writer writer = null;
-            try {
-                writer = new BufferedWriter(new OutputStreamWriter(mOutputStream, "UTF8"));
-
-                Transformer transformer;
+    public synchronized void endTestSuite() throws IOException {
+        List<TestCaseWriter> testCases = new ArrayList<>();
+        testCases.add(mTestCases);
+        testCases.addAll(mFragments);
+        try {
+            for (TestCaseWriter writer : testCases) {
+                writer.close();
+            }
+            if (mOutputStream != null) {
+                writeTestSuite(testCases);
+            }
+        } finally {
+            for (TestCaseWriter writer : testCases) {
+                writer.delete();
+            }
+        }
+    }
 
-                transformer = TransformerFactory.newInstance().newTransformer();
-                javax.xml.transform.Result output = new StreamResult(writer);
-                Source input = new DOMSource(mRootElement);
-                transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-                transformer.transform(input, output);
+    // Write the suite with its counts and properties, around the test cases written so far.
+    private void writeTestSuite(List<TestCaseWriter> testCases) throws IOException {
+        int tests = 0;
+        int failures = 0;
+        int errors = 0;
+        int skipped = 0;
+        for (TestCaseWriter testCaseWriter : testCases) {
+            tests += testCaseWriter.getTestCount();
+            failures += testCaseWriter.getFailureCount();
+            errors += testCaseWriter.getErrorCount();
+            skipped += testCaseWriter.getSkippedCount();
+        }
 
-            } catch (final IOException | TransformerException exc) {
-                throw new IOException("Unable to write log file", exc);
-            } finally {
-                if (writer != null) {
-                    try {
-                        writer.flush();
-                    } catch (final IOException ex) {
-                        // ignore
-                    }
-                    if (mOutputStream != System.out && mOutputStream != System.err) {
-                        writer.close();
-                    }
+        Writer writer = null;
+        try {
+            writer =
+                    new BufferedWriter(
+                            new OutputStreamWriter(mOutputStream, StandardCharsets.UTF_8));
+            XmlWriter xml = new XmlWriter(writer, 0);
+            xml.startDocument();
+            xml.startElement(ELEMENT_TESTSUITE)
+                    .attribute(ATTR_TESTSUITE_NAME, mSuiteName)
+                    .attribute(
+                            ATTR_TESTSUITE_TIME,
+                            "" + ((System.currentTimeMillis() - mStartTime) / ONE_SECOND))
+                    .attribute(ATTR_TESTSUITE_HOSTNAME, getHostname())
+                    .attribute(ATTR_TESTSUITE_TESTS, "" + tests)
+                    .attribute(ATTR_TESTSUITE_FAILURES, "" + failures)
+                    .attribute(ATTR_TESTSUITE_ERRORS, "" + errors)
+                    .attribute(ATTR_TESTSUITE_SKIPPED, "" + skipped);
+            xml.startElement(ELEMENT_PROPERTIES);
+            for (Map.Entry<String, String> property : mProperties.entrySet()) {
+                xml.startElement(ELEMENT_PROPERTY)
+                        .attribute(ATTR_PROPERTY_NAME, property.getKey())
+                        .attribute(ATTR_PROPERTY_VALUE, property.getValue())
+                        .endElement();
+            }
+            xml.endElement();
+            for (TestCaseWriter testCaseWriter : testCases) {
+                testCaseWriter.copyTo(xml);
+            }
+            xml.endElement();
+            writer.write('\n');
+        } catch (final IOException exc) {
+            throw new IOException("Unable to write log file", exc);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.flush();
+                } catch (final IOException ex) {
+                    // ignore
+                }
+                if (mOutputStream != System.out && mOutputStream != System.err) {
+                    writer.close();
                 }
             }
         }
     }
 
-    @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
     @Override
     public void testFailure(Failure failure) throws Exception {
-        Description description = failure.getDescription();
-        testFinished(description);
-
-        if (failure.getException() instanceof AssertionError) {
-            formatError(ELEMENT_FAILURE, failure);
-            mFailedTests.add(description);
-        } else {
-            formatError(ELEMENT_ERROR, failure);
-            mErrorTests.add(description);
-        }
-    }
-
-    private void formatError(String type, Failure failure) throws Exception {
-        final Element failureOrError = mDocument.createElement(type);
-        Element currentTest;
-        if (failure.getDescription() != null) {
-            currentTest = mTestElements.get(failure.getDescription());
-        } else {
-            currentTest = mRootElement;
-        }
-
-        currentTest.appendChild(failureOrError);
-
-        final String message = failure.getMessage();
-        if (message != null && message.length() > 0) {
-            failureOrError.setAttribute(ATTR_FAILURE_MESSAGE, message);
-        }
-        failureOrError.setAttribute(
-                ATTR_FAILURE_TYPE,
-                failure.getDescription().getClassName());
-
-        final String stackTrace = failure.getTrace();
-        final Text trace = mDocument.createTextNode(stackTrace);
-        failureOrError.appendChild(trace);
+        mTestCases.testFailure(failure);
     }
 
     @Override
     public void testFinished(Description description) throws Exception {
-        if (!mTestStarts.containsKey(description)) {
-            testStarted(description);
-        }
-
-        Element currentTest;
-        if (!mFailedTests.contains(description) && !mErrorTests.contains(description)
-                && !mSkippedTests.contains(description) && !mIgnoredTests
-                .contains(description)) {
-            currentTest = mDocument.createElement(ELEMENT_TESTCASE);
-            final String methodName = description.getMethodName();
-            currentTest.setAttribute(
-                    ATTR_TESTCASE_NAME,
-                    methodName == null ? TESTCASE_NAME_UNKNOWN : methodName);
-            // a TestSuite can contain Tests from multiple classes,
-            // even tests with the same name - disambiguate them.
-            currentTest.setAttribute(ATTR_TESTCASE_CLASSNAME, description.getClassName());
-            mRootElement.appendChild(currentTest);
-            mTestElements.put(description, currentTest);
-
-        } else {
-            currentTest = mTestElements.get(description);
-        }
-
-        final long l = mTestStarts.get(description);
-        currentTest.setAttribute(
-                ATTR_TESTCASE_TIME, "" + ((System.currentTimeMillis() - l) / ONE_SECOND));
+        mTestCases.testFinished(description);
     }
 
     @Override
     public void testStarted(Description description) throws Exception {
-        mTestStarts.put(description, System.currentTimeMillis());
+        mTestCases.testStarted(description);
     }
 
     @Override
     public void testIgnored(Description description) throws Exception {
-        Ignore ignoreAnnotation = description.getAnnotation(Ignore.class);
-        formatSkip(description, ignoreAnnotation != null ? ignoreAnnotation.value() : null);
-        mIgnoredTests.add(description);
+        mTestCases.testIgnored(description);
     }
 
     @Override
     public void testAssumptionFailure(Failure failure) {
-        try {
-            formatSkip(failure.getDescription(), failure.getMessage());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        mSkippedTests.add(failure.getDescription());
-    }
-
-    private void formatSkip(Description description, String message) throws Exception {
-        testFinished(description);
-
-        final Element skippedElement = mDocument.createElement(ELEMENT_SKIPPED);
-        if (message != null) {
-            skippedElement.setAttribute(ATTR_SKIPPED_MESSAGE, message);
-        }
-
-        Element currentTest = mTestElements.get(description);
-        currentTest.appendChild(skippedElement);
+        mTestCases.testAssumptionFailure(failure);
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.junitxml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Writes indented XML to a {@link Writer} as it is produced, instead of building a document in
+ * memory first. Characters which XML 1.0 cannot represent are replaced.
+ */
+class XmlWriter {
+
+    private static final String INDENT = "    ";
+
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+    private final Writer mWriter;
+
+    private final int mBaseDepth;
+
+    private final Deque<String> mElements = new ArrayDeque<>();
+
+    // Whether the start tag of the current element is still open for attributes.
+    private boolean mStartTagOpen;
+
+    // Whether the current element has child elements, so its end tag goes on its own line.
+    private boolean mHasChildren;
+
+    /**
+     * @param baseDepth indentation depth of the top-level elements, if they will be copied into
+     *     another document
+     */
+    XmlWriter(Writer writer, int baseDepth) {
+        mWriter = writer;
+        mBaseDepth = baseDepth;
+    }
+
+    void startDocument() throws IOException {
+        mWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    }
+
+    XmlWriter startElement(String name) throws IOException {
+        closeStartTag();
+        newLine(mBaseDepth + mElements.size());
+        mWriter.write('<');
+        mWriter.write(name);
+        mElements.push(name);
+        mStartTagOpen = true;
+        mHasChildren = false;
+        return this;
+    }
+
+    XmlWriter attribute(String name, String value) throws IOException {
+        if (!mStartTagOpen) {
+            throw new IllegalStateException("Attribute outside of a start tag: " + name);
+        }
+        mWriter.write(' ');
+        mWriter.write(name);
+        mWriter.write("=\"");
+        escape(value, true);
+        mWriter.write('"');
+        return this;
+    }
+
+    XmlWriter text(String text) throws IOException {
+        closeStartTag();
+        escape(text, false);
+        return this;
+    }
+
+    /**
+     * Copies elements written separately, at the depth of children of the current element.
+     *
+     * @see #XmlWriter(Writer, int)
+     */
+    XmlWriter copy(Reader elements) throws IOException {
+        closeStartTag();
+        char[] buffer = new char[8192];
+        int read;
+        boolean copied = false;
+        while ((read = elements.read(buffer)) >= 0) {
+            mWriter.write(buffer, 0, read);
+            copied |= read > 0;
+        }
+        mHasChildren |= copied;
+        return this;
+    }
+
+    XmlWriter endElement() throws IOException {
+        String name = mElements.pop();
+        if (mStartTagOpen) {
+            mWriter.write("/>");
+            mStartTagOpen = false;
+        } else {
+            if (mHasChildren) {
+                newLine(mBaseDepth + mElements.size());
+            }
+            mWriter.write("</");
+            mWriter.write(name);
+            mWriter.write('>');
+        }
+        // the parent now has a child element
+        mHasChildren = true;
+        return this;
+    }
+
+    void flush() throws IOException {
+        mWriter.flush();
+    }
+
+    private void closeStartTag() throws IOException {
+        if (mStartTagOpen) {
+            mWriter.write('>');
+            mStartTagOpen = false;
+        }
+    }
+
+    private void newLine(int depth) throws IOException {
+        mWriter.write('\n');
+        for (int i = 0; i < depth; i++) {
+            mWriter.write(INDENT);
+        }
+    }
+
+    private void escape(String value, boolean attribute) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    mWriter.write("&lt;");
+                    break;
+                case '>':
+                    mWriter.write("&gt;");
+                    break;
+                case '&':
+                    mWriter.write("&amp;");
+                    break;
+                case '"':
+                    mWriter.write(attribute ? "&quot;" : "\"");
+                    break;
+                case '\r':
+                    mWriter.write("&#13;");
+                    break;
+                case '\n':
+                case '\t':
+                    // attribute values are normalized when parsed, which would lose whitespace
+                    if (attribute) {
+                        mWriter.write("&#" + (int) c + ";");
+                    } else {
+                        mWriter.write(c);
+                    }
+                    break;
+                default:
+                    if (Character.isHighSurrogate(c)
+                            && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        mWriter.write(c);
+                        mWriter.write(value.charAt(++i));
+                    } else {
+                        mWriter.write(isValid(c) ? c : REPLACEMENT_CHARACTER);
+                    }
+            }
+        }
+    }
+
+    // Whether a character outside of a surrogate pair may appear in an XML 1.0 document.
+    private static boolean isValid(char c) {
+        return (c >= 0x20 && c <= 0xD7FF) || (c >= 0xE000 && c <= 0xFFFD);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.junitxml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.junitxml.AtestRunListener.StatusKeys;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runner.notification.Failure;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link AtestRunListener}. */
+@RunWith(JUnit4.class)
+public class AtestRunListenerTest {
+    private static final String SUITE_NAME = "suite";
+    private static final int LARGE_EVENT_COUNT = 100000;
+    // Opening the file for each event managed about 50000 events per second on tmpfs, and the
+    // buffered writer about 180000. This leaves headroom for slower disks.
+    private static final long MIN_EVENTS_PER_SECOND = 20000;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mReportFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mReportFile = mTemporaryFolder.newFile("events");
+    }
+
+    /** Tests that each event is written with its status key, in order. */
+    @Test
+    public void testWritesEvents() throws IOException {
+        AtestRunListener listener = new AtestRunListener(SUITE_NAME, mReportFile, 2);
+        Description test = Description.createTestDescription("pkg.A", "test");
+        listener.testRunStarted(Description.createSuiteDescription(SUITE_NAME));
+        listener.testStarted(test);
+        listener.testFinished(test);
+        listener.testIgnored(Description.createTestDescription("pkg.A", "ignored"));
+        listener.testRunFinished(new Result());
+
+        List<String> events = readEvents();
+        assertThat(getKeys(events))
+                .containsExactly(
+                        StatusKeys.TEST_MODULE_STARTED,
+                        StatusKeys.TEST_RUN_STARTED,
+                        StatusKeys.TEST_STARTED,
+                        StatusKeys.TEST_ENDED,
+                        StatusKeys.TEST_STARTED,
+                        StatusKeys.TEST_IGNORED,
+                        StatusKeys.TEST_ENDED,
+                        StatusKeys.TEST_RUN_ENDED,
+                        StatusKeys.TEST_MODULE_ENDED)
+                .inOrder();
+        assertThat(events.get(0)).contains("\"moduleName\":\"suite\"");
+        assertThat(events.get(1)).contains("\"testCount\":2");
+        assertThat(events.get(2)).contains("\"className\":\"pkg.A\"");
+        assertThat(events.get(2)).contains("\"testName\":\"test\"");
+        assertThat(events.get(8)).isEqualTo(StatusKeys.TEST_MODULE_ENDED + " {}");
+    }
+
+    /**
+     * Tests that quotes, backslashes, line breaks, control characters and unpaired surrogates in a
+     * trace are escaped, so they can neither break the JSON nor inject events.
+     */
+    @Test
+    public void testEscapesAdversarialMessages() throws IOException {
+        String trace =
+                "expected:<\"a\\b\"> but was:<c>\n\tat Test.run\r\n"
+                        + "\u0000\u001f\u2028\u2029\ud800\ud83d\ude00\u00e9"
+                        + "\n\nTEST_ENDED {\"testName\":\"injected\"}";
+        AtestRunListener listener = new AtestRunListener(SUITE_NAME, mReportFile, 1);
+        Description test = Description.createTestDescription("pkg.A", "test");
+        listener.testStarted(test);
+        listener.testFailure(new Failure(test, new TraceException(trace)));
+        listener.testFinished(test);
+        listener.testRunFinished(new Result());
+
+        List<String> events = readEvents();
+        assertThat(getKeys(events).subList(0, 3))
+                .containsExactly(
+                        StatusKeys.TEST_STARTED, StatusKeys.TEST_FAILED, StatusKeys.TEST_ENDED)
+                .inOrder();
+        assertThat(events.get(1))
+                .contains(
+                        "\"trace\":\"expected:<\\\"a\\\\b\\\"> but was:<c>\\n\\tat Test.run\\r\\n"
+                                + "\\u0000\\u001f\\u2028\\u2029\\ud800\ud83d\ude00\u00e9"
+                                + "\\n\\nTEST_ENDED {\\\"testName\\\":\\\"injected\\\"}\"");
+    }
+
+    /** Tests that events are buffered until the flush interval, or the end of the run. */
+    @Test
+    public void testFlushInterval() throws IOException {
+        AtestRunListener listener = new AtestRunListener(SUITE_NAME, mReportFile, 1, 3);
+        Description test = Description.createTestDescription("pkg.A", "test");
+
+        listener.testStarted(test);
+        listener.testFinished(test);
+        assertThat(mReportFile.length()).isEqualTo(0);
+
+        listener.testStarted(test);
+        assertThat(readEvents()).hasSize(3);
+
+        listener.testFinished(test);
+        listener.testRunFinished(new Result());
+        assertThat(readEvents()).hasSize(6);
+    }
+
+    /** Tests that events are appended to the existing file. */
+    @Test
+    public void testAppends() throws IOException {
+        Files.write(mReportFile.toPath(), "EXISTING {}\n\n".getBytes(StandardCharsets.UTF_8));
+        AtestRunListener listener = new AtestRunListener(SUITE_NAME, mReportFile, 1);
+        listener.testRunFinished(new Result());
+
+        assertThat(getKeys(readEvents()))
+                .containsExactly(
+                        "EXISTING", StatusKeys.TEST_RUN_ENDED, StatusKeys.TEST_MODULE_ENDED)
+                .inOrder();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFlushInterval() {
+        new AtestRunListener(SUITE_NAME, mReportFile, 1, 0);
+    }
+
+    /** Tests the throughput of writing a large number of events, flushing each one. */
+    @Test
+    public void testLargeRunThroughput() throws IOException {
+        AtestRunListener listener = new AtestRunListener(SUITE_NAME, mReportFile, 1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < LARGE_EVENT_COUNT / 2; i++) {
+            Description test = Description.createTestDescription("pkg.Large", "test" + i);
+            listener.testStarted(test);
+            listener.testFinished(test);
+        }
+        listener.testRunFinished(new Result());
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(readEvents()).hasSize(LARGE_EVENT_COUNT + 2);
+        assertThat(LARGE_EVENT_COUNT * 1000L / Math.max(elapsedMs, 1))
+                .isAtLeast(MIN_EVENTS_PER_SECOND);
+    }
+
+    // Events are separated by blank lines, and must not contain any.
+    private List<String> readEvents() throws IOException {
+        String contents =
+                new String(Files.readAllBytes(mReportFile.toPath()), StandardCharsets.UTF_8);
+        List<String> events = new ArrayList<>();
+        for (String event : contents.split("\n\n")) {
+            assertThat(event).doesNotContain("\n");
+            events.add(event);
+        }
+        return events;
+    }
+
+    private static List<String> getKeys(List<String> events) {
+        List<String> keys = new ArrayList<>();
+        for (String event : events) {
+            keys.add(event.substring(0, event.indexOf(' ')));
+        }
+        return keys;
+    }
+
+    /** An exception whose trace is exactly its message. */
+    private static class TraceException extends RuntimeException {
+        private final String mTrace;
+
+        TraceException(String trace) {
+            super(trace);
+            mTrace = trace;
+        }
+
+        @Override
+        public void printStackTrace(PrintWriter writer) {
+            writer.print(mTrace);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.junitxml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runner.Runner;
+import org.junit.runner.notification.RunListener;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Unit tests for {@link JUnitXmlRunner}. */
+@RunWith(JUnit4.class)
+public class JUnitXmlRunnerTest {
+    private static final String SUITE_NAME = "suite";
+    private static final Pattern TESTCASE_PATTERN =
+            Pattern.compile("<testcase name=\"(\\w+)\" classname=\"([\\w.$]+)\"");
+
+    // The synthetic classes below only run their tests from this class, so that they are skipped
+    // if a harness finds them on its own.
+    private static volatile boolean sRunning;
+    private static CyclicBarrier sBarrier;
+
+    @Before
+    public void setUp() {
+        sRunning = true;
+    }
+
+    @After
+    public void tearDown() {
+        sRunning = false;
+    }
+
+    /**
+     * Tests that the fragments of a parallel run are merged into the same report as a serial run,
+     * with the counts of all classes.
+     */
+    @Test
+    public void testParallelMatchesSerial() throws Exception {
+        List<String> classNames =
+                Arrays.asList(
+                        Passing.class.getName(),
+                        Failing.class.getName(),
+                        Mixed.class.getName(),
+                        Passing2.class.getName());
+        String serial = runToXml(classNames, 1);
+        String parallel = runToXml(classNames, 4);
+
+        assertThat(getTestCases(parallel))
+                .containsExactlyElementsIn(getTestCases(serial))
+                .inOrder();
+        assertThat(getTestCases(serial))
+                .containsExactly(
+                        Passing.class.getName() + "#testA",
+                        Passing.class.getName() + "#testB",
+                        Failing.class.getName() + "#testError",
+                        Failing.class.getName() + "#testFailure",
+                        Mixed.class.getName() + "#testAssumption",
+                        Mixed.class.getName() + "#testIgnored",
+                        Mixed.class.getName() + "#testPassing",
+                        Passing2.class.getName() + "#testA");
+        for (String xml : Arrays.asList(serial, parallel)) {
+            assertThat(xml)
+                    .contains("tests=\"8\" failures=\"1\" errors=\"1\" skipped=\"1\"");
+        }
+    }
+
+    /** Tests that the listeners see every test, with one run around them all. */
+    @Test
+    public void testListenersSeeWholeRun() throws Exception {
+        List<Runner> runners =
+                JUnitXmlRunner.getRunners(
+                        Arrays.asList(
+                                Passing.class.getName(),
+                                Failing.class.getName(),
+                                Mixed.class.getName()));
+        RecordingListener listener = new RecordingListener();
+
+        Result result =
+                JUnitXmlRunner.run(runners, 3, null, Collections.singletonList(listener));
+
+        assertThat(listener.mRunsStarted).isEqualTo(1);
+        assertThat(listener.mRunsFinished).isEqualTo(1);
+        assertThat(listener.mTestCount).isEqualTo(6);
+        assertThat(listener.mRunDescription.testCount()).isEqualTo(7);
+        assertThat(result.getRunCount()).isEqualTo(6);
+        assertThat(result.getFailureCount()).isEqualTo(2);
+        assertThat(result.getIgnoreCount()).isEqualTo(1);
+        assertThat(result.wasSuccessful()).isFalse();
+    }
+
+    /** Tests that classes run at the same time in a parallel run. */
+    @Test(timeout = 10000)
+    public void testRunsClassesConcurrently() throws Exception {
+        sBarrier = new CyclicBarrier(2);
+        List<Runner> runners =
+                JUnitXmlRunner.getRunners(
+                        Arrays.asList(Waiting.class.getName(), Waiting2.class.getName()));
+
+        Result result = JUnitXmlRunner.run(runners, 2, null, Collections.emptyList());
+
+        assertThat(result.getFailures()).isEmpty();
+        assertThat(result.getRunCount()).isEqualTo(2);
+    }
+
+    /** Tests that tests are counted from the descriptions, including ignored tests. */
+    @Test
+    public void testCountTests() throws Exception {
+        List<Runner> runners =
+                JUnitXmlRunner.getRunners(
+                        Arrays.asList(Passing.class.getName(), Mixed.class.getName()));
+        assertThat(JUnitXmlRunner.countTests(runners)).isEqualTo(5);
+    }
+
+    /** Tests that shards are disjoint and cover every class. */
+    @Test
+    public void testShardsPartitionClasses() {
+        List<String> classNames = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            classNames.add("com.android.test.SyntheticTest" + i);
+        }
+        int shardCount = 7;
+        Set<String> sharded = new HashSet<>();
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+            List<String> args = new ArrayList<>();
+            args.addAll(
+                    Arrays.asList(
+                            "--shard-index", "" + shardIndex, "--shard-count", "" + shardCount));
+            args.addAll(classNames);
+            List<String> shard =
+                    JUnitXmlRunner.Options.parse(args.toArray(new String[0])).getShard();
+
+            assertThat(shard).isNotEmpty();
+            assertThat(shard)
+                    .isStrictlyOrdered((a, b) -> classNames.indexOf(a) - classNames.indexOf(b));
+            for (String className : shard) {
+                assertThat(sharded.add(className)).isTrue();
+            }
+        }
+        assertThat(sharded).containsExactlyElementsIn(classNames);
+    }
+
+    /** Tests that shards depend only on the class name, which String#hashCode specifies. */
+    @Test
+    public void testShardsAreDeterministic() {
+        // "com.android.Foo".hashCode() is -695639110, whatever the JVM.
+        assertThat(JUnitXmlRunner.isInShard("com.android.Foo", 0, 4)).isFalse();
+        assertThat(JUnitXmlRunner.isInShard("com.android.Foo", 2, 4)).isTrue();
+        assertThat(JUnitXmlRunner.isInShard("com.android.Foo", 0, 1)).isTrue();
+    }
+
+    @Test
+    public void testParseOptions() {
+        JUnitXmlRunner.Options options =
+                JUnitXmlRunner.Options.parse("--parallel", "8", "pkg.A", "pkg.B");
+        assertThat(options.getParallelism()).isEqualTo(8);
+        assertThat(options.getShard()).containsExactly("pkg.A", "pkg.B").inOrder();
+
+        options = JUnitXmlRunner.Options.parse("pkg.A");
+        assertThat(options.getParallelism()).isEqualTo(1);
+        assertThat(options.getShard()).containsExactly("pkg.A");
+    }
+
+    @Test
+    public void testParseInvalidOptions() {
+        assertInvalid("--parallel", "0", "pkg.A");
+        assertInvalid("--parallel", "many", "pkg.A");
+        assertInvalid("--parallel");
+        assertInvalid("--shard-index", "1", "pkg.A");
+        assertInvalid("--shard-index", "2", "--shard-count", "2", "pkg.A");
+        assertInvalid("--shard-index", "-1", "--shard-count", "2", "pkg.A");
+        assertInvalid("--unknown", "1", "pkg.A");
+    }
+
+    private static void assertInvalid(String... args) {
+        try {
+            JUnitXmlRunner.Options.parse(args);
+            fail("Expected IllegalArgumentException for " + Arrays.toString(args));
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static String runToXml(List<String> classNames, int parallelism) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRunListener xmlListener = new XmlRunListener(out, SUITE_NAME, name -> false);
+        JUnitXmlRunner.run(
+                JUnitXmlRunner.getRunners(classNames),
+                parallelism,
+                xmlListener,
+                Collections.emptyList());
+        xmlListener.endTestSuite();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // The test cases in a report, in order, as class#method.
+    private static List<String> getTestCases(String xml) {
+        List<String> testCases = new ArrayList<>();
+        Matcher matcher = TESTCASE_PATTERN.matcher(xml);
+        while (matcher.find()) {
+            testCases.add(matcher.group(2) + "#" + matcher.group(1));
+        }
+        return testCases;
+    }
+
+    private static class RecordingListener extends RunListener {
+        private int mRunsStarted;
+        private int mRunsFinished;
+        private int mTestCount;
+        private Description mRunDescription;
+
+        @Override
+        public void testRunStarted(Description description) {
+            mRunsStarted++;
+            mRunDescription = description;
+        }
+
+        @Override
+        public void testRunFinished(Result result) {
+            mRunsFinished++;
+        }
+
+        @Override
+        public void testFinished(Description description) {
+            mTestCount++;
+        }
+    }
+
+    /** Synthetic test class, which passes. */
+    public static class Passing {
+        @Before
+        public void setUp() {
+            assumeTrue(sRunning);
+        }
+
+        @Test
+        public void testA() {}
+
+        @Test
+        public void testB() {}
+    }
+
+    /** Synthetic test class, which passes. */
+    public static class Passing2 {
+        @Before
+        public void setUp() {
+            assumeTrue(sRunning);
+        }
+
+        @Test
+        public void testA() {}
+    }
+
+    /** Synthetic test class, with a failure and an error. */
+    public static class Failing {
+        @Before
+        public void setUp() {
+            assumeTrue(sRunning);
+        }
+
+        @Test
+        public void testFailure() {
+            fail("expected");
+        }
+
+        @Test
+        public void testError() {
+            throw new IllegalStateException("expected");
+        }
+    }
+
+    /** Synthetic test class, with a pass, an assumption failure and an ignored test. */
+    public static class Mixed {
+        @Before
+        public void setUp() {
+            assumeTrue(sRunning);
+        }
+
+        @Test
+        public void testPassing() {}
+
+        @Test
+        public void testAssumption() {
+            assumeTrue(false);
+        }
+
+        @Ignore("expected")
+        @Test
+        public void testIgnored() {}
+    }
+
+    /** Synthetic test class, which only passes if another class runs at the same time. */
+    public static class Waiting {
+        @Before
+        public void setUp() {
+            assumeTrue(sRunning);
+        }
+
+        @Test
+        public void testWait() throws Exception {
+            sBarrier.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /** Synthetic test class, which only passes if another class runs at the same time. */
+    public static class Waiting2 extends Waiting {}
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.junitxml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/** Unit tests for {@link XmlRunListener}. */
+@RunWith(JUnit4.class)
+public class XmlRunListenerTest {
+    private static final String SUITE_NAME = "suite";
+    private static final int LARGE_TEST_COUNT = 100000;
+    // The in-memory DOM retained more than 50 MB for the large suite.
+    private static final long MAX_RETAINED_BYTES = 8 * 1024 * 1024;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * Tests that passing, failing, ignored and skipped tests are written with their results, and
+     * counted in the suite.
+     */
+    @Test
+    public void testWritesResults() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRunListener listener = new XmlRunListener(out, SUITE_NAME);
+        fireResults(listener);
+        listener.endTestSuite();
+
+        Element suite = parse(out.toByteArray());
+        assertThat(suite.getTagName()).isEqualTo(XmlConstants.ELEMENT_TESTSUITE);
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_NAME)).isEqualTo(SUITE_NAME);
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_TESTS)).isEqualTo("6");
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_FAILURES)).isEqualTo("2");
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_ERRORS)).isEqualTo("2");
+        // ignored tests are not counted as skipped
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_SKIPPED)).isEqualTo("1");
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_HOSTNAME)).isNotEmpty();
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_TIME)).isNotEmpty();
+
+        List<Element> children = getChildren(suite);
+        assertThat(children).hasSize(7);
+        assertThat(children.get(0).getTagName()).isEqualTo(XmlConstants.ELEMENT_PROPERTIES);
+
+        assertTestCase(children.get(1), "pkg.A", "pass");
+        assertThat(getChildren(children.get(1))).isEmpty();
+
+        assertTestCase(children.get(2), "pkg.A", "fail");
+        List<Element> results = getChildren(children.get(2));
+        assertThat(results).hasSize(1);
+        assertResult(results.get(0), XmlConstants.ELEMENT_FAILURE, "expected", "pkg.A");
+        assertThat(results.get(0).getTextContent()).startsWith("java.lang.AssertionError");
+
+        assertTestCase(children.get(3), "pkg.B", "error");
+        results = getChildren(children.get(3));
+        assertThat(results).hasSize(2);
+        // empty messages are omitted
+        assertResult(results.get(0), XmlConstants.ELEMENT_ERROR, null, "pkg.B");
+        assertResult(results.get(1), XmlConstants.ELEMENT_FAILURE, "after", "pkg.B");
+
+        assertTestCase(children.get(4), "pkg.B", "ignored");
+        results = getChildren(children.get(4));
+        assertThat(results).hasSize(1);
+        assertResult(results.get(0), XmlConstants.ELEMENT_SKIPPED, "flaky", null);
+
+        assertTestCase(children.get(5), "pkg.B", "assumption");
+        results = getChildren(children.get(5));
+        assertThat(results).hasSize(1);
+        assertResult(results.get(0), XmlConstants.ELEMENT_SKIPPED, "assumed", null);
+
+        assertTestCase(children.get(6), "pkg.C", "unknown");
+        results = getChildren(children.get(6));
+        assertThat(results).hasSize(1);
+        assertResult(results.get(0), XmlConstants.ELEMENT_ERROR, "init", "pkg.C");
+    }
+
+    /**
+     * Tests that the same events are written as {@link DomXmlRunListener} wrote them, apart from
+     * the timings and the order of the properties.
+     */
+    @Test
+    public void testMatchesDomOutput() throws Exception {
+        // the DOM listener formats a date, which sets the user.timezone property, so it is created
+        // first for both listeners to see the same properties
+        ByteArrayOutputStream domOut = new ByteArrayOutputStream();
+        DomXmlRunListener domListener = new DomXmlRunListener(domOut, SUITE_NAME);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRunListener listener = new XmlRunListener(out, SUITE_NAME);
+        fireResults(listener, domListener);
+        listener.endTestSuite();
+        domListener.endTestSuite();
+
+        assertThat(canonicalize(parse(out.toByteArray())))
+                .isEqualTo(canonicalize(parse(domOut.toByteArray())));
+    }
+
+    /** Tests that markup, whitespace and characters XML cannot represent are escaped. */
+    @Test
+    public void testEscapesText() throws Exception {
+        String message = "expected:<\"a\" & 'b'>\n\tbut was:\r<c>\u0001\uD83D\uDE00";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRunListener listener = new XmlRunListener(out, "<suite> & \"name\"");
+        Description test = Description.createTestDescription("pkg.A", "test");
+        listener.testStarted(test);
+        listener.testFailure(new Failure(test, new AssertionError(message)));
+        listener.testFinished(test);
+        listener.endTestSuite();
+
+        Element suite = parse(out.toByteArray());
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_NAME))
+                .isEqualTo("<suite> & \"name\"");
+        Element failure = getChildren(getChildren(suite).get(1)).get(0);
+        String expected = message.replace('\u0001', '\uFFFD');
+        assertThat(failure.getAttribute(XmlConstants.ATTR_FAILURE_MESSAGE)).isEqualTo(expected);
+        assertThat(failure.getTextContent()).contains(expected);
+    }
+
+    /** Tests that only the system properties selected by the filter are written. */
+    @Test
+    public void testFiltersProperties() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRunListener listener =
+                new XmlRunListener(out, SUITE_NAME, name -> name.startsWith("java."));
+        listener.endTestSuite();
+
+        List<Element> properties = getChildren(getChildren(parse(out.toByteArray())).get(0));
+        assertThat(properties).isNotEmpty();
+        for (Element property : properties) {
+            assertThat(property.getAttribute(XmlConstants.ATTR_PROPERTY_NAME)).startsWith("java.");
+        }
+
+        out = new ByteArrayOutputStream();
+        listener = new XmlRunListener(out, SUITE_NAME, name -> false);
+        listener.endTestSuite();
+        assertThat(getChildren(getChildren(parse(out.toByteArray())).get(0))).isEmpty();
+    }
+
+    /** Tests that tests which never finished are still written. */
+    @Test
+    public void testWritesUnfinishedTests() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRunListener listener = new XmlRunListener(out, SUITE_NAME);
+        Description test = Description.createTestDescription("pkg.A", "timeout");
+        listener.testStarted(test);
+        listener.testFailure(new Failure(test, new RuntimeException("timed out")));
+        listener.endTestSuite();
+
+        Element suite = parse(out.toByteArray());
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_TESTS)).isEqualTo("1");
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_ERRORS)).isEqualTo("1");
+        assertTestCase(getChildren(suite).get(1), "pkg.A", "timeout");
+    }
+
+    /** Tests that a fragment only holds its file from its first test until its run finishes. */
+    @Test
+    public void testFragmentOpensLazily() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlRunListener listener = new XmlRunListener(out, SUITE_NAME);
+        TestCaseWriter fragment = (TestCaseWriter) listener.createFragment();
+        Description test = Description.createTestDescription("pkg.A", "test");
+
+        fragment.testRunStarted(Description.createSuiteDescription("pkg.A"));
+        assertThat(fragment.isOpen()).isFalse();
+        fragment.testStarted(test);
+        fragment.testFinished(test);
+        assertThat(fragment.isOpen()).isTrue();
+        fragment.testRunFinished(new Result());
+        assertThat(fragment.isOpen()).isFalse();
+        listener.endTestSuite();
+
+        Element suite = parse(out.toByteArray());
+        assertThat(suite.getAttribute(XmlConstants.ATTR_TESTSUITE_TESTS)).isEqualTo("1");
+        assertTestCase(getChildren(suite).get(1), "pkg.A", "test");
+    }
+
+    /** Tests that memory use does not grow with the number of tests. */
+    @Test
+    public void testLargeSuiteMemory() throws Exception {
+        File file = mTemporaryFolder.newFile("results.xml");
+        XmlRunListener listener = new XmlRunListener(new FileOutputStream(file), SUITE_NAME);
+
+        long usedBefore = getUsedMemory();
+        for (int i = 0; i < LARGE_TEST_COUNT; i++) {
+            Description test = Description.createTestDescription("pkg.Large", "test" + i);
+            listener.testStarted(test);
+            if (i % 10 == 0) {
+                listener.testFailure(new Failure(test, new AssertionError("failure " + i)));
+            }
+            listener.testFinished(test);
+        }
+        long retained = getUsedMemory() - usedBefore;
+        listener.endTestSuite();
+
+        assertThat(retained).isLessThan(MAX_RETAINED_BYTES);
+        // the suite is written before its test cases, so only read its start tag
+        try (BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(
+                                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            reader.readLine(); // XML declaration
+            String suite = reader.readLine();
+            assertThat(suite).contains("tests=\"" + LARGE_TEST_COUNT + "\"");
+            assertThat(suite).contains("failures=\"" + LARGE_TEST_COUNT / 10 + "\"");
+        }
+    }
+
+    // Reports the same passing, failing, ignored and skipped tests, and a class which failed to
+    // initialize, to each listener.
+    private static void fireResults(RunListener... listeners) {
+        RunNotifier notifier = new RunNotifier();
+        for (RunListener listener : listeners) {
+            notifier.addListener(listener);
+        }
+
+        Description pass = Description.createTestDescription("pkg.A", "pass");
+        notifier.fireTestStarted(pass);
+        notifier.fireTestFinished(pass);
+
+        Description fail = Description.createTestDescription("pkg.A", "fail");
+        notifier.fireTestStarted(fail);
+        notifier.fireTestFailure(new Failure(fail, new AssertionError("expected")));
+        notifier.fireTestFinished(fail);
+
+        // an error, then a failure in @After
+        Description error = Description.createTestDescription("pkg.B", "error");
+        notifier.fireTestStarted(error);
+        notifier.fireTestFailure(new Failure(error, new RuntimeException()));
+        notifier.fireTestFailure(new Failure(error, new AssertionError("after")));
+        notifier.fireTestFinished(error);
+
+        Description ignored =
+                Description.createTestDescription("pkg.B", "ignored", ignore("flaky"));
+        notifier.fireTestIgnored(ignored);
+
+        Description assumption = Description.createTestDescription("pkg.B", "assumption");
+        notifier.fireTestStarted(assumption);
+        notifier.fireTestAssumptionFailed(
+                new Failure(assumption, new RuntimeException("assumed")));
+        notifier.fireTestFinished(assumption);
+
+        // a class which failed to initialize, so none of its tests started
+        Description initError = Description.createSuiteDescription("pkg.C");
+        notifier.fireTestFailure(new Failure(initError, new RuntimeException("init")));
+    }
+
+    // Describes an element without its timings or whitespace, and with its properties sorted.
+    private static String canonicalize(Element element) {
+        StringBuilder builder = new StringBuilder("<").append(element.getTagName());
+        NamedNodeMap attributes = element.getAttributes();
+        Map<String, String> sorted = new TreeMap<>();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            sorted.put(attributes.item(i).getNodeName(), attributes.item(i).getNodeValue());
+        }
+        sorted.remove(XmlConstants.ATTR_TESTSUITE_TIME);
+        builder.append(sorted).append('>');
+        List<String> children = new ArrayList<>();
+        for (Element child : getChildren(element)) {
+            children.add(canonicalize(child));
+        }
+        if (element.getTagName().equals(XmlConstants.ELEMENT_PROPERTIES)) {
+            Collections.sort(children);
+        }
+        if (children.isEmpty()) {
+            builder.append(element.getTextContent().trim());
+        }
+        for (String child : children) {
+            builder.append(child);
+        }
+        return builder.append("</").append(element.getTagName()).append('>').toString();
+    }
+
+    private static void assertTestCase(Element testCase, String className, String name) {
+        assertThat(testCase.getTagName()).isEqualTo(XmlConstants.ELEMENT_TESTCASE);
+        assertThat(testCase.getAttribute(XmlConstants.ATTR_TESTCASE_CLASSNAME))
+                .isEqualTo(className);
+        assertThat(testCase.getAttribute(XmlConstants.ATTR_TESTCASE_NAME)).isEqualTo(name);
+        assertThat(testCase.getAttribute(XmlConstants.ATTR_TESTCASE_TIME)).isNotEmpty();
+    }
+
+    private static void assertResult(Element result, String tag, String message, String type) {
+        assertThat(result.getTagName()).isEqualTo(tag);
+        assertThat(result.hasAttribute(XmlConstants.ATTR_FAILURE_MESSAGE))
+                .isEqualTo(message != null);
+        if (message != null) {
+            assertThat(result.getAttribute(XmlConstants.ATTR_FAILURE_MESSAGE)).isEqualTo(message);
+        }
+        assertThat(result.hasAttribute(XmlConstants.ATTR_FAILURE_TYPE)).isEqualTo(type != null);
+        if (type != null) {
+            assertThat(result.getAttribute(XmlConstants.ATTR_FAILURE_TYPE)).isEqualTo(type);
+        }
+    }
+
+    private static Element parse(byte[] xml) throws Exception {
+        Document document =
+                DocumentBuilderFactory.newInstance()
+                        .newDocumentBuilder()
+                        .parse(new ByteArrayInputStream(xml));
+        return document.getDocumentElement();
+    }
+
+    private static List<Element> getChildren(Element element) {
+        List<Element> children = new ArrayList<>();
+        NodeList nodes = element.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) nodes.item(i));
+            }
+        }
+        return children;
+    }
+
+    private static long getUsedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static Ignore ignore(final String reason) {
+        return new Ignore() {
+            @Override
+            public String value() {
+                return reason;
+            }
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return Ignore.class;
+            }
+        };
+    }
+}
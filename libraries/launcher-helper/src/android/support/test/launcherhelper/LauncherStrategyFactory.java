@@ -15,6 +15,14 @@
  */
 package android.support.test.launcherhelper;
 
+import android.app.Instrumentation;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.support.test.InstrumentationRegistry;
 import android.support.test.uiautomator.UiDevice;
 import android.util.Log;
 
@@ -26,20 +34,53 @@ import java.util.Set;
 /**
  * Factory class that handles registering of {@link ILauncherStrategy} and providing a suitable
  * launcher helper based on current launcher available
+ * <p>
+ * The current launcher is the package of the default home activity. It is resolved once and
+ * cached with its strategy, until a package changes or {@link #invalidate()} is called.
  */
 public class LauncherStrategyFactory {
 
     private static final String LOG_TAG = LauncherStrategyFactory.class.getSimpleName();
-    private static LauncherStrategyFactory sInstance;
+    private static final Map<UiDevice, LauncherStrategyFactory> sInstances = new HashMap<>();
     private UiDevice mUiDevice;
+    private PackageManager mPackageManager;
     private Map<String, ILauncherStrategy> mInstanceMap;
     private Set<Class <? extends ILauncherStrategy>> mKnownLauncherStrategies;
-    private boolean mIsDeviceSet;
+    // strategies which have been given the device
+    private Set<ILauncherStrategy> mDeviceSetStrategies;
+    // the default home package and its strategy, or null if they need to be resolved
+    private String mLauncherPkg;
+    private ILauncherStrategy mLauncherStrategy;
+
+    // Installing, updating, enabling or disabling a package may change the default home activity.
+    final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
 
     private LauncherStrategyFactory(UiDevice uiDevice) {
+        this(uiDevice, getInstrumentation().getContext());
+    }
+
+    private LauncherStrategyFactory(UiDevice uiDevice, Context context) {
+        this(uiDevice, context.getPackageManager());
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+    }
+
+    LauncherStrategyFactory(UiDevice uiDevice, PackageManager packageManager) {
         mUiDevice = uiDevice;
+        mPackageManager = packageManager;
         mInstanceMap = new HashMap<>();
         mKnownLauncherStrategies = new HashSet<>();
+        mDeviceSetStrategies = new HashSet<>();
         registerLauncherStrategy(AospLauncherStrategy.class);
         registerLauncherStrategy(AutoLauncherStrategy.class);
         registerLauncherStrategy(GoogleExperienceLauncherStrategy.class);
@@ -57,10 +98,22 @@ public class LauncherStrategyFactory {
      * @return
      */
     public static LauncherStrategyFactory getInstance(UiDevice uiDevice) {
-        if (sInstance == null) {
-            sInstance = new LauncherStrategyFactory(uiDevice);
+        synchronized (sInstances) {
+            LauncherStrategyFactory instance = sInstances.get(uiDevice);
+            if (instance == null) {
+                instance = new LauncherStrategyFactory(uiDevice);
+                sInstances.put(uiDevice, instance);
+            }
+            return instance;
+        }
+    }
+
+    private static Instrumentation getInstrumentation() {
+        try {
+            return InstrumentationRegistry.getInstrumentation();
+        } catch (IllegalStateException e) {
+            return androidx.test.InstrumentationRegistry.getInstrumentation();
         }
-        return sInstance;
     }
 
     /**
@@ -69,12 +122,15 @@ public class LauncherStrategyFactory {
      * multiple instances of the same class.
      * @param launcherStrategy
      */
-    public void registerLauncherStrategy(Class<? extends ILauncherStrategy> launcherStrategy) {
+    public synchronized void registerLauncherStrategy(
+            Class<? extends ILauncherStrategy> launcherStrategy) {
         // ignore repeated registering attempts
-        if (!mKnownLauncherStrategies.contains(launcherStrategy)) {
+        if (mKnownLauncherStrategies.add(launcherStrategy)) {
             try {
                 ILauncherStrategy strategy = launcherStrategy.newInstance();
                 mInstanceMap.put(strategy.getSupportedLauncherPackage(), strategy);
+                // the new strategy may support the current launcher
+                mLauncherStrategy = null;
             } catch (InstantiationException | IllegalAccessException e) {
                 Log.e(LOG_TAG, "exception while creating instance: "
                         + launcherStrategy.getCanonicalName());
@@ -91,19 +147,45 @@ public class LauncherStrategyFactory {
      * @throw RuntimeException if no valid launcher strategy is found
      * @return
      */
-    public ILauncherStrategy getLauncherStrategy() {
-        String launcherPkg = mUiDevice.getLauncherPackageName();
-        if (mInstanceMap.containsKey(launcherPkg)) {
-            ILauncherStrategy strategy = mInstanceMap.get(launcherPkg);
-            if (!mIsDeviceSet) {
-                strategy.setUiDevice(mUiDevice);
-                mIsDeviceSet = true;
-            }
-            return strategy;
-        } else {
+    public synchronized ILauncherStrategy getLauncherStrategy() {
+        if (mLauncherStrategy != null) {
+            return mLauncherStrategy;
+        }
+        if (mLauncherPkg == null) {
+            mLauncherPkg = resolveLauncherPackage();
+        }
+        ILauncherStrategy strategy = mInstanceMap.get(mLauncherPkg);
+        if (strategy == null) {
             throw new RuntimeException(String.format(
-                    "Could not find a launcher strategy for package, %s", launcherPkg));
+                    "Could not find a launcher strategy for package, %s", mLauncherPkg));
+        }
+        if (mDeviceSetStrategies.add(strategy)) {
+            strategy.setUiDevice(mUiDevice);
+        }
+        mLauncherStrategy = strategy;
+        return strategy;
+    }
+
+    /**
+     * Clears the cached launcher, so that the default home activity is resolved again by the next
+     * {@link #getLauncherStrategy()}.
+     * <p>
+     * This happens when a package is added, changed or removed. Call it after changing the default
+     * home activity some other way, e.g. with {@code cmd package set-home-activity}.
+     */
+    public synchronized void invalidate() {
+        mLauncherPkg = null;
+        mLauncherStrategy = null;
+    }
+
+    private String resolveLauncherPackage() {
+        Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME);
+        ResolveInfo resolveInfo =
+                mPackageManager.resolveActivity(intent, PackageManager.MATCH_DEFAULT_ONLY);
+        if (resolveInfo == null || resolveInfo.activityInfo == null) {
+            throw new RuntimeException("Could not resolve the default home activity");
         }
+        return resolveInfo.activityInfo.packageName;
     }
 
     /**
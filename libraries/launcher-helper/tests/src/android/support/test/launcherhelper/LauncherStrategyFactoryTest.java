@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.launcherhelper;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.support.test.uiautomator.UiDevice;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit test the launcher detection of {@link LauncherStrategyFactory}
+ */
+@RunWith(JUnit4.class)
+public class LauncherStrategyFactoryTest {
+    private static final String UNKNOWN_PKG = "com.example.launcher";
+
+    @Mock private PackageManager mPackageManager;
+
+    private UiDevice mDevice;
+    private LauncherStrategyFactory mFactory;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        mFactory = new LauncherStrategyFactory(mDevice, mPackageManager);
+    }
+
+    /** Tests that the strategy is chosen by the package of the default home activity. */
+    @Test
+    public void testResolvesHomePackage() {
+        setHomePackage(new Launcher3Strategy().getSupportedLauncherPackage());
+        assertThat(mFactory.getLauncherStrategy()).isInstanceOf(Launcher3Strategy.class);
+        verify(mPackageManager).resolveActivity(
+                argThat(intent -> Intent.ACTION_MAIN.equals(intent.getAction())
+                        && intent.hasCategory(Intent.CATEGORY_HOME)),
+                eq(PackageManager.MATCH_DEFAULT_ONLY));
+    }
+
+    /** Tests that the home activity is only resolved once while nothing changes. */
+    @Test
+    public void testCachesStrategy() {
+        setHomePackage(new Launcher3Strategy().getSupportedLauncherPackage());
+        ILauncherStrategy strategy = mFactory.getLauncherStrategy();
+        for (int i = 0; i < 10; i++) {
+            assertThat(mFactory.getLauncherStrategy()).isSameAs(strategy);
+        }
+        verify(mPackageManager, times(1)).resolveActivity(any(Intent.class), anyInt());
+    }
+
+    /** Tests that a package change resolves the home activity again. */
+    @Test
+    public void testPackageChangeInvalidates() {
+        setHomePackage(new Launcher3Strategy().getSupportedLauncherPackage());
+        mFactory.getLauncherStrategy();
+
+        setHomePackage(new LeanbackLauncherStrategy().getSupportedLauncherPackage());
+        assertThat(mFactory.getLauncherStrategy()).isInstanceOf(Launcher3Strategy.class);
+        mFactory.mPackageReceiver.onReceive(
+                InstrumentationRegistry.getContext(), new Intent(Intent.ACTION_PACKAGE_CHANGED));
+        assertThat(mFactory.getLauncherStrategy()).isInstanceOf(LeanbackLauncherStrategy.class);
+        verify(mPackageManager, times(2)).resolveActivity(any(Intent.class), anyInt());
+    }
+
+    @Test
+    public void testInvalidate() {
+        setHomePackage(new Launcher3Strategy().getSupportedLauncherPackage());
+        mFactory.getLauncherStrategy();
+
+        setHomePackage(new LeanbackLauncherStrategy().getSupportedLauncherPackage());
+        mFactory.invalidate();
+        assertThat(mFactory.getLeanbackLauncherStrategy())
+                .isInstanceOf(LeanbackLauncherStrategy.class);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnknownPackage() {
+        setHomePackage(UNKNOWN_PKG);
+        mFactory.getLauncherStrategy();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testNoHomeActivity() {
+        when(mPackageManager.resolveActivity(any(Intent.class), anyInt())).thenReturn(null);
+        mFactory.getLauncherStrategy();
+    }
+
+    private void setHomePackage(String packageName) {
+        ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.activityInfo = new ActivityInfo();
+        resolveInfo.activityInfo.packageName = packageName;
+        when(mPackageManager.resolveActivity(any(Intent.class), anyInt())).thenReturn(resolveInfo);
+    }
+}
@@ -29,6 +29,9 @@ import java.util.Queue;
 
 /**
  * Useful test utilities for metrics tests.
+ *
+ * <p>Each assertion on a {@link MetricsReader} or queue reads all of the logs again. To make many
+ * assertions about the same logs, read them once into a {@link MetricsIndex}.
  */
 public class MetricsAsserts {
 
@@ -49,6 +52,15 @@ public class MetricsAsserts {
         assertTrue(message, !logs.isEmpty());
     }
 
+    /**
+     * Assert unless there is a log with the matching category and with ACTION type.
+     */
+    public static void assertHasActionLog(String message, MetricsIndex index, int view) {
+        assertHasLog(message, index,
+                new LogMaker(view)
+                        .setType(MetricsEvent.TYPE_ACTION));
+    }
+
     /**
      * Assert unless there is a log with the matching category and with visibility type.
      */
@@ -69,6 +81,16 @@ public class MetricsAsserts {
         assertTrue(message, !logs.isEmpty());
     }
 
+    /**
+     * Assert unless there is a log with the matching category and with visibility type.
+     */
+    public static void assertHasVisibilityLog(String message, MetricsIndex index,
+            int view, boolean visible) {
+        assertHasLog(message, index,
+                new LogMaker(view)
+                        .setType(visible ? MetricsEvent.TYPE_OPEN : MetricsEvent.TYPE_CLOSE));
+    }
+
     /**
      * @returns logs that have at least all the matching fields in the template.
      */
@@ -94,6 +116,13 @@ public class MetricsAsserts {
         return logs;
     }
 
+    /**
+     * @returns logs that have at least all the matching fields in the template.
+     */
+    public static Queue<LogMaker> findMatchingLogs(MetricsIndex index, LogMaker template) {
+        return index.findMatchingLogs(template);
+    }
+
     /**
      * Assert unless there is at least one  log that matches the template.
      */
@@ -109,6 +138,13 @@ public class MetricsAsserts {
         assertTrue(message, !findMatchingLogs(queue, expected).isEmpty());
     }
 
+    /**
+     * Assert unless there is at least one  log that matches the template.
+     */
+    public static void assertHasLog(String message, MetricsIndex index, LogMaker expected) {
+        assertTrue(message, index.hasMatchingLog(expected));
+    }
+
     private static class ReaderQueue implements Queue<LogMaker> {
 
         private final MetricsReader mMetricsReader;
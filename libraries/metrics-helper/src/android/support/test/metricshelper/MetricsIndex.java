@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.metricshelper;
+
+import android.metrics.LogMaker;
+import android.metrics.MetricsReader;
+
+import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+
+/**
+ * A snapshot of logs, indexed by category, type and subtype in a single pass, so that many
+ * assertions about the same logs each only look at the logs which could match.
+ *
+ * <p>For example:
+ * <code>
+ *     MetricsIndex logs = MetricsIndex.read(reader);
+ *     MetricsAsserts.assertHasActionLog("no action", logs, view);
+ *     MetricsAsserts.assertHasVisibilityLog("not shown", logs, view, true);
+ * </code>
+ */
+public class MetricsIndex {
+
+    private final List<LogMaker> mLogs = new ArrayList<>();
+
+    // Logs by category; category and type; and category, type and subtype, in the order read.
+    private final Map<Key, List<LogMaker>> mBuckets = new HashMap<>();
+
+    /**
+     * Reads all of the available logs from the reader and indexes them.
+     */
+    public static MetricsIndex read(MetricsReader reader) {
+        reader.read(0);
+        MetricsIndex index = new MetricsIndex();
+        while (reader.hasNext()) {
+            index.add(reader.next());
+        }
+        return index;
+    }
+
+    /**
+     * Indexes the logs in the queue, leaving it empty.
+     */
+    public static MetricsIndex read(Queue<LogMaker> queue) {
+        MetricsIndex index = new MetricsIndex();
+        while (!queue.isEmpty()) {
+            index.add(queue.poll());
+        }
+        return index;
+    }
+
+    private MetricsIndex() {}
+
+    private void add(LogMaker log) {
+        if (log == null) {
+            return;
+        }
+        mLogs.add(log);
+        int category = log.getCategory();
+        int type = log.getType();
+        addToBucket(new Key(category, null, null), log);
+        addToBucket(new Key(category, type, null), log);
+        addToBucket(new Key(category, type, log.getSubtype()), log);
+    }
+
+    private void addToBucket(Key key, LogMaker log) {
+        List<LogMaker> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(log);
+    }
+
+    /**
+     * @returns the number of logs in the index.
+     */
+    public int size() {
+        return mLogs.size();
+    }
+
+    /**
+     * @returns logs that have at least all the matching fields in the template, most recent first,
+     *     like {@link MetricsAsserts#findMatchingLogs(Queue, LogMaker)}.
+     */
+    public Queue<LogMaker> findMatchingLogs(LogMaker template) {
+        LinkedList<LogMaker> logs = new LinkedList<>();
+        if (template == null) {
+            return logs;
+        }
+        for (LogMaker log : getCandidates(template)) {
+            if (template.isSubsetOf(log)) {
+                logs.push(log);
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * @returns whether any log has at least all the matching fields in the template.
+     */
+    public boolean hasMatchingLog(LogMaker template) {
+        if (template == null) {
+            return false;
+        }
+        for (LogMaker log : getCandidates(template)) {
+            if (template.isSubsetOf(log)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns the smallest bucket which holds every log that could match the template. Fields are
+    // only used if they are set, since unset fields read as zero.
+    private List<LogMaker> getCandidates(LogMaker template) {
+        int category = template.getCategory();
+        if (category == MetricsEvent.VIEW_UNKNOWN) {
+            return mLogs;
+        }
+        Key key;
+        int type = template.getType();
+        if (type == MetricsEvent.TYPE_UNKNOWN) {
+            key = new Key(category, null, null);
+        } else if (template.getSubtype() == 0) {
+            key = new Key(category, type, null);
+        } else {
+            key = new Key(category, type, template.getSubtype());
+        }
+        List<LogMaker> bucket = mBuckets.get(key);
+        return bucket != null ? bucket : Collections.emptyList();
+    }
+
+    /** A category, with a type or a type and subtype if they are indexed. */
+    private static class Key {
+        private final int mCategory;
+        private final Integer mType;
+        private final Integer mSubtype;
+
+        Key(int category, Integer type, Integer subtype) {
+            mCategory = category;
+            mType = type;
+            mSubtype = subtype;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return mCategory == key.mCategory
+                    && Objects.equals(mType, key.mType)
+                    && Objects.equals(mSubtype, key.mSubtype);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCategory, mType, mSubtype);
+        }
+    }
+}
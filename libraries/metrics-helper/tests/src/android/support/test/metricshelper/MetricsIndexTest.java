@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.metricshelper;
+
+import android.metrics.LogMaker;
+import android.metrics.MetricsReader;
+import android.util.Log;
+import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MetricsIndexTest {
+    private static final String LOG_TAG = MetricsIndexTest.class.getSimpleName();
+    private static final int LOG_COUNT = 100000;
+    private static final int CATEGORY_COUNT = 1000;
+    private static final int SUBTYPE_COUNT = 10;
+    private static final int[] TYPES = {
+        MetricsEvent.TYPE_UNKNOWN,
+        MetricsEvent.TYPE_OPEN,
+        MetricsEvent.TYPE_CLOSE,
+        MetricsEvent.TYPE_ACTION,
+    };
+    private static final int QUERY_COUNT = 200;
+    // Linear scans look at every log for each query, and the index at a few, but building the index
+    // takes about as long as 10 scans. The speedup was about 17 on a workstation.
+    private static final long MIN_SPEEDUP = 5;
+
+    @Mock MetricsReader mReader;
+
+    private List<LogMaker> mLogs;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        mLogs = new ArrayList<>(LOG_COUNT);
+        for (int i = 0; i < LOG_COUNT; i++) {
+            LogMaker log = new LogMaker(1 + i % CATEGORY_COUNT).setTimestamp(i);
+            int type = TYPES[(i / CATEGORY_COUNT) % TYPES.length];
+            if (type != MetricsEvent.TYPE_UNKNOWN) {
+                log.setType(type);
+            }
+            // leave the subtype unset for some logs, and set it to zero for others
+            int subtype = (i / (CATEGORY_COUNT * TYPES.length)) % (SUBTYPE_COUNT + 1);
+            if (subtype < SUBTYPE_COUNT) {
+                log.setSubtype(subtype);
+            }
+            mLogs.add(log);
+        }
+    }
+
+    /** Tests that the index finds the same logs as a linear scan, in the same order. */
+    @Test
+    public void testMatchesLinearScan() {
+        MetricsIndex index = MetricsIndex.read(new ArrayDeque<>(mLogs));
+        assertEquals(LOG_COUNT, index.size());
+
+        for (LogMaker template : getTemplates()) {
+            Queue<LogMaker> expected =
+                    MetricsAsserts.findMatchingLogs(new ArrayDeque<>(mLogs), template);
+            Queue<LogMaker> actual = MetricsAsserts.findMatchingLogs(index, template);
+            assertEquals(String.valueOf(template), expected.size(), actual.size());
+            while (!expected.isEmpty()) {
+                assertSame(expected.poll(), actual.poll());
+            }
+        }
+    }
+
+    @Test
+    public void testNullTemplate() {
+        MetricsIndex index = MetricsIndex.read(new ArrayDeque<>(mLogs));
+        assertTrue(index.findMatchingLogs(null).isEmpty());
+        assertFalse(index.hasMatchingLog(null));
+    }
+
+    /** Tests that the index is read from the start of the reader's logs. */
+    @Test
+    public void testReadsReader() {
+        LogMaker open = new LogMaker(MetricsEvent.MAIN_SETTINGS).setType(MetricsEvent.TYPE_OPEN);
+        LogMaker action =
+                new LogMaker(MetricsEvent.ACTION_WIFI_ON)
+                        .setType(MetricsEvent.TYPE_ACTION)
+                        .setSubtype(4);
+        when(mReader.hasNext()).thenReturn(true, true, false);
+        when(mReader.next()).thenReturn(open, action, null);
+
+        MetricsIndex index = MetricsIndex.read(mReader);
+
+        verify(mReader).read(0);
+        assertEquals(2, index.size());
+        MetricsAsserts.assertHasVisibilityLog("not shown", index, MetricsEvent.MAIN_SETTINGS, true);
+        MetricsAsserts.assertHasActionLog("no action", index, MetricsEvent.ACTION_WIFI_ON);
+        MetricsAsserts.assertHasLog("no subtype", index,
+                new LogMaker(MetricsEvent.ACTION_WIFI_ON)
+                        .setType(MetricsEvent.TYPE_ACTION)
+                        .setSubtype(4));
+        try {
+            MetricsAsserts.assertHasActionLog("foo", index, MetricsEvent.MAIN_SETTINGS);
+        } catch (AssertionError e) {
+            assertEquals("foo", e.getMessage());
+            return; // success!
+        }
+        throw new AssertionError("Found a missing log");
+    }
+
+    /** Tests that many queries are faster with the index, including the time to build it. */
+    @Test
+    public void testSpeedup() {
+        List<LogMaker> templates = new ArrayList<>();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            templates.add(new LogMaker(1 + i * 7 % CATEGORY_COUNT)
+                    .setType(TYPES[1 + i % (TYPES.length - 1)])
+                    .setSubtype(i % SUBTYPE_COUNT));
+        }
+
+        long start = System.nanoTime();
+        int linearMatches = 0;
+        for (LogMaker template : templates) {
+            linearMatches +=
+                    MetricsAsserts.findMatchingLogs(new ArrayDeque<>(mLogs), template).size();
+        }
+        long linearNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        MetricsIndex index = MetricsIndex.read(new ArrayDeque<>(mLogs));
+        int indexMatches = 0;
+        for (LogMaker template : templates) {
+            indexMatches += MetricsAsserts.findMatchingLogs(index, template).size();
+        }
+        long indexNs = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, String.format("%d queries of %d logs: %d ms linear, %d ms indexed",
+                QUERY_COUNT, LOG_COUNT, linearNs / 1000000, indexNs / 1000000));
+        assertEquals(linearMatches, indexMatches);
+        assertTrue(String.format("Speedup of %d is less than %d", linearNs / indexNs, MIN_SPEEDUP),
+                linearNs / indexNs >= MIN_SPEEDUP);
+    }
+
+    // Templates with each combination of fields, including fields explicitly set to zero.
+    private static List<LogMaker> getTemplates() {
+        List<LogMaker> templates = new ArrayList<>();
+        templates.add(new LogMaker(MetricsEvent.VIEW_UNKNOWN).setSubtype(3));
+        templates.add(new LogMaker(MetricsEvent.VIEW_UNKNOWN).setType(MetricsEvent.TYPE_OPEN));
+        for (int category : Arrays.asList(1, 17, CATEGORY_COUNT, CATEGORY_COUNT + 1)) {
+            templates.add(new LogMaker(category));
+            templates.add(new LogMaker(category).setSubtype(0));
+            templates.add(new LogMaker(category).setSubtype(5));
+            for (int type : TYPES) {
+                templates.add(new LogMaker(category).setType(type));
+                templates.add(new LogMaker(category).setType(type).setSubtype(0));
+                templates.add(new LogMaker(category).setType(type).setSubtype(7));
+            }
+        }
+        return templates;
+    }
+}
@@ -22,6 +22,8 @@ import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
+import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
@@ -42,7 +44,17 @@ import android.widget.TextView;
 
 import junit.framework.Assert;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
@@ -78,10 +90,16 @@ public class SettingsHelper {
     private ContentResolver mResolver = null;
     private Context mContext = null;
     private UiDevice mDevice = null;
+    private SettingsStore mStore = null;
 
     public SettingsHelper() {
-        mContext = InstrumentationRegistry.getTargetContext();
+        this(InstrumentationRegistry.getTargetContext(), null);
+    }
+
+    SettingsHelper(Context context, SettingsStore store) {
+        mContext = context;
         mResolver = mContext.getContentResolver();
+        mStore = (store != null ? store : new ProviderSettingsStore(mResolver));
         mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
         mActivityHelper = ActivityHelper.getInstance();
     }
@@ -250,15 +268,7 @@ public class SettingsHelper {
      * @return
      */
     public String getStringSetting(SettingsType type, String sName) {
-        switch (type) {
-            case SYSTEM:
-                return Settings.System.getString(mResolver, sName);
-            case GLOBAL:
-                return Settings.Global.getString(mResolver, sName);
-            case SECURE:
-                return Settings.Secure.getString(mResolver, sName);
-        }
-        return "";
+        return mStore.getString(type, sName);
     }
 
     /**
@@ -281,47 +291,209 @@ public class SettingsHelper {
     }
 
     /**
-     * Set string value of a setting
+     * Set string value of a setting, and wait up to {@link #TIMEOUT} for the change to be observed,
+     * failing if it is not
      * @param type
      * @param sName
      * @param value
      */
     public void setStringSetting(SettingsType type, String sName, String value)
             throws InterruptedException {
-        switch (type) {
-            case SYSTEM:
-                Settings.System.putString(mResolver, sName, value);
-                break;
-            case GLOBAL:
-                Settings.Global.putString(mResolver, sName, value);
-                break;
-            case SECURE:
-                Settings.Secure.putString(mResolver, sName, value);
-                break;
-        }
-        Thread.sleep(TIMEOUT);
+        Assert.assertTrue(String.format("Timed out setting %s to %s", sName, value),
+                newBatch().putString(type, sName, value).apply());
     }
 
     /**
-     * Sets int value of a setting
+     * Sets int value of a setting, and wait up to {@link #TIMEOUT} for the change to be observed,
+     * failing if it is not
      * @param type
      * @param sName
      * @param value
      */
     public void setIntSetting(SettingsType type, String sName, int value)
             throws InterruptedException {
-        switch (type) {
-            case SYSTEM:
-                Settings.System.putInt(mResolver, sName, value);
-                break;
-            case GLOBAL:
-                Settings.Global.putInt(mResolver, sName, value);
-                break;
-            case SECURE:
-                Settings.Secure.putInt(mResolver, sName, value);
-                break;
+        Assert.assertTrue(String.format("Timed out setting %s to %d", sName, value),
+                newBatch().putInt(type, sName, value).apply());
+    }
+
+    /**
+     * Starts a batch of settings, which are written together and waited for once, e.g.
+     * <code>
+     *     settingsHelper.newBatch()
+     *             .putInt(SettingsType.GLOBAL, Settings.Global.STAY_ON_WHILE_PLUGGED_IN, 7)
+     *             .putInt(SettingsType.SYSTEM, Settings.System.SCREEN_OFF_TIMEOUT, 1800000)
+     *             .apply();
+     * </code>
+     * @return
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Settings to write together. Instead of sleeping after each write, {@link #apply()} waits for
+     * the settings provider to report every changed setting.
+     */
+    public class Batch {
+        private final Map<SettingsType, Map<String, String>> mValues =
+                new EnumMap<>(SettingsType.class);
+
+        private Batch() {}
+
+        /**
+         * Adds a string value to the batch, replacing any earlier value of the setting
+         * @param type
+         * @param sName
+         * @param value
+         * @return
+         */
+        public Batch putString(SettingsType type, String sName, String value) {
+            Map<String, String> values = mValues.get(type);
+            if (values == null) {
+                values = new LinkedHashMap<>();
+                mValues.put(type, values);
+            }
+            values.put(sName, value);
+            return this;
+        }
+
+        /**
+         * Adds an int value to the batch, replacing any earlier value of the setting
+         * @param type
+         * @param sName
+         * @param value
+         * @return
+         */
+        public Batch putInt(SettingsType type, String sName, int value) {
+            return putString(type, sName, Integer.toString(value));
+        }
+
+        /**
+         * Writes the settings, and waits up to {@link #TIMEOUT} for the changes to be observed
+         * @return whether every change was observed
+         * @throws InterruptedException
+         */
+        public boolean apply() throws InterruptedException {
+            return apply(TIMEOUT);
+        }
+
+        /**
+         * Writes the settings, and waits for the changes to be observed
+         * @param timeoutMs
+         * @return whether every change was observed within the timeout
+         * @throws InterruptedException
+         */
+        public boolean apply(long timeoutMs) throws InterruptedException {
+            // The provider does not report settings which already have their value, so they are
+            // neither written nor waited for.
+            final Set<Uri> pending = new HashSet<>();
+            final List<Runnable> writes = new ArrayList<>();
+            for (Map.Entry<SettingsType, Map<String, String>> values : mValues.entrySet()) {
+                final SettingsType type = values.getKey();
+                for (Map.Entry<String, String> value : values.getValue().entrySet()) {
+                    final String sName = value.getKey();
+                    final String sValue = value.getValue();
+                    if (!Objects.equals(mStore.getString(type, sName), sValue)) {
+                        pending.add(mStore.getUri(type, sName));
+                        writes.add(() -> mStore.putString(type, sName, sValue));
+                    }
+                }
+            }
+            if (pending.isEmpty()) {
+                return true;
+            }
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            ContentObserver observer = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    synchronized (pending) {
+                        if (pending.remove(uri) && pending.isEmpty()) {
+                            latch.countDown();
+                        }
+                    }
+                }
+            };
+            for (Uri uri : new ArrayList<>(pending)) {
+                mResolver.registerContentObserver(uri, false, observer);
+            }
+            try {
+                for (Runnable write : writes) {
+                    write.run();
+                }
+                if (!latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    synchronized (pending) {
+                        Log.w(TAG, "Timed out waiting for settings to change: " + pending);
+                    }
+                    return false;
+                }
+                return true;
+            } finally {
+                mResolver.unregisterContentObserver(observer);
+            }
+        }
+    }
+
+    /**
+     * Reads and writes settings, and names the {@link Uri} which the provider notifies when a
+     * setting changes.
+     */
+    interface SettingsStore {
+        Uri getUri(SettingsType type, String sName);
+
+        String getString(SettingsType type, String sName);
+
+        void putString(SettingsType type, String sName, String value);
+    }
+
+    /** Reads and writes settings through the settings provider. */
+    private static class ProviderSettingsStore implements SettingsStore {
+        private final ContentResolver mResolver;
+
+        ProviderSettingsStore(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        @Override
+        public Uri getUri(SettingsType type, String sName) {
+            switch (type) {
+                case SYSTEM:
+                    return Settings.System.getUriFor(sName);
+                case GLOBAL:
+                    return Settings.Global.getUriFor(sName);
+                case SECURE:
+                    return Settings.Secure.getUriFor(sName);
+            }
+            return null;
+        }
+
+        @Override
+        public String getString(SettingsType type, String sName) {
+            switch (type) {
+                case SYSTEM:
+                    return Settings.System.getString(mResolver, sName);
+                case GLOBAL:
+                    return Settings.Global.getString(mResolver, sName);
+                case SECURE:
+                    return Settings.Secure.getString(mResolver, sName);
+            }
+            return "";
+        }
+
+        @Override
+        public void putString(SettingsType type, String sName, String value) {
+            switch (type) {
+                case SYSTEM:
+                    Settings.System.putString(mResolver, sName, value);
+                    break;
+                case GLOBAL:
+                    Settings.Global.putString(mResolver, sName, value);
+                    break;
+                case SECURE:
+                    Settings.Secure.putString(mResolver, sName, value);
+                    break;
+            }
         }
-        Thread.sleep(TIMEOUT);
     }
 
     /**
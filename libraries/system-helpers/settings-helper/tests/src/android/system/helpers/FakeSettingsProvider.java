@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.system.helpers;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.system.helpers.SettingsHelper.SettingsType;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores settings in memory, and like the settings provider, notifies the {@link Uri} of each
+ * setting when its value changes. Notifications are delayed, as they would be by a busy device.
+ */
+public class FakeSettingsProvider extends ContentProvider {
+    static final String AUTHORITY = "android.system.helpers.tests.settings";
+    static final long NOTIFY_DELAY_MS = 100;
+
+    private static final String METHOD_GET = "GET";
+    private static final String METHOD_PUT = "PUT";
+    private static final String KEY_VALUE = "value";
+
+    private static final Map<Uri, String> sValues = new HashMap<>();
+    private static final Set<Uri> sSilentUris = new HashSet<>();
+    private static int sPutCount;
+
+    private Handler mHandler;
+
+    @Override
+    public boolean onCreate() {
+        HandlerThread thread = new HandlerThread(FakeSettingsProvider.class.getSimpleName());
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        return true;
+    }
+
+    static Uri getUri(SettingsType type, String sName) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .appendPath(type.name().toLowerCase())
+                .appendPath(sName)
+                .build();
+    }
+
+    /** Clears the settings and counts. */
+    static synchronized void reset() {
+        sValues.clear();
+        sSilentUris.clear();
+        sPutCount = 0;
+    }
+
+    /** Changes to the setting will not be notified. */
+    static synchronized void setSilent(Uri uri) {
+        sSilentUris.add(uri);
+    }
+
+    static synchronized int getPutCount() {
+        return sPutCount;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        final Uri uri = Uri.parse(arg);
+        Bundle result = new Bundle();
+        synchronized (FakeSettingsProvider.class) {
+            switch (method) {
+                case METHOD_GET:
+                    result.putString(KEY_VALUE, sValues.get(uri));
+                    break;
+                case METHOD_PUT:
+                    sPutCount++;
+                    sValues.put(uri, extras.getString(KEY_VALUE));
+                    if (!sSilentUris.contains(uri)) {
+                        mHandler.postDelayed(
+                                () -> getContext().getContentResolver().notifyChange(uri, null),
+                                NOTIFY_DELAY_MS);
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    /** Reads and writes settings through the fake provider. */
+    static class Store implements SettingsHelper.SettingsStore {
+        private static final Uri PROVIDER_URI = Uri.parse("content://" + AUTHORITY);
+
+        private final ContentResolver mResolver;
+
+        Store(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        @Override
+        public Uri getUri(SettingsType type, String sName) {
+            return FakeSettingsProvider.getUri(type, sName);
+        }
+
+        @Override
+        public String getString(SettingsType type, String sName) {
+            return mResolver.call(PROVIDER_URI, METHOD_GET, getUri(type, sName).toString(), null)
+                    .getString(KEY_VALUE);
+        }
+
+        @Override
+        public void putString(SettingsType type, String sName, String value) {
+            Bundle extras = new Bundle();
+            extras.putString(KEY_VALUE, value);
+            mResolver.call(PROVIDER_URI, METHOD_PUT, getUri(type, sName).toString(), extras);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.system.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.system.helpers.SettingsHelper.SettingsType;
+
+import junit.framework.AssertionFailedError;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit test the batched writes of {@link SettingsHelper} against a {@link FakeSettingsProvider}
+ */
+@RunWith(JUnit4.class)
+public class SettingsHelperTest {
+    private static final int SETTING_COUNT = 25;
+    private static final long SHORT_TIMEOUT_MS = 500;
+
+    private SettingsHelper mHelper;
+
+    @Before
+    public void setUp() {
+        FakeSettingsProvider.reset();
+        Context context = InstrumentationRegistry.getContext();
+        mHelper = new SettingsHelper(
+                context, new FakeSettingsProvider.Store(context.getContentResolver()));
+    }
+
+    /** Tests that a batch is written and waited for once, rather than sleeping per setting. */
+    @Test
+    public void testApplyBatch() throws InterruptedException {
+        SettingsHelper.Batch batch = mHelper.newBatch();
+        for (int i = 0; i < SETTING_COUNT; i++) {
+            batch.putInt(SettingsType.values()[i % SettingsType.values().length], "setting" + i, i);
+        }
+
+        long start = System.currentTimeMillis();
+        assertThat(batch.apply()).isTrue();
+        long elapsedMs = System.currentTimeMillis() - start;
+
+        assertThat(FakeSettingsProvider.getPutCount()).isEqualTo(SETTING_COUNT);
+        for (int i = 0; i < SETTING_COUNT; i++) {
+            assertThat(mHelper.getStringSetting(
+                    SettingsType.values()[i % SettingsType.values().length], "setting" + i))
+                    .isEqualTo(Integer.toString(i));
+        }
+        assertThat(elapsedMs).isAtLeast(FakeSettingsProvider.NOTIFY_DELAY_MS);
+        assertThat(elapsedMs).isLessThan(SettingsHelper.TIMEOUT);
+    }
+
+    /** Tests that a later value of a setting replaces an earlier one. */
+    @Test
+    public void testApplyLastValue() throws InterruptedException {
+        assertThat(mHelper.newBatch()
+                .putString(SettingsType.GLOBAL, "setting", "first")
+                .putString(SettingsType.GLOBAL, "setting", "last")
+                .apply()).isTrue();
+        assertThat(FakeSettingsProvider.getPutCount()).isEqualTo(1);
+        assertThat(mHelper.getStringSetting(SettingsType.GLOBAL, "setting")).isEqualTo("last");
+    }
+
+    /** Tests that settings which already have their values are neither written nor waited for. */
+    @Test
+    public void testApplyUnchanged() throws InterruptedException {
+        mHelper.setIntSetting(SettingsType.SECURE, "setting", 1);
+        FakeSettingsProvider.setSilent(FakeSettingsProvider.getUri(SettingsType.SECURE, "setting"));
+
+        long start = System.currentTimeMillis();
+        assertThat(mHelper.newBatch().putInt(SettingsType.SECURE, "setting", 1).apply()).isTrue();
+        assertThat(System.currentTimeMillis() - start).isLessThan(SHORT_TIMEOUT_MS);
+        assertThat(FakeSettingsProvider.getPutCount()).isEqualTo(1);
+    }
+
+    /** Tests that a change which is never notified times out. */
+    @Test
+    public void testApplyTimeout() throws InterruptedException {
+        FakeSettingsProvider.setSilent(FakeSettingsProvider.getUri(SettingsType.SYSTEM, "silent"));
+
+        long start = System.currentTimeMillis();
+        assertThat(mHelper.newBatch()
+                .putInt(SettingsType.SYSTEM, "setting", 1)
+                .putInt(SettingsType.SYSTEM, "silent", 1)
+                .apply(SHORT_TIMEOUT_MS)).isFalse();
+        assertThat(System.currentTimeMillis() - start).isAtLeast(SHORT_TIMEOUT_MS);
+        assertThat(mHelper.getStringSetting(SettingsType.SYSTEM, "silent")).isEqualTo("1");
+    }
+
+    /** Tests that single settings wait for their change, rather than a fixed time. */
+    @Test
+    public void testSetStringSetting() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        mHelper.setStringSetting(SettingsType.GLOBAL, "setting", "value");
+        assertThat(System.currentTimeMillis() - start).isLessThan(SettingsHelper.TIMEOUT);
+        assertThat(mHelper.getStringSetting(SettingsType.GLOBAL, "setting")).isEqualTo("value");
+    }
+
+    /** Tests that single settings fail if their change is never observed. */
+    @Test(expected = AssertionFailedError.class)
+    public void testSetIntSettingTimeout() throws InterruptedException {
+        FakeSettingsProvider.setSilent(FakeSettingsProvider.getUri(SettingsType.SYSTEM, "silent"));
+        mHelper.setIntSetting(SettingsType.SYSTEM, "silent", 1);
+    }
+}